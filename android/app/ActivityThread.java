@@ -997,6 +997,14 @@ public final class ActivityThread {
                     sticky, sendingUser);
         }
 
+        // Same as scheduleRegisteredReceiver() for each delivery in the batch, which the system
+        // uses to deliver a burst of non-ordered broadcasts to this process in one call.
+        public void scheduleRegisteredReceivers(RegisteredReceiverBatch batch,
+                int processState) {
+            updateProcessState(processState, false);
+            batch.performReceives();
+        }
+
         @Override
         public void scheduleLowMemory() {
             sendMessage(H.LOW_MEMORY, null);
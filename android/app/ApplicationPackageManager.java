@@ -47,6 +47,7 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageInstaller;
 import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageSnapshot;
 import android.content.pm.ParceledListSlice;
 import android.content.pm.PermissionGroupInfo;
 import android.content.pm.PermissionInfo;
@@ -72,6 +73,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -124,6 +126,23 @@ public class ApplicationPackageManager extends PackageManager {
     @GuardedBy("mLock")
     private String mPermissionsControllerPackageName;
 
+    private static final boolean USE_PACKAGE_SNAPSHOT =
+            SystemProperties.getBoolean("pm.package_snapshots", true);
+
+    // How long to go without a snapshot once the package manager had none to give
+    private static final long PACKAGE_SNAPSHOT_RETRY_MILLIS = 1000;
+
+    private static final Intent LAUNCHER_INTENT =
+            new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+
+    // Shared memory copy of common queries for the user of this process, shared by
+    // every context, consulted before making a binder call.
+    private static final Object sPackageSnapshotLock = new Object();
+    @GuardedBy("sPackageSnapshotLock")
+    private static PackageSnapshot sPackageSnapshot;
+    @GuardedBy("sPackageSnapshotLock")
+    private static long sNextPackageSnapshotRequestTime;
+
     UserManager getUserManager() {
         synchronized (mLock) {
             if (mUserManager == null) {
@@ -157,6 +176,15 @@ public class ApplicationPackageManager extends PackageManager {
     @Override
     public PackageInfo getPackageInfoAsUser(String packageName, int flags, int userId)
             throws NameNotFoundException {
+        if (flags == 0) {
+            final PackageSnapshot snapshot = getPackageSnapshot(userId);
+            if (snapshot != null) {
+                final PackageInfo pi = snapshot.getPackageInfo(packageName);
+                if (pi != null && !snapshot.isStale()) {
+                    return pi;
+                }
+            }
+        }
         try {
             PackageInfo pi = mPM.getPackageInfo(packageName, flags, userId);
             if (pi != null) {
@@ -357,6 +385,15 @@ public class ApplicationPackageManager extends PackageManager {
     @Override
     public ApplicationInfo getApplicationInfoAsUser(String packageName, int flags, int userId)
             throws NameNotFoundException {
+        if (flags == 0) {
+            final PackageSnapshot snapshot = getPackageSnapshot(userId);
+            if (snapshot != null) {
+                final ApplicationInfo ai = snapshot.getApplicationInfo(packageName);
+                if (ai != null && !snapshot.isStale()) {
+                    return maybeAdjustApplicationInfo(ai);
+                }
+            }
+        }
         try {
             ApplicationInfo ai = mPM.getApplicationInfo(packageName, flags, userId);
             if (ai != null) {
@@ -904,6 +941,15 @@ public class ApplicationPackageManager extends PackageManager {
     @SuppressWarnings("unchecked")
     public List<ResolveInfo> queryIntentActivitiesAsUser(Intent intent,
             int flags, int userId) {
+        if (flags == 0 && isLauncherQuery(intent)) {
+            final PackageSnapshot snapshot = getPackageSnapshot(userId);
+            if (snapshot != null) {
+                final List<ResolveInfo> list = snapshot.queryLauncherActivities();
+                if (list != null && !snapshot.isStale()) {
+                    return list;
+                }
+            }
+        }
         try {
             ParceledListSlice<ResolveInfo> parceledList =
                     mPM.queryIntentActivities(intent,
@@ -918,6 +964,50 @@ public class ApplicationPackageManager extends PackageManager {
         }
     }
 
+    private static boolean isLauncherQuery(Intent intent) {
+        return intent.getSelector() == null
+                && (intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) == 0
+                && LAUNCHER_INTENT.filterEquals(intent);
+    }
+
+    /**
+     * Returns the package snapshot of the given user if it can answer queries, or null
+     * if they have to go to the package manager. Only the user of this process gets
+     * one. A stale snapshot is replaced at most once per
+     * {@link #PACKAGE_SNAPSHOT_RETRY_MILLIS}, binder calls are made meanwhile.
+     */
+    private PackageSnapshot getPackageSnapshot(int userId) {
+        if (!USE_PACKAGE_SNAPSHOT || userId != UserHandle.myUserId()) {
+            return null;
+        }
+        synchronized (sPackageSnapshotLock) {
+            if (sPackageSnapshot != null && !sPackageSnapshot.isStale()) {
+                return sPackageSnapshot;
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (now < sNextPackageSnapshotRequestTime) {
+                return null;
+            }
+            sNextPackageSnapshotRequestTime = now + PACKAGE_SNAPSHOT_RETRY_MILLIS;
+        }
+
+        final PackageSnapshot snapshot;
+        try {
+            snapshot = mPM.getPackageSnapshot(userId);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+        if (snapshot == null || snapshot.isStale()) {
+            return null;
+        }
+        // The old snapshot may still be in use by other threads, it's unmapped once
+        // unreachable
+        synchronized (sPackageSnapshotLock) {
+            sPackageSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public List<ResolveInfo> queryIntentActivityOptions(
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.util.Slog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * System private API for delivering several non-ordered broadcasts to receivers registered in
+ * one process with a single transaction, in the order they were added.
+ *
+ * {@hide}
+ */
+public final class RegisteredReceiverBatch implements Parcelable {
+    private static final String TAG = "RegisteredReceiverBatch";
+
+    private final ArrayList<IIntentReceiver> mReceivers;
+    private final ArrayList<Intent> mIntents;
+    private final ArrayList<String> mData;
+    private final ArrayList<Bundle> mExtras;
+    private int[] mResultCodes;
+    private int[] mSendingUsers;
+    private boolean[] mSticky;
+    // Estimate of the bytes the deliveries take up when marshalled
+    private int mDataSize;
+
+    public RegisteredReceiverBatch() {
+        this(4);
+    }
+
+    private RegisteredReceiverBatch(int capacity) {
+        mReceivers = new ArrayList<>(capacity);
+        mIntents = new ArrayList<>(capacity);
+        mData = new ArrayList<>(capacity);
+        mExtras = new ArrayList<>(capacity);
+        mResultCodes = new int[capacity];
+        mSendingUsers = new int[capacity];
+        mSticky = new boolean[capacity];
+    }
+
+    public void add(IIntentReceiver receiver, Intent intent, int resultCode, String data,
+            Bundle extras, boolean sticky, int sendingUser) {
+        append(receiver, intent, resultCode, data, extras, sticky, sendingUser);
+        // binder object and ints, then the variable sized parts
+        mDataSize += 40 + intent.getParcelledSizeEstimate()
+                + (data != null ? 8 + data.length() * 2 : 4)
+                + (extras != null ? extras.getParcelledSizeEstimate() : 4);
+    }
+
+    private void append(IIntentReceiver receiver, Intent intent, int resultCode, String data,
+            Bundle extras, boolean sticky, int sendingUser) {
+        final int index = mReceivers.size();
+        if (index == mResultCodes.length) {
+            final int capacity = index * 2;
+            mResultCodes = Arrays.copyOf(mResultCodes, capacity);
+            mSendingUsers = Arrays.copyOf(mSendingUsers, capacity);
+            mSticky = Arrays.copyOf(mSticky, capacity);
+        }
+        mReceivers.add(receiver);
+        mIntents.add(intent);
+        mData.add(data);
+        mExtras.add(extras);
+        mResultCodes[index] = resultCode;
+        mSendingUsers[index] = sendingUser;
+        mSticky[index] = sticky;
+    }
+
+    public int size() {
+        return mReceivers.size();
+    }
+
+    /**
+     * Returns roughly how many bytes the deliveries added so far take up in a parcel.
+     */
+    public int getDataSize() {
+        return mDataSize;
+    }
+
+    public IIntentReceiver getReceiver(int index) {
+        return mReceivers.get(index);
+    }
+
+    public Intent getIntent(int index) {
+        return mIntents.get(index);
+    }
+
+    public int getResultCode(int index) {
+        return mResultCodes[index];
+    }
+
+    public String getData(int index) {
+        return mData.get(index);
+    }
+
+    public Bundle getExtras(int index) {
+        return mExtras.get(index);
+    }
+
+    public boolean isSticky(int index) {
+        return mSticky[index];
+    }
+
+    public int getSendingUser(int index) {
+        return mSendingUsers[index];
+    }
+
+    public void clear() {
+        mReceivers.clear();
+        mIntents.clear();
+        mData.clear();
+        mExtras.clear();
+        mDataSize = 0;
+    }
+
+    /**
+     * Deliver each broadcast to its receiver, in order. A receiver that fails doesn't stop the
+     * delivery to the ones after it.
+     */
+    public void performReceives() {
+        final int N = mReceivers.size();
+        for (int i = 0; i < N; i++) {
+            try {
+                mReceivers.get(i).performReceive(mIntents.get(i), mResultCodes[i], mData.get(i),
+                        mExtras.get(i), false, mSticky[i], mSendingUsers[i]);
+            } catch (RemoteException e) {
+                Slog.w(TAG, "Failure delivering " + mIntents.get(i), e);
+            }
+        }
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        final int N = mReceivers.size();
+        out.writeInt(N);
+        for (int i = 0; i < N; i++) {
+            writeDeliveryToParcel(out, i, flags);
+        }
+    }
+
+    private void writeDeliveryToParcel(Parcel out, int index, int flags) {
+        out.writeStrongBinder(mReceivers.get(index).asBinder());
+        mIntents.get(index).writeToParcel(out, flags);
+        out.writeInt(mResultCodes[index]);
+        out.writeString(mData.get(index));
+        out.writeBundle(mExtras.get(index));
+        out.writeInt(mSticky[index] ? 1 : 0);
+        out.writeInt(mSendingUsers[index]);
+    }
+
+    public static final Parcelable.Creator<RegisteredReceiverBatch> CREATOR =
+            new Parcelable.Creator<RegisteredReceiverBatch>() {
+        public RegisteredReceiverBatch createFromParcel(Parcel in) {
+            final int N = in.readInt();
+            final RegisteredReceiverBatch batch = new RegisteredReceiverBatch(Math.max(N, 1));
+            for (int i = 0; i < N; i++) {
+                final IIntentReceiver receiver = IIntentReceiver.Stub.asInterface(
+                        in.readStrongBinder());
+                final Intent intent = Intent.CREATOR.createFromParcel(in);
+                final int resultCode = in.readInt();
+                final String data = in.readString();
+                final Bundle extras = in.readBundle();
+                final boolean sticky = in.readInt() != 0;
+                batch.append(receiver, intent, resultCode, data, extras, sticky, in.readInt());
+            }
+            return batch;
+        }
+
+        public RegisteredReceiverBatch[] newArray(int size) {
+            return new RegisteredReceiverBatch[size];
+        }
+    };
+}
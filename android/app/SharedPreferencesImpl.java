@@ -20,6 +20,7 @@ import android.annotation.Nullable;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
+import android.os.SystemProperties;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructStat;
@@ -33,14 +34,25 @@ import com.android.internal.util.XmlUtils;
 
 import dalvik.system.BlockGuard;
 
+import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -49,6 +61,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
 
 import libcore.io.IoUtils;
 
@@ -60,13 +73,43 @@ final class SharedPreferencesImpl implements SharedPreferences {
     /** If a fsync takes more than {@value #MAX_FSYNC_DURATION_MILLIS} ms, warn */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    /**
+     * Whether commits append only their changes to a journal next to the
+     * preferences file, instead of rewriting the whole file every time.
+     */
+    private static final boolean JOURNAL_ENABLED =
+            SystemProperties.getBoolean("persist.sys.sharedprefs.journal", false);
+
+    /**
+     * Minimum journal size before it is compacted into the preferences file.
+     * The journal is also allowed to grow to the size of the preferences file
+     * itself, which keeps the amortized cost of compaction proportional to
+     * the size of the changes.
+     */
+    private static final long JOURNAL_COMPACTION_THRESHOLD_BYTES = 64 * 1024;
+
+    /** Magic number at the start of the journal, followed by its generation. */
+    private static final int JOURNAL_MAGIC = 0x53504a31; // SPJ1
+    private static final int JOURNAL_HEADER_SIZE = 8;
+
+    // Value types in journal records
+    private static final byte JOURNAL_TYPE_REMOVE = 0;
+    private static final byte JOURNAL_TYPE_STRING = 1;
+    private static final byte JOURNAL_TYPE_INT = 2;
+    private static final byte JOURNAL_TYPE_LONG = 3;
+    private static final byte JOURNAL_TYPE_FLOAT = 4;
+    private static final byte JOURNAL_TYPE_BOOLEAN = 5;
+    private static final byte JOURNAL_TYPE_STRING_SET = 6;
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
 
     private final File mFile;
     private final File mBackupFile;
+    private final File mJournalFile;
     private final int mMode;
+    private final boolean mJournaled;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
@@ -85,6 +128,13 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mLock")
     private long mStatSize;
 
+    @GuardedBy("mLock")
+    private long mJournalStatSize;
+
+    /** Whether a compaction of the journal is already queued */
+    @GuardedBy("mLock")
+    private boolean mCompactionPending;
+
     @GuardedBy("mLock")
     private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
             new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
@@ -97,15 +147,25 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mWritingToDiskLock")
     private long mDiskStateGeneration;
 
+    /** Generation of the preferences file; the journal is only valid for the same generation. */
+    @GuardedBy("mWritingToDiskLock")
+    private int mJournalGeneration;
+
     /** Time (and number of instances) of file-system sync requests */
     @GuardedBy("mWritingToDiskLock")
     private final ExponentiallyBucketedHistogram mSyncTimes = new ExponentiallyBucketedHistogram(16);
     private int mNumSync = 0;
 
     SharedPreferencesImpl(File file, int mode) {
+        this(file, mode, JOURNAL_ENABLED);
+    }
+
+    SharedPreferencesImpl(File file, int mode, boolean journaled) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
+        mJournalFile = makeJournalFile(file);
         mMode = mode;
+        mJournaled = journaled;
         mLoaded = false;
         mMap = null;
         startLoadFromDisk();
@@ -140,6 +200,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         Map map = null;
         StructStat stat = null;
+        int generation = 0;
         try {
             stat = Os.stat(mFile.getPath());
             if (mFile.canRead()) {
@@ -147,7 +208,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 try {
                     str = new BufferedInputStream(
                             new FileInputStream(mFile), 16*1024);
-                    map = XmlUtils.readMapXml(str);
+                    final int[] outGeneration = new int[1];
+                    map = readPreferencesXml(str, outGeneration);
+                    generation = outGeneration[0];
                 } catch (Exception e) {
                     Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
                 } finally {
@@ -158,15 +221,31 @@ final class SharedPreferencesImpl implements SharedPreferences {
             /* ignore */
         }
 
+        // The journal is replayed even when journaling is disabled, so that
+        // changes from an earlier journaled run are never lost.
+        long journalSize = 0;
+        if (mJournalFile.exists()) {
+            if (map == null) {
+                map = new HashMap<>();
+            }
+            journalSize = replayJournal(map, generation);
+        }
+        synchronized (mWritingToDiskLock) {
+            mJournalGeneration = generation;
+        }
+
         synchronized (mLock) {
             mLoaded = true;
             if (map != null) {
                 mMap = map;
-                mStatTimestamp = stat.st_mtime;
-                mStatSize = stat.st_size;
+                if (stat != null) {
+                    mStatTimestamp = stat.st_mtime;
+                    mStatSize = stat.st_size;
+                }
             } else {
                 mMap = new HashMap<>();
             }
+            mJournalStatSize = journalSize;
             mLock.notifyAll();
         }
     }
@@ -175,6 +254,223 @@ final class SharedPreferencesImpl implements SharedPreferences {
         return new File(prefsFile.getPath() + ".bak");
     }
 
+    static File makeJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".journal");
+    }
+
+    /**
+     * Read a preferences file written by {@link #writePreferencesXml}, or by
+     * {@link XmlUtils#writeMapXml} before it was stamped with a generation.
+     */
+    private static Map readPreferencesXml(InputStream in, int[] outGeneration)
+            throws XmlPullParserException, IOException {
+        final XmlPullParser parser = XmlUtils.resolvePullParser(in);
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG
+                && type != XmlPullParser.END_DOCUMENT) {
+        }
+        if (type != XmlPullParser.START_TAG || !"map".equals(parser.getName())) {
+            return null;
+        }
+        final String journal = parser.getAttributeValue(null, "journal");
+        outGeneration[0] = (journal != null) ? Integer.parseInt(journal) : 0;
+        parser.next();
+        return XmlUtils.readThisMapXml(parser, "map", new String[1]);
+    }
+
+    private static void writePreferencesXml(Map map, int generation, OutputStream str)
+            throws XmlPullParserException, IOException {
+        final XmlSerializer out = XmlUtils.resolveSerializer(str, false);
+        out.startDocument(null, true);
+        out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        out.startTag(null, "map");
+        out.attribute(null, "journal", Integer.toString(generation));
+        XmlUtils.writeMapXml(map, out, null);
+        out.endTag(null, "map");
+        out.endDocument();
+    }
+
+    /**
+     * Apply every intact record of the journal to the given map, in order.
+     * A torn record at the tail, left behind by a crash in the middle of an
+     * append, is truncated away so that later appends start from a clean
+     * record boundary. A journal of another generation than the preferences
+     * file is left over from before the file was last rewritten, and is
+     * deleted without being applied.
+     *
+     * @return the size of the intact part of the journal
+     */
+    private long replayJournal(Map map, int generation) {
+        final long journalLength = mJournalFile.length();
+        long validLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mJournalFile), 16*1024));
+            try {
+                if (in.readInt() != JOURNAL_MAGIC || in.readInt() != generation) {
+                    Log.w(TAG, "Discarding stale journal " + mJournalFile);
+                    IoUtils.closeQuietly(in);
+                    in = null;
+                    mJournalFile.delete();
+                    return 0;
+                }
+                validLength = JOURNAL_HEADER_SIZE;
+            } catch (EOFException e) {
+                // Torn write of the header, the journal is empty
+            }
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final byte[] record;
+                try {
+                    final int length = in.readInt();
+                    final long checksum = in.readLong();
+                    if (length < 0 || validLength + 12 + length > journalLength) {
+                        // Torn write of the last record
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if (crc.getValue() != checksum) {
+                        Log.w(TAG, "Dropping corrupt journal record in " + mJournalFile);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                applyJournalRecord(record, map);
+                validLength += 12 + record.length;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + mJournalFile.getAbsolutePath(), e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        if (journalLength != validLength) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(mJournalFile, "rw");
+                raf.setLength(validLength);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot truncate " + mJournalFile.getAbsolutePath(), e);
+            } finally {
+                IoUtils.closeQuietly(raf);
+            }
+        }
+        return validLength;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void applyJournalRecord(byte[] record, Map map) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if (in.readBoolean()) {
+            map.clear();
+        }
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final String key = readJournalString(in);
+            final byte type = in.readByte();
+            switch (type) {
+                case JOURNAL_TYPE_REMOVE:
+                    map.remove(key);
+                    break;
+                case JOURNAL_TYPE_STRING:
+                    map.put(key, readJournalString(in));
+                    break;
+                case JOURNAL_TYPE_INT:
+                    map.put(key, in.readInt());
+                    break;
+                case JOURNAL_TYPE_LONG:
+                    map.put(key, in.readLong());
+                    break;
+                case JOURNAL_TYPE_FLOAT:
+                    map.put(key, in.readFloat());
+                    break;
+                case JOURNAL_TYPE_BOOLEAN:
+                    map.put(key, in.readBoolean());
+                    break;
+                case JOURNAL_TYPE_STRING_SET:
+                    final int size = in.readInt();
+                    final HashSet<String> set = new HashSet<>(size);
+                    for (int j = 0; j < size; j++) {
+                        set.add(readJournalString(in));
+                    }
+                    map.put(key, set);
+                    break;
+                default:
+                    throw new IOException("Unknown journal value type " + type);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] encodeJournalRecord(boolean cleared, Map<String, Object> changes)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBoolean(cleared);
+        out.writeInt(changes.size());
+        for (Map.Entry<String, Object> e : changes.entrySet()) {
+            writeJournalString(out, e.getKey());
+            final Object v = e.getValue();
+            if (v == null) {
+                out.writeByte(JOURNAL_TYPE_REMOVE);
+            } else if (v instanceof String) {
+                out.writeByte(JOURNAL_TYPE_STRING);
+                writeJournalString(out, (String) v);
+            } else if (v instanceof Integer) {
+                out.writeByte(JOURNAL_TYPE_INT);
+                out.writeInt((Integer) v);
+            } else if (v instanceof Long) {
+                out.writeByte(JOURNAL_TYPE_LONG);
+                out.writeLong((Long) v);
+            } else if (v instanceof Float) {
+                out.writeByte(JOURNAL_TYPE_FLOAT);
+                out.writeFloat((Float) v);
+            } else if (v instanceof Boolean) {
+                out.writeByte(JOURNAL_TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) v);
+            } else if (v instanceof Set) {
+                final Set<String> set = (Set<String>) v;
+                out.writeByte(JOURNAL_TYPE_STRING_SET);
+                out.writeInt(set.size());
+                for (String item : set) {
+                    writeJournalString(out, item);
+                }
+            } else {
+                throw new IOException("Cannot journal value " + v);
+            }
+        }
+        out.flush();
+
+        final byte[] payload = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(12 + payload.length);
+        final DataOutputStream header = new DataOutputStream(record);
+        header.writeInt(payload.length);
+        header.writeLong(crc.getValue());
+        header.write(payload);
+        header.flush();
+        return record.toByteArray();
+    }
+
+    private static void writeJournalString(DataOutputStream out, String value)
+            throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readJournalString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     void startReloadIfChangedUnexpectedly() {
         synchronized (mLock) {
             // TODO: wait for any pending writes to disk?
@@ -208,8 +504,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
             return true;
         }
 
+        final long journalSize = mJournalFile.length();
+
         synchronized (mLock) {
-            return mStatTimestamp != stat.st_mtime || mStatSize != stat.st_size;
+            return mStatTimestamp != stat.st_mtime || mStatSize != stat.st_size
+                    || mJournalStatSize != journalSize;
         }
     }
 
@@ -323,6 +622,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Nullable final List<String> keysModified;
         @Nullable final Set<OnSharedPreferenceChangeListener> listeners;
         final Map<String, Object> mapToWriteToDisk;
+        /** Whether this commit cleared the map before applying changes */
+        final boolean cleared;
+        /** Keys changed by this commit, mapped to null for removals */
+        @Nullable final Map<String, Object> changes;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
@@ -331,11 +634,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                Map<String, Object> mapToWriteToDisk) {
+                Map<String, Object> mapToWriteToDisk, boolean cleared,
+                @Nullable Map<String, Object> changes) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
             this.mapToWriteToDisk = mapToWriteToDisk;
+            this.cleared = cleared;
+            this.changes = changes;
         }
 
         void setDiskWriteResult(boolean wasWritten, boolean result) {
@@ -449,6 +755,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
             Map<String, Object> mapToWriteToDisk;
+            boolean cleared = false;
+            Map<String, Object> changes = mJournaled ? new HashMap<String, Object>() : null;
 
             synchronized (SharedPreferencesImpl.this.mLock) {
                 // We optimistically don't make a deep copy until
@@ -476,6 +784,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     if (mClear) {
                         if (!mMap.isEmpty()) {
                             changesMade = true;
+                            cleared = true;
                             mMap.clear();
                         }
                         mClear = false;
@@ -506,6 +815,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (hasListeners) {
                             keysModified.add(k);
                         }
+                        if (changes != null) {
+                            changes.put(k, mMap.get(k));
+                        }
                     }
 
                     mModified.clear();
@@ -518,7 +830,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 }
             }
             return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
-                    mapToWriteToDisk);
+                    mapToWriteToDisk, cleared, changes);
         }
 
         public boolean commit() {
@@ -647,6 +959,130 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
     // Note: must hold mWritingToDiskLock
     private void writeToFile(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+        if (mJournaled && mcr.changes != null && mFile.exists()) {
+            if (mDiskStateGeneration >= mcr.memoryStateGeneration) {
+                // Already persisted, either by an earlier append or a snapshot
+                mcr.setDiskWriteResult(false, true);
+                return;
+            }
+            if (mDiskStateGeneration + 1 == mcr.memoryStateGeneration) {
+                appendToJournal(mcr);
+                return;
+            }
+            // Commits reached the disk out of order, so this delta can't be
+            // appended on its own; fall back to writing the complete map,
+            // which includes every earlier commit.
+        }
+        writeSnapshotToFile(mcr, isFromSyncCommit, false);
+    }
+
+    // Note: must hold mWritingToDiskLock
+    private void appendToJournal(MemoryCommitResult mcr) {
+        final long previousSize;
+        synchronized (mLock) {
+            previousSize = mJournalStatSize;
+        }
+
+        FileOutputStream str = null;
+        try {
+            byte[] record = encodeJournalRecord(mcr.cleared, mcr.changes);
+            if (previousSize == 0) {
+                // Start a new journal for the current generation of the file
+                final ByteArrayOutputStream bytes =
+                        new ByteArrayOutputStream(JOURNAL_HEADER_SIZE + record.length);
+                final DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(JOURNAL_MAGIC);
+                out.writeInt(mJournalGeneration);
+                out.write(record);
+                record = bytes.toByteArray();
+            }
+            str = new FileOutputStream(mJournalFile, previousSize != 0);
+            str.write(record);
+
+            final long writeTime = System.currentTimeMillis();
+            FileUtils.sync(str);
+            final long fsyncTime = System.currentTimeMillis();
+
+            str.close();
+            str = null;
+            ContextImpl.setFilePermissionsFromMode(mJournalFile.getPath(), mMode, 0);
+
+            final long journalSize = previousSize + record.length;
+            boolean compact = false;
+            synchronized (mLock) {
+                mJournalStatSize = journalSize;
+                if (!mCompactionPending
+                        && journalSize >= Math.max(JOURNAL_COMPACTION_THRESHOLD_BYTES, mStatSize)) {
+                    // Counting the compaction as an in-flight write makes
+                    // later commits copy mMap instead of mutating it while
+                    // it is being written out.
+                    mCompactionPending = true;
+                    mDiskWritesInFlight++;
+                    compact = true;
+                }
+            }
+
+            mDiskStateGeneration = mcr.memoryStateGeneration;
+            mcr.setDiskWriteResult(true, true);
+
+            long fsyncDuration = fsyncTime - writeTime;
+            mSyncTimes.add(Long.valueOf(fsyncDuration).intValue());
+            mNumSync++;
+
+            if (DEBUG || mNumSync % 1024 == 0 || fsyncDuration > MAX_FSYNC_DURATION_MILLIS) {
+                mSyncTimes.log(TAG, "Time required to fsync " + mJournalFile + ": ");
+            }
+
+            if (compact) {
+                enqueueCompaction();
+            }
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "appendToJournal: Got exception:", e);
+        } finally {
+            IoUtils.closeQuietly(str);
+        }
+
+        // Drop any partially-written record, so that later appends are not
+        // hidden behind it on replay
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mJournalFile, "rw");
+            raf.setLength(previousSize);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't clean up partially-written journal " + mJournalFile, e);
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+        mcr.setDiskWriteResult(false, false);
+    }
+
+    /**
+     * Queue a rewrite of the preferences file from the current in-memory
+     * state, after which the journal is discarded.
+     */
+    private void enqueueCompaction() {
+        QueuedWork.queue(new Runnable() {
+            public void run() {
+                final MemoryCommitResult mcr;
+                synchronized (mLock) {
+                    mcr = new MemoryCommitResult(mCurrentMemoryStateGeneration, null, null, mMap,
+                            false, null);
+                }
+                synchronized (mWritingToDiskLock) {
+                    writeSnapshotToFile(mcr, true, true);
+                }
+                synchronized (mLock) {
+                    mCompactionPending = false;
+                    mDiskWritesInFlight--;
+                }
+            }
+        }, true);
+    }
+
+    // Note: must hold mWritingToDiskLock
+    private void writeSnapshotToFile(MemoryCommitResult mcr, boolean isFromSyncCommit,
+            boolean force) {
         long startTime = 0;
         long existsTime = 0;
         long backupExistsTime = 0;
@@ -675,7 +1111,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
             boolean needsWrite = false;
 
             // Only need to write if the disk state is older than this commit
-            if (mDiskStateGeneration < mcr.memoryStateGeneration) {
+            if (force || mDiskStateGeneration < mcr.memoryStateGeneration) {
                 if (isFromSyncCommit) {
                     needsWrite = true;
                 } else {
@@ -726,7 +1162,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 mcr.setDiskWriteResult(false, false);
                 return;
             }
-            XmlUtils.writeMapXml(mcr.mapToWriteToDisk, str);
+            // The journal of the previous generation must not be applied on top of
+            // this file if we crash before deleting it.
+            final int generation = mJournalGeneration + 1;
+            writePreferencesXml(mcr.mapToWriteToDisk, generation, str);
 
             writeTime = System.currentTimeMillis();
 
@@ -758,6 +1197,17 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // Writing was successful, delete the backup file if there is one.
             mBackupFile.delete();
 
+            // The new file holds every change recorded in the journal.  If we
+            // crash before the journal is gone, the generation it was written
+            // for no longer matches the file, so it is discarded on load.
+            mJournalGeneration = generation;
+            if (mJournalFile.exists()) {
+                mJournalFile.delete();
+            }
+            synchronized (mLock) {
+                mJournalStatSize = 0;
+            }
+
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
             }
@@ -9480,6 +9480,44 @@ public class Intent implements Parcelable, Cloneable {
         out.writeBundle(mExtras);
     }
 
+    /**
+     * Returns roughly how many bytes {@link #writeToParcel} takes for this Intent, without
+     * writing it.
+     *
+     * @hide
+     */
+    public int getParcelledSizeEstimate() {
+        // flags, bounds and the other fixed size fields
+        int size = 48;
+        size += estimateStringSize(mAction);
+        size += estimateStringSize(mData != null ? mData.toString() : null);
+        size += estimateStringSize(mType);
+        size += estimateStringSize(mPackage);
+        if (mComponent != null) {
+            size += estimateStringSize(mComponent.getPackageName());
+            size += estimateStringSize(mComponent.getClassName());
+        }
+        if (mCategories != null) {
+            for (int i = 0; i < mCategories.size(); i++) {
+                size += estimateStringSize(mCategories.valueAt(i));
+            }
+        }
+        if (mSelector != null) {
+            size += mSelector.getParcelledSizeEstimate();
+        }
+        if (mClipData != null) {
+            size += 64 * mClipData.getItemCount();
+        }
+        if (mExtras != null) {
+            size += mExtras.getParcelledSizeEstimate();
+        }
+        return size;
+    }
+
+    private static int estimateStringSize(String s) {
+        return s != null ? 8 + s.length() * 2 : 4;
+    }
+
     public static final Parcelable.Creator<Intent> CREATOR
             = new Parcelable.Creator<Intent>() {
         public Intent createFromParcel(Parcel in) {
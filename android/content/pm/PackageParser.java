@@ -96,7 +96,12 @@ import libcore.io.IoUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -512,6 +517,11 @@ public class PackageParser {
 
     private static final String TAG = "PackageParser";
 
+    /** Marks the start of a package cache entry. */
+    private static final int CACHE_ENTRY_MAGIC = 0x504b4743; // "PKGC"
+    /** Version of the package cache entry format, including the parceled {@link Package}. */
+    private static final int CACHE_ENTRY_VERSION = 2;
+
     public PackageParser() {
         mMetrics = new DisplayMetrics();
         mMetrics.setToDefaults();
@@ -958,7 +968,10 @@ public class PackageParser {
      */
     public Package parsePackage(File packageFile, int flags, boolean useCaches)
             throws PackageParserException {
-        Package parsed = useCaches ? getCachedResult(packageFile, flags) : null;
+        // Stat before parsing, so that a package changed while it is parsed isn't cached as
+        // the new version.
+        final StructStat packageStat = (mCacheDir != null) ? statPackageFile(packageFile) : null;
+        Package parsed = useCaches ? getCachedResult(packageFile, packageStat, flags) : null;
         if (parsed != null) {
             return parsed;
         }
@@ -969,7 +982,7 @@ public class PackageParser {
             parsed = parseMonolithicPackage(packageFile, flags);
         }
 
-        cacheResult(packageFile, flags, parsed);
+        cacheResult(packageFile, packageStat, flags, parsed);
 
         return parsed;
     }
@@ -994,8 +1007,12 @@ public class PackageParser {
 
     @VisibleForTesting
     protected Package fromCacheEntry(byte[] bytes) throws IOException {
+        return fromCacheEntry(bytes, 0, bytes.length);
+    }
+
+    private Package fromCacheEntry(byte[] bytes, int offset, int length) throws IOException {
         Parcel p = Parcel.obtain();
-        p.unmarshall(bytes, 0, bytes.length);
+        p.unmarshall(bytes, offset, length);
         p.setDataPosition(0);
 
         PackageParser.Package pkg = new PackageParser.Package(p);
@@ -1045,26 +1062,73 @@ public class PackageParser {
         }
     }
 
+    /**
+     * Returns the stat of {@code packageFile}, or {@code null} if it can't be stated, in which
+     * case its parse result is neither read from nor written to the cache.
+     */
+    private static StructStat statPackageFile(File packageFile) {
+        try {
+            return android.system.Os.stat(packageFile.getAbsolutePath());
+        } catch (ErrnoException ee) {
+            Slog.w(TAG, "Error while stating package " + packageFile, ee);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the header of a cache entry, which records the path, mtime and size of the
+     * package file the entry was parsed from, so that a stale entry is recognized without
+     * stating the cache file.
+     */
+    private static void writeCacheHeader(DataOutputStream out, File packageFile,
+            StructStat packageStat) throws IOException {
+        out.writeInt(CACHE_ENTRY_MAGIC);
+        out.writeInt(CACHE_ENTRY_VERSION);
+        out.writeUTF(packageFile.getAbsolutePath());
+        out.writeLong(packageStat.st_mtime);
+        out.writeLong(packageStat.st_size);
+    }
+
+    /**
+     * Reads the header written by {@link #writeCacheHeader} and returns whether it matches
+     * {@code packageFile} as it is now.
+     */
+    private static boolean readCacheHeader(DataInputStream in, File packageFile,
+            StructStat packageStat) throws IOException {
+        return in.readInt() == CACHE_ENTRY_MAGIC
+                && in.readInt() == CACHE_ENTRY_VERSION
+                && in.readUTF().equals(packageFile.getAbsolutePath())
+                && in.readLong() == packageStat.st_mtime
+                && in.readLong() == packageStat.st_size;
+    }
+
     /**
      * Returns the cached parse result for {@code packageFile} for parse flags {@code flags},
      * or {@code null} if no cached result exists.
      */
-    private Package getCachedResult(File packageFile, int flags) {
-        if (mCacheDir == null) {
+    private Package getCachedResult(File packageFile, StructStat packageStat, int flags) {
+        if (mCacheDir == null || packageStat == null) {
             return null;
         }
 
         final String cacheKey = getCacheKey(packageFile, flags);
         final File cacheFile = new File(mCacheDir, cacheKey);
 
-        // If the cache is not up to date, return null.
-        if (!isCacheUpToDate(packageFile, cacheFile)) {
-            return null;
-        }
-
         try {
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            final byte[] bytes;
+            try {
+                bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+
+            // If the cache is not up to date, return null.
+            final ByteArrayInputStream header = new ByteArrayInputStream(bytes);
+            if (!readCacheHeader(new DataInputStream(header), packageFile, packageStat)) {
+                return null;
+            }
+            final int headerSize = bytes.length - header.available();
+            Package p = fromCacheEntry(bytes, headerSize, bytes.length - headerSize);
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
@@ -1090,8 +1154,9 @@ public class PackageParser {
     /**
      * Caches the parse result for {@code packageFile} with flags {@code flags}.
      */
-    private void cacheResult(File packageFile, int flags, Package parsed) {
-        if (mCacheDir == null) {
+    private void cacheResult(File packageFile, StructStat packageStat, int flags,
+            Package parsed) {
+        if (mCacheDir == null || packageStat == null) {
             return;
         }
 
@@ -1117,7 +1182,10 @@ public class PackageParser {
         }
 
         try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
-            fos.write(cacheEntry);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            writeCacheHeader(out, packageFile, packageStat);
+            out.write(cacheEntry);
+            out.flush();
         } catch (IOException ioe) {
             Slog.w(TAG, "Error writing cache entry.", ioe);
             cacheFile.delete();
@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import libcore.io.IoUtils;
+
+import sun.misc.Unsafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * An immutable copy of the package metadata of one user, as returned by
+ * {@link PackageManager#getPackageInfo} and {@link PackageManager#getApplicationInfo}
+ * with no flags and by querying the launcher activities, backed by a memory mapped
+ * file. It lets the apps of that user answer these common queries without a binder
+ * call into the package manager.
+ * <p>
+ * The package manager builds a new snapshot whenever the old one may no longer match
+ * what it would return, and marks the old one stale; clients read {@link #isStale}
+ * before trusting a lookup and ask the package manager directly for anything the
+ * snapshot can't answer. Packages that some callers must not see, like instant apps,
+ * are never part of a snapshot. Clients receive the snapshot as a {@link Parcelable}
+ * carrying a read only file descriptor.
+ * </p>
+ * <p>
+ * Lookups are thread safe.
+ * </p>
+ *
+ * @hide
+ */
+public final class PackageSnapshot implements Parcelable, Closeable {
+    private static final String TAG = "PackageSnapshot";
+
+    private static final int MAGIC = 0x504b5331; // PKS1
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_FLAGS = 4;
+    private static final int OFFSET_GENERATION = 8;
+    private static final int OFFSET_USER_ID = 12;
+    private static final int OFFSET_SLOT_COUNT = 16;
+    private static final int OFFSET_LAUNCHER_ACTIVITIES = 20;
+    private static final int HEADER_SIZE = 24;
+
+    private static final int SLOT_SIZE = 8;
+
+    private static final int FLAG_STALE = 1;
+
+    private static final int LENGTH_NULL = -1;
+
+    private static final Unsafe UNSAFE = Unsafe.getUnsafe();
+
+    private final boolean mIsOwner;
+    private final File mFile;
+    private final int mCapacity;
+    private volatile MappedByteBuffer mBuffer;
+
+    private PackageSnapshot(File file) throws IOException {
+        mIsOwner = true;
+        mFile = file;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            final FileChannel channel = raf.getChannel();
+            mCapacity = (int) channel.size();
+            mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    private PackageSnapshot(Parcel parcel) throws IOException {
+        mIsOwner = false;
+        mFile = null;
+        final ParcelFileDescriptor pfd = parcel.readParcelable(null);
+        if (pfd == null) {
+            throw new IOException("No backing file descriptor");
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(pfd.getFileDescriptor());
+            final FileChannel channel = in.getChannel();
+            mCapacity = (int) channel.size();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, mCapacity);
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(pfd);
+        }
+        if (mCapacity < HEADER_SIZE || mBuffer.getInt(OFFSET_MAGIC) != MAGIC) {
+            throw new IOException("Not a package snapshot");
+        }
+    }
+
+    /**
+     * @return The generation of the package manager state this snapshot was built from.
+     */
+    public int getGeneration() {
+        return getBuffer().getInt(OFFSET_GENERATION);
+    }
+
+    /**
+     * @return The user whose packages this snapshot describes.
+     */
+    public int getUserId() {
+        return getBuffer().getInt(OFFSET_USER_ID);
+    }
+
+    /**
+     * @return Whether the package manager state changed since this snapshot was built,
+     *     in which case no lookup should be trusted.
+     */
+    public boolean isStale() {
+        final MappedByteBuffer buffer = getBuffer();
+        // Don't let the flag be read before the lookups it is checked after, the mapping is
+        // shared with other processes outside the Java memory model
+        UNSAFE.loadFence();
+        return (buffer.getInt(OFFSET_FLAGS) & FLAG_STALE) != 0;
+    }
+
+    /**
+     * Marks the snapshot as no longer matching the package manager state. This method
+     * can be called only by the owner.
+     */
+    public void markStale() {
+        final MappedByteBuffer buffer = getBuffer();
+        if (!mIsOwner) {
+            throw new UnsupportedOperationException("snapshot is not writable");
+        }
+        buffer.putInt(OFFSET_FLAGS, buffer.getInt(OFFSET_FLAGS) | FLAG_STALE);
+        // Make the flag visible before the change it announces
+        UNSAFE.fullFence();
+    }
+
+    /**
+     * Gets the package info that {@link PackageManager#getPackageInfo} returns with no
+     * flags.
+     *
+     * @return A new copy of the info, or null if the snapshot doesn't have it, in which
+     *     case the package manager must be asked directly.
+     */
+    public PackageInfo getPackageInfo(String packageName) {
+        final ByteBuffer buffer = getBuffer().duplicate();
+        final int entryOffset = findEntry(buffer, packageName);
+        if (entryOffset == 0) {
+            return null;
+        }
+        final int valueOffset = skip(buffer, entryOffset);
+        return unmarshall(buffer, valueOffset, PackageInfo.CREATOR);
+    }
+
+    /**
+     * Gets the application info that {@link PackageManager#getApplicationInfo} returns
+     * with no flags.
+     *
+     * @return A new copy of the info, or null if the snapshot doesn't have it, in which
+     *     case the package manager must be asked directly.
+     */
+    public ApplicationInfo getApplicationInfo(String packageName) {
+        final ByteBuffer buffer = getBuffer().duplicate();
+        final int entryOffset = findEntry(buffer, packageName);
+        if (entryOffset == 0) {
+            return null;
+        }
+        final int valueOffset = skip(buffer, skip(buffer, entryOffset));
+        return unmarshall(buffer, valueOffset, ApplicationInfo.CREATOR);
+    }
+
+    /**
+     * Gets the activities that {@link PackageManager#queryIntentActivities} returns for
+     * an {@link android.content.Intent#ACTION_MAIN} intent in the
+     * {@link android.content.Intent#CATEGORY_LAUNCHER} category, with no flags.
+     *
+     * @return A new copy of the list, or null if the snapshot doesn't have it.
+     */
+    public List<ResolveInfo> queryLauncherActivities() {
+        final ByteBuffer buffer = getBuffer().duplicate();
+        final int offset = buffer.getInt(OFFSET_LAUNCHER_ACTIVITIES);
+        if (offset == 0) {
+            return null;
+        }
+        final byte[] bytes = readBytes(buffer, offset);
+        if (bytes == null) {
+            return null;
+        }
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return parcel.createTypedArrayList(ResolveInfo.CREATOR);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Closes the snapshot releasing resources. The backing file is left in place so
+     * clients that are being handed this snapshot can still open it.
+     */
+    @Override
+    public void close() {
+        mBuffer = null;
+    }
+
+    /**
+     * @return Whether this snapshot is closed and shouldn't be used.
+     */
+    public boolean isClosed() {
+        return mBuffer == null;
+    }
+
+    @Override
+    public int describeContents() {
+        return CONTENTS_FILE_DESCRIPTOR;
+    }
+
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = (mFile != null) ? ParcelFileDescriptor.open(mFile,
+                    ParcelFileDescriptor.MODE_READ_ONLY) : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot share " + mFile, e);
+        }
+        // The descriptor is a private copy that is closed once written
+        parcel.writeParcelable(pfd, flags | Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        return mIsOwner ? "PackageSnapshot[" + mFile + "]" : "PackageSnapshot[client]";
+    }
+
+    private MappedByteBuffer getBuffer() {
+        final MappedByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            throw new IllegalStateException("cannot interact with a closed instance");
+        }
+        return buffer;
+    }
+
+    private int findEntry(ByteBuffer buffer, String packageName) {
+        final int slotCount = buffer.getInt(OFFSET_SLOT_COUNT);
+        if (slotCount <= 0 || (slotCount & (slotCount - 1)) != 0
+                || HEADER_SIZE + (long) slotCount * SLOT_SIZE > mCapacity) {
+            return 0;
+        }
+        final byte[] key = packageName.getBytes(StandardCharsets.UTF_8);
+        final int mask = slotCount - 1;
+        final int hash = packageName.hashCode();
+        int slot = hash & mask;
+        for (int probes = 0; probes < slotCount; probes++) {
+            final int entryOffset = buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+            if (entryOffset == 0) {
+                break;
+            }
+            if (buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE) == hash
+                    && keyEquals(buffer, entryOffset, key)) {
+                return entryOffset;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    private boolean keyEquals(ByteBuffer buffer, int offset, byte[] key) {
+        if (offset < HEADER_SIZE || offset + 4 + key.length > mCapacity
+                || buffer.getInt(offset) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + 4 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skip(ByteBuffer buffer, int offset) {
+        final int length = buffer.getInt(offset);
+        return offset + 4 + Math.max(length, 0);
+    }
+
+    private byte[] readBytes(ByteBuffer buffer, int offset) {
+        if (offset < HEADER_SIZE || offset + 4 > mCapacity) {
+            return null;
+        }
+        final int length = buffer.getInt(offset);
+        if (length < 0 || offset + 4 + (long) length > mCapacity) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.position(offset + 4);
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private <T> T unmarshall(ByteBuffer buffer, int offset, Parcelable.Creator<T> creator) {
+        final byte[] bytes = readBytes(buffer, offset);
+        if (bytes == null) {
+            return null;
+        }
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public static final Parcelable.Creator<PackageSnapshot> CREATOR =
+            new Parcelable.Creator<PackageSnapshot>() {
+        @Override
+        public PackageSnapshot createFromParcel(Parcel parcel) {
+            try {
+                return new PackageSnapshot(parcel);
+            } catch (IOException e) {
+                // The owner is replacing the snapshot, clients ask it directly meanwhile
+                Log.w(TAG, "Error unparceling PackageSnapshot", e);
+                return null;
+            }
+        }
+
+        @Override
+        public PackageSnapshot[] newArray(int size) {
+            return new PackageSnapshot[size];
+        }
+    };
+
+    /**
+     * Collects the package metadata of one user and writes it out as a snapshot. The
+     * infos are marshalled as they are added, so the caller may keep mutating them
+     * afterwards.
+     */
+    public static final class Builder {
+        private final int mUserId;
+        private final int mGeneration;
+        private final ArrayMap<String, byte[][]> mEntries = new ArrayMap<>();
+        private byte[] mLauncherActivities;
+
+        /**
+         * @param userId The user whose packages are described.
+         * @param generation The generation of the package manager state being copied.
+         */
+        public Builder(int userId, int generation) {
+            mUserId = userId;
+            mGeneration = generation;
+        }
+
+        /**
+         * Adds the infos of a package. A null info is asked from the package manager.
+         */
+        public Builder addPackage(String packageName, PackageInfo packageInfo,
+                ApplicationInfo applicationInfo) {
+            mEntries.put(packageName, new byte[][] {
+                    packageName.getBytes(StandardCharsets.UTF_8),
+                    marshall(packageInfo),
+                    marshall(applicationInfo)});
+            return this;
+        }
+
+        /**
+         * Sets the result of querying the launcher activities.
+         */
+        public Builder setLauncherActivities(List<ResolveInfo> launcherActivities) {
+            final Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeTypedList(launcherActivities);
+                mLauncherActivities = parcel.marshall();
+            } finally {
+                parcel.recycle();
+            }
+            return this;
+        }
+
+        /**
+         * Writes the snapshot, atomically replacing the given file. Clients already
+         * holding a snapshot from that file keep their own mapping.
+         *
+         * @param file The backing file, private to the owner process.
+         * @throws IOException If an error occurs while writing or mapping the file.
+         */
+        public PackageSnapshot build(File file) throws IOException {
+            final int count = mEntries.size();
+            final int slotCount = getSlotCount(count);
+            long size = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+            for (int i = 0; i < count; i++) {
+                for (byte[] bytes : mEntries.valueAt(i)) {
+                    size += 4 + (bytes != null ? bytes.length : 0);
+                }
+            }
+            if (mLauncherActivities != null) {
+                size += 4 + mLauncherActivities.length;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large: " + size);
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size)
+                    .order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+            buffer.putInt(OFFSET_FLAGS, 0);
+            buffer.putInt(OFFSET_GENERATION, mGeneration);
+            buffer.putInt(OFFSET_USER_ID, mUserId);
+            buffer.putInt(OFFSET_SLOT_COUNT, slotCount);
+            buffer.position(HEADER_SIZE + slotCount * SLOT_SIZE);
+            final int mask = slotCount - 1;
+            for (int i = 0; i < count; i++) {
+                final int hash = mEntries.keyAt(i).hashCode();
+                int slot = hash & mask;
+                while (buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                buffer.putInt(HEADER_SIZE + slot * SLOT_SIZE, hash);
+                buffer.putInt(HEADER_SIZE + slot * SLOT_SIZE + 4, buffer.position());
+                for (byte[] bytes : mEntries.valueAt(i)) {
+                    putBytes(buffer, bytes);
+                }
+            }
+            if (mLauncherActivities != null) {
+                buffer.putInt(OFFSET_LAUNCHER_ACTIVITIES, buffer.position());
+                putBytes(buffer, mLauncherActivities);
+            }
+
+            final File tempFile = new File(file.getPath() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tempFile);
+                out.write(buffer.array());
+                out.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Failed to rename " + tempFile + " to " + file);
+            }
+            return new PackageSnapshot(file);
+        }
+
+        private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+            if (bytes == null) {
+                buffer.putInt(LENGTH_NULL);
+            } else {
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+
+        private static byte[] marshall(Parcelable value) {
+            if (value == null) {
+                return null;
+            }
+            final Parcel parcel = Parcel.obtain();
+            try {
+                value.writeToParcel(parcel, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+                return parcel.marshall();
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        private static int getSlotCount(int size) {
+            // Keep the load factor at or below one half
+            int slotCount = 8;
+            while (slotCount < size * 2) {
+                slotCount <<= 1;
+            }
+            return slotCount;
+        }
+    }
+}
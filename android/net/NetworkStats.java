@@ -82,6 +82,9 @@ public class NetworkStats implements Parcelable {
     /** {@link #roaming} value where roaming data is accounted. */
     public static final int ROAMING_YES = 1;
 
+    /** Number of rows below which a linear scan beats building {@link #keyIndex}. */
+    private static final int KEY_INDEX_THRESHOLD = 16;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -103,6 +106,14 @@ public class NetworkStats implements Parcelable {
     private long[] txPackets;
     private long[] operations;
 
+    /**
+     * Open-addressing index over the rows, where each slot holds a row
+     * position plus one and zero marks an empty slot. Only built once a lookup
+     * is made with at least {@link #KEY_INDEX_THRESHOLD} rows, and then kept in
+     * sync by {@link #addValues(Entry)}. Never parcelled.
+     */
+    private int[] keyIndex;
+
     public static class Entry {
         public String iface;
         public int uid;
@@ -343,6 +354,15 @@ public class NetworkStats implements Parcelable {
         operations[size] = entry.operations;
         size++;
 
+        if (keyIndex != null) {
+            // keep the table at most half full
+            if (size * 2 > keyIndex.length) {
+                buildKeyIndex();
+            } else {
+                indexRow(size - 1);
+            }
+        }
+
         return this;
     }
 
@@ -440,14 +460,27 @@ public class NetworkStats implements Parcelable {
      * Find first stats index that matches the requested parameters.
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming) {
-        for (int i = 0; i < size; i++) {
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && metered == this.metered[i] && roaming == this.roaming[i]
-                    && Objects.equals(iface, this.iface[i])) {
+        if (keyIndex == null) {
+            if (size < KEY_INDEX_THRESHOLD) {
+                for (int i = 0; i < size; i++) {
+                    if (rowMatches(i, iface, uid, set, tag, metered, roaming)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+            buildKeyIndex();
+        }
+
+        final int mask = keyIndex.length - 1;
+        int slot = hashKey(iface, uid, set, tag, metered, roaming) & mask;
+        while (true) {
+            final int i = keyIndex[slot] - 1;
+            if (i == -1 || rowMatches(i, iface, uid, set, tag, metered, roaming)) {
                 return i;
             }
+            slot = (slot + 1) & mask;
         }
-        return -1;
     }
 
     /**
@@ -457,6 +490,15 @@ public class NetworkStats implements Parcelable {
     @VisibleForTesting
     public int findIndexHinted(String iface, int uid, int set, int tag, int metered, int roaming,
             int hintIndex) {
+        if (keyIndex != null || size >= KEY_INDEX_THRESHOLD) {
+            // rows are usually in the same order, so try the hint before the index
+            if (hintIndex >= 0 && hintIndex < size
+                    && rowMatches(hintIndex, iface, uid, set, tag, metered, roaming)) {
+                return hintIndex;
+            }
+            return findIndex(iface, uid, set, tag, metered, roaming);
+        }
+
         for (int offset = 0; offset < size; offset++) {
             final int halfOffset = offset / 2;
 
@@ -468,15 +510,64 @@ public class NetworkStats implements Parcelable {
                 i = (size + hintIndex - halfOffset - 1) % size;
             }
 
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && metered == this.metered[i] && roaming == this.roaming[i]
-                    && Objects.equals(iface, this.iface[i])) {
+            if (rowMatches(i, iface, uid, set, tag, metered, roaming)) {
                 return i;
             }
         }
         return -1;
     }
 
+    private boolean rowMatches(int i, String iface, int uid, int set, int tag, int metered,
+            int roaming) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && Objects.equals(iface, this.iface[i]);
+    }
+
+    private static int hashKey(String iface, int uid, int set, int tag, int metered,
+            int roaming) {
+        int result = Objects.hashCode(iface);
+        result = 31 * result + uid;
+        result = 31 * result + set;
+        result = 31 * result + tag;
+        result = 31 * result + metered;
+        result = 31 * result + roaming;
+        // spread high bits, since only the low bits select a slot
+        return result ^ (result >>> 16);
+    }
+
+    /**
+     * Rebuild {@link #keyIndex} over all current rows, sized to the smallest
+     * power of two that leaves it at most half full.
+     */
+    private void buildKeyIndex() {
+        final int minLength = Math.max(size, KEY_INDEX_THRESHOLD) * 2;
+        keyIndex = new int[Integer.highestOneBit(minLength - 1) << 1];
+        for (int i = 0; i < size; i++) {
+            indexRow(i);
+        }
+    }
+
+    /**
+     * Insert the given row into {@link #keyIndex}, unless an earlier row with
+     * the same key is already present, so lookups keep returning the first match.
+     */
+    private void indexRow(int i) {
+        final int mask = keyIndex.length - 1;
+        int slot = hashKey(iface[i], uid[i], set[i], tag[i], metered[i], roaming[i]) & mask;
+        while (true) {
+            final int existing = keyIndex[slot] - 1;
+            if (existing == -1) {
+                keyIndex[slot] = i + 1;
+                return;
+            }
+            if (rowMatches(existing, iface[i], uid[i], set[i], tag[i], metered[i], roaming[i])) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -661,6 +752,7 @@ public class NetworkStats implements Parcelable {
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
             result.size = 0;
+            result.keyIndex = null;
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
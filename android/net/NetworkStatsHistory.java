@@ -122,6 +122,25 @@ public class NetworkStatsHistory implements Parcelable {
         recordEntireHistory(existing);
     }
 
+    /**
+     * Create a history that takes ownership of already decoded series, which
+     * must all be the same length as the sorted {@code bucketStart}.
+     */
+    public NetworkStatsHistory(long bucketDuration, long[] bucketStart, long[] activeTime,
+            long[] rxBytes, long[] rxPackets, long[] txBytes, long[] txPackets,
+            long[] operations) {
+        this.bucketDuration = bucketDuration;
+        this.bucketStart = bucketStart;
+        this.activeTime = activeTime;
+        this.rxBytes = rxBytes;
+        this.rxPackets = rxPackets;
+        this.txBytes = txBytes;
+        this.txPackets = txPackets;
+        this.operations = operations;
+        bucketCount = bucketStart.length;
+        totalBytes = total(rxBytes) + total(txBytes);
+    }
+
     public NetworkStatsHistory(Parcel in) {
         bucketDuration = in.readLong();
         bucketStart = readLongArray(in);
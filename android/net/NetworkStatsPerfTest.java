@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.net;
+
+import static android.net.NetworkStats.METERED_NO;
+import static android.net.NetworkStats.METERED_YES;
+import static android.net.NetworkStats.ROAMING_NO;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Measures the row lookups behind polling, on snapshots shaped like those read
+ * from the kernel: a few interfaces, both foreground and background sets, and
+ * some apps with several socket tags.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class NetworkStatsPerfTest {
+    private static final String[] IFACES = { "wlan0", "rmnet_data0", "rmnet_data1" };
+    private static final int[] TAGS = { 0x1, 0xff00, 0xffffff01 };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "uids={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { {10}, {100}, {500} });
+    }
+
+    private final int mUids;
+
+    private NetworkStats mPrevious;
+    private NetworkStats mCurrent;
+
+    public NetworkStatsPerfTest(int uids) {
+        mUids = uids;
+    }
+
+    @Before
+    public void setUp() {
+        mPrevious = buildSnapshot(new Random(0), 0);
+        mCurrent = buildSnapshot(new Random(1), 1024);
+    }
+
+    @Test
+    public void timeCombineAllValues() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final NetworkStats combined = new NetworkStats(0, mCurrent.size());
+            combined.combineAllValues(mPrevious);
+            combined.combineAllValues(mCurrent);
+        }
+    }
+
+    @Test
+    public void timeSubtract() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        NetworkStats recycle = null;
+        while (state.keepRunning()) {
+            recycle = NetworkStats.subtract(mCurrent, mPrevious, null, null, recycle);
+        }
+    }
+
+    @Test
+    public void timeGroupedByUid() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mCurrent.groupedByUid();
+        }
+    }
+
+    @Test
+    public void timeGroupedByIface() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mCurrent.groupedByIface();
+        }
+    }
+
+    /**
+     * Build a snapshot whose rows are shuffled per interface, since the kernel
+     * doesn't keep rows in a stable order between reads.
+     */
+    private NetworkStats buildSnapshot(Random r, long growth) {
+        final NetworkStats stats = new NetworkStats(0, 0);
+        for (String iface : IFACES) {
+            final int[] order = new int[mUids];
+            for (int i = 0; i < mUids; i++) {
+                final int j = r.nextInt(i + 1);
+                order[i] = order[j];
+                order[j] = i;
+            }
+            final int metered = iface.startsWith("rmnet") ? METERED_YES : METERED_NO;
+            for (int i : order) {
+                final int uid = 10000 + i;
+                addRow(stats, iface, uid, SET_DEFAULT, TAG_NONE, metered, growth);
+                addRow(stats, iface, uid, SET_FOREGROUND, TAG_NONE, metered, growth);
+                if (i % 5 == 0) {
+                    for (int tag : TAGS) {
+                        addRow(stats, iface, uid, SET_DEFAULT, tag, metered, growth);
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static void addRow(NetworkStats stats, String iface, int uid, int set, int tag,
+            int metered, long growth) {
+        final long base = uid * 4096L + tag;
+        stats.addValues(iface, uid, set, tag, metered, ROAMING_NO, base + growth, 10,
+                base + growth, 10, 0);
+    }
+}
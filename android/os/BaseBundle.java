@@ -73,6 +73,162 @@ public class BaseBundle {
         public static final Parcel EMPTY_PARCEL = Parcel.obtain();
     }
 
+    /**
+     * The Parcel a Bundle was read from, while some of its {@link LazyValue}s are still
+     * unread. It is recycled as soon as every one of them has been read or dropped, rather
+     * than holding on to its memory and file descriptors until it is finalized. Also used
+     * as the lock of its lazy values, which Bundles copied from each other share.
+     */
+    static final class LazySource {
+        private final Parcel mParcel;
+        // Lazy values that still need mParcel
+        private int mPending;
+        // What mParcel.hasFileDescriptors() was when it was recycled
+        private boolean mHadFileDescriptors;
+
+        LazySource(Parcel parcel) {
+            mParcel = parcel;
+        }
+
+        /**
+         * Returns whether any lazy value still refers to the parcel, in which case it must
+         * not be recycled by the Bundle.
+         */
+        boolean hasPending() {
+            synchronized (this) {
+                return mPending > 0;
+            }
+        }
+
+        private void release() {
+            if (--mPending == 0) {
+                mHadFileDescriptors = mParcel.hasFileDescriptors();
+                mParcel.recycle();
+            }
+        }
+
+        private boolean hasFileDescriptors() {
+            return (mPending > 0) ? mParcel.hasFileDescriptors() : mHadFileDescriptors;
+        }
+    }
+
+    /**
+     * A value of a parcelled Bundle that is only unparcelled when it is first read, so that
+     * reading one extra doesn't pay for all the others. Until then it refers to its bytes in
+     * the Parcel the Bundle was read from, and writing the Bundle again copies those bytes.
+     * Only the types that {@link Parcel#writeBundleValue} prefixes with their length are
+     * deferred, others are cheap enough to read right away.
+     *
+     * The Bundle holding it replaces it with the value once read, and calls {@link #drop}
+     * when it removes or overwrites it unread, so that the source parcel can be recycled.
+     * Once it is in more than one Bundle it is {@link #markShared shared} and only reading it
+     * releases the parcel.
+     */
+    static final class LazyValue {
+        private final LazySource mSource;
+        private final int mOffset;
+        private final int mLength;
+        private boolean mResolved;
+        private boolean mDropped;
+        private boolean mShared;
+        private Object mValue;
+        // Why the value couldn't be read; the bytes are kept so they can still be forwarded
+        private RuntimeException mError;
+
+        LazyValue(LazySource source, int offset, int length) {
+            mSource = source;
+            mOffset = offset;
+            mLength = length;
+            synchronized (source) {
+                source.mPending++;
+            }
+        }
+
+        /**
+         * Returns the value, unparcelling it with the given ClassLoader the first time.
+         */
+        Object get(ClassLoader loader) {
+            synchronized (mSource) {
+                if (!mResolved) {
+                    if (mError != null) {
+                        throw mError;
+                    }
+                    final Parcel parcel = mSource.mParcel;
+                    final int pos = parcel.dataPosition();
+                    try {
+                        parcel.setDataPosition(mOffset);
+                        mValue = parcel.readBundleValue(loader, null);
+                    } catch (RuntimeException e) {
+                        mError = e;
+                        throw e;
+                    } finally {
+                        parcel.setDataPosition(pos);
+                    }
+                    mResolved = true;
+                    mSource.release();
+                }
+                return mValue;
+            }
+        }
+
+        void writeToParcel(Parcel dest) {
+            synchronized (mSource) {
+                if (mResolved) {
+                    // The value may have been modified since it was read
+                    dest.writeBundleValue(mValue);
+                } else {
+                    dest.appendFrom(mSource.mParcel, mOffset, mLength);
+                }
+            }
+        }
+
+        /**
+         * Returns the value if it has been read, or else a new lazy value that will
+         * unparcel its own instance.
+         */
+        Object copy() {
+            synchronized (mSource) {
+                return mResolved ? mValue : new LazyValue(mSource, mOffset, mLength);
+            }
+        }
+
+        /**
+         * Called when a Bundle other than the one that read it refers to this value too.
+         */
+        void markShared() {
+            synchronized (mSource) {
+                mShared = true;
+            }
+        }
+
+        /**
+         * Called when the Bundle holding this value no longer does.
+         */
+        void drop() {
+            synchronized (mSource) {
+                if (!mResolved && !mDropped && !mShared) {
+                    mDropped = true;
+                    mSource.release();
+                }
+            }
+        }
+
+        boolean hasFileDescriptors() {
+            synchronized (mSource) {
+                // Only the whole parcel is known, which is conservative
+                return mSource.hasFileDescriptors();
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (mSource) {
+                return mResolved ? String.valueOf(mValue)
+                        : "<unparcelled, " + mLength + " bytes>";
+            }
+        }
+    }
+
     // Invariant - exactly one of mMap / mParcelledData will be null
     // (except inside a call to unparcel)
 
@@ -81,7 +237,8 @@ public class BaseBundle {
     /*
      * If mParcelledData is non-null, then mMap will be null and the
      * data are stored as a Parcel containing a Bundle.  When the data
-     * are unparcelled, mParcelledData willbe set to null.
+     * are unparcelled, mParcelledData willbe set to null.  Some values
+     * of mMap may then be LazyValues still pointing into that Parcel.
      */
     Parcel mParcelledData = null;
 
@@ -183,7 +340,7 @@ public class BaseBundle {
         if (size == 0) {
             return null;
         }
-        Object o = mMap.valueAt(0);
+        Object o = getValueAt(0);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -250,21 +407,27 @@ public class BaseBundle {
             if (map == null) {
                 map = new ArrayMap<>(N);
             } else {
+                dropLazyValues(map);
                 map.erase();
                 map.ensureCapacity(N);
             }
+            // Lazy values keep reading from the parcel, and recycle it once they're done
+            boolean recycleParcel = false;
             try {
-                parcelledData.readArrayMapInternal(map, N, mClassLoader);
+                recycleParcel = !parcelledData.readArrayMapInternal(map, N, mClassLoader, true);
             } catch (BadParcelableException e) {
                 if (sShouldDefuse) {
                     Log.w(TAG, "Failed to parse Bundle, but defusing quietly", e);
                     map.erase();
+                    recycleParcel = true;
                 } else {
                     throw e;
                 }
             } finally {
                 mMap = map;
-                parcelledData.recycle();
+                if (recycleParcel) {
+                    parcelledData.recycle();
+                }
                 mParcelledData = null;
             }
             if (DEBUG) Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
@@ -286,12 +449,131 @@ public class BaseBundle {
         return mParcelledData == NoImagePreloadHolder.EMPTY_PARCEL;
     }
 
+    /**
+     * Returns roughly how many bytes writing this Bundle to a parcel takes, without writing
+     * it. Parcelled data and values that were never read are counted exactly, other values
+     * only by their kind.
+     *
+     * @hide
+     */
+    public int getParcelledSizeEstimate() {
+        final Parcel parcelledData = mParcelledData;
+        if (parcelledData != null) {
+            // length and magic, then the data
+            return 8 + parcelledData.dataSize();
+        }
+        final ArrayMap<String, Object> map = mMap;
+        if (map == null) {
+            return 4;
+        }
+        int size = 12;
+        for (int i = 0; i < map.size(); i++) {
+            size += estimateStringSize(map.keyAt(i));
+            final Object value = map.valueAt(i);
+            if (value instanceof LazyValue) {
+                size += ((LazyValue) value).mLength;
+            } else if (value instanceof String) {
+                size += 4 + estimateStringSize((String) value);
+            } else if (value instanceof BaseBundle) {
+                size += 4 + ((BaseBundle) value).getParcelledSizeEstimate();
+            } else if (value instanceof byte[]) {
+                size += 8 + ((byte[]) value).length;
+            } else {
+                size += 16;
+            }
+        }
+        return size;
+    }
+
+    private static int estimateStringSize(String s) {
+        return s != null ? 8 + s.length() * 2 : 4;
+    }
+
     /** @hide */
     ArrayMap<String, Object> getMap() {
         unparcel();
+        // Callers look at the values directly
+        for (int i = mMap.size() - 1; i >= 0; i--) {
+            getValueAt(i);
+        }
         return mMap;
     }
 
+    /**
+     * Returns the value of the given key in mMap, unparcelling it if needed. The Bundle
+     * must already be unparcelled.
+     */
+    final Object getValue(String key) {
+        final int i = mMap.indexOfKey(key);
+        return (i >= 0) ? getValueAt(i) : null;
+    }
+
+    /**
+     * Returns the value at the given index of mMap, unparcelling it if needed. The Bundle
+     * must already be unparcelled.
+     */
+    final Object getValueAt(int i) {
+        Object value = mMap.valueAt(i);
+        if (!(value instanceof LazyValue)) {
+            return value;
+        }
+        final LazyValue lazyValue = (LazyValue) value;
+        try {
+            value = lazyValue.get(mClassLoader);
+        } catch (BadParcelableException e) {
+            if (sShouldDefuse) {
+                Log.w(TAG, "Failed to parse Bundle value " + mMap.keyAt(i)
+                        + ", but defusing quietly", e);
+                lazyValue.drop();
+                value = null;
+            } else {
+                throw e;
+            }
+        }
+        mMap.setValueAt(i, value);
+        return value;
+    }
+
+    /**
+     * Inserts a value into mMap, letting go of the unread value it replaces if any.
+     */
+    final void putValue(String key, Object value) {
+        final Object old = mMap.put(key, value);
+        if (old instanceof LazyValue) {
+            ((LazyValue) old).drop();
+        }
+    }
+
+    /**
+     * Inserts all the values of another Bundle's map into mMap. Unread values are shared
+     * with the other Bundle from then on.
+     */
+    final void putAllValues(ArrayMap<String, Object> map) {
+        final boolean overwrite = !mMap.isEmpty();
+        for (int i = map.size() - 1; i >= 0; i--) {
+            final Object value = map.valueAt(i);
+            if (value instanceof LazyValue) {
+                ((LazyValue) value).markShared();
+            }
+            if (overwrite) {
+                final Object old = mMap.get(map.keyAt(i));
+                if (old instanceof LazyValue) {
+                    ((LazyValue) old).drop();
+                }
+            }
+        }
+        mMap.putAll(map);
+    }
+
+    private static void dropLazyValues(ArrayMap<String, Object> map) {
+        for (int i = map.size() - 1; i >= 0; i--) {
+            final Object value = map.valueAt(i);
+            if (value instanceof LazyValue) {
+                ((LazyValue) value).drop();
+            }
+        }
+    }
+
     /**
      * Returns the number of mappings contained in this Bundle.
      *
@@ -337,7 +619,8 @@ public class BaseBundle {
         } else if (isParcelled()) {
             return mParcelledData.compareData(other.mParcelledData) == 0;
         } else {
-            return mMap.equals(other.mMap);
+            // Unread values would only compare by identity
+            return getMap().equals(other.getMap());
         }
     }
 
@@ -346,6 +629,7 @@ public class BaseBundle {
      */
     public void clear() {
         unparcel();
+        dropLazyValues(mMap);
         mMap.clear();
     }
 
@@ -367,6 +651,12 @@ public class BaseBundle {
             if (from.mMap != null) {
                 if (!deep) {
                     mMap = new ArrayMap<>(from.mMap);
+                    for (int i = mMap.size() - 1; i >= 0; i--) {
+                        final Object value = mMap.valueAt(i);
+                        if (value instanceof LazyValue) {
+                            ((LazyValue) value).markShared();
+                        }
+                    }
                 } else {
                     final ArrayMap<String, Object> fromMap = from.mMap;
                     final int N = fromMap.size();
@@ -387,6 +677,12 @@ public class BaseBundle {
         if (value == null) {
             return null;
         }
+        if (value instanceof LazyValue) {
+            value = ((LazyValue) value).copy();
+            if (value instanceof LazyValue) {
+                return value;
+            }
+        }
         if (value instanceof Bundle) {
             return ((Bundle)value).deepCopy();
         } else if (value instanceof PersistableBundle) {
@@ -445,7 +741,7 @@ public class BaseBundle {
     @Nullable
     public Object get(String key) {
         unparcel();
-        return mMap.get(key);
+        return getValue(key);
     }
 
     /**
@@ -455,7 +751,10 @@ public class BaseBundle {
      */
     public void remove(String key) {
         unparcel();
-        mMap.remove(key);
+        final Object old = mMap.remove(key);
+        if (old instanceof LazyValue) {
+            ((LazyValue) old).drop();
+        }
     }
 
     /**
@@ -466,7 +765,7 @@ public class BaseBundle {
     public void putAll(PersistableBundle bundle) {
         unparcel();
         bundle.unparcel();
-        mMap.putAll(bundle.mMap);
+        putAllValues(bundle.mMap);
     }
 
     /**
@@ -476,7 +775,7 @@ public class BaseBundle {
      */
     void putAll(ArrayMap map) {
         unparcel();
-        mMap.putAll(map);
+        putAllValues(map);
     }
 
     /**
@@ -498,7 +797,7 @@ public class BaseBundle {
      */
     public void putBoolean(@Nullable String key, boolean value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -510,7 +809,7 @@ public class BaseBundle {
      */
     void putByte(@Nullable String key, byte value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -522,7 +821,7 @@ public class BaseBundle {
      */
     void putChar(@Nullable String key, char value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -534,7 +833,7 @@ public class BaseBundle {
      */
     void putShort(@Nullable String key, short value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -546,7 +845,7 @@ public class BaseBundle {
      */
     public void putInt(@Nullable String key, int value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -558,7 +857,7 @@ public class BaseBundle {
      */
     public void putLong(@Nullable String key, long value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -570,7 +869,7 @@ public class BaseBundle {
      */
     void putFloat(@Nullable String key, float value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -582,7 +881,7 @@ public class BaseBundle {
      */
     public void putDouble(@Nullable String key, double value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -594,7 +893,7 @@ public class BaseBundle {
      */
     public void putString(@Nullable String key, @Nullable String value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -606,7 +905,7 @@ public class BaseBundle {
      */
     void putCharSequence(@Nullable String key, @Nullable CharSequence value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -618,7 +917,7 @@ public class BaseBundle {
      */
     void putIntegerArrayList(@Nullable String key, @Nullable ArrayList<Integer> value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -630,7 +929,7 @@ public class BaseBundle {
      */
     void putStringArrayList(@Nullable String key, @Nullable ArrayList<String> value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -642,7 +941,7 @@ public class BaseBundle {
      */
     void putCharSequenceArrayList(@Nullable String key, @Nullable ArrayList<CharSequence> value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -654,7 +953,7 @@ public class BaseBundle {
      */
     void putSerializable(@Nullable String key, @Nullable Serializable value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -666,7 +965,7 @@ public class BaseBundle {
      */
     public void putBooleanArray(@Nullable String key, @Nullable boolean[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -678,7 +977,7 @@ public class BaseBundle {
      */
     void putByteArray(@Nullable String key, @Nullable byte[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -690,7 +989,7 @@ public class BaseBundle {
      */
     void putShortArray(@Nullable String key, @Nullable short[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -702,7 +1001,7 @@ public class BaseBundle {
      */
     void putCharArray(@Nullable String key, @Nullable char[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -714,7 +1013,7 @@ public class BaseBundle {
      */
     public void putIntArray(@Nullable String key, @Nullable int[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -726,7 +1025,7 @@ public class BaseBundle {
      */
     public void putLongArray(@Nullable String key, @Nullable long[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -738,7 +1037,7 @@ public class BaseBundle {
      */
     void putFloatArray(@Nullable String key, @Nullable float[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -750,7 +1049,7 @@ public class BaseBundle {
      */
     public void putDoubleArray(@Nullable String key, @Nullable double[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -762,7 +1061,7 @@ public class BaseBundle {
      */
     public void putStringArray(@Nullable String key, @Nullable String[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -774,7 +1073,7 @@ public class BaseBundle {
      */
     void putCharSequenceArray(@Nullable String key, @Nullable CharSequence[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -823,7 +1122,7 @@ public class BaseBundle {
      */
     public boolean getBoolean(String key, boolean defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -857,7 +1156,7 @@ public class BaseBundle {
      */
     Byte getByte(String key, byte defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -891,7 +1190,7 @@ public class BaseBundle {
      */
     char getChar(String key, char defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -925,7 +1224,7 @@ public class BaseBundle {
      */
     short getShort(String key, short defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -959,7 +1258,7 @@ public class BaseBundle {
      */
    public int getInt(String key, int defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -993,7 +1292,7 @@ public class BaseBundle {
      */
     public long getLong(String key, long defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1027,7 +1326,7 @@ public class BaseBundle {
      */
     float getFloat(String key, float defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1061,7 +1360,7 @@ public class BaseBundle {
      */
     public double getDouble(String key, double defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1084,7 +1383,7 @@ public class BaseBundle {
     @Nullable
     public String getString(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1120,7 +1419,7 @@ public class BaseBundle {
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1156,7 +1455,7 @@ public class BaseBundle {
     @Nullable
     Serializable getSerializable(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1179,7 +1478,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1202,7 +1501,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1225,7 +1524,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1248,7 +1547,7 @@ public class BaseBundle {
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1271,7 +1570,7 @@ public class BaseBundle {
     @Nullable
     byte[] getByteArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1294,7 +1593,7 @@ public class BaseBundle {
     @Nullable
     short[] getShortArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1317,7 +1616,7 @@ public class BaseBundle {
     @Nullable
     char[] getCharArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1340,7 +1639,7 @@ public class BaseBundle {
     @Nullable
     public int[] getIntArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1363,7 +1662,7 @@ public class BaseBundle {
     @Nullable
     public long[] getLongArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1386,7 +1685,7 @@ public class BaseBundle {
     @Nullable
     float[] getFloatArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1409,7 +1708,7 @@ public class BaseBundle {
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1432,7 +1731,7 @@ public class BaseBundle {
     @Nullable
     public String[] getStringArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1455,7 +1754,7 @@ public class BaseBundle {
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -20,6 +20,7 @@ import android.util.ExceptionUtils;
 import android.util.Log;
 import android.util.Slog;
 
+import com.android.internal.os.BinderCallsStats;
 import com.android.internal.util.FastPrintWriter;
 import com.android.internal.util.FunctionalUtils;
 import com.android.internal.util.FunctionalUtils.ThrowingRunnable;
@@ -667,6 +668,10 @@ public class Binder implements IBinder {
         // Log any exceptions as warnings, don't silently suppress them.
         // If the call was FLAG_ONEWAY then these exceptions disappear into the ether.
         final boolean tracingEnabled = Binder.isTracingEnabled();
+        final BinderCallsStats callsStats = BinderCallsStats.getInstance();
+        final boolean sampleCall = callsStats.shouldSampleCall();
+        final long startCpuTimeMicros = sampleCall ? SystemClock.currentThreadTimeMicro() : 0;
+        final long startTimeNanos = sampleCall ? System.nanoTime() : 0;
         try {
             if (tracingEnabled) {
                 Trace.traceBegin(Trace.TRACE_TAG_ALWAYS, getClass().getName() + ":" + code);
@@ -699,6 +704,11 @@ public class Binder implements IBinder {
                 Trace.traceEnd(Trace.TRACE_TAG_ALWAYS);
             }
         }
+        if (sampleCall) {
+            callsStats.callEnded(this, code, data.dataSize(), reply.dataSize(),
+                    SystemClock.currentThreadTimeMicro() - startCpuTimeMicros,
+                    (System.nanoTime() - startTimeNanos) / 1000);
+        }
         checkParcel(this, code, reply, "Unreasonably large binder reply buffer");
         reply.recycle();
         data.recycle();
@@ -248,7 +248,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     public void putAll(Bundle bundle) {
         unparcel();
         bundle.unparcel();
-        mMap.putAll(bundle.mMap);
+        putAllValues(bundle.mMap);
 
         // FD state is now known if and only if both bundles already knew
         if ((bundle.mFlags & FLAG_HAS_FDS) != 0) {
@@ -274,7 +274,12 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
                 // It's been unparcelled, so we need to walk the map
                 for (int i=mMap.size()-1; i>=0; i--) {
                     Object obj = mMap.valueAt(i);
-                    if (obj instanceof Parcelable) {
+                    if (obj instanceof LazyValue) {
+                        if (((LazyValue) obj).hasFileDescriptors()) {
+                            fdFound = true;
+                            break;
+                        }
+                    } else if (obj instanceof Parcelable) {
                         if ((((Parcelable)obj).describeContents()
                                 & Parcelable.CONTENTS_FILE_DESCRIPTOR) != 0) {
                             fdFound = true;
@@ -339,7 +344,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         if (mMap != null) {
             ArrayMap<String, Object> map = mMap;
             for (int i = map.size() - 1; i >= 0; i--) {
-                Object value = map.valueAt(i);
+                Object value = getValueAt(i);
                 if (PersistableBundle.isValidType(value)) {
                     continue;
                 }
@@ -447,7 +452,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putParcelable(@Nullable String key, @Nullable Parcelable value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
 
@@ -460,7 +465,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putSize(@Nullable String key, @Nullable Size value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -472,7 +477,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putSizeF(@Nullable String key, @Nullable SizeF value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -485,7 +490,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putParcelableArray(@Nullable String key, @Nullable Parcelable[] value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
 
@@ -500,14 +505,14 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     public void putParcelableArrayList(@Nullable String key,
             @Nullable ArrayList<? extends Parcelable> value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
 
     /** {@hide} */
     public void putParcelableList(String key, List<? extends Parcelable> value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
 
@@ -522,7 +527,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     public void putSparseParcelableArray(@Nullable String key,
             @Nullable SparseArray<? extends Parcelable> value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
 
@@ -644,7 +649,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putBundle(@Nullable String key, @Nullable Bundle value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -663,7 +668,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putBinder(@Nullable String key, @Nullable IBinder value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -679,7 +684,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Deprecated
     public void putIBinder(@Nullable String key, @Nullable IBinder value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -823,7 +828,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public Size getSize(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (Size) o;
         } catch (ClassCastException e) {
@@ -843,7 +848,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public SizeF getSizeF(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (SizeF) o;
         } catch (ClassCastException e) {
@@ -863,7 +868,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public Bundle getBundle(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -886,7 +891,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public <T extends Parcelable> T getParcelable(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -909,7 +914,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public Parcelable[] getParcelableArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -932,7 +937,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public <T extends Parcelable> ArrayList<T> getParcelableArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -956,7 +961,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public <T extends Parcelable> SparseArray<T> getSparseParcelableArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1105,7 +1110,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public IBinder getBinder(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1132,7 +1137,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public IBinder getIBinder(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.graphics.Rect;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Round trips of Bundles whose values are unparcelled one key at a time, see
+ * {@link BaseBundle.LazyValue}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BundleLazyValueTest {
+    // Parcel.VAL_PARCELABLE, which is written with its length in a Bundle
+    private static final int VAL_PARCELABLE = 4;
+
+    @After
+    public void tearDown() {
+        BaseBundle.setShouldDefuse(false);
+    }
+
+    @Test
+    public void testForwardsUntouchedValues() {
+        final Parcel original = Parcel.obtain();
+        original.writeBundle(createBundle());
+        final Bundle bundle = readBundle(original);
+
+        assertEquals(42, bundle.getInt("int"));
+        assertTrue(isLazy(bundle, "rect"));
+        assertTrue(isLazy(bundle, "list"));
+
+        final Parcel forwarded = Parcel.obtain();
+        forwarded.writeBundle(bundle);
+        assertTrue(isLazy(bundle, "rect"));
+        assertArrayEquals(original.marshall(), forwarded.marshall());
+
+        final Bundle received = readBundle(forwarded);
+        assertBundleContents(received);
+        original.recycle();
+        forwarded.recycle();
+    }
+
+    @Test
+    public void testWritesReadValues() {
+        final Parcel parcel = Parcel.obtain();
+        parcel.writeBundle(createBundle());
+        final Bundle bundle = readBundle(parcel);
+        parcel.recycle();
+
+        final ArrayList<String> list = bundle.getStringArrayList("list");
+        list.add("d");
+        final Bundle received = roundTrip(bundle);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), received.getStringArrayList("list"));
+        assertEquals(new Rect(1, 2, 3, 4), received.getParcelable("rect"));
+    }
+
+    @Test
+    public void testNestedBundle() {
+        final Bundle inner = createBundle();
+        final Bundle outer = new Bundle();
+        outer.putBundle("inner", inner);
+        outer.putParcelable("rect", new Rect(5, 6, 7, 8));
+
+        final Bundle received = roundTrip(roundTrip(outer));
+        assertTrue(isLazy(received, "rect"));
+        final Bundle receivedInner = received.getBundle("inner");
+        assertTrue(isLazy(receivedInner, "rect"));
+        assertBundleContents(receivedInner);
+        assertEquals(new Rect(5, 6, 7, 8), received.getParcelable("rect"));
+    }
+
+    @Test
+    public void testDeepCopy() {
+        final Parcel parcel = Parcel.obtain();
+        parcel.writeBundle(createBundle());
+        final Bundle bundle = readBundle(parcel);
+        parcel.recycle();
+        bundle.getInt("int");
+
+        final Bundle copy = bundle.deepCopy();
+        assertTrue(isLazy(copy, "list"));
+        copy.getStringArrayList("list").add("d");
+        assertEquals(Arrays.asList("a", "b", "c"), bundle.getStringArrayList("list"));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), copy.getStringArrayList("list"));
+
+        // Values read before copying are copied as usual
+        final Bundle secondCopy = bundle.deepCopy();
+        assertFalse(isLazy(secondCopy, "list"));
+        secondCopy.getStringArrayList("list").add("e");
+        assertEquals(Arrays.asList("a", "b", "c"), bundle.getStringArrayList("list"));
+        assertEquals(new Rect(1, 2, 3, 4), secondCopy.getParcelable("rect"));
+    }
+
+    @Test
+    public void testDefusesBadValue() {
+        final Bundle bundle = new Bundle();
+        bundle.putInt("int", 42);
+        bundle.putParcelable("bad", new BadParcelable());
+        bundle.putParcelable("rect", new Rect(1, 2, 3, 4));
+
+        final Bundle received = roundTrip(bundle);
+        assertEquals(42, received.getInt("int"));
+        try {
+            received.getParcelable("bad");
+            fail("Expected BadParcelableException");
+        } catch (BadParcelableException expected) {
+        }
+        // The bad value doesn't take the others with it, and can still be forwarded
+        assertEquals(new Rect(1, 2, 3, 4), received.getParcelable("rect"));
+        final Bundle forwarded = roundTrip(received);
+
+        BaseBundle.setShouldDefuse(true);
+        assertNull(forwarded.getParcelable("bad"));
+        assertTrue(forwarded.containsKey("bad"));
+        assertEquals(new Rect(1, 2, 3, 4), forwarded.getParcelable("rect"));
+    }
+
+    @Test
+    public void testRejectsLengthPastEnd() {
+        final Bundle bundle = readBundle(createTruncatedBundle());
+        try {
+            bundle.getInt("int");
+            fail("Expected BadParcelableException");
+        } catch (BadParcelableException expected) {
+        }
+
+        BaseBundle.setShouldDefuse(true);
+        final Bundle defused = readBundle(createTruncatedBundle());
+        assertEquals(0, defused.getInt("int"));
+        assertTrue(defused.isEmpty());
+    }
+
+    @Test
+    public void testKindofEquals() {
+        final Bundle first = roundTrip(createBundle());
+        final Bundle second = roundTrip(createBundle());
+        assertTrue(first.kindofEquals(second));
+
+        // Unparcelled, with the values compared rather than the unread bytes
+        first.getInt("int");
+        second.getInt("int");
+        assertTrue(isLazy(first, "list"));
+        assertTrue(first.kindofEquals(second));
+
+        final Bundle third = roundTrip(createBundle());
+        third.putStringArrayList("list", new ArrayList<>(Arrays.asList("a", "b")));
+        assertFalse(first.kindofEquals(third));
+    }
+
+    @Test
+    public void testRecyclesSourceOnceValuesRead() {
+        final Parcel parcel = Parcel.obtain();
+        parcel.writeBundle(createBundle());
+        final Bundle bundle = readBundle(parcel);
+        parcel.recycle();
+        final Parcel source = bundle.mParcelledData;
+
+        bundle.getInt("int");
+        bundle.getParcelable("rect");
+        assertTrue(source.dataSize() > 0);
+        bundle.remove("list");
+        assertEquals(0, source.dataSize());
+    }
+
+    @Test
+    public void testKeepsSourceForCopies() {
+        final Parcel parcel = Parcel.obtain();
+        parcel.writeBundle(createBundle());
+        final Bundle bundle = readBundle(parcel);
+        parcel.recycle();
+        final Parcel source = bundle.mParcelledData;
+
+        bundle.getInt("int");
+        final Bundle copy = new Bundle(bundle);
+        bundle.remove("rect");
+        bundle.putString("list", "replaced");
+        assertTrue(source.dataSize() > 0);
+        assertBundleContents(copy);
+        assertEquals(0, source.dataSize());
+    }
+
+    private static Bundle createBundle() {
+        final Bundle bundle = new Bundle();
+        bundle.putInt("int", 42);
+        bundle.putString("string", "forty-two");
+        bundle.putParcelable("rect", new Rect(1, 2, 3, 4));
+        bundle.putStringArrayList("list", new ArrayList<>(Arrays.asList("a", "b", "c")));
+        return bundle;
+    }
+
+    private static void assertBundleContents(Bundle bundle) {
+        assertEquals(42, bundle.getInt("int"));
+        assertEquals("forty-two", bundle.getString("string"));
+        assertEquals(new Rect(1, 2, 3, 4), bundle.getParcelable("rect"));
+        assertEquals(Arrays.asList("a", "b", "c"), bundle.getStringArrayList("list"));
+    }
+
+    /**
+     * Returns a Bundle with a value that claims to be longer than what's left of it.
+     */
+    private static Parcel createTruncatedBundle() {
+        final Parcel data = Parcel.obtain();
+        data.writeInt(2);
+        data.writeString("int");
+        data.writeValue(42);
+        data.writeString("rect");
+        data.writeInt(VAL_PARCELABLE);
+        data.writeInt(1000);
+        data.writeInt(0);
+
+        final Parcel parcel = Parcel.obtain();
+        parcel.writeInt(data.dataSize());
+        parcel.writeInt(BaseBundle.BUNDLE_MAGIC);
+        parcel.appendFrom(data, 0, data.dataSize());
+        data.recycle();
+        return parcel;
+    }
+
+    private static Bundle roundTrip(Bundle bundle) {
+        final Parcel parcel = Parcel.obtain();
+        parcel.writeBundle(bundle);
+        final Bundle received = readBundle(parcel);
+        parcel.recycle();
+        return received;
+    }
+
+    private static Bundle readBundle(Parcel parcel) {
+        parcel.setDataPosition(0);
+        final Bundle bundle = parcel.readBundle(BundleLazyValueTest.class.getClassLoader());
+        assertTrue(bundle.isParcelled());
+        return bundle;
+    }
+
+    private static boolean isLazy(Bundle bundle, String key) {
+        bundle.unparcel();
+        return bundle.mMap.get(key) instanceof BaseBundle.LazyValue;
+    }
+
+    public static class BadParcelable implements Parcelable {
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(1);
+        }
+
+        public static final Parcelable.Creator<BadParcelable> CREATOR =
+                new Parcelable.Creator<BadParcelable>() {
+            @Override
+            public BadParcelable createFromParcel(Parcel in) {
+                throw new BadParcelableException("Can't read " + in.readInt());
+            }
+
+            @Override
+            public BadParcelable[] newArray(int size) {
+                return new BadParcelable[size];
+            }
+        };
+    }
+}
@@ -70,11 +70,13 @@ public final class Looper {
     // sThreadLocal.get() will return null unless you've called prepare().
     static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
     private static Looper sMainLooper;  // guarded by Looper.class
+    private static volatile Observer sObserver;
 
     final MessageQueue mQueue;
     final Thread mThread;
 
     private Printer mLogging;
+    private Observer mObserver;
     private long mTraceTag;
 
     /* If set, the looper will show a warning log if a message dispatch takes longer than time. */
@@ -154,6 +156,28 @@ public final class Looper {
 
             final long slowDispatchThresholdMs = me.mSlowDispatchThresholdMs;
 
+            // This must be in a local variable too, and the fields of the message read before
+            // the handler gets to change them
+            final Observer observer = (me.mObserver != null) ? me.mObserver : sObserver;
+            final Class<? extends Handler> targetClass;
+            final Class<? extends Runnable> callbackClass;
+            final int what;
+            final long when;
+            final long dispatchStartNanos;
+            if (observer != null) {
+                targetClass = msg.target.getClass();
+                callbackClass = (msg.callback != null) ? msg.callback.getClass() : null;
+                what = msg.what;
+                when = msg.when;
+                dispatchStartNanos = System.nanoTime();
+            } else {
+                targetClass = null;
+                callbackClass = null;
+                what = 0;
+                when = 0;
+                dispatchStartNanos = 0;
+            }
+
             final long traceTag = me.mTraceTag;
             if (traceTag != 0 && Trace.isTagEnabled(traceTag)) {
                 Trace.traceBegin(traceTag, msg.target.getTraceName(msg));
@@ -168,6 +192,10 @@ public final class Looper {
                     Trace.traceEnd(traceTag);
                 }
             }
+            if (observer != null) {
+                observer.messageDispatched(targetClass, callbackClass, what, when,
+                        dispatchStartNanos, System.nanoTime());
+            }
             if (slowDispatchThresholdMs > 0) {
                 final long time = end - start;
                 if (time > slowDispatchThresholdMs) {
@@ -238,6 +266,29 @@ public final class Looper {
         mLogging = printer;
     }
 
+    /**
+     * Set an observer to be told about every message this Looper dispatches,
+     * in place of the default observer.
+     *
+     * @param observer The observer, or null to go back to the default observer.
+     * @see #setDefaultObserver
+     * {@hide}
+     */
+    public void setObserver(@Nullable Observer observer) {
+        mObserver = observer;
+    }
+
+    /**
+     * Set an observer to be told about every message dispatched by the loopers
+     * of this process that don't have an observer of their own.
+     *
+     * @param observer The observer, or null to stop observing.
+     * {@hide}
+     */
+    public static void setDefaultObserver(@Nullable Observer observer) {
+        sObserver = observer;
+    }
+
     /** {@hide} */
     public void setTraceTag(long traceTag) {
         mTraceTag = traceTag;
@@ -341,4 +392,29 @@ public final class Looper {
         return "Looper (" + mThread.getName() + ", tid " + mThread.getId()
                 + ") {" + Integer.toHexString(System.identityHashCode(this)) + "}";
     }
+
+    /**
+     * Receives a description of each message a Looper dispatches, as plain values
+     * so that observing costs no allocations or string formatting. It is called on
+     * the looper's thread, right after the message was handled, and must be quick.
+     *
+     * {@hide}
+     */
+    public interface Observer {
+        /**
+         * Called after a message has been dispatched.
+         *
+         * @param targetClass The class of the Handler the message was sent to.
+         * @param callbackClass The class of the Runnable the message posted, or null.
+         * @param what The {@link Message#what} of the message.
+         * @param when The time the message was due, in the {@link SystemClock#uptimeMillis}
+         *        time base, or 0 if it was sent to the front of the queue.
+         * @param dispatchStartNanos The {@link System#nanoTime} when handling started,
+         *        which counts in the same time base as {@code when}.
+         * @param dispatchEndNanos The {@link System#nanoTime} when handling finished.
+         */
+        void messageDispatched(Class<? extends Handler> targetClass,
+                Class<? extends Runnable> callbackClass, int what, long when,
+                long dispatchStartNanos, long dispatchEndNanos);
+    }
 }
@@ -20,6 +20,8 @@ import android.os.MessageProto;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  *
  * Defines a message containing a description and arbitrary data object that can be
@@ -109,12 +111,35 @@ public final class Message implements Parcelable {
     // sometimes we store linked lists of these things
     /*package*/ Message next;
 
-    private static final Object sPoolSync = new Object();
-    private static Message sPool;
-    private static int sPoolSize = 0;
+    /**
+     * Recycled messages first go to a small pool owned by the recycling thread, so
+     * obtain() and recycle() usually take no lock and touch no shared state. When that pool
+     * is full it is moved whole into one of the slots of the shared pool, and an empty
+     * thread pool is refilled by taking a whole batch out of a slot. Batches only move in
+     * and out of the slots through atomic swaps, so threads never walk a list another thread
+     * may change.
+     */
+    private static final class LocalPool {
+        Message head;
+        int size;
+        int slotHint;
+    }
+
+    private static final int LOCAL_POOL_SIZE = 16;
 
     private static final int MAX_POOL_SIZE = 50;
 
+    private static final ThreadLocal<LocalPool> sLocalPool = new ThreadLocal<LocalPool>() {
+        @Override
+        protected LocalPool initialValue() {
+            return new LocalPool();
+        }
+    };
+
+    // Each slot holds null or a list of LOCAL_POOL_SIZE messages
+    private static volatile AtomicReferenceArray<Message> sSharedPool =
+            new AtomicReferenceArray<>(getSharedPoolSlots(MAX_POOL_SIZE));
+
     private static boolean gCheckRecycle = true;
 
     /**
@@ -122,17 +147,67 @@ public final class Message implements Parcelable {
      * avoid allocating new objects in many cases.
      */
     public static Message obtain() {
-        synchronized (sPoolSync) {
-            if (sPool != null) {
-                Message m = sPool;
-                sPool = m.next;
-                m.next = null;
-                m.flags = 0; // clear in-use flag
-                sPoolSize--;
-                return m;
+        final LocalPool pool = sLocalPool.get();
+        if (pool.head == null && !refillLocalPool(pool)) {
+            return new Message();
+        }
+        Message m = pool.head;
+        pool.head = m.next;
+        pool.size--;
+        m.next = null;
+        m.flags = 0; // clear in-use flag
+        return m;
+    }
+
+    private static boolean refillLocalPool(LocalPool pool) {
+        final AtomicReferenceArray<Message> sharedPool = sSharedPool;
+        final int slots = sharedPool.length();
+        for (int i = 0; i < slots; i++) {
+            final int slot = (pool.slotHint + i) % slots;
+            if (sharedPool.get(slot) == null) {
+                continue;
+            }
+            final Message batch = sharedPool.getAndSet(slot, null);
+            if (batch != null) {
+                pool.head = batch;
+                pool.size = LOCAL_POOL_SIZE;
+                pool.slotHint = slot;
+                return true;
             }
         }
-        return new Message();
+        return false;
+    }
+
+    private static boolean spillLocalPool(LocalPool pool) {
+        final AtomicReferenceArray<Message> sharedPool = sSharedPool;
+        final int slots = sharedPool.length();
+        for (int i = 0; i < slots; i++) {
+            final int slot = (pool.slotHint + i) % slots;
+            if (sharedPool.compareAndSet(slot, null, pool.head)) {
+                pool.head = null;
+                pool.size = 0;
+                pool.slotHint = slot;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getSharedPoolSlots(int maxPoolSize) {
+        return Math.max(1, (maxPoolSize + LOCAL_POOL_SIZE - 1) / LOCAL_POOL_SIZE);
+    }
+
+    /**
+     * Sets roughly how many recycled messages are kept for reuse, on top of the few each
+     * thread keeps for itself. Messages pooled at the time are dropped.
+     *
+     * @hide
+     */
+    public static void setMaxPoolSize(int maxPoolSize) {
+        if (maxPoolSize < 0) {
+            throw new IllegalArgumentException("Invalid pool size " + maxPoolSize);
+        }
+        sSharedPool = new AtomicReferenceArray<>(getSharedPoolSlots(maxPoolSize));
     }
 
     /**
@@ -305,13 +380,14 @@ public final class Message implements Parcelable {
         callback = null;
         data = null;
 
-        synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                next = sPool;
-                sPool = this;
-                sPoolSize++;
-            }
+        final LocalPool pool = sLocalPool.get();
+        if (pool.size == LOCAL_POOL_SIZE && !spillLocalPool(pool)) {
+            // Both pools are full
+            return;
         }
+        next = pool.head;
+        pool.head = this;
+        pool.size++;
     }
 
     /**
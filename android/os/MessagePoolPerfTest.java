@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures obtaining and recycling messages while several HandlerThreads do the same.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessagePoolPerfTest {
+    private static final int THREAD_COUNT = 4;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final HandlerThread[] mThreads = new HandlerThread[THREAD_COUNT];
+    private final Handler[] mHandlers = new Handler[THREAD_COUNT];
+    private volatile boolean mChurning;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            mThreads[i] = new HandlerThread("MessagePoolPerfTest" + i);
+            mThreads[i].start();
+            mHandlers[i] = new Handler(mThreads[i].getLooper());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mChurning = false;
+        for (HandlerThread thread : mThreads) {
+            thread.quit();
+        }
+    }
+
+    @Test
+    public void timeObtainRecycle() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Message.obtain().recycle();
+        }
+    }
+
+    @Test
+    public void timeObtainRecycle_contended() {
+        startChurning();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Message.obtain().recycle();
+        }
+    }
+
+    @Test
+    public void timeObtainBurst_contended() {
+        startChurning();
+        final Message[] burst = new Message[64];
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < burst.length; i++) {
+                burst[i] = Message.obtain();
+            }
+            for (int i = 0; i < burst.length; i++) {
+                burst[i].recycle();
+            }
+        }
+    }
+
+    /**
+     * Messages are obtained here and recycled by the looper of the thread they're sent to,
+     * so they keep moving between threads.
+     */
+    @Test
+    public void timeSendMessage_acrossThreads() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mHandlers[i++ % THREAD_COUNT].sendEmptyMessage(0);
+        }
+    }
+
+    private void startChurning() {
+        mChurning = true;
+        for (Handler handler : mHandlers) {
+            handler.post(() -> {
+                final Message[] burst = new Message[8];
+                while (mChurning) {
+                    for (int i = 0; i < burst.length; i++) {
+                        burst[i] = Message.obtain();
+                    }
+                    for (int i = 0; i < burst.length; i++) {
+                        burst[i].recycle();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.MathUtils;
 import android.util.Size;
 import android.util.SizeF;
 import android.util.SparseArray;
@@ -774,7 +775,12 @@ public final class Parcel {
         for (int i=0; i<N; i++) {
             if (DEBUG_ARRAY_MAP) startPos = dataPosition();
             writeString(val.keyAt(i));
-            writeValue(val.valueAt(i));
+            final Object value = val.valueAt(i);
+            if (value instanceof BaseBundle.LazyValue) {
+                ((BaseBundle.LazyValue) value).writeToParcel(this);
+            } else {
+                writeBundleValue(value);
+            }
             if (DEBUG_ARRAY_MAP) Log.d(TAG, "  Write #" + i + " "
                     + (dataPosition()-startPos) + " bytes: key=0x"
                     + Integer.toHexString(val.keyAt(i) != null ? val.keyAt(i).hashCode() : 0)
@@ -1610,109 +1616,253 @@ public final class Parcel {
      * should be used).</p>
      */
     public final void writeValue(Object v) {
+        final int type = getValueType(v);
+        writeInt(type);
+        writeValueBody(type, v);
+    }
+
+    private static int getValueType(Object v) {
         if (v == null) {
-            writeInt(VAL_NULL);
+            return VAL_NULL;
         } else if (v instanceof String) {
-            writeInt(VAL_STRING);
-            writeString((String) v);
+            return VAL_STRING;
         } else if (v instanceof Integer) {
-            writeInt(VAL_INTEGER);
-            writeInt((Integer) v);
+            return VAL_INTEGER;
         } else if (v instanceof Map) {
-            writeInt(VAL_MAP);
-            writeMap((Map) v);
+            return VAL_MAP;
         } else if (v instanceof Bundle) {
             // Must be before Parcelable
-            writeInt(VAL_BUNDLE);
-            writeBundle((Bundle) v);
+            return VAL_BUNDLE;
         } else if (v instanceof PersistableBundle) {
-            writeInt(VAL_PERSISTABLEBUNDLE);
-            writePersistableBundle((PersistableBundle) v);
+            return VAL_PERSISTABLEBUNDLE;
         } else if (v instanceof Parcelable) {
             // IMPOTANT: cases for classes that implement Parcelable must
             // come before the Parcelable case, so that their specific VAL_*
             // types will be written.
-            writeInt(VAL_PARCELABLE);
-            writeParcelable((Parcelable) v, 0);
+            return VAL_PARCELABLE;
         } else if (v instanceof Short) {
-            writeInt(VAL_SHORT);
-            writeInt(((Short) v).intValue());
+            return VAL_SHORT;
         } else if (v instanceof Long) {
-            writeInt(VAL_LONG);
-            writeLong((Long) v);
+            return VAL_LONG;
         } else if (v instanceof Float) {
-            writeInt(VAL_FLOAT);
-            writeFloat((Float) v);
+            return VAL_FLOAT;
         } else if (v instanceof Double) {
-            writeInt(VAL_DOUBLE);
-            writeDouble((Double) v);
+            return VAL_DOUBLE;
         } else if (v instanceof Boolean) {
-            writeInt(VAL_BOOLEAN);
-            writeInt((Boolean) v ? 1 : 0);
+            return VAL_BOOLEAN;
         } else if (v instanceof CharSequence) {
             // Must be after String
-            writeInt(VAL_CHARSEQUENCE);
-            writeCharSequence((CharSequence) v);
+            return VAL_CHARSEQUENCE;
         } else if (v instanceof List) {
-            writeInt(VAL_LIST);
-            writeList((List) v);
+            return VAL_LIST;
         } else if (v instanceof SparseArray) {
-            writeInt(VAL_SPARSEARRAY);
-            writeSparseArray((SparseArray) v);
+            return VAL_SPARSEARRAY;
         } else if (v instanceof boolean[]) {
-            writeInt(VAL_BOOLEANARRAY);
-            writeBooleanArray((boolean[]) v);
+            return VAL_BOOLEANARRAY;
         } else if (v instanceof byte[]) {
-            writeInt(VAL_BYTEARRAY);
-            writeByteArray((byte[]) v);
+            return VAL_BYTEARRAY;
         } else if (v instanceof String[]) {
-            writeInt(VAL_STRINGARRAY);
-            writeStringArray((String[]) v);
+            return VAL_STRINGARRAY;
         } else if (v instanceof CharSequence[]) {
             // Must be after String[] and before Object[]
-            writeInt(VAL_CHARSEQUENCEARRAY);
-            writeCharSequenceArray((CharSequence[]) v);
+            return VAL_CHARSEQUENCEARRAY;
         } else if (v instanceof IBinder) {
-            writeInt(VAL_IBINDER);
-            writeStrongBinder((IBinder) v);
+            return VAL_IBINDER;
         } else if (v instanceof Parcelable[]) {
-            writeInt(VAL_PARCELABLEARRAY);
-            writeParcelableArray((Parcelable[]) v, 0);
+            return VAL_PARCELABLEARRAY;
         } else if (v instanceof int[]) {
-            writeInt(VAL_INTARRAY);
-            writeIntArray((int[]) v);
+            return VAL_INTARRAY;
         } else if (v instanceof long[]) {
-            writeInt(VAL_LONGARRAY);
-            writeLongArray((long[]) v);
+            return VAL_LONGARRAY;
         } else if (v instanceof Byte) {
-            writeInt(VAL_BYTE);
-            writeInt((Byte) v);
+            return VAL_BYTE;
         } else if (v instanceof Size) {
-            writeInt(VAL_SIZE);
-            writeSize((Size) v);
+            return VAL_SIZE;
         } else if (v instanceof SizeF) {
-            writeInt(VAL_SIZEF);
-            writeSizeF((SizeF) v);
+            return VAL_SIZEF;
         } else if (v instanceof double[]) {
-            writeInt(VAL_DOUBLEARRAY);
-            writeDoubleArray((double[]) v);
+            return VAL_DOUBLEARRAY;
         } else {
             Class<?> clazz = v.getClass();
             if (clazz.isArray() && clazz.getComponentType() == Object.class) {
                 // Only pure Object[] are written here, Other arrays of non-primitive types are
                 // handled by serialization as this does not record the component type.
-                writeInt(VAL_OBJECTARRAY);
-                writeArray((Object[]) v);
+                return VAL_OBJECTARRAY;
             } else if (v instanceof Serializable) {
                 // Must be last
-                writeInt(VAL_SERIALIZABLE);
-                writeSerializable((Serializable) v);
+                return VAL_SERIALIZABLE;
             } else {
                 throw new RuntimeException("Parcel: unable to marshal value " + v);
             }
         }
     }
 
+    private void writeValueBody(int type, Object v) {
+        switch (type) {
+            case VAL_NULL:
+                break;
+            case VAL_STRING:
+                writeString((String) v);
+                break;
+            case VAL_INTEGER:
+                writeInt((Integer) v);
+                break;
+            case VAL_MAP:
+                writeMap((Map) v);
+                break;
+            case VAL_BUNDLE:
+                writeBundle((Bundle) v);
+                break;
+            case VAL_PERSISTABLEBUNDLE:
+                writePersistableBundle((PersistableBundle) v);
+                break;
+            case VAL_PARCELABLE:
+                writeParcelable((Parcelable) v, 0);
+                break;
+            case VAL_SHORT:
+                writeInt(((Short) v).intValue());
+                break;
+            case VAL_LONG:
+                writeLong((Long) v);
+                break;
+            case VAL_FLOAT:
+                writeFloat((Float) v);
+                break;
+            case VAL_DOUBLE:
+                writeDouble((Double) v);
+                break;
+            case VAL_BOOLEAN:
+                writeInt((Boolean) v ? 1 : 0);
+                break;
+            case VAL_CHARSEQUENCE:
+                writeCharSequence((CharSequence) v);
+                break;
+            case VAL_LIST:
+                writeList((List) v);
+                break;
+            case VAL_SPARSEARRAY:
+                writeSparseArray((SparseArray) v);
+                break;
+            case VAL_BOOLEANARRAY:
+                writeBooleanArray((boolean[]) v);
+                break;
+            case VAL_BYTEARRAY:
+                writeByteArray((byte[]) v);
+                break;
+            case VAL_STRINGARRAY:
+                writeStringArray((String[]) v);
+                break;
+            case VAL_CHARSEQUENCEARRAY:
+                writeCharSequenceArray((CharSequence[]) v);
+                break;
+            case VAL_IBINDER:
+                writeStrongBinder((IBinder) v);
+                break;
+            case VAL_PARCELABLEARRAY:
+                writeParcelableArray((Parcelable[]) v, 0);
+                break;
+            case VAL_INTARRAY:
+                writeIntArray((int[]) v);
+                break;
+            case VAL_LONGARRAY:
+                writeLongArray((long[]) v);
+                break;
+            case VAL_BYTE:
+                writeInt((Byte) v);
+                break;
+            case VAL_SIZE:
+                writeSize((Size) v);
+                break;
+            case VAL_SIZEF:
+                writeSizeF((SizeF) v);
+                break;
+            case VAL_DOUBLEARRAY:
+                writeDoubleArray((double[]) v);
+                break;
+            case VAL_OBJECTARRAY:
+                writeArray((Object[]) v);
+                break;
+            case VAL_SERIALIZABLE:
+                writeSerializable((Serializable) v);
+                break;
+        }
+    }
+
+    /**
+     * Whether a value of the given type is preceded by its length when it is written as part
+     * of a Bundle, so that it can be skipped and only unparcelled when it is read. These are
+     * the types that can't be skipped otherwise. A PersistableBundle can't hold any of them,
+     * which keeps the format in sync with frameworks/native/libs/binder/PersistableBundle.cpp.
+     */
+    private static boolean isLengthPrefixed(int type) {
+        switch (type) {
+            case VAL_MAP:
+            case VAL_PARCELABLE:
+            case VAL_LIST:
+            case VAL_SPARSEARRAY:
+            case VAL_PARCELABLEARRAY:
+            case VAL_OBJECTARRAY:
+            case VAL_SERIALIZABLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Flatten a value of a Bundle into the parcel, like {@link #writeValue} except that
+     * values of some types are preceded by their length.
+     */
+    /* package */ void writeBundleValue(Object v) {
+        final int type = getValueType(v);
+        writeInt(type);
+        if (!isLengthPrefixed(type)) {
+            writeValueBody(type, v);
+            return;
+        }
+        final int lengthPos = dataPosition();
+        writeInt(-1); // dummy, will hold length
+        final int startPos = dataPosition();
+        writeValueBody(type, v);
+        final int endPos = dataPosition();
+
+        // Backpatch length
+        setDataPosition(lengthPos);
+        writeInt(endPos - startPos);
+        setDataPosition(endPos);
+    }
+
+    /**
+     * Read a value written by {@link #writeBundleValue}. If a source is given, values written
+     * with their length are skipped and returned as a {@link BaseBundle.LazyValue} pointing
+     * into this parcel.
+     */
+    /* package */ Object readBundleValue(ClassLoader loader, BaseBundle.LazySource source) {
+        final int startPos = dataPosition();
+        final int type = readInt();
+        if (!isLengthPrefixed(type)) {
+            return readValueBody(type, loader);
+        }
+        final int length = readInt();
+        if (length < 0) {
+            throw new BadParcelableException("Bad length " + length + " for Bundle value at "
+                    + startPos);
+        }
+        final int endPos = MathUtils.addOrThrow(dataPosition(), length);
+        if (endPos > dataSize()) {
+            throw new BadParcelableException("Bundle value at " + startPos + " ends at "
+                    + endPos + ", past the end of the parcel at " + dataSize());
+        }
+        if (source != null) {
+            setDataPosition(endPos);
+            return new BaseBundle.LazyValue(source, startPos, endPos - startPos);
+        }
+        final Object value = readValueBody(type, loader);
+        // Don't let a Parcelable that reads too much or too little throw off the next value
+        setDataPosition(endPos);
+        return value;
+    }
+
     /**
      * Flatten the name of the class of the Parcelable and its contents
      * into the parcel.
@@ -2656,8 +2806,10 @@ public final class Parcel {
      * loader will be used.
      */
     public final Object readValue(ClassLoader loader) {
-        int type = readInt();
+        return readValueBody(readInt(), loader);
+    }
 
+    private Object readValueBody(int type, ClassLoader loader) {
         switch (type) {
         case VAL_NULL:
             return null;
@@ -3028,18 +3180,24 @@ public final class Parcel {
         }
     }
 
-    /* package */ void readArrayMapInternal(ArrayMap outVal, int N,
-        ClassLoader loader) {
+    /**
+     * Reads the entries of a Bundle. If lazy is set, values that were written with their
+     * length are left in this parcel until they are read, and true is returned if there
+     * were any; they recycle the parcel once they have all been read or dropped.
+     */
+    /* package */ boolean readArrayMapInternal(ArrayMap outVal, int N,
+        ClassLoader loader, boolean lazy) {
         if (DEBUG_ARRAY_MAP) {
             RuntimeException here =  new RuntimeException("here");
             here.fillInStackTrace();
             Log.d(TAG, "Reading " + N + " ArrayMap entries", here);
         }
         int startPos;
+        final BaseBundle.LazySource source = lazy ? new BaseBundle.LazySource(this) : null;
         while (N > 0) {
             if (DEBUG_ARRAY_MAP) startPos = dataPosition();
             String key = readString();
-            Object value = readValue(loader);
+            Object value = readBundleValue(loader, source);
             if (DEBUG_ARRAY_MAP) Log.d(TAG, "  Read #" + (N-1) + " "
                     + (dataPosition()-startPos) + " bytes: key=0x"
                     + Integer.toHexString((key != null ? key.hashCode() : 0)) + " " + key);
@@ -3047,6 +3205,7 @@ public final class Parcel {
             N--;
         }
         outVal.validate();
+        return source != null && source.hasPending();
     }
 
     /* package */ void readArrayMapSafelyInternal(ArrayMap outVal, int N,
@@ -3060,7 +3219,7 @@ public final class Parcel {
             String key = readString();
             if (DEBUG_ARRAY_MAP) Log.d(TAG, "  Read safe #" + (N-1) + ": key=0x"
                     + (key != null ? key.hashCode() : 0) + " " + key);
-            Object value = readValue(loader);
+            Object value = readBundleValue(loader, null);
             outVal.put(key, value);
             N--;
         }
@@ -3074,7 +3233,7 @@ public final class Parcel {
         if (N < 0) {
             return;
         }
-        readArrayMapInternal(outVal, N, loader);
+        readArrayMapInternal(outVal, N, loader, false);
     }
 
     /**
@@ -185,7 +185,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
      */
     public void putPersistableBundle(@Nullable String key, @Nullable PersistableBundle value) {
         unparcel();
-        mMap.put(key, value);
+        putValue(key, value);
     }
 
     /**
@@ -199,7 +199,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
     @Nullable
     public PersistableBundle getPersistableBundle(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
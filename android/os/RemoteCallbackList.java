@@ -38,6 +38,9 @@ import java.util.function.Consumer;
  * snapshot of the list without holding its lock.
  * </ul>
  *
+ * <p>Each change to the list publishes a new immutable snapshot of it, so
+ * starting a broadcast doesn't copy the list.
+ *
  * <p>To use this class, simply create a single instance along with your
  * service, and call its {@link #register} and {@link #unregister} methods
  * as client register and unregister with your service.  To call back on to
@@ -54,7 +57,9 @@ public class RemoteCallbackList<E extends IInterface> {
 
     /*package*/ ArrayMap<IBinder, Callback> mCallbacks
             = new ArrayMap<IBinder, Callback>();
-    private Object[] mActiveBroadcast;
+    // Replaced, never modified, whenever mCallbacks changes
+    private volatile Snapshot<E> mSnapshot = new Snapshot<>(0, 0);
+    private Snapshot<E> mActiveBroadcast;
     private int mBroadcastCount = -1;
     private boolean mKilled = false;
     private StringBuilder mRecentCallers;
@@ -71,6 +76,7 @@ public class RemoteCallbackList<E extends IInterface> {
         public void binderDied() {
             synchronized (mCallbacks) {
                 mCallbacks.remove(mCallback.asBinder());
+                updateSnapshotLocked();
             }
             onCallbackDied(mCallback, mCookie);
         }
@@ -122,6 +128,7 @@ public class RemoteCallbackList<E extends IInterface> {
                 Callback cb = new Callback(callback, cookie);
                 binder.linkToDeath(cb, 0);
                 mCallbacks.put(binder, cb);
+                updateSnapshotLocked();
                 return true;
             } catch (RemoteException e) {
                 return false;
@@ -151,6 +158,7 @@ public class RemoteCallbackList<E extends IInterface> {
             Callback cb = mCallbacks.remove(callback.asBinder());
             if (cb != null) {
                 cb.mCallback.asBinder().unlinkToDeath(cb, 0);
+                updateSnapshotLocked();
                 return true;
             }
             return false;
@@ -173,6 +181,7 @@ public class RemoteCallbackList<E extends IInterface> {
             }
             mCallbacks.clear();
             mKilled = true;
+            updateSnapshotLocked();
         }
     }
 
@@ -201,9 +210,82 @@ public class RemoteCallbackList<E extends IInterface> {
         onCallbackDied(callback);
     }
 
+    private void updateSnapshotLocked() {
+        final int N = mCallbacks.size();
+        final Snapshot<E> snapshot = new Snapshot<>(N, mSnapshot.mVersion + 1);
+        for (int i=0; i<N; i++) {
+            final Callback cb = mCallbacks.valueAt(i);
+            snapshot.mCallbacks[i] = cb.mCallback;
+            snapshot.mCookies[i] = cb.mCookie;
+        }
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * An immutable copy of the registered callbacks and their cookies at some point in time.
+     * Any number of threads can iterate over snapshots at once; their callbacks may have died
+     * or been unregistered since, so calls on them must still handle
+     * {@link RemoteException}.
+     *
+     * @see #getSnapshot
+     * @hide
+     */
+    public static final class Snapshot<E extends IInterface> {
+        private final IInterface[] mCallbacks;
+        private final Object[] mCookies;
+        private final int mVersion;
+
+        Snapshot(int size, int version) {
+            mCallbacks = new IInterface[size];
+            mCookies = new Object[size];
+            mVersion = version;
+        }
+
+        /**
+         * Returns the number of callbacks in the snapshot.
+         */
+        public int size() {
+            return mCallbacks.length;
+        }
+
+        /**
+         * Returns the callback at the given index, from 0 to {@link #size()} - 1.
+         */
+        @SuppressWarnings("unchecked")
+        public E getItem(int index) {
+            return (E) mCallbacks[index];
+        }
+
+        /**
+         * Returns the cookie registered with the callback at the given index.
+         */
+        public Object getCookie(int index) {
+            return mCookies[index];
+        }
+
+        /**
+         * Returns a number that increases each time the list changes, so that callers can tell
+         * whether a snapshot they kept is still current.
+         */
+        public int getVersion() {
+            return mVersion;
+        }
+    }
+
+    /**
+     * Returns the callbacks registered right now, without copying them or taking any lock.
+     * Unlike {@link #beginBroadcast}, any number of threads can broadcast at once this way,
+     * and there is nothing to finish.
+     *
+     * @hide
+     */
+    public Snapshot<E> getSnapshot() {
+        return mSnapshot;
+    }
+
     /**
      * Prepare to start making calls to the currently registered callbacks.
-     * This creates a copy of the callback list, which you can retrieve items
+     * This takes a snapshot of the callback list, which you can retrieve items
      * from using {@link #getBroadcastItem}.  Note that only one broadcast can
      * be active at a time, so you must be sure to always call this from the
      * same thread (usually by scheduling with {@link Handler}) or
@@ -239,18 +321,8 @@ public class RemoteCallbackList<E extends IInterface> {
                         "beginBroadcast() called while already in a broadcast");
             }
             
-            final int N = mBroadcastCount = mCallbacks.size();
-            if (N <= 0) {
-                return 0;
-            }
-            Object[] active = mActiveBroadcast;
-            if (active == null || active.length < N) {
-                mActiveBroadcast = active = new Object[N];
-            }
-            for (int i=0; i<N; i++) {
-                active[i] = mCallbacks.valueAt(i);
-            }
-            return N;
+            mActiveBroadcast = mSnapshot;
+            return mBroadcastCount = mActiveBroadcast.size();
         }
     }
 
@@ -276,7 +348,7 @@ public class RemoteCallbackList<E extends IInterface> {
      * @see #beginBroadcast
      */
     public E getBroadcastItem(int index) {
-        return ((Callback)mActiveBroadcast[index]).mCallback;
+        return mActiveBroadcast.getItem(index);
     }
     
     /**
@@ -286,7 +358,7 @@ public class RemoteCallbackList<E extends IInterface> {
      * @see #getBroadcastItem
      */
     public Object getBroadcastCookie(int index) {
-        return ((Callback)mActiveBroadcast[index]).mCookie;
+        return mActiveBroadcast.getCookie(index);
     }
 
     /**
@@ -303,32 +375,22 @@ public class RemoteCallbackList<E extends IInterface> {
                         "finishBroadcast() called outside of a broadcast");
             }
 
-            Object[] active = mActiveBroadcast;
-            if (active != null) {
-                final int N = mBroadcastCount;
-                for (int i=0; i<N; i++) {
-                    active[i] = null;
-                }
-            }
-
+            mActiveBroadcast = null;
             mBroadcastCount = -1;
         }
     }
 
     /**
-     * Performs {@code action} on each callback, calling
-     * {@link #beginBroadcast()}/{@link #finishBroadcast()} before/after looping
+     * Performs {@code action} on each callback of the current {@link #getSnapshot snapshot}.
+     * Unlike {@link #beginBroadcast()}, this can run on several threads at once.
      *
      * @hide
      */
     public void broadcast(Consumer<E> action) {
-        int itemCount = beginBroadcast();
-        try {
-            for (int i = 0; i < itemCount; i++) {
-                action.accept(getBroadcastItem(i));
-            }
-        } finally {
-            finishBroadcast();
+        final Snapshot<E> snapshot = mSnapshot;
+        final int itemCount = snapshot.size();
+        for (int i = 0; i < itemCount; i++) {
+            action.accept(snapshot.getItem(i));
         }
     }
 
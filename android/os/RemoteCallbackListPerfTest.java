@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures broadcasting to a few hundred registered listeners, as location and telephony
+ * services do, while other threads broadcast to the same list.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class RemoteCallbackListPerfTest {
+    private static final int CALLBACK_COUNT = 300;
+    private static final int THREAD_COUNT = 4;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final RemoteCallbackList<Listener> mCallbacks = new RemoteCallbackList<>();
+    private final HandlerThread[] mThreads = new HandlerThread[THREAD_COUNT];
+    private volatile boolean mBroadcasting;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < CALLBACK_COUNT; i++) {
+            mCallbacks.register(new Listener());
+        }
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            mThreads[i] = new HandlerThread("RemoteCallbackListPerfTest" + i);
+            mThreads[i].start();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mBroadcasting = false;
+        for (HandlerThread thread : mThreads) {
+            thread.quit();
+        }
+        mCallbacks.kill();
+    }
+
+    @Test
+    public void timeBeginFinishBroadcast() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            beginFinishBroadcast();
+        }
+    }
+
+    @Test
+    public void timeSnapshotBroadcast() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            snapshotBroadcast();
+        }
+    }
+
+    /**
+     * Only one broadcast can be active at a time with beginBroadcast(), so concurrent
+     * broadcasters have to take turns under their own lock.
+     */
+    @Test
+    public void timeBeginFinishBroadcast_contended() {
+        startBroadcasting(() -> {
+            synchronized (mCallbacks) {
+                beginFinishBroadcast();
+            }
+        });
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            synchronized (mCallbacks) {
+                beginFinishBroadcast();
+            }
+        }
+    }
+
+    @Test
+    public void timeSnapshotBroadcast_contended() {
+        startBroadcasting(this::snapshotBroadcast);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            snapshotBroadcast();
+        }
+    }
+
+    private void beginFinishBroadcast() {
+        int i = mCallbacks.beginBroadcast();
+        while (i > 0) {
+            i--;
+            mCallbacks.getBroadcastItem(i).onEvent();
+        }
+        mCallbacks.finishBroadcast();
+    }
+
+    private void snapshotBroadcast() {
+        final RemoteCallbackList.Snapshot<Listener> snapshot = mCallbacks.getSnapshot();
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            snapshot.getItem(i).onEvent();
+        }
+    }
+
+    private void startBroadcasting(Runnable broadcast) {
+        mBroadcasting = true;
+        for (HandlerThread thread : mThreads) {
+            new Handler(thread.getLooper()).post(() -> {
+                while (mBroadcasting) {
+                    broadcast.run();
+                }
+            });
+        }
+    }
+
+    private static class Listener implements IInterface {
+        private final Binder mBinder = new Binder();
+        int mEvents;
+
+        @Override
+        public IBinder asBinder() {
+            return mBinder;
+        }
+
+        void onEvent() {
+            mEvents++;
+        }
+    }
+}
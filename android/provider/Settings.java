@@ -62,6 +62,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.speech.tts.TextToSpeech;
 import android.text.TextUtils;
@@ -70,6 +71,7 @@ import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.MemoryIntArray;
+import android.util.MemoryStringMap;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.ArrayUtils;
@@ -1478,6 +1480,13 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide Key for requesting, and returning, a {@link android.util.MemoryStringMap}
+     * with the current values of the whole table, which lets clients read
+     * settings of their own user without a binder call.
+     */
+    public static final String CALL_METHOD_TRACK_TABLE_KEY = "_track_table";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -1791,6 +1800,10 @@ public final class Settings {
 
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
+        // How long to wait before asking for the shared memory table again
+        // after the provider declined to share it, unless the settings change.
+        private static final long MEMORY_TABLE_RETRY_MILLIS = 60 * 1000;
+
         // Must synchronize on 'this' to access mValues and mValuesVersion.
         private final HashMap<String, String> mValues = new HashMap<>();
 
@@ -1805,6 +1818,16 @@ public final class Settings {
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        // Shared memory copy of the whole table published by the provider,
+        // consulted on a local cache miss before making a binder call.
+        @GuardedBy("this")
+        private MemoryStringMap mMemoryTable;
+
+        // Uptime at which the provider last declined to share the table with
+        // us, or 0 if it didn't.
+        @GuardedBy("this")
+        private long mMemoryTableDeniedTime;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
             mUri = uri;
@@ -1846,10 +1869,34 @@ public final class Settings {
                                         + cr.getPackageName() +" and user:" + userHandle);
                             }
                             mValues.clear();
+                            // The provider may be able to share the table by now
+                            mMemoryTableDeniedTime = 0;
                         } else if (mValues.containsKey(name)) {
                             return mValues.get(name);
                         }
                     }
+                    if (mMemoryTable != null) {
+                        final String[] value = new String[1];
+                        switch (mMemoryTable.get(name, value)) {
+                            case MemoryStringMap.RESULT_FOUND:
+                                if (mGenerationTracker != null) {
+                                    mValues.put(name, value[0]);
+                                }
+                                return value[0];
+                            case MemoryStringMap.RESULT_NOT_FOUND:
+                                if (mGenerationTracker != null) {
+                                    mValues.put(name, null);
+                                }
+                                return null;
+                            default:
+                                // Stale or restricted, ask the provider
+                                if (mMemoryTable.isRetired()) {
+                                    mMemoryTable.close();
+                                    mMemoryTable = null;
+                                }
+                                break;
+                        }
+                    }
                 }
             } else {
                 if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userHandle
@@ -1870,7 +1917,17 @@ public final class Settings {
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
                     boolean needsGenerationTracker = false;
+                    boolean needsMemoryTable = false;
                     synchronized (NameValueCache.this) {
+                        if (isSelf && mMemoryTable == null && (mMemoryTableDeniedTime == 0
+                                || SystemClock.uptimeMillis() - mMemoryTableDeniedTime
+                                        >= MEMORY_TABLE_RETRY_MILLIS)) {
+                            needsMemoryTable = true;
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_TRACK_TABLE_KEY, null);
+                        }
                         if (isSelf && mGenerationTracker == null) {
                             needsGenerationTracker = true;
                             if (args == null) {
@@ -1906,6 +1963,15 @@ public final class Settings {
                         // Don't update our cache for reads of other users' data
                         if (isSelf) {
                             synchronized (NameValueCache.this) {
+                                if (needsMemoryTable && mMemoryTable == null) {
+                                    try {
+                                        mMemoryTable = b.getParcelable(CALL_METHOD_TRACK_TABLE_KEY);
+                                    } catch (RuntimeException e) {
+                                        Log.w(TAG, "Can't map settings table " + mUri, e);
+                                    }
+                                    mMemoryTableDeniedTime = (mMemoryTable == null)
+                                            ? SystemClock.uptimeMillis() : 0;
+                                }
                                 if (needsGenerationTracker) {
                                     MemoryIntArray array = b.getParcelable(
                                             CALL_METHOD_TRACK_GENERATION_KEY);
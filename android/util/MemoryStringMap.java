@@ -0,0 +1,570 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+
+import libcore.io.IoUtils;
+
+import sun.misc.Unsafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class is an immutable string to string hash table that is backed by
+ * a memory mapped file. It is useful for letting many client processes look
+ * up values published by one owner process without any IPC.
+ * <p>
+ * The owner process creates the table and replaces its whole content with
+ * {@link #publish}, then changes single keys with {@link #put} and
+ * {@link #remove}. These append the new entry after the others and only
+ * rewrite the slot of the key, so the table has to be published again once
+ * they run out of room. Each change bumps a sequence number that is odd
+ * while the content is being rewritten, so readers that observe a change of
+ * the sequence number during a lookup report {@link #RESULT_UNAVAILABLE} and
+ * are expected to fall back to asking the owner directly. The sequence
+ * number is written and read with fences around the content, as other
+ * processes see the mapping without any Java memory model guarantees.
+ * Clients receive
+ * the table as a {@link Parcelable} carrying a read only file descriptor,
+ * so they cannot modify what other clients see.
+ * </p>
+ * <p>
+ * Once the content no longer fits, the owner {@link #retire}s the table and
+ * hands out a new, larger one; every lookup on a retired table is
+ * unavailable. This class is <strong>not</strong> thread safe.
+ * </p>
+ *
+ * @hide
+ */
+public final class MemoryStringMap implements Parcelable, Closeable {
+    private static final String TAG = "MemoryStringMap";
+
+    /** The value was found, and may be null. */
+    public static final int RESULT_FOUND = 0;
+    /** There is no value for the key. */
+    public static final int RESULT_NOT_FOUND = 1;
+    /** The table can't answer, so the owner must be asked directly. */
+    public static final int RESULT_UNAVAILABLE = 2;
+
+    private static final int MAGIC = 0x534d5331; // SMS1
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int OFFSET_FLAGS = 8;
+    private static final int OFFSET_SLOT_COUNT = 12;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int SLOT_SIZE = 8;
+
+    private static final int FLAG_RETIRED = 1;
+
+    private static final int VALUE_LENGTH_NULL = -1;
+    private static final int VALUE_LENGTH_UNAVAILABLE = -2;
+    private static final int VALUE_LENGTH_REMOVED = -3;
+
+    private static final Unsafe UNSAFE = Unsafe.getUnsafe();
+
+    private final boolean mIsOwner;
+    private final File mFile;
+    private final int mCapacity;
+    private MappedByteBuffer mBuffer;
+
+    // Owner only: the table layout, and where the next entry goes
+    private int mSlotCount;
+    private int mUsedSlotCount;
+    private int mDataEnd;
+
+    private MemoryStringMap(File file, int capacity) throws IOException {
+        mIsOwner = true;
+        mFile = file;
+        mCapacity = capacity;
+        mFile.delete();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            raf.setLength(capacity);
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putInt(OFFSET_SEQUENCE, 0);
+        mBuffer.putInt(OFFSET_FLAGS, 0);
+        mBuffer.putInt(OFFSET_SLOT_COUNT, 0);
+    }
+
+    private MemoryStringMap(Parcel parcel) throws IOException {
+        mIsOwner = false;
+        mFile = null;
+        final ParcelFileDescriptor pfd = parcel.readParcelable(null);
+        if (pfd == null) {
+            throw new IOException("No backing file descriptor");
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(pfd.getFileDescriptor());
+            final FileChannel channel = in.getChannel();
+            mCapacity = (int) channel.size();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, mCapacity);
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(pfd);
+        }
+        if (mCapacity < HEADER_SIZE || mBuffer.getInt(OFFSET_MAGIC) != MAGIC) {
+            throw new IOException("Not a string map");
+        }
+    }
+
+    /**
+     * Creates a new, empty table backed by the given file, which is
+     * replaced if it exists.
+     *
+     * @param file The backing file, private to the owner process.
+     * @param capacity The size of the table in bytes.
+     * @throws IOException If an error occurs while mapping the file.
+     */
+    public static MemoryStringMap create(File file, int capacity) throws IOException {
+        return new MemoryStringMap(file, capacity);
+    }
+
+    /**
+     * Returns the number of bytes needed to publish the given values.
+     *
+     * @see #publish
+     */
+    public static int computeSize(Map<String, String> values, Set<String> unavailable) {
+        int size = HEADER_SIZE + getSlotCount(getEntryCount(values, unavailable)) * SLOT_SIZE;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            size += 8 + utf8Length(entry.getKey());
+            if (entry.getValue() != null) {
+                size += utf8Length(entry.getValue());
+            }
+        }
+        if (unavailable != null) {
+            for (String key : unavailable) {
+                if (!values.containsKey(key)) {
+                    size += 8 + utf8Length(key);
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Replaces the content of the table. This method can be called only
+     * by the owner.
+     *
+     * @param values The values to publish.
+     * @param unavailable Keys that clients must never resolve from the
+     *     table, whether or not they have a value, because the owner has
+     *     to decide their value per caller.
+     * @return Whether the values fit, if not the table must be retired.
+     */
+    public boolean publish(Map<String, String> values, Set<String> unavailable) {
+        enforceWritable();
+        if (computeSize(values, unavailable) > mCapacity) {
+            return false;
+        }
+
+        final int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+        UNSAFE.storeFence();
+
+        final int entryCount = getEntryCount(values, unavailable);
+        final int slotCount = getSlotCount(entryCount);
+        for (int i = 0; i < slotCount; i++) {
+            mBuffer.putInt(HEADER_SIZE + i * SLOT_SIZE, 0);
+            mBuffer.putInt(HEADER_SIZE + i * SLOT_SIZE + 4, 0);
+        }
+        int dataOffset = HEADER_SIZE + slotCount * SLOT_SIZE;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            final String key = entry.getKey();
+            final boolean isUnavailable = unavailable != null && unavailable.contains(key);
+            dataOffset = putEntry(slotCount, dataOffset, key, entry.getValue(), isUnavailable);
+        }
+        if (unavailable != null) {
+            for (String key : unavailable) {
+                if (!values.containsKey(key)) {
+                    dataOffset = putEntry(slotCount, dataOffset, key, null, true);
+                }
+            }
+        }
+        mBuffer.putInt(OFFSET_SLOT_COUNT, slotCount);
+
+        UNSAFE.storeFence();
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 2);
+
+        mSlotCount = slotCount;
+        mUsedSlotCount = entryCount;
+        mDataEnd = dataOffset;
+        return true;
+    }
+
+    /**
+     * Sets the value of one key, without rewriting the rest of the table.
+     * Keys published as unavailable stay unavailable. This method can be
+     * called only by the owner.
+     *
+     * @param key The key.
+     * @param value The new value, may be null.
+     * @return Whether the change fit in place, if not the whole content
+     *     must be published again.
+     */
+    public boolean put(String key, String value) {
+        return update(key, value, false);
+    }
+
+    /**
+     * Removes one key, without rewriting the rest of the table. This method
+     * can be called only by the owner.
+     *
+     * @param key The key.
+     * @return Whether the change fit in place, if not the whole content
+     *     must be published again.
+     */
+    public boolean remove(String key) {
+        return update(key, null, true);
+    }
+
+    /**
+     * Marks the table as no longer maintained, making every later lookup
+     * unavailable. This method can be called only by the owner.
+     */
+    public void retire() {
+        enforceWritable();
+        mBuffer.putInt(OFFSET_FLAGS, FLAG_RETIRED);
+        UNSAFE.storeFence();
+        mBuffer.putInt(OFFSET_SEQUENCE, mBuffer.getInt(OFFSET_SEQUENCE) + 1);
+    }
+
+    /**
+     * @return Whether the owner stopped maintaining this table.
+     */
+    public boolean isRetired() {
+        enforceNotClosed();
+        return (mBuffer.getInt(OFFSET_FLAGS) & FLAG_RETIRED) != 0;
+    }
+
+    /**
+     * Looks up the value for a key.
+     *
+     * @param key The key.
+     * @param outValue An array of one string, used to return the value.
+     * @return One of {@link #RESULT_FOUND}, {@link #RESULT_NOT_FOUND} or
+     *     {@link #RESULT_UNAVAILABLE}.
+     */
+    public int get(String key, String[] outValue) {
+        enforceNotClosed();
+        final int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+        // Don't let the reads below happen before the one of the sequence number
+        UNSAFE.loadFence();
+        if ((sequence & 1) != 0 || (mBuffer.getInt(OFFSET_FLAGS) & FLAG_RETIRED) != 0) {
+            return RESULT_UNAVAILABLE;
+        }
+
+        int result = RESULT_NOT_FOUND;
+        try {
+            final int slotCount = mBuffer.getInt(OFFSET_SLOT_COUNT);
+            if (slotCount > 0 && (slotCount & (slotCount - 1)) == 0
+                    && HEADER_SIZE + slotCount * SLOT_SIZE <= mCapacity) {
+                final int mask = slotCount - 1;
+                final int hash = key.hashCode();
+                int slot = hash & mask;
+                for (int probes = 0; probes < slotCount; probes++) {
+                    final int entryOffset = mBuffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+                    if (entryOffset == 0) {
+                        break;
+                    }
+                    if (mBuffer.getInt(HEADER_SIZE + slot * SLOT_SIZE) == hash
+                            && key.equals(getString(entryOffset))) {
+                        final int valueOffset = entryOffset + 4 + mBuffer.getInt(entryOffset);
+                        final int valueLength = mBuffer.getInt(valueOffset);
+                        if (valueLength == VALUE_LENGTH_UNAVAILABLE) {
+                            result = RESULT_UNAVAILABLE;
+                        } else if (valueLength == VALUE_LENGTH_REMOVED) {
+                            result = RESULT_NOT_FOUND;
+                        } else {
+                            outValue[0] = getString(valueOffset);
+                            result = RESULT_FOUND;
+                        }
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Torn read of a table being rewritten, caught by the check below
+            result = RESULT_UNAVAILABLE;
+        }
+
+        // Nor those above after the one checking the sequence number again
+        UNSAFE.loadFence();
+        if (mBuffer.getInt(OFFSET_SEQUENCE) != sequence) {
+            return RESULT_UNAVAILABLE;
+        }
+        return result;
+    }
+
+    /**
+     * @return Gets whether this table is mutable.
+     */
+    public boolean isWritable() {
+        enforceNotClosed();
+        return mIsOwner;
+    }
+
+    /**
+     * Closes the table releasing resources. Clients that received the table
+     * earlier keep their own mapping.
+     */
+    @Override
+    public void close() {
+        if (mBuffer != null) {
+            mBuffer = null;
+            if (mIsOwner) {
+                mFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return Whether this table is closed and shouldn't be used.
+     */
+    public boolean isClosed() {
+        return mBuffer == null;
+    }
+
+    @Override
+    public int describeContents() {
+        return CONTENTS_FILE_DESCRIPTOR;
+    }
+
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        enforceNotClosed();
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = (mFile != null) ? ParcelFileDescriptor.open(mFile,
+                    ParcelFileDescriptor.MODE_READ_ONLY) : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot share " + mFile, e);
+        }
+        // The descriptor is a private copy that is closed once written
+        parcel.writeParcelable(pfd, flags | Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        return mIsOwner ? "MemoryStringMap[" + mFile + "]" : "MemoryStringMap[client]";
+    }
+
+    private boolean update(String key, String value, boolean remove) {
+        enforceWritable();
+        if (mSlotCount == 0) {
+            // Never published
+            return false;
+        }
+
+        final int mask = mSlotCount - 1;
+        final int hash = key.hashCode();
+        int slot = hash & mask;
+        int entryOffset;
+        while ((entryOffset = mBuffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4)) != 0) {
+            if (mBuffer.getInt(HEADER_SIZE + slot * SLOT_SIZE) == hash
+                    && key.equals(getString(entryOffset))) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (entryOffset != 0) {
+            final int valueLength =
+                    mBuffer.getInt(entryOffset + 4 + mBuffer.getInt(entryOffset));
+            if (valueLength == VALUE_LENGTH_UNAVAILABLE
+                    || (remove && valueLength == VALUE_LENGTH_REMOVED)) {
+                return true;
+            }
+        } else if (remove) {
+            return true;
+        } else if ((mUsedSlotCount + 1) * 2 > mSlotCount) {
+            // Removed keys keep their slot to not break the probe sequence of
+            // others, so they count towards the load factor until the next publish
+            return false;
+        }
+
+        int size = 8 + utf8Length(key);
+        if (!remove && value != null) {
+            size += utf8Length(value);
+        }
+        if (mDataEnd + size > mCapacity) {
+            return false;
+        }
+        // Readers can't reach the new entry before its slot points to it
+        final int newEntryOffset = mDataEnd;
+        int dataEnd = putString(newEntryOffset, key);
+        if (remove) {
+            mBuffer.putInt(dataEnd, VALUE_LENGTH_REMOVED);
+            dataEnd += 4;
+        } else {
+            dataEnd = putString(dataEnd, value);
+        }
+
+        final int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+        UNSAFE.storeFence();
+        if (entryOffset == 0) {
+            mBuffer.putInt(HEADER_SIZE + slot * SLOT_SIZE, hash);
+            mUsedSlotCount++;
+        }
+        mBuffer.putInt(HEADER_SIZE + slot * SLOT_SIZE + 4, newEntryOffset);
+        UNSAFE.storeFence();
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 2);
+
+        mDataEnd = dataEnd;
+        return true;
+    }
+
+    private int putEntry(int slotCount, int dataOffset, String key, String value,
+            boolean isUnavailable) {
+        final int mask = slotCount - 1;
+        final int hash = key.hashCode();
+        int slot = hash & mask;
+        while (mBuffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mBuffer.putInt(HEADER_SIZE + slot * SLOT_SIZE, hash);
+        mBuffer.putInt(HEADER_SIZE + slot * SLOT_SIZE + 4, dataOffset);
+
+        dataOffset = putString(dataOffset, key);
+        if (isUnavailable) {
+            mBuffer.putInt(dataOffset, VALUE_LENGTH_UNAVAILABLE);
+            return dataOffset + 4;
+        }
+        return putString(dataOffset, value);
+    }
+
+    private int putString(int offset, String value) {
+        if (value == null) {
+            mBuffer.putInt(offset, VALUE_LENGTH_NULL);
+            return offset + 4;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        mBuffer.putInt(offset, bytes.length);
+        offset += 4;
+        for (int i = 0; i < bytes.length; i++) {
+            mBuffer.put(offset + i, bytes[i]);
+        }
+        return offset + bytes.length;
+    }
+
+    private String getString(int offset) {
+        final int length = mBuffer.getInt(offset);
+        if (length == VALUE_LENGTH_NULL) {
+            return null;
+        }
+        if (length < 0 || offset + 4 + length > mCapacity) {
+            throw new IndexOutOfBoundsException();
+        }
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + 4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int getEntryCount(Map<String, String> values, Set<String> unavailable) {
+        int count = values.size();
+        if (unavailable != null) {
+            for (String key : unavailable) {
+                if (!values.containsKey(key)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int getSlotCount(int size) {
+        // Keep the load factor at or below one half
+        int slotCount = 8;
+        while (slotCount < size * 2) {
+            slotCount <<= 1;
+        }
+        return slotCount;
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        final int count = value.length();
+        for (int i = 0; i < count; i++) {
+            final char ch = value.charAt(i);
+            if (ch < 0x80) {
+                length++;
+            } else if (ch < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < count
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void enforceNotClosed() {
+        if (isClosed()) {
+            throw new IllegalStateException("cannot interact with a closed instance");
+        }
+    }
+
+    private void enforceWritable() {
+        enforceNotClosed();
+        if (!isWritable()) {
+            throw new UnsupportedOperationException("table is not writable");
+        }
+    }
+
+    public static final Parcelable.Creator<MemoryStringMap> CREATOR =
+            new Parcelable.Creator<MemoryStringMap>() {
+        @Override
+        public MemoryStringMap createFromParcel(Parcel parcel) {
+            try {
+                return new MemoryStringMap(parcel);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Error unparceling MemoryStringMap");
+            }
+        }
+
+        @Override
+        public MemoryStringMap[] newArray(int size) {
+            return new MemoryStringMap[size];
+        }
+    };
+}
@@ -18,7 +18,9 @@ package android.util.apk;
 
 import android.system.ErrnoException;
 import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.ArrayMap;
+import android.util.LruCache;
 import android.util.Pair;
 
 import java.io.ByteArrayInputStream;
@@ -58,6 +60,15 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import libcore.io.Libcore;
 import libcore.io.Os;
@@ -120,7 +131,103 @@ public class ApkSignatureSchemeV2Verifier {
     private static X509Certificate[][] verify(RandomAccessFile apk)
             throws SignatureNotFoundException, SecurityException, IOException {
         SignatureInfo signatureInfo = findSignature(apk);
-        return verify(apk.getFD(), signatureInfo);
+        VerifiedApk key = VerifiedApk.forFile(apk.getFD(), signatureInfo);
+        X509Certificate[][] certs = sVerifiedApks.get(key);
+        if (certs == null) {
+            certs = verify(apk.getFD(), signatureInfo);
+            if (key.isCacheable()) {
+                sVerifiedApks.put(key, certs);
+            }
+        }
+        return copyCertificates(certs);
+    }
+
+    private static X509Certificate[][] copyCertificates(X509Certificate[][] certs) {
+        X509Certificate[][] copy = new X509Certificate[certs.length][];
+        for (int i = 0; i < certs.length; i++) {
+            copy[i] = certs[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * APKs verified recently, so that verifying one again, as happens while it's installed,
+     * doesn't digest its contents again.
+     */
+    private static final LruCache<VerifiedApk, X509Certificate[][]> sVerifiedApks =
+            new LruCache<>(32);
+
+    /**
+     * Identifies the contents of a verified APK file by the digest of its APK Signature Scheme
+     * v2 Block, which holds the digests of everything else it signs, and by the identity and
+     * change time of the file, which changes whenever the file is written.
+     */
+    private static final class VerifiedApk {
+        private final long mDevice;
+        private final long mInode;
+        private final long mSize;
+        private final long mModifiedTime;
+        private final long mChangedTime;
+        private final byte[] mSignatureBlockDigest;
+        private final long mVerifiedTime;
+
+        private VerifiedApk(StructStat stat, byte[] signatureBlockDigest, long verifiedTime) {
+            mDevice = stat.st_dev;
+            mInode = stat.st_ino;
+            mSize = stat.st_size;
+            mModifiedTime = stat.st_mtime;
+            mChangedTime = stat.st_ctime;
+            mSignatureBlockDigest = signatureBlockDigest;
+            mVerifiedTime = verifiedTime;
+        }
+
+        static VerifiedApk forFile(FileDescriptor fd, SignatureInfo signatureInfo)
+                throws IOException {
+            // Taken before looking at the file, see isCacheable()
+            long now = System.currentTimeMillis() / 1000;
+            StructStat stat;
+            try {
+                stat = Libcore.os.fstat(fd);
+            } catch (ErrnoException e) {
+                throw new IOException("Failed to stat APK", e);
+            }
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 digest not supported", e);
+            }
+            md.update(signatureInfo.signatureBlock.duplicate());
+            return new VerifiedApk(stat, md.digest(), now);
+        }
+
+        /**
+         * Change times have a resolution of one second, so a file changed within the second
+         * it was looked at could change again without it showing. Only remember the result
+         * of verifying files that were last changed before that.
+         */
+        boolean isCacheable() {
+            return mChangedTime < mVerifiedTime && mModifiedTime < mVerifiedTime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof VerifiedApk)) {
+                return false;
+            }
+            VerifiedApk other = (VerifiedApk) o;
+            return mDevice == other.mDevice
+                    && mInode == other.mInode
+                    && mSize == other.mSize
+                    && mModifiedTime == other.mModifiedTime
+                    && mChangedTime == other.mChangedTime
+                    && Arrays.equals(mSignatureBlockDigest, other.mSignatureBlockDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(mSignatureBlockDigest) * 31 + Long.hashCode(mInode);
+        }
     }
 
     /**
@@ -483,62 +590,45 @@ public class ApkSignatureSchemeV2Verifier {
             digestsOfChunks[i] = concatenationOfChunkCountAndChunkDigests;
         }
 
-        byte[] chunkContentPrefix = new byte[5];
-        chunkContentPrefix[0] = (byte) 0xa5;
-        int chunkIndex = 0;
-        MessageDigest[] mds = new MessageDigest[digestAlgorithms.length];
-        for (int i = 0; i < digestAlgorithms.length; i++) {
-            String jcaAlgorithmName =
-                    getContentDigestAlgorithmJcaDigestAlgorithm(digestAlgorithms[i]);
-            try {
-                mds[i] = MessageDigest.getInstance(jcaAlgorithmName);
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(jcaAlgorithmName + " digest not supported", e);
+        // Chunk digests are independent of each other, so for large inputs they are computed
+        // by several threads, each claiming the next chunk until none are left. Every chunk
+        // digest goes to its own slot of the output, which keeps the order of the chunks.
+        ChunkDigester digester =
+                new ChunkDigester(digestAlgorithms, contents, totalChunkCount, digestsOfChunks);
+        int threadCount = getDigestThreadCount(totalChunkCount);
+        if (threadCount <= 1) {
+            digester.call();
+        } else {
+            List<Future<Void>> futures = new ArrayList<>(threadCount - 1);
+            for (int i = 0; i < threadCount - 1; i++) {
+                futures.add(DIGEST_EXECUTOR.submit(digester));
             }
-        }
-        // TODO: Compute digests of chunks in parallel when beneficial. This requires some research
-        // into how to parallelize (if at all) based on the capabilities of the hardware on which
-        // this code is running and based on the size of input.
-        int dataSourceIndex = 0;
-        for (DataSource input : contents) {
-            long inputOffset = 0;
-            long inputRemaining = input.size();
-            while (inputRemaining > 0) {
-                int chunkSize = (int) Math.min(inputRemaining, CHUNK_SIZE_BYTES);
-                setUnsignedInt32LittleEndian(chunkSize, chunkContentPrefix, 1);
-                for (int i = 0; i < mds.length; i++) {
-                    mds[i].update(chunkContentPrefix);
+            try {
+                // The calling thread digests too, so the work gets done even if the pool is
+                // busy with another APK.
+                digester.call();
+            } finally {
+                for (Future<Void> future : futures) {
+                    // Workers that haven't started yet would find nothing left to do
+                    future.cancel(false);
                 }
+            }
+            for (Future<Void> future : futures) {
                 try {
-                    input.feedIntoMessageDigests(mds, inputOffset, chunkSize);
-                } catch (IOException e) {
-                    throw new DigestException(
-                            "Failed to digest chunk #" + chunkIndex + " of section #"
-                                    + dataSourceIndex,
-                            e);
-                }
-                for (int i = 0; i < digestAlgorithms.length; i++) {
-                    int digestAlgorithm = digestAlgorithms[i];
-                    byte[] concatenationOfChunkCountAndChunkDigests = digestsOfChunks[i];
-                    int expectedDigestSizeBytes =
-                            getContentDigestAlgorithmOutputSizeBytes(digestAlgorithm);
-                    MessageDigest md = mds[i];
-                    int actualDigestSizeBytes =
-                            md.digest(
-                                    concatenationOfChunkCountAndChunkDigests,
-                                    5 + chunkIndex * expectedDigestSizeBytes,
-                                    expectedDigestSizeBytes);
-                    if (actualDigestSizeBytes != expectedDigestSizeBytes) {
-                        throw new RuntimeException(
-                                "Unexpected output size of " + md.getAlgorithm() + " digest: "
-                                        + actualDigestSizeBytes);
+                    future.get();
+                } catch (CancellationException e) {
+                    // Didn't start
+                } catch (InterruptedException e) {
+                    throw new DigestException("Interrupted while digesting chunks", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof DigestException) {
+                        throw (DigestException) e.getCause();
+                    } else if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
                     }
+                    throw new DigestException("Failed to digest chunks", e.getCause());
                 }
-                inputOffset += chunkSize;
-                inputRemaining -= chunkSize;
-                chunkIndex++;
             }
-            dataSourceIndex++;
         }
 
         byte[][] result = new byte[digestAlgorithms.length][];
@@ -599,6 +689,121 @@ public class ApkSignatureSchemeV2Verifier {
 
     private static final int CHUNK_SIZE_BYTES = 1024 * 1024;
 
+    /**
+     * Inputs with fewer chunks than this are digested on the calling thread, as handing them
+     * to other threads costs more than it saves.
+     */
+    private static final int MIN_CHUNKS_PER_DIGEST_THREAD = 4;
+
+    private static final int MAX_DIGEST_THREADS =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    private static final ThreadPoolExecutor DIGEST_EXECUTOR;
+
+    static {
+        DIGEST_EXECUTOR = new ThreadPoolExecutor(
+                MAX_DIGEST_THREADS, MAX_DIGEST_THREADS, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ApkVerifier #" + mCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        DIGEST_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static int getDigestThreadCount(int chunkCount) {
+        return Math.max(1, Math.min(MAX_DIGEST_THREADS, chunkCount / MIN_CHUNKS_PER_DIGEST_THREAD));
+    }
+
+    /**
+     * Computes the digests of the chunks of the contents, storing them into the concatenation
+     * of chunk digests of each digest algorithm. Several threads may run the same instance,
+     * each claims the next chunk that isn't being digested yet.
+     */
+    private static final class ChunkDigester implements Callable<Void> {
+        private final int[] mDigestAlgorithms;
+        private final DataSource[] mContents;
+        private final long[] mFirstChunkIndex;
+        private final int mTotalChunkCount;
+        private final byte[][] mDigestsOfChunks;
+        private final AtomicInteger mNextChunkIndex = new AtomicInteger();
+
+        ChunkDigester(int[] digestAlgorithms, DataSource[] contents, int totalChunkCount,
+                byte[][] digestsOfChunks) {
+            mDigestAlgorithms = digestAlgorithms;
+            mContents = contents;
+            mTotalChunkCount = totalChunkCount;
+            mDigestsOfChunks = digestsOfChunks;
+            mFirstChunkIndex = new long[contents.length + 1];
+            for (int i = 0; i < contents.length; i++) {
+                mFirstChunkIndex[i + 1] = mFirstChunkIndex[i] + getChunkCount(contents[i].size());
+            }
+        }
+
+        @Override
+        public Void call() throws DigestException {
+            byte[] chunkContentPrefix = new byte[5];
+            chunkContentPrefix[0] = (byte) 0xa5;
+            MessageDigest[] mds = new MessageDigest[mDigestAlgorithms.length];
+            for (int i = 0; i < mDigestAlgorithms.length; i++) {
+                String jcaAlgorithmName =
+                        getContentDigestAlgorithmJcaDigestAlgorithm(mDigestAlgorithms[i]);
+                try {
+                    mds[i] = MessageDigest.getInstance(jcaAlgorithmName);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(jcaAlgorithmName + " digest not supported", e);
+                }
+            }
+
+            int chunkIndex;
+            while ((chunkIndex = mNextChunkIndex.getAndIncrement()) < mTotalChunkCount) {
+                int dataSourceIndex = 0;
+                while (chunkIndex >= mFirstChunkIndex[dataSourceIndex + 1]) {
+                    dataSourceIndex++;
+                }
+                DataSource input = mContents[dataSourceIndex];
+                long inputOffset =
+                        (chunkIndex - mFirstChunkIndex[dataSourceIndex]) * CHUNK_SIZE_BYTES;
+                int chunkSize = (int) Math.min(input.size() - inputOffset, CHUNK_SIZE_BYTES);
+                setUnsignedInt32LittleEndian(chunkSize, chunkContentPrefix, 1);
+                for (int i = 0; i < mds.length; i++) {
+                    mds[i].update(chunkContentPrefix);
+                }
+                try {
+                    input.feedIntoMessageDigests(mds, inputOffset, chunkSize);
+                } catch (IOException e) {
+                    throw new DigestException(
+                            "Failed to digest chunk #" + chunkIndex + " of section #"
+                                    + dataSourceIndex,
+                            e);
+                }
+                for (int i = 0; i < mDigestAlgorithms.length; i++) {
+                    int digestAlgorithm = mDigestAlgorithms[i];
+                    byte[] concatenationOfChunkCountAndChunkDigests = mDigestsOfChunks[i];
+                    int expectedDigestSizeBytes =
+                            getContentDigestAlgorithmOutputSizeBytes(digestAlgorithm);
+                    MessageDigest md = mds[i];
+                    int actualDigestSizeBytes =
+                            md.digest(
+                                    concatenationOfChunkCountAndChunkDigests,
+                                    5 + chunkIndex * expectedDigestSizeBytes,
+                                    expectedDigestSizeBytes);
+                    if (actualDigestSizeBytes != expectedDigestSizeBytes) {
+                        throw new RuntimeException(
+                                "Unexpected output size of " + md.getAlgorithm() + " digest: "
+                                        + actualDigestSizeBytes);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
     private static final int SIGNATURE_RSA_PSS_WITH_SHA256 = 0x0101;
     private static final int SIGNATURE_RSA_PSS_WITH_SHA512 = 0x0102;
     private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
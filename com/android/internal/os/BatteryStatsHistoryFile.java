@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.os;
+
+import android.os.Parcel;
+import android.util.Slog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed-size, memory-mapped file holding the history buffer of {@link BatteryStatsImpl}.
+ * <p>
+ * A checkpoint copies only the bytes that changed since the previous checkpoint into the
+ * mapping, so batterystats.bin only has to record the length and CRC of the history instead
+ * of the whole buffer. The file is sized for the largest buffer that
+ * {@link BatteryStatsImpl} keeps before resetting its history, so it never has to wrap.
+ * <p>
+ * Bytes that were already checkpointed can be rewritten later, for example when history is
+ * cleared. A summary that outlives such a rewrite no longer matches the CRC of the file, and
+ * its history is dropped instead of being replayed from the wrong bytes.
+ * <p>
+ * The history is checksummed in fixed-size blocks, and the CRC recorded in the summary is the
+ * CRC of the block checksums. A checkpoint then only hashes the blocks it touched, rather than
+ * the whole buffer whenever already checkpointed bytes were rewritten.
+ */
+final class BatteryStatsHistoryFile {
+    private static final String TAG = "BatteryStatsHistoryFile";
+
+    /** File header magic: "BSHF" */
+    private static final int MAGIC = 0x42534846;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int BLOCK_SIZE = 4096;
+
+    private final File mFile;
+    private final int mCapacity;
+
+    private final CRC32 mCrc = new CRC32();
+    /** CRC of each block of the first {@link #mLength} bytes of history, as ints. */
+    private final ByteBuffer mBlockCrcs;
+    /** CRC of the block CRCs of the first {@link #mLength} bytes of history. */
+    private long mHistoryCrc;
+    private int mLength;
+
+    private volatile MappedByteBuffer mMap;
+
+    BatteryStatsHistoryFile(File file, int capacity) {
+        mFile = file;
+        mCapacity = capacity;
+        mBlockCrcs = ByteBuffer.allocate((capacity + BLOCK_SIZE - 1) / BLOCK_SIZE * 4);
+    }
+
+    /**
+     * Return the CRC of the history written by the last successful
+     * {@link #checkpoint(Parcel, int)}.
+     */
+    long getCrc() {
+        return mHistoryCrc;
+    }
+
+    /**
+     * Replace the contents of the given buffer with the first {@code length} bytes of history
+     * in the file, if they still match the given CRC.
+     *
+     * @return whether the history could be read.
+     */
+    boolean read(Parcel history, int length, long crc) {
+        if (length < 0 || length > mCapacity || !ensureMapped()) {
+            return false;
+        }
+        updateCrc(0, length);
+        if (mHistoryCrc != crc) {
+            Slog.w(TAG, "History in " + mFile + " doesn't match summary; dropping it");
+            updateCrc(0, 0);
+            mLength = 0;
+            return false;
+        }
+
+        final byte[] raw = new byte[length];
+        slice(0, length).get(raw);
+        history.unmarshall(raw, 0, length);
+        history.setDataPosition(length);
+        mLength = length;
+        return true;
+    }
+
+    /**
+     * Bring the file up to date with the given buffer, where every byte before
+     * {@code dirtyPos} is unchanged since the last checkpoint.
+     *
+     * @return whether the whole buffer is now in the file.
+     */
+    boolean checkpoint(Parcel history, int dirtyPos) {
+        final int size = history.dataSize();
+        if (size > mCapacity || !ensureMapped()) {
+            return false;
+        }
+
+        final int start = Math.min(Math.min(dirtyPos, mLength), size);
+        if (start < size) {
+            final Parcel changed = Parcel.obtain();
+            try {
+                changed.appendFrom(history, start, size - start);
+                slice(start, size - start).put(changed.marshall());
+            } finally {
+                changed.recycle();
+            }
+        }
+
+        updateCrc(start, size);
+        mLength = size;
+        return true;
+    }
+
+    /**
+     * Recompute the CRCs of the blocks from the one holding {@code dirtyPos} up to
+     * {@code length}, and the CRC of the first {@code length} bytes of history from them.
+     */
+    private void updateCrc(int dirtyPos, int length) {
+        final int blockCount = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        for (int i = dirtyPos / BLOCK_SIZE; i < blockCount; i++) {
+            final int offset = i * BLOCK_SIZE;
+            mCrc.reset();
+            mCrc.update(slice(offset, Math.min(BLOCK_SIZE, length - offset)));
+            mBlockCrcs.putInt(i * 4, (int) mCrc.getValue());
+        }
+
+        final ByteBuffer blockCrcs = mBlockCrcs.duplicate();
+        blockCrcs.position(0);
+        blockCrcs.limit(blockCount * 4);
+        mCrc.reset();
+        mCrc.update(blockCrcs);
+        mHistoryCrc = mCrc.getValue();
+    }
+
+    /**
+     * Flush any checkpointed history to storage, before a summary that refers to it is
+     * written.
+     */
+    void sync() {
+        final MappedByteBuffer map = mMap;
+        if (map != null) {
+            map.force();
+        }
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        final ByteBuffer buf = mMap.duplicate();
+        buf.position(HEADER_SIZE + offset);
+        buf.limit(HEADER_SIZE + offset + length);
+        return buf.slice();
+    }
+
+    private boolean ensureMapped() {
+        if (mMap != null) {
+            return true;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(HEADER_SIZE + mCapacity);
+            final MappedByteBuffer map = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + mCapacity);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+            }
+            mMap = map;
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to map " + mFile, e);
+            return false;
+        }
+    }
+}
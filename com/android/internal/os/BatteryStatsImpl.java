@@ -140,6 +140,7 @@ public class BatteryStatsImpl extends BatteryStats {
     protected Clocks mClocks;
 
     private final JournaledFile mFile;
+    private final BatteryStatsHistoryFile mHistoryFile;
     public final AtomicFile mCheckinFile;
     public final AtomicFile mDailyFile;
 
@@ -301,6 +302,10 @@ public class BatteryStatsImpl extends BatteryStats {
     static final int MAX_HISTORY_BUFFER = 256*1024; // 256KB
     static final int MAX_MAX_HISTORY_BUFFER = 320*1024; // 320KB
     final Parcel mHistoryBuffer = Parcel.obtain();
+    /** Fixed size of {@link #mHistoryFile}, above the point at which history is reset. */
+    static final int MAX_HISTORY_FILE = MAX_MAX_HISTORY_BUFFER*4;
+    /** Buffer size written in place of history that was checkpointed to {@link #mHistoryFile}. */
+    static final int HISTORY_IN_FILE = -1;
     final HistoryItem mHistoryLastWritten = new HistoryItem();
     final HistoryItem mHistoryLastLastWritten = new HistoryItem();
     final HistoryItem mHistoryReadTmp = new HistoryItem();
@@ -312,6 +317,8 @@ public class BatteryStatsImpl extends BatteryStats {
     int mNextHistoryTagIdx = 0;
     int mNumHistoryTagChars = 0;
     int mHistoryBufferLastPos = -1;
+    /** Position before which {@link #mHistoryBuffer} hasn't changed since the last checkpoint. */
+    int mHistoryBufferDirtyPos = 0;
     boolean mHistoryOverflow = false;
     int mActiveHistoryStates = 0xffffffff;
     int mActiveHistoryStates2 = 0xffffffff;
@@ -626,6 +633,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks) {
         init(clocks);
         mFile = null;
+        mHistoryFile = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -3188,6 +3196,7 @@ public class BatteryStatsImpl extends BatteryStats {
             // as long as no bit has changed both between now and the last entry, as
             // well as the last entry and the one before it (so we capture any toggles).
             if (DEBUG) Slog.i(TAG, "ADD: rewinding back to " + mHistoryBufferLastPos);
+            mHistoryBufferDirtyPos = Math.min(mHistoryBufferDirtyPos, mHistoryBufferLastPos);
             mHistoryBuffer.setDataSize(mHistoryBufferLastPos);
             mHistoryBuffer.setDataPosition(mHistoryBufferLastPos);
             mHistoryBufferLastPos = -1;
@@ -3453,6 +3462,7 @@ public class BatteryStatsImpl extends BatteryStats {
         mNextHistoryTagIdx = 0;
         mNumHistoryTagChars = 0;
         mHistoryBufferLastPos = -1;
+        mHistoryBufferDirtyPos = 0;
         mHistoryOverflow = false;
         mActiveHistoryStates = 0xffffffff;
         mActiveHistoryStates2 = 0xffffffff;
@@ -8606,8 +8616,11 @@ public class BatteryStatsImpl extends BatteryStats {
         if (systemDir != null) {
             mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
                     new File(systemDir, "batterystats.bin.tmp"));
+            mHistoryFile = new BatteryStatsHistoryFile(
+                    new File(systemDir, "batterystats-history.bin"), MAX_HISTORY_FILE);
         } else {
             mFile = null;
+            mHistoryFile = null;
         }
         mCheckinFile = new AtomicFile(new File(systemDir, "batterystats-checkin.bin"));
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
@@ -8697,6 +8710,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks, Parcel p) {
         init(clocks);
         mFile = null;
+        mHistoryFile = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -11085,7 +11099,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
+        writeSummaryToParcel(out, true, true);
         mLastWriteTime = mClocks.elapsedRealtime();
 
         if (mPendingWrite != null) {
@@ -11116,6 +11130,10 @@ public class BatteryStatsImpl extends BatteryStats {
 
         mWriteLock.lock();
         try {
+            // the summary may refer to history checkpointed into the history file
+            if (mHistoryFile != null) {
+                mHistoryFile.sync();
+            }
             FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
             stream.write(next.marshall());
             stream.flush();
@@ -11187,6 +11205,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         mHistoryBuffer.setDataSize(0);
         mHistoryBuffer.setDataPosition(0);
+        mHistoryBufferDirtyPos = 0;
         mHistoryTagPool.clear();
         mNextHistoryTagIdx = 0;
         mNumHistoryTagChars = 0;
@@ -11212,7 +11231,15 @@ public class BatteryStatsImpl extends BatteryStats {
 
         int bufSize = in.readInt();
         int curPos = in.dataPosition();
-        if (bufSize >= (MAX_MAX_HISTORY_BUFFER*3)) {
+        if (bufSize == HISTORY_IN_FILE) {
+            final int fileSize = in.readInt();
+            final long crc = in.readLong();
+            if (mHistoryFile == null || !mHistoryFile.read(mHistoryBuffer, fileSize, crc)) {
+                Slog.w(TAG, "Unable to read " + fileSize + " bytes of history from file");
+            } else {
+                mHistoryBufferDirtyPos = fileSize;
+            }
+        } else if (bufSize >= (MAX_MAX_HISTORY_BUFFER*3)) {
             throw new ParcelFormatException("File corrupt: history data buffer too large " +
                     bufSize);
         } else if ((bufSize&~3) != bufSize) {
@@ -11270,6 +11297,14 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     void writeHistory(Parcel out, boolean inclData, boolean andOldHistory) {
+        writeHistory(out, inclData, andOldHistory, false);
+    }
+
+    /**
+     * @param toFile whether history data may be checkpointed to {@link #mHistoryFile},
+     *            leaving only its size and CRC in the parcel.
+     */
+    void writeHistory(Parcel out, boolean inclData, boolean andOldHistory, boolean toFile) {
         if (DEBUG_HISTORY) {
             StringBuilder sb = new StringBuilder(128);
             sb.append("****************** WRITING mHistoryBaseTime: ");
@@ -11291,10 +11326,20 @@ public class BatteryStatsImpl extends BatteryStats {
             out.writeString(tag.string);
             out.writeInt(tag.uid);
         }
-        out.writeInt(mHistoryBuffer.dataSize());
-        if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
-                + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
-        out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        if (toFile && mHistoryFile != null
+                && mHistoryFile.checkpoint(mHistoryBuffer, mHistoryBufferDirtyPos)) {
+            if (DEBUG_HISTORY) Slog.i(TAG, "***************** CHECKPOINTED HISTORY: "
+                    + mHistoryBuffer.dataSize() + " bytes from " + mHistoryBufferDirtyPos);
+            mHistoryBufferDirtyPos = mHistoryBuffer.dataSize();
+            out.writeInt(HISTORY_IN_FILE);
+            out.writeInt(mHistoryBuffer.dataSize());
+            out.writeLong(mHistoryFile.getCrc());
+        } else {
+            out.writeInt(mHistoryBuffer.dataSize());
+            if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
+                    + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
+            out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        }
 
         if (andOldHistory) {
             writeOldHistory(out);
@@ -11707,6 +11752,15 @@ public class BatteryStatsImpl extends BatteryStats {
      * @param out the Parcel to be written to.
      */
     public void writeSummaryToParcel(Parcel out, boolean inclHistory) {
+        writeSummaryToParcel(out, inclHistory, false);
+    }
+
+    /**
+     * @param historyToFile whether history data may be checkpointed to the history file
+     *            instead of being written into the Parcel, which is only valid for
+     *            batterystats.bin itself.
+     */
+    void writeSummaryToParcel(Parcel out, boolean inclHistory, boolean historyToFile) {
         pullPendingStateUpdatesLocked();
 
         // Pull the clock time.  This may update the time and make a new history entry
@@ -11718,7 +11772,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(VERSION);
 
-        writeHistory(out, inclHistory, true);
+        writeHistory(out, inclHistory, true, historyToFile);
 
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
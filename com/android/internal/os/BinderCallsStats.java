@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Binder;
+import android.os.SystemClock;
+import android.service.binder.BinderCallStatsProto;
+import android.service.binder.BinderCallsStatsServiceDumpProto;
+import android.util.ArrayMap;
+import android.util.SparseIntArray;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Collects the cost of the incoming binder calls of this process, per binder class and
+ * transaction code: how many calls, and for a sample of them the CPU time, wall time and
+ * the sizes of the request and reply parcels.
+ *
+ * Only one call in {@link #setSamplingInterval every few} is measured, and each measured
+ * call stands for the calls that weren't; the others cost a single increment. The
+ * measurements of all the (class, code) pairs are kept in parallel primitive arrays, so
+ * nothing is allocated per call once a pair has been seen.
+ */
+public class BinderCallsStats {
+    private static final int DEFAULT_SAMPLING_INTERVAL = 16;
+
+    private static final BinderCallsStats sInstance = new BinderCallsStats();
+
+    private volatile boolean mEnabled;
+    private volatile int mSamplingInterval = DEFAULT_SAMPLING_INTERVAL;
+
+    // Racy on purpose, a lost increment only changes which call gets measured
+    private int mCallsUntilSample;
+
+    private final Object mLock = new Object();
+
+    // Slot of each transaction code of each binder class in the arrays below
+    @GuardedBy("mLock")
+    private final ArrayMap<Class<? extends Binder>, SparseIntArray> mSlots = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private int mSlotCount;
+    @GuardedBy("mLock")
+    private Class<?>[] mBinderClasses = new Class<?>[16];
+    @GuardedBy("mLock")
+    private int[] mTransactionCodes = new int[16];
+    // Calls stood for by the measured ones
+    @GuardedBy("mLock")
+    private long[] mCallCounts = new long[16];
+    @GuardedBy("mLock")
+    private long[] mSampledCallCounts = new long[16];
+    @GuardedBy("mLock")
+    private long[] mCpuTimeMicros = new long[16];
+    @GuardedBy("mLock")
+    private long[] mMaxCpuTimeMicros = new long[16];
+    @GuardedBy("mLock")
+    private long[] mLatencyMicros = new long[16];
+    @GuardedBy("mLock")
+    private long[] mMaxLatencyMicros = new long[16];
+    @GuardedBy("mLock")
+    private long[] mRequestSizeBytes = new long[16];
+    @GuardedBy("mLock")
+    private long[] mReplySizeBytes = new long[16];
+    @GuardedBy("mLock")
+    private long[] mMaxReplySizeBytes = new long[16];
+    @GuardedBy("mLock")
+    private long mStartTime = SystemClock.elapsedRealtime();
+
+    public static BinderCallsStats getInstance() {
+        return sInstance;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Sets how many calls each measured call stands for.
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        if (samplingInterval < 1) {
+            throw new IllegalArgumentException("Invalid sampling interval " + samplingInterval);
+        }
+        mSamplingInterval = samplingInterval;
+    }
+
+    /**
+     * Called when a binder call comes in, to decide whether it gets measured. If so the
+     * caller has to report it with {@link #callEnded}.
+     */
+    public boolean shouldSampleCall() {
+        if (!mEnabled) {
+            return false;
+        }
+        if (--mCallsUntilSample > 0) {
+            return false;
+        }
+        mCallsUntilSample = mSamplingInterval;
+        return true;
+    }
+
+    /**
+     * Records the measurements of a sampled call.
+     *
+     * @param binder The binder object that handled the call.
+     * @param code The transaction code.
+     * @param requestSize The size of the request parcel in bytes.
+     * @param replySize The size of the reply parcel in bytes.
+     * @param cpuTimeMicros The CPU time the calling thread spent handling it.
+     * @param latencyMicros The wall time spent handling it.
+     */
+    public void callEnded(Binder binder, int code, int requestSize, int replySize,
+            long cpuTimeMicros, long latencyMicros) {
+        final int interval = mSamplingInterval;
+        synchronized (mLock) {
+            final int slot = getSlotLocked(binder.getClass(), code);
+            mCallCounts[slot] += interval;
+            mSampledCallCounts[slot]++;
+            mCpuTimeMicros[slot] += cpuTimeMicros;
+            mMaxCpuTimeMicros[slot] = Math.max(mMaxCpuTimeMicros[slot], cpuTimeMicros);
+            mLatencyMicros[slot] += latencyMicros;
+            mMaxLatencyMicros[slot] = Math.max(mMaxLatencyMicros[slot], latencyMicros);
+            mRequestSizeBytes[slot] += requestSize;
+            mReplySizeBytes[slot] += replySize;
+            mMaxReplySizeBytes[slot] = Math.max(mMaxReplySizeBytes[slot], replySize);
+        }
+    }
+
+    /**
+     * Forgets everything collected so far.
+     */
+    public void reset() {
+        synchronized (mLock) {
+            mSlots.clear();
+            for (int i = 0; i < mSlotCount; i++) {
+                mBinderClasses[i] = null;
+            }
+            mSlotCount = 0;
+            Arrays.fill(mCallCounts, 0);
+            Arrays.fill(mSampledCallCounts, 0);
+            Arrays.fill(mCpuTimeMicros, 0);
+            Arrays.fill(mMaxCpuTimeMicros, 0);
+            Arrays.fill(mLatencyMicros, 0);
+            Arrays.fill(mMaxLatencyMicros, 0);
+            Arrays.fill(mRequestSizeBytes, 0);
+            Arrays.fill(mReplySizeBytes, 0);
+            Arrays.fill(mMaxReplySizeBytes, 0);
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Prints the collected stats, most expensive calls first by estimated total CPU time.
+     * Totals are estimated from the sampled calls.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            final Integer[] order = getSlotsByCpuTimeLocked();
+            long totalCpuTimeMicros = 0;
+            long totalCalls = 0;
+            for (int i = 0; i < mSlotCount; i++) {
+                totalCpuTimeMicros += estimateTotal(mCpuTimeMicros, i);
+                totalCalls += mCallCounts[i];
+            }
+
+            pw.print("Binder call stats over ");
+            pw.print((SystemClock.elapsedRealtime() - mStartTime) / 1000);
+            pw.print("s, sampling 1 in ");
+            pw.print(mSamplingInterval);
+            pw.println(" calls:");
+            pw.print("  Total: calls~");
+            pw.print(totalCalls);
+            pw.print(" cpu~");
+            pw.print(totalCpuTimeMicros / 1000);
+            pw.println("ms");
+            pw.println("  Per call (times in us, sizes in bytes, averages over sampled calls):");
+            for (Integer slot : order) {
+                final int i = slot;
+                final long sampled = mSampledCallCounts[i];
+                pw.print("    ");
+                pw.print(mBinderClasses[i].getName());
+                pw.print("#");
+                pw.print(mTransactionCodes[i]);
+                pw.print(": calls~");
+                pw.print(mCallCounts[i]);
+                pw.print(" cpu~");
+                pw.print(estimateTotal(mCpuTimeMicros, i) / 1000);
+                pw.print("ms");
+                if (totalCpuTimeMicros > 0) {
+                    pw.print(" (");
+                    pw.print(estimateTotal(mCpuTimeMicros, i) * 100 / totalCpuTimeMicros);
+                    pw.print("%)");
+                }
+                pw.print(" cpu avg=");
+                pw.print(mCpuTimeMicros[i] / sampled);
+                pw.print(" max=");
+                pw.print(mMaxCpuTimeMicros[i]);
+                pw.print(" latency avg=");
+                pw.print(mLatencyMicros[i] / sampled);
+                pw.print(" max=");
+                pw.print(mMaxLatencyMicros[i]);
+                pw.print(" request avg=");
+                pw.print(mRequestSizeBytes[i] / sampled);
+                pw.print(" reply avg=");
+                pw.print(mReplySizeBytes[i] / sampled);
+                pw.print(" max=");
+                pw.println(mMaxReplySizeBytes[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes the collected stats as a BinderCallsStatsServiceDumpProto, most expensive calls
+     * first.
+     */
+    public void writeToProto(ProtoOutputStream proto) {
+        synchronized (mLock) {
+            proto.write(BinderCallsStatsServiceDumpProto.DURATION_MS,
+                    SystemClock.elapsedRealtime() - mStartTime);
+            proto.write(BinderCallsStatsServiceDumpProto.SAMPLING_INTERVAL, mSamplingInterval);
+            for (Integer slot : getSlotsByCpuTimeLocked()) {
+                final int i = slot;
+                final long token = proto.start(BinderCallsStatsServiceDumpProto.CALLS);
+                proto.write(BinderCallStatsProto.BINDER_CLASS, mBinderClasses[i].getName());
+                proto.write(BinderCallStatsProto.TRANSACTION_CODE, mTransactionCodes[i]);
+                proto.write(BinderCallStatsProto.CALL_COUNT, mCallCounts[i]);
+                proto.write(BinderCallStatsProto.SAMPLED_CALL_COUNT, mSampledCallCounts[i]);
+                proto.write(BinderCallStatsProto.CPU_TIME_MICROS, mCpuTimeMicros[i]);
+                proto.write(BinderCallStatsProto.MAX_CPU_TIME_MICROS, mMaxCpuTimeMicros[i]);
+                proto.write(BinderCallStatsProto.LATENCY_MICROS, mLatencyMicros[i]);
+                proto.write(BinderCallStatsProto.MAX_LATENCY_MICROS, mMaxLatencyMicros[i]);
+                proto.write(BinderCallStatsProto.REQUEST_SIZE_BYTES, mRequestSizeBytes[i]);
+                proto.write(BinderCallStatsProto.REPLY_SIZE_BYTES, mReplySizeBytes[i]);
+                proto.write(BinderCallStatsProto.MAX_REPLY_SIZE_BYTES, mMaxReplySizeBytes[i]);
+                proto.end(token);
+            }
+        }
+    }
+
+    private long estimateTotal(long[] sampledTotals, int slot) {
+        return sampledTotals[slot] * mCallCounts[slot] / mSampledCallCounts[slot];
+    }
+
+    private Integer[] getSlotsByCpuTimeLocked() {
+        final Integer[] order = new Integer[mSlotCount];
+        for (int i = 0; i < mSlotCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(
+                estimateTotal(mCpuTimeMicros, b), estimateTotal(mCpuTimeMicros, a)));
+        return order;
+    }
+
+    private int getSlotLocked(Class<? extends Binder> binderClass, int code) {
+        SparseIntArray codes = mSlots.get(binderClass);
+        if (codes == null) {
+            codes = new SparseIntArray();
+            mSlots.put(binderClass, codes);
+        }
+        int slot = codes.get(code, -1);
+        if (slot >= 0) {
+            return slot;
+        }
+
+        slot = mSlotCount++;
+        if (slot == mTransactionCodes.length) {
+            final int capacity = slot * 2;
+            mBinderClasses = Arrays.copyOf(mBinderClasses, capacity);
+            mTransactionCodes = Arrays.copyOf(mTransactionCodes, capacity);
+            mCallCounts = Arrays.copyOf(mCallCounts, capacity);
+            mSampledCallCounts = Arrays.copyOf(mSampledCallCounts, capacity);
+            mCpuTimeMicros = Arrays.copyOf(mCpuTimeMicros, capacity);
+            mMaxCpuTimeMicros = Arrays.copyOf(mMaxCpuTimeMicros, capacity);
+            mLatencyMicros = Arrays.copyOf(mLatencyMicros, capacity);
+            mMaxLatencyMicros = Arrays.copyOf(mMaxLatencyMicros, capacity);
+            mRequestSizeBytes = Arrays.copyOf(mRequestSizeBytes, capacity);
+            mReplySizeBytes = Arrays.copyOf(mReplySizeBytes, capacity);
+            mMaxReplySizeBytes = Arrays.copyOf(mMaxReplySizeBytes, capacity);
+        }
+        mBinderClasses[slot] = binderClass;
+        mTransactionCodes[slot] = code;
+        codes.put(code, slot);
+        return slot;
+    }
+}
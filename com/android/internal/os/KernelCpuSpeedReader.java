@@ -15,15 +15,14 @@
  */
 package com.android.internal.os;
 
-import android.text.TextUtils;
 import android.os.StrictMode;
 import android.system.OsConstants;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import libcore.io.Libcore;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -41,6 +40,7 @@ public class KernelCpuSpeedReader {
     private final String mProcFile;
     private final long[] mLastSpeedTimes;
     private final long[] mDeltaSpeedTimes;
+    private final ProcFileTokenizer mTokenizer = new ProcFileTokenizer(1024);
 
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
@@ -49,12 +49,17 @@ public class KernelCpuSpeedReader {
      * @param cpuNumber The cpu (cpu0, cpu1, etc) whose state to read.
      */
     public KernelCpuSpeedReader(int cpuNumber, int numSpeedSteps) {
-        mProcFile = String.format("/sys/devices/system/cpu/cpu%d/cpufreq/stats/time_in_state",
-                cpuNumber);
+        this(String.format("/sys/devices/system/cpu/cpu%d/cpufreq/stats/time_in_state",
+                cpuNumber), numSpeedSteps,
+                1000 / Libcore.os.sysconf(OsConstants._SC_CLK_TCK));
+    }
+
+    @VisibleForTesting
+    public KernelCpuSpeedReader(String procFile, int numSpeedSteps, long jiffyMillis) {
+        mProcFile = procFile;
         mLastSpeedTimes = new long[numSpeedSteps];
         mDeltaSpeedTimes = new long[numSpeedSteps];
-        long jiffyHz = Libcore.os.sysconf(OsConstants._SC_CLK_TCK);
-        mJiffyMillis = 1000/jiffyHz;
+        mJiffyMillis = jiffyMillis;
     }
 
     /**
@@ -64,15 +69,14 @@ public class KernelCpuSpeedReader {
      */
     public long[] readDelta() {
         StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskReads();
-        try (BufferedReader reader = new BufferedReader(new FileReader(mProcFile))) {
-            TextUtils.SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(' ');
-            String line;
+        try {
+            mTokenizer.readFile(mProcFile);
             int speedIndex = 0;
-            while (speedIndex < mLastSpeedTimes.length && (line = reader.readLine()) != null) {
-                splitter.setString(line);
-                Long.parseLong(splitter.next());
+            while (speedIndex < mLastSpeedTimes.length && mTokenizer.hasMoreData()) {
+                mTokenizer.nextLong();
 
-                long time = Long.parseLong(splitter.next()) * mJiffyMillis;
+                long time = mTokenizer.nextLong() * mJiffyMillis;
+                mTokenizer.finishLine();
                 if (time < mLastSpeedTimes[speedIndex]) {
                     // The stats reset when the cpu hotplugged. That means that the time
                     // we read is offset from 0, so the time is the delta.
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures a read of each of the Kernel*Reader files done on every battery stats update,
+ * against fixture files sized like those on a device with a few hundred apps.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class KernelReadersPerfTest {
+    private static final int NUM_UIDS = 300;
+    private static final int NUM_FREQS = 20;
+    private static final int NUM_WAKELOCKS = 150;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "kernel-readers-perf");
+        mDir.mkdirs();
+
+        final StringBuilder uidStat = new StringBuilder();
+        final StringBuilder timeInState = new StringBuilder("uid:");
+        for (int i = 0; i < NUM_FREQS; i++) {
+            timeInState.append(' ').append(300000 + i * 100000);
+        }
+        timeInState.append('\n');
+        for (int uid = 10000; uid < 10000 + NUM_UIDS; uid++) {
+            uidStat.append(uid).append(": ").append(uid * 1000L).append(' ')
+                    .append(uid * 500L).append(" 0\n");
+            timeInState.append(uid).append(':');
+            for (int i = 0; i < NUM_FREQS; i++) {
+                timeInState.append(' ').append(uid + i);
+            }
+            timeInState.append('\n');
+        }
+        writeFixture("show_uid_stat", uidStat);
+        writeFixture("uid_time_in_state", timeInState);
+
+        final StringBuilder cpuTimeInState = new StringBuilder();
+        for (int i = 0; i < NUM_FREQS; i++) {
+            cpuTimeInState.append(300000 + i * 100000).append(' ').append(i * 1000).append('\n');
+        }
+        writeFixture("time_in_state", cpuTimeInState);
+
+        final StringBuilder wakeupSources = new StringBuilder("name\t\tactive_count"
+                + "\tevent_count\twakeup_count\texpire_count\tactive_since\ttotal_time"
+                + "\tmax_time\tlast_change\tprevent_suspend_time\n");
+        for (int i = 0; i < NUM_WAKELOCKS; i++) {
+            wakeupSources.append("wakeup_source_").append(i).append("\t\t").append(i)
+                    .append('\t').append(i).append("\t0\t0\t0\t").append(i * 10)
+                    .append("\t10\t1000\t0\n");
+        }
+        writeFixture("wakeup_sources", wakeupSources);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDir);
+    }
+
+    @Test
+    public void timeReadUidCpuTime() {
+        final KernelUidCpuTimeReader reader = new KernelUidCpuTimeReader(
+                fixture("show_uid_stat"), fixture("remove_uid_range"));
+        final KernelUidCpuTimeReader.Callback callback = (uid, userTimeUs, systemTimeUs) -> {};
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            reader.readDelta(callback);
+        }
+    }
+
+    @Test
+    public void timeReadUidCpuFreqTime() {
+        final KernelUidCpuFreqTimeReader reader = new KernelUidCpuFreqTimeReader(
+                fixture("uid_time_in_state"));
+        final KernelUidCpuFreqTimeReader.Callback callback =
+                new KernelUidCpuFreqTimeReader.Callback() {
+                    @Override
+                    public void onCpuFreqs(long[] cpuFreqs) {
+                    }
+
+                    @Override
+                    public void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs) {
+                    }
+                };
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            reader.readDelta(callback);
+        }
+    }
+
+    @Test
+    public void timeReadCpuSpeed() {
+        final KernelCpuSpeedReader reader = new KernelCpuSpeedReader(fixture("time_in_state"),
+                NUM_FREQS, 10);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            reader.readDelta();
+        }
+    }
+
+    @Test
+    public void timeReadKernelWakelocks() {
+        final KernelWakelockReader reader = new KernelWakelockReader(fixture("wakelocks"),
+                fixture("wakeup_sources"));
+        final KernelWakelockStats stats = new KernelWakelockStats();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            reader.readKernelWakelockStats(stats);
+        }
+    }
+
+    private String fixture(String name) {
+        return new File(mDir, name).getPath();
+    }
+
+    private void writeFixture(String name, CharSequence contents) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(mDir, name))) {
+            out.write(contents.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.SparseArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs the Kernel*Reader parsers against fixture files shaped like the real /proc and /sys
+ * files.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class KernelReadersTest {
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "kernel-readers");
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDir);
+    }
+
+    @Test
+    public void testTokenizer() throws Exception {
+        final File file = writeFixture("tokens", "uid: 1 -2  300\n\"quoted\" name\nlast 42");
+        final ProcFileTokenizer tokenizer = new ProcFileTokenizer(4);
+        tokenizer.readFile(file.getPath());
+
+        assertTrue(tokenizer.hasMoreData());
+        tokenizer.skipToken();
+        assertEquals(1, tokenizer.nextInt());
+        assertEquals(-2, tokenizer.nextLong());
+        assertEquals(300, tokenizer.nextLong());
+        assertFalse(tokenizer.hasMoreTokens());
+        tokenizer.finishLine();
+
+        final String quoted = tokenizer.nextString();
+        assertEquals("quoted", quoted);
+        tokenizer.finishLine();
+
+        assertEquals("last", tokenizer.nextString());
+        assertEquals(42, tokenizer.nextLong());
+        tokenizer.finishLine();
+        assertFalse(tokenizer.hasMoreData());
+
+        // Reading again reuses the strings returned for the same tokens
+        tokenizer.readFile(file.getPath());
+        tokenizer.finishLine();
+        assertSame(quoted, tokenizer.nextString());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testTokenizer_invalidLong() throws Exception {
+        final ProcFileTokenizer tokenizer = new ProcFileTokenizer();
+        tokenizer.readFile(writeFixture("invalid", "12a\n").getPath());
+        tokenizer.nextLong();
+    }
+
+    @Test
+    public void testUidCpuTimeReader() throws Exception {
+        final File file = writeFixture("show_uid_stat",
+                "10001: 1000 2000 0\n"
+                + "10002: 500 600 0\n");
+        final KernelUidCpuTimeReader reader = new KernelUidCpuTimeReader(file.getPath(),
+                new File(mDir, "remove_uid_range").getPath());
+        final SparseArray<long[]> times = new SparseArray<>();
+        final KernelUidCpuTimeReader.Callback callback = (uid, userTimeUs, systemTimeUs) ->
+                times.put(uid, new long[] { userTimeUs, systemTimeUs });
+
+        // The first read only establishes the baseline
+        reader.readDelta(callback);
+        assertEquals(0, times.size());
+
+        writeFixture("show_uid_stat",
+                "10001: 1500 2000 0\n"
+                + "10002: 500 600 0\n"
+                + "10003: 10 20 0\n");
+        reader.readDelta(callback);
+        assertEquals(2, times.size());
+        assertArrayEquals(new long[] { 500, 0 }, times.get(10001));
+        assertArrayEquals(new long[] { 10, 20 }, times.get(10003));
+    }
+
+    @Test
+    public void testUidCpuFreqTimeReader() throws Exception {
+        final File file = writeFixture("uid_time_in_state",
+                "uid: 300000 600000 900000\n"
+                + "10001: 1 2 3\n"
+                + "10002: 4 5 6\n");
+        final KernelUidCpuFreqTimeReader reader = new KernelUidCpuFreqTimeReader(file.getPath());
+        final long[][] freqs = new long[1][];
+        final SparseArray<long[]> times = new SparseArray<>();
+        final KernelUidCpuFreqTimeReader.Callback callback =
+                new KernelUidCpuFreqTimeReader.Callback() {
+                    @Override
+                    public void onCpuFreqs(long[] cpuFreqs) {
+                        freqs[0] = cpuFreqs;
+                    }
+
+                    @Override
+                    public void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs) {
+                        times.put(uid, cpuFreqTimeMs.clone());
+                    }
+                };
+
+        reader.readDelta(callback);
+        assertArrayEquals(new long[] { 300000, 600000, 900000 }, freqs[0]);
+        assertArrayEquals(new long[] { 10, 20, 30 }, times.get(10001));
+        assertArrayEquals(new long[] { 40, 50, 60 }, times.get(10002));
+
+        times.clear();
+        reader.removeUid(10002);
+        writeFixture("uid_time_in_state",
+                "uid: 300000 600000 900000\n"
+                + "10001: 2 2 5\n"
+                + "10002: 4 5 7\n"
+                + "10003: 1 2\n");
+        reader.readDelta(callback);
+        assertArrayEquals(new long[] { 10, 0, 20 }, times.get(10001));
+        assertArrayEquals(new long[] { 40, 50, 70 }, times.get(10002));
+        // Readings that don't match the frequencies are dropped
+        assertNull(times.get(10003));
+    }
+
+    @Test
+    public void testCpuSpeedReader() throws Exception {
+        final File file = writeFixture("time_in_state",
+                "300000 100\n"
+                + "600000 200\n"
+                + "900000 300\n");
+        final KernelCpuSpeedReader reader = new KernelCpuSpeedReader(file.getPath(), 3, 10);
+        assertArrayEquals(new long[] { 1000, 2000, 3000 }, reader.readDelta());
+
+        writeFixture("time_in_state",
+                "300000 150\n"
+                + "600000 200\n"
+                + "900000 10\n");
+        // The last step was reset by a hotplug, so its time is the delta
+        assertArrayEquals(new long[] { 500, 0, 100 }, reader.readDelta());
+    }
+
+    @Test
+    public void testWakelockReader_wakeupSources() throws Exception {
+        final File file = writeFixture("wakeup_sources",
+                "name\t\tactive_count\tevent_count\twakeup_count\texpire_count\tactive_since"
+                        + "\ttotal_time\tmax_time\tlast_change\tprevent_suspend_time\n"
+                + "ipc000000b2_healthd\t\t4\t4\t0\t0\t0\t12\t3\t1000\t0\n"
+                + "eventpoll\t\t10\t10\t0\t0\t0\t7\t1\t1000\t0\n"
+                + "eventpoll\t\t2\t2\t0\t0\t0\t3\t1\t1000\t0\n");
+        final KernelWakelockReader reader = new KernelWakelockReader(
+                new File(mDir, "wakelocks").getPath(), file.getPath());
+        final KernelWakelockStats stats = reader.readKernelWakelockStats(
+                new KernelWakelockStats());
+
+        assertEquals(2, stats.size());
+        assertEquals(4, stats.get("ipc000000b2_healthd").mCount);
+        assertEquals(12000, stats.get("ipc000000b2_healthd").mTotalTime);
+        // Wakelocks with the same name are summed
+        assertEquals(12, stats.get("eventpoll").mCount);
+        assertEquals(10000, stats.get("eventpoll").mTotalTime);
+
+        writeFixture("wakeup_sources",
+                "name\t\tactive_count\tevent_count\twakeup_count\texpire_count\tactive_since"
+                        + "\ttotal_time\tmax_time\tlast_change\tprevent_suspend_time\n"
+                + "eventpoll\t\t13\t13\t0\t0\t0\t11\t1\t1000\t0\n");
+        reader.readKernelWakelockStats(stats);
+        assertEquals(1, stats.size());
+        assertEquals(13, stats.get("eventpoll").mCount);
+        assertEquals(11000, stats.get("eventpoll").mTotalTime);
+    }
+
+    @Test
+    public void testWakelockReader_procWakelocks() throws Exception {
+        final File file = writeFixture("wakelocks",
+                "name\tcount\texpire_count\twake_count\tactive_since\ttotal_time\n"
+                + "\"PowerManagerService\"\t5\t0\t0\t0\t2000000\n"
+                + "\"alarm\"\t3\t0\t0\t0\t1499\n");
+        final KernelWakelockReader reader = new KernelWakelockReader(file.getPath(),
+                new File(mDir, "wakeup_sources").getPath());
+        final KernelWakelockStats stats = reader.readKernelWakelockStats(
+                new KernelWakelockStats());
+
+        assertEquals(2, stats.size());
+        assertEquals(5, stats.get("PowerManagerService").mCount);
+        assertEquals(2000, stats.get("PowerManagerService").mTotalTime);
+        assertEquals(3, stats.get("alarm").mCount);
+        assertEquals(1, stats.get("alarm").mTotalTime);
+    }
+
+    @Test
+    public void testWakelockReader_missingFiles() {
+        final KernelWakelockReader reader = new KernelWakelockReader(
+                new File(mDir, "wakelocks").getPath(),
+                new File(mDir, "wakeup_sources").getPath());
+        assertNull(reader.readKernelWakelockStats(new KernelWakelockStats()));
+    }
+
+    private File writeFixture(String name, String contents) throws IOException {
+        final File file = new File(mDir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes(StandardCharsets.US_ASCII));
+        }
+        return file;
+    }
+}
@@ -17,14 +17,14 @@
 package com.android.internal.os;
 
 import android.annotation.Nullable;
+import android.util.IntArray;
 import android.util.Slog;
-import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Reads /proc/uid_time_in_state which has the format:
@@ -45,13 +45,31 @@ public class KernelUidCpuFreqTimeReader {
 
     public interface Callback {
         void onCpuFreqs(long[] cpuFreqs);
+
+        /**
+         * @param cpuFreqTimeMs time spent at each frequency since the last read. The array is
+         *                      reused for every uid and read, so it must not be kept.
+         */
         void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs);
     }
 
+    private final String mProcFile;
+    private final ProcFileTokenizer mTokenizer = new ProcFileTokenizer(32 * 1024);
+
     private long[] mCpuFreqs;
     private int mCpuFreqsCount;
 
-    private SparseArray<long[]> mLastUidCpuFreqTimeMs = new SparseArray<>();
+    /**
+     * Times read for each uid, {@link #mCpuFreqsCount} longs per uid starting at the slot that
+     * {@link #mUidSlots} maps the uid to.
+     */
+    private long[] mLastUidCpuFreqTimeMs;
+    private final SparseIntArray mUidSlots = new SparseIntArray();
+    private final IntArray mFreeSlots = new IntArray();
+    private int mSlotCount;
+
+    private long[] mCurUidCpuFreqTimeMs;
+    private long[] mDeltaUidCpuFreqTimeMs;
 
     // We check the existence of proc file a few times (just in case it is not ready yet when we
     // start reading) and if it is not available, we simply ignore further read requests.
@@ -59,72 +77,122 @@ public class KernelUidCpuFreqTimeReader {
     private int mReadErrorCounter;
     private boolean mProcFileAvailable;
 
+    public KernelUidCpuFreqTimeReader() {
+        this(UID_TIMES_PROC_FILE);
+    }
+
+    @VisibleForTesting
+    public KernelUidCpuFreqTimeReader(String procFile) {
+        mProcFile = procFile;
+    }
+
     public void readDelta(@Nullable Callback callback) {
         if (!mProcFileAvailable && mReadErrorCounter >= TOTAL_READ_ERROR_COUNT) {
             return;
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(UID_TIMES_PROC_FILE))) {
-            readDelta(reader, callback);
+        try {
+            mTokenizer.readFile(mProcFile);
+            readDelta(mTokenizer, callback);
             mProcFileAvailable = true;
         } catch (IOException e) {
             mReadErrorCounter++;
-            Slog.e(TAG, "Failed to read " + UID_TIMES_PROC_FILE + ": " + e);
+            Slog.e(TAG, "Failed to read " + mProcFile + ": " + e);
         }
     }
 
     public void removeUid(int uid) {
-        mLastUidCpuFreqTimeMs.delete(uid);
+        final int index = mUidSlots.indexOfKey(uid);
+        if (index >= 0) {
+            final int slot = mUidSlots.valueAt(index);
+            mUidSlots.removeAt(index);
+            mFreeSlots.add(slot);
+            Arrays.fill(mLastUidCpuFreqTimeMs, slot * mCpuFreqsCount,
+                    (slot + 1) * mCpuFreqsCount, 0);
+        }
     }
 
-    @VisibleForTesting
-    public void readDelta(BufferedReader reader, @Nullable Callback callback) throws IOException {
-        String line = reader.readLine();
-        if (line == null) {
+    private void readDelta(ProcFileTokenizer tokenizer, @Nullable Callback callback)
+            throws IOException {
+        if (!tokenizer.hasMoreData()) {
             return;
         }
-        readCpuFreqs(line, callback);
-        while ((line = reader.readLine()) != null) {
-            final int index = line.indexOf(' ');
-            final int uid = Integer.parseInt(line.substring(0, index - 1), 10);
-            readTimesForUid(uid, line.substring(index + 1, line.length()), callback);
+        readCpuFreqs(tokenizer, callback);
+        while (tokenizer.hasMoreData()) {
+            final int uid = tokenizer.nextInt();
+            readTimesForUid(uid, tokenizer, callback);
+            tokenizer.finishLine();
         }
     }
 
-    private void readTimesForUid(int uid, String line, Callback callback) {
-        long[] uidTimeMs = mLastUidCpuFreqTimeMs.get(uid);
-        if (uidTimeMs == null) {
-            uidTimeMs = new long[mCpuFreqsCount];
-            mLastUidCpuFreqTimeMs.put(uid, uidTimeMs);
+    private void readTimesForUid(int uid, ProcFileTokenizer tokenizer, Callback callback)
+            throws IOException {
+        final long[] curTimeMs = mCurUidCpuFreqTimeMs;
+        int size = 0;
+        while (tokenizer.hasMoreTokens()) {
+            // Times read will be in units of 10ms
+            final long totalTimeMs = tokenizer.nextLong() * 10;
+            if (size < mCpuFreqsCount) {
+                curTimeMs[size] = totalTimeMs;
+            }
+            size++;
         }
-        final String[] timesStr = line.split(" ");
-        final int size = timesStr.length;
-        if (size != uidTimeMs.length) {
+        if (size != mCpuFreqsCount) {
             Slog.e(TAG, "No. of readings don't match cpu freqs, readings: " + size
-                    + " cpuFreqsCount: " + uidTimeMs.length);
+                    + " cpuFreqsCount: " + mCpuFreqsCount);
             return;
         }
-        final long[] deltaUidTimeMs = new long[size];
+
+        int slot = mUidSlots.get(uid, -1);
+        if (slot < 0) {
+            slot = allocateSlot();
+            mUidSlots.put(uid, slot);
+        }
+        final long[] lastTimeMs = mLastUidCpuFreqTimeMs;
+        final int offset = slot * mCpuFreqsCount;
         for (int i = 0; i < size; ++i) {
-            // Times read will be in units of 10ms
-            final long totalTimeMs = Long.parseLong(timesStr[i], 10) * 10;
-            deltaUidTimeMs[i] = totalTimeMs - uidTimeMs[i];
-            uidTimeMs[i] = totalTimeMs;
+            mDeltaUidCpuFreqTimeMs[i] = curTimeMs[i] - lastTimeMs[offset + i];
+            lastTimeMs[offset + i] = curTimeMs[i];
         }
         if (callback != null) {
-            callback.onUidCpuFreqTime(uid, deltaUidTimeMs);
+            callback.onUidCpuFreqTime(uid, mDeltaUidCpuFreqTimeMs);
+        }
+    }
+
+    private int allocateSlot() {
+        final int freeCount = mFreeSlots.size();
+        if (freeCount > 0) {
+            final int slot = mFreeSlots.get(freeCount - 1);
+            mFreeSlots.remove(freeCount - 1);
+            return slot;
+        }
+        final int slot = mSlotCount++;
+        if (mSlotCount * mCpuFreqsCount > mLastUidCpuFreqTimeMs.length) {
+            mLastUidCpuFreqTimeMs = Arrays.copyOf(mLastUidCpuFreqTimeMs,
+                    mLastUidCpuFreqTimeMs.length * 2);
         }
+        return slot;
     }
 
-    private void readCpuFreqs(String line, Callback callback) {
+    private void readCpuFreqs(ProcFileTokenizer tokenizer, Callback callback)
+            throws IOException {
         if (mCpuFreqs == null) {
-            final String[] freqStr = line.split(" ");
             // First item would be "uid:" which needs to be ignored
-            mCpuFreqsCount = freqStr.length - 1;
-            mCpuFreqs = new long[mCpuFreqsCount];
-            for (int i = 0; i < mCpuFreqsCount; ++i) {
-                mCpuFreqs[i] = Long.parseLong(freqStr[i + 1], 10);
+            tokenizer.skipToken();
+            long[] cpuFreqs = new long[16];
+            int count = 0;
+            while (tokenizer.hasMoreTokens()) {
+                if (count == cpuFreqs.length) {
+                    cpuFreqs = Arrays.copyOf(cpuFreqs, count * 2);
+                }
+                cpuFreqs[count++] = tokenizer.nextLong();
             }
+            mCpuFreqsCount = count;
+            mCpuFreqs = Arrays.copyOf(cpuFreqs, count);
+            mCurUidCpuFreqTimeMs = new long[count];
+            mDeltaUidCpuFreqTimeMs = new long[count];
+            mLastUidCpuFreqTimeMs = new long[Math.max(count, 1) * 64];
         }
+        tokenizer.finishLine();
         if (callback != null) {
             callback.onCpuFreqs(mCpuFreqs);
         }
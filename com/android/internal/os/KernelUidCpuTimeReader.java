@@ -17,13 +17,12 @@ package com.android.internal.os;
 
 import android.annotation.Nullable;
 import android.os.SystemClock;
-import android.text.TextUtils;
 import android.util.Slog;
 import android.util.SparseLongArray;
 import android.util.TimeUtils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.FileWriter;
 import java.io.IOException;
 
@@ -54,10 +53,24 @@ public class KernelUidCpuTimeReader {
         void onUidCpuTime(int uid, long userTimeUs, long systemTimeUs);
     }
 
+    private final String mProcFile;
+    private final String mRemoveUidProcFile;
+    private final ProcFileTokenizer mTokenizer = new ProcFileTokenizer();
+
     private SparseLongArray mLastUserTimeUs = new SparseLongArray();
     private SparseLongArray mLastSystemTimeUs = new SparseLongArray();
     private long mLastTimeReadUs = 0;
 
+    public KernelUidCpuTimeReader() {
+        this(sProcFile, sRemoveUidProcFile);
+    }
+
+    @VisibleForTesting
+    public KernelUidCpuTimeReader(String procFile, String removeUidProcFile) {
+        mProcFile = procFile;
+        mRemoveUidProcFile = removeUidProcFile;
+    }
+
     /**
      * Reads the proc file, calling into the callback with a delta of time for each UID.
      * @param callback The callback to invoke for each line of the proc file. If null,
@@ -66,15 +79,13 @@ public class KernelUidCpuTimeReader {
      */
     public void readDelta(@Nullable Callback callback) {
         long nowUs = SystemClock.elapsedRealtime() * 1000;
-        try (BufferedReader reader = new BufferedReader(new FileReader(sProcFile))) {
-            TextUtils.SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(' ');
-            String line;
-            while ((line = reader.readLine()) != null) {
-                splitter.setString(line);
-                final String uidStr = splitter.next();
-                final int uid = Integer.parseInt(uidStr.substring(0, uidStr.length() - 1), 10);
-                final long userTimeUs = Long.parseLong(splitter.next(), 10);
-                final long systemTimeUs = Long.parseLong(splitter.next(), 10);
+        try {
+            mTokenizer.readFile(mProcFile);
+            while (mTokenizer.hasMoreData()) {
+                final int uid = mTokenizer.nextInt();
+                final long userTimeUs = mTokenizer.nextLong();
+                final long systemTimeUs = mTokenizer.nextLong();
+                mTokenizer.finishLine();
 
                 // Only report if there is a callback and if this is not the first read.
                 if (callback != null && mLastTimeReadUs != 0) {
@@ -136,7 +147,7 @@ public class KernelUidCpuTimeReader {
             mLastSystemTimeUs.removeAt(index);
         }
 
-        try (FileWriter writer = new FileWriter(sRemoveUidProcFile)) {
+        try (FileWriter writer = new FileWriter(mRemoveUidProcFile)) {
             writer.write(Integer.toString(uid) + "-" + Integer.toString(uid));
             writer.flush();
         } catch (IOException e) {
@@ -15,12 +15,12 @@
  */
 package com.android.internal.os;
 
-import android.os.Process;
 import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Iterator;
 
 /**
@@ -32,30 +32,30 @@ public class KernelWakelockReader {
     private static final String sWakelockFile = "/proc/wakelocks";
     private static final String sWakeupSourceFile = "/d/wakeup_sources";
 
-    private static final int[] PROC_WAKELOCKS_FORMAT = new int[] {
-        Process.PROC_TAB_TERM|Process.PROC_OUT_STRING|                // 0: name
-                              Process.PROC_QUOTES,
-        Process.PROC_TAB_TERM|Process.PROC_OUT_LONG,                  // 1: count
-        Process.PROC_TAB_TERM,
-        Process.PROC_TAB_TERM,
-        Process.PROC_TAB_TERM,
-        Process.PROC_TAB_TERM|Process.PROC_OUT_LONG,                  // 5: totalTime
-    };
-
-    private static final int[] WAKEUP_SOURCES_FORMAT = new int[] {
-        Process.PROC_TAB_TERM|Process.PROC_OUT_STRING,                // 0: name
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE|
-                              Process.PROC_OUT_LONG,                  // 1: count
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE
-                             |Process.PROC_OUT_LONG,                  // 6: totalTime
-    };
-
-    private final String[] mProcWakelocksName = new String[3];
-    private final long[] mProcWakelocksData = new long[3];
+    // Both files are tab separated. /proc/wakelocks has the quoted name in column 0, the count
+    // in column 1 and the total time in nanoseconds in column 5. /d/wakeup_sources has the
+    // name in column 0, the count in column 1 and the total time in milliseconds in column 6,
+    // and may separate columns with several tabs.
+    private static final int PROC_WAKELOCKS_SKIPPED_COLUMNS = 3;
+    private static final int WAKEUP_SOURCES_SKIPPED_COLUMNS = 4;
+
+    private final String mWakelockFile;
+    private final String mWakeupSourceFile;
+    private final ProcFileTokenizer mTokenizer = new ProcFileTokenizer(32 * 1024);
+
+    /** Set once the wakelock file turned out to be missing. */
+    private boolean mUseWakeupSources;
+
+    public KernelWakelockReader() {
+        this(sWakelockFile, sWakeupSourceFile);
+    }
+
+    @VisibleForTesting
+    public KernelWakelockReader(String wakelockFile, String wakeupSourceFile) {
+        mWakelockFile = wakelockFile;
+        mWakeupSourceFile = wakeupSourceFile;
+        mTokenizer.setDelimiter('\t');
+    }
 
     /**
      * Reads kernel wakelock stats and updates the staleStats with the new information.
@@ -63,125 +63,66 @@ public class KernelWakelockReader {
      * @return the updated data.
      */
     public final KernelWakelockStats readKernelWakelockStats(KernelWakelockStats staleStats) {
-        byte[] buffer = new byte[32*1024];
-        int len;
-        boolean wakeup_sources;
-
         try {
-            FileInputStream is;
-            try {
-                is = new FileInputStream(sWakelockFile);
-                wakeup_sources = false;
-            } catch (java.io.FileNotFoundException e) {
+            if (!mUseWakeupSources) {
                 try {
-                    is = new FileInputStream(sWakeupSourceFile);
-                    wakeup_sources = true;
-                } catch (java.io.FileNotFoundException e2) {
-                    Slog.wtf(TAG, "neither " + sWakelockFile + " nor " +
-                            sWakeupSourceFile + " exists");
+                    mTokenizer.readFile(mWakelockFile);
+                } catch (FileNotFoundException e) {
+                    mUseWakeupSources = true;
+                }
+            }
+            if (mUseWakeupSources) {
+                try {
+                    mTokenizer.readFile(mWakeupSourceFile);
+                } catch (FileNotFoundException e) {
+                    Slog.wtf(TAG, "neither " + mWakelockFile + " nor " +
+                            mWakeupSourceFile + " exists");
                     return null;
                 }
             }
-
-            len = is.read(buffer);
-            is.close();
-        } catch (java.io.IOException e) {
+        } catch (IOException e) {
             Slog.wtf(TAG, "failed to read kernel wakelocks", e);
             return null;
         }
 
-        if (len > 0) {
-            if (len >= buffer.length) {
-                Slog.wtf(TAG, "Kernel wake locks exceeded buffer size " + buffer.length);
-            }
-            int i;
-            for (i=0; i<len; i++) {
-                if (buffer[i] == '\0') {
-                    len = i;
-                    break;
-                }
-            }
-        }
-        return parseProcWakelocks(buffer, len, wakeup_sources, staleStats);
+        return parseProcWakelocks(mTokenizer, mUseWakeupSources, staleStats);
     }
 
     /**
      * Reads the wakelocks and updates the staleStats with the new information.
      */
-    @VisibleForTesting
-    public KernelWakelockStats parseProcWakelocks(byte[] wlBuffer, int len, boolean wakeup_sources,
-                                                  final KernelWakelockStats staleStats) {
-        String name;
-        int count;
-        long totalTime;
-        int startIndex;
-        int endIndex;
-
+    private KernelWakelockStats parseProcWakelocks(ProcFileTokenizer tokenizer,
+            boolean wakeup_sources, final KernelWakelockStats staleStats) {
         // Advance past the first line.
-        int i;
-        for (i = 0; i < len && wlBuffer[i] != '\n' && wlBuffer[i] != '\0'; i++);
-        startIndex = endIndex = i + 1;
+        tokenizer.finishLine();
 
         synchronized(this) {
             sKernelWakelockUpdateVersion++;
-            while (endIndex < len) {
-                for (endIndex=startIndex;
-                        endIndex < len && wlBuffer[endIndex] != '\n' && wlBuffer[endIndex] != '\0';
-                        endIndex++);
-                // Don't go over the end of the buffer, Process.parseProcLine might
-                // write to wlBuffer[endIndex]
-                if (endIndex > (len - 1) ) {
-                    break;
-                }
-
-                String[] nameStringArray = mProcWakelocksName;
-                long[] wlData = mProcWakelocksData;
-                // Stomp out any bad characters since this is from a circular buffer
-                // A corruption is seen sometimes that results in the vm crashing
-                // This should prevent crashes and the line will probably fail to parse
-                for (int j = startIndex; j < endIndex; j++) {
-                    if ((wlBuffer[j] & 0x80) != 0) wlBuffer[j] = (byte) '?';
-                }
-                boolean parsed = Process.parseProcLine(wlBuffer, startIndex, endIndex,
-                        wakeup_sources ? WAKEUP_SOURCES_FORMAT :
-                                         PROC_WAKELOCKS_FORMAT,
-                        nameStringArray, wlData, null);
-
-                name = nameStringArray[0];
-                count = (int) wlData[1];
-
-                if (wakeup_sources) {
+            while (tokenizer.hasMoreData()) {
+                try {
+                    final String name = tokenizer.nextString();
+                    final int count = (int) tokenizer.nextLong();
+                    final int skipped = wakeup_sources ? WAKEUP_SOURCES_SKIPPED_COLUMNS
+                            : PROC_WAKELOCKS_SKIPPED_COLUMNS;
+                    for (int i = 0; i < skipped; i++) {
+                        tokenizer.skipToken();
+                    }
+                    final long totalTime;
+                    if (wakeup_sources) {
                         // convert milliseconds to microseconds
-                        totalTime = wlData[2] * 1000;
-                } else {
-                        // convert nanoseconds to microseconds with rounding.
-                        totalTime = (wlData[2] + 500) / 1000;
-                }
-
-                if (parsed && name.length() > 0) {
-                    if (!staleStats.containsKey(name)) {
-                        staleStats.put(name, new KernelWakelockStats.Entry(count, totalTime,
-                                sKernelWakelockUpdateVersion));
+                        totalTime = tokenizer.nextLong() * 1000;
                     } else {
-                        KernelWakelockStats.Entry kwlStats = staleStats.get(name);
-                        if (kwlStats.mVersion == sKernelWakelockUpdateVersion) {
-                            kwlStats.mCount += count;
-                            kwlStats.mTotalTime += totalTime;
-                        } else {
-                            kwlStats.mCount = count;
-                            kwlStats.mTotalTime = totalTime;
-                            kwlStats.mVersion = sKernelWakelockUpdateVersion;
-                        }
+                        // convert nanoseconds to microseconds with rounding.
+                        totalTime = (tokenizer.nextLong() + 500) / 1000;
                     }
-                } else if (!parsed) {
-                    try {
-                        Slog.wtf(TAG, "Failed to parse proc line: " +
-                                new String(wlBuffer, startIndex, endIndex - startIndex));
-                    } catch (Exception e) {
-                        Slog.wtf(TAG, "Failed to parse proc line!");
+
+                    if (name.length() > 0) {
+                        updateEntry(staleStats, name, count, totalTime);
                     }
+                } catch (IOException | NumberFormatException e) {
+                    Slog.wtf(TAG, "Failed to parse proc line: " + e.getMessage());
                 }
-                startIndex = endIndex + 1;
+                tokenizer.finishLine();
             }
 
             // Don't report old data.
@@ -196,4 +137,20 @@ public class KernelWakelockReader {
             return staleStats;
         }
     }
+
+    private static void updateEntry(KernelWakelockStats staleStats, String name, int count,
+            long totalTime) {
+        final KernelWakelockStats.Entry kwlStats = staleStats.get(name);
+        if (kwlStats == null) {
+            staleStats.put(name, new KernelWakelockStats.Entry(count, totalTime,
+                    sKernelWakelockUpdateVersion));
+        } else if (kwlStats.mVersion == sKernelWakelockUpdateVersion) {
+            kwlStats.mCount += count;
+            kwlStats.mTotalTime += totalTime;
+        } else {
+            kwlStats.mCount = count;
+            kwlStats.mTotalTime = totalTime;
+            kwlStats.mVersion = sKernelWakelockUpdateVersion;
+        }
+    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Collects how long the messages dispatched by one or more loopers take to handle, and how
+ * long they waited in the queue past the time they were due, per handler class.
+ *
+ * Messages that post a Runnable are counted against the class of the Runnable, since the
+ * handler is often a plain {@link Handler}. Each class gets histograms with power of two
+ * buckets; nothing is allocated per message once a class has been seen.
+ *
+ * One instance is typically shared by every looper of the process, so each looper thread
+ * counts into its own entries, under a lock only {@link #dump} and {@link #reset} compete
+ * for. The entries of all threads are merged when they are dumped.
+ */
+public class LooperStats implements Looper.Observer {
+    /** Latencies are bucketed by microseconds, up to about 8 seconds. */
+    private static final int LATENCY_BUCKETS = 24;
+    /** Queue delays are bucketed by milliseconds, up to about 30 seconds. */
+    private static final int DELAY_BUCKETS = 16;
+
+    private final Object mLock = new Object();
+
+    /** Entries of every thread that dispatched a message, including ones that ended. */
+    @GuardedBy("mLock")
+    private final ArrayList<ThreadEntries> mThreadEntries = new ArrayList<>();
+    @GuardedBy("mLock")
+    private long mStartTime = SystemClock.elapsedRealtime();
+
+    private final ThreadLocal<ThreadEntries> mEntries = new ThreadLocal<ThreadEntries>() {
+        @Override
+        protected ThreadEntries initialValue() {
+            final ThreadEntries entries = new ThreadEntries();
+            synchronized (mLock) {
+                mThreadEntries.add(entries);
+            }
+            return entries;
+        }
+    };
+
+    @Override
+    public void messageDispatched(Class<? extends Handler> targetClass,
+            Class<? extends Runnable> callbackClass, int what, long when,
+            long dispatchStartNanos, long dispatchEndNanos) {
+        final Class<?> key = (callbackClass != null) ? callbackClass : targetClass;
+        final long latencyMicros = (dispatchEndNanos - dispatchStartNanos) / 1000;
+        // Messages sent to the front of the queue have no due time
+        final long delayMillis =
+                (when != 0) ? Math.max(0, dispatchStartNanos / 1000000 - when) : -1;
+        final ThreadEntries threadEntries = mEntries.get();
+        synchronized (threadEntries.lock) {
+            Entry entry = threadEntries.entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                threadEntries.entries.put(key, entry);
+            }
+            entry.count++;
+            entry.totalLatencyMicros += latencyMicros;
+            entry.maxLatencyMicros = Math.max(entry.maxLatencyMicros, latencyMicros);
+            entry.latencyHistogram[getBucket(latencyMicros, LATENCY_BUCKETS)]++;
+            if (delayMillis >= 0) {
+                entry.delayedCount++;
+                entry.totalDelayMillis += delayMillis;
+                entry.maxDelayMillis = Math.max(entry.maxDelayMillis, delayMillis);
+                entry.delayHistogram[getBucket(delayMillis, DELAY_BUCKETS)]++;
+            }
+        }
+    }
+
+    /**
+     * Forgets everything collected so far.
+     */
+    public void reset() {
+        synchronized (mLock) {
+            for (int i = 0; i < mThreadEntries.size(); i++) {
+                final ThreadEntries threadEntries = mThreadEntries.get(i);
+                synchronized (threadEntries.lock) {
+                    threadEntries.entries.clear();
+                }
+            }
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Prints the collected stats, slowest handler classes first by total time spent.
+     */
+    public void dump(PrintWriter pw) {
+        final ArrayMap<Class<?>, Entry> merged = new ArrayMap<>();
+        final long duration;
+        synchronized (mLock) {
+            for (int i = 0; i < mThreadEntries.size(); i++) {
+                final ThreadEntries threadEntries = mThreadEntries.get(i);
+                synchronized (threadEntries.lock) {
+                    for (int j = 0; j < threadEntries.entries.size(); j++) {
+                        final Entry entry = threadEntries.entries.valueAt(j);
+                        final Entry total = merged.get(entry.handlerClass);
+                        if (total == null) {
+                            merged.put(entry.handlerClass, new Entry(entry));
+                        } else {
+                            total.add(entry);
+                        }
+                    }
+                }
+            }
+            duration = SystemClock.elapsedRealtime() - mStartTime;
+        }
+        final ArrayList<Entry> entries = new ArrayList<>(merged.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.totalLatencyMicros, a.totalLatencyMicros);
+            }
+        });
+
+        pw.print("Looper stats over ");
+        pw.print(duration / 1000);
+        pw.println("s (latency in us, queue delay in ms):");
+        for (Entry entry : entries) {
+            pw.print("  ");
+            pw.print(entry.handlerClass.getName());
+            pw.print(": count=");
+            pw.print(entry.count);
+            pw.print(" latency avg=");
+            pw.print(entry.totalLatencyMicros / entry.count);
+            pw.print(" p50<");
+            pw.print(getPercentileBound(entry.latencyHistogram, entry.count, 50));
+            pw.print(" p99<");
+            pw.print(getPercentileBound(entry.latencyHistogram, entry.count, 99));
+            pw.print(" max=");
+            pw.print(entry.maxLatencyMicros);
+            if (entry.delayedCount > 0) {
+                pw.print(" delay avg=");
+                pw.print(entry.totalDelayMillis / entry.delayedCount);
+                pw.print(" p50<");
+                pw.print(getPercentileBound(entry.delayHistogram, entry.delayedCount, 50));
+                pw.print(" p99<");
+                pw.print(getPercentileBound(entry.delayHistogram, entry.delayedCount, 99));
+                pw.print(" max=");
+                pw.print(entry.maxDelayMillis);
+            }
+            pw.println();
+        }
+    }
+
+    /**
+     * Bucket 0 holds values below 2, and bucket i > 0 holds values from 2^i to 2^(i+1),
+     * except for the last one which holds everything larger.
+     */
+    private static int getBucket(long value, int bucketCount) {
+        if (value < 2) {
+            return 0;
+        }
+        return Math.min(63 - Long.numberOfLeadingZeros(value), bucketCount - 1);
+    }
+
+    /**
+     * Returns the exclusive upper bound of the bucket holding the given percentile, or
+     * {@link Long#MAX_VALUE} if it's the last bucket.
+     */
+    private static long getPercentileBound(long[] histogram, long count, int percentile) {
+        final long target = (count * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < histogram.length - 1; i++) {
+            seen += histogram[i];
+            if (seen >= target) {
+                return 2L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static final class Entry {
+        final Class<?> handlerClass;
+        long count;
+        long totalLatencyMicros;
+        long maxLatencyMicros;
+        final long[] latencyHistogram;
+        long delayedCount;
+        long totalDelayMillis;
+        long maxDelayMillis;
+        final long[] delayHistogram;
+
+        Entry(Class<?> handlerClass) {
+            this.handlerClass = handlerClass;
+            latencyHistogram = new long[LATENCY_BUCKETS];
+            delayHistogram = new long[DELAY_BUCKETS];
+        }
+
+        Entry(Entry other) {
+            handlerClass = other.handlerClass;
+            count = other.count;
+            totalLatencyMicros = other.totalLatencyMicros;
+            maxLatencyMicros = other.maxLatencyMicros;
+            latencyHistogram = other.latencyHistogram.clone();
+            delayedCount = other.delayedCount;
+            totalDelayMillis = other.totalDelayMillis;
+            maxDelayMillis = other.maxDelayMillis;
+            delayHistogram = other.delayHistogram.clone();
+        }
+
+        void add(Entry other) {
+            count += other.count;
+            totalLatencyMicros += other.totalLatencyMicros;
+            maxLatencyMicros = Math.max(maxLatencyMicros, other.maxLatencyMicros);
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                latencyHistogram[i] += other.latencyHistogram[i];
+            }
+            delayedCount += other.delayedCount;
+            totalDelayMillis += other.totalDelayMillis;
+            maxDelayMillis = Math.max(maxDelayMillis, other.maxDelayMillis);
+            for (int i = 0; i < DELAY_BUCKETS; i++) {
+                delayHistogram[i] += other.delayHistogram[i];
+            }
+        }
+    }
+
+    /** Entries counted by one thread. */
+    private static final class ThreadEntries {
+        final Object lock = new Object();
+        @GuardedBy("lock")
+        final ArrayMap<Class<?>, Entry> entries = new ArrayMap<>();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import libcore.io.IoUtils;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Tokenizer for the text files under {@code /proc} and {@code /sys} that are read on every
+ * battery stats update, in the style of {@link com.android.internal.util.ProcFileReader}.
+ * <p>
+ * Each {@link #readFile(String)} reads the whole file into a buffer that is reused between
+ * reads, and tokens are parsed in place from that buffer. Repeated delimiters are combined,
+ * and each line boundary has to be acknowledged using {@link #finishLine()}. Once the buffer
+ * has grown to fit the file and every string token has been seen once, reading and parsing
+ * doesn't allocate. Assumes {@link StandardCharsets#US_ASCII} encoding; data after a
+ * {@code \0} is ignored.
+ */
+public final class ProcFileTokenizer {
+    /** Size at which the table of previously returned strings is cleared. */
+    private static final int MAX_STRINGS = 4096;
+
+    private byte[] mBuffer;
+    /** Number of valid bytes in {@link #mBuffer}. */
+    private int mLength;
+    /** Read pointer in {@link #mBuffer}. */
+    private int mPos;
+
+    private byte mDelimiter = ' ';
+
+    /** Open-addressed table of strings returned by {@link #nextString()}. */
+    private String[] mStrings = new String[64];
+    private int mStringCount;
+
+    public ProcFileTokenizer() {
+        this(4096);
+    }
+
+    public ProcFileTokenizer(int initialBufferSize) {
+        mBuffer = new byte[initialBufferSize];
+    }
+
+    /**
+     * Set the byte separating tokens on a line, a single space by default.
+     */
+    public void setDelimiter(char delimiter) {
+        mDelimiter = (byte) delimiter;
+    }
+
+    /**
+     * Replace any previously read data with the contents of the given file.
+     *
+     * @throws FileNotFoundException if the file doesn't exist.
+     */
+    public void readFile(String path) throws IOException {
+        mLength = 0;
+        mPos = 0;
+
+        final FileDescriptor fd;
+        try {
+            fd = Os.open(path, OsConstants.O_RDONLY, 0);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOENT) {
+                throw new FileNotFoundException(path);
+            }
+            throw e.rethrowAsIOException();
+        }
+        try {
+            while (true) {
+                if (mLength == mBuffer.length) {
+                    mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                }
+                final int read = Os.read(fd, mBuffer, mLength, mBuffer.length - mLength);
+                if (read <= 0) {
+                    break;
+                }
+                mLength += read;
+            }
+        } catch (ErrnoException e) {
+            mLength = 0;
+            throw e.rethrowAsIOException();
+        } finally {
+            IoUtils.closeQuietly(fd);
+        }
+
+        for (int i = 0; i < mLength; i++) {
+            if (mBuffer[i] == '\0') {
+                mLength = i;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Check if there are more lines to be parsed.
+     */
+    public boolean hasMoreData() {
+        return mPos < mLength;
+    }
+
+    /**
+     * Check if there are more tokens on the current line.
+     */
+    public boolean hasMoreTokens() {
+        while (mPos < mLength && mBuffer[mPos] == mDelimiter) {
+            mPos++;
+        }
+        return mPos < mLength && mBuffer[mPos] != '\n';
+    }
+
+    /**
+     * Finish current line, skipping any remaining tokens.
+     */
+    public void finishLine() {
+        while (mPos < mLength) {
+            if (mBuffer[mPos++] == '\n') {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Skip the next token on the current line.
+     */
+    public void skipToken() throws IOException {
+        if (!hasMoreTokens()) {
+            throw new ProtocolException("Missing required token");
+        }
+        mPos = tokenEnd(mPos);
+    }
+
+    /**
+     * Parse and return next token as base-10 encoded {@code long}. A trailing {@code ':'}, as
+     * used for the key at the start of each line of the per-uid files, is skipped.
+     */
+    public long nextLong() throws IOException {
+        if (!hasMoreTokens()) {
+            throw new ProtocolException("Missing required long");
+        }
+        final int start = mPos;
+        final int end = tokenEnd(start);
+        final int digitsEnd = mBuffer[end - 1] == ':' ? end - 1 : end;
+        final boolean negative = mBuffer[start] == '-';
+        final int digitsStart = negative ? start + 1 : start;
+        if (digitsStart == digitsEnd) {
+            throw invalidLong(start, end);
+        }
+
+        long result = 0;
+        for (int i = digitsStart; i < digitsEnd; i++) {
+            final int digit = mBuffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalidLong(start, end);
+            }
+
+            // always parse as negative number and apply sign later; this
+            // correctly handles MIN_VALUE which is "larger" than MAX_VALUE.
+            final long next = result * 10 - digit;
+            if (next > result) {
+                throw invalidLong(start, end);
+            }
+            result = next;
+        }
+
+        mPos = end;
+        return negative ? result : -result;
+    }
+
+    /**
+     * Parse and return next token as base-10 encoded {@code int}.
+     */
+    public int nextInt() throws IOException {
+        final long value = nextLong();
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new NumberFormatException("parsed value larger than integer");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parse and return next token as {@link String}, without any surrounding quotes. Bytes
+     * outside of US-ASCII, which show up when the kernel hands out a corrupted buffer, are
+     * replaced with {@code '?'}. Equal tokens return the same instance, which is only
+     * allocated the first time the token is seen.
+     */
+    public String nextString() throws IOException {
+        if (!hasMoreTokens()) {
+            throw new ProtocolException("Missing required string");
+        }
+        int start = mPos;
+        int end = tokenEnd(start);
+        mPos = end;
+        if (end - start >= 2 && mBuffer[start] == '"' && mBuffer[end - 1] == '"') {
+            start++;
+            end--;
+        }
+
+        // Hash the same way as String.hashCode(), so the table can be rebuilt from the
+        // strings it holds
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            if ((mBuffer[i] & 0x80) != 0) {
+                mBuffer[i] = '?';
+            }
+            hash = 31 * hash + mBuffer[i];
+        }
+
+        final int mask = mStrings.length - 1;
+        int slot = mix(hash) & mask;
+        String s;
+        while ((s = mStrings[slot]) != null) {
+            if (s.hashCode() == hash && matches(s, start, end)) {
+                return s;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        s = new String(mBuffer, start, end - start, StandardCharsets.US_ASCII);
+        if (mStringCount >= MAX_STRINGS) {
+            Arrays.fill(mStrings, null);
+            mStringCount = 0;
+            slot = mix(hash) & mask;
+        }
+        mStrings[slot] = s;
+        if (++mStringCount > mStrings.length / 2) {
+            growStrings();
+        }
+        return s;
+    }
+
+    private int tokenEnd(int pos) {
+        while (pos < mLength && mBuffer[pos] != mDelimiter && mBuffer[pos] != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private boolean matches(String s, int start, int end) {
+        if (s.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i - start) != mBuffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growStrings() {
+        final String[] old = mStrings;
+        mStrings = new String[old.length * 2];
+        final int mask = mStrings.length - 1;
+        for (String s : old) {
+            if (s != null) {
+                int slot = mix(s.hashCode()) & mask;
+                while (mStrings[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                mStrings[slot] = s;
+            }
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private NumberFormatException invalidLong(int start, int end) {
+        return new NumberFormatException(
+                "invalid long: " + new String(mBuffer, start, end - start,
+                        StandardCharsets.US_ASCII));
+    }
+}
@@ -22,16 +22,21 @@ import android.os.FileUtils;
 import android.os.Process;
 import android.os.StrictMode;
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.system.OsConstants;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 import libcore.io.IoUtils;
 import libcore.io.Libcore;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
@@ -70,6 +75,14 @@ public class ProcessCpuTracker {
     static final int PROCESS_STAT_UTIME = 2;
     static final int PROCESS_STAT_STIME = 3;
 
+    /**
+     * Most stat files kept open when {@link #mCacheStatFiles} is set; processes beyond that
+     * open their stat file on every update, as when the cache is off. Kept to a small share
+     * of the 1024 file descriptors processes are often limited to, which the rest of the
+     * system server needs far more.
+     */
+    private static final int MAX_CACHED_STAT_FILES = 128;
+
     /** Stores user time and system time in jiffies. */
     private final long[] mProcessStatsData = new long[4];
 
@@ -128,12 +141,28 @@ public class ProcessCpuTracker {
     private static final int[] LOAD_AVERAGE_FORMAT = new int[] {
         PROC_SPACE_TERM|PROC_OUT_FLOAT,                 // 0: 1 min
         PROC_SPACE_TERM|PROC_OUT_FLOAT,                 // 1: 5 mins
-        PROC_SPACE_TERM|PROC_OUT_FLOAT                  // 2: 15 mins
+        PROC_SPACE_TERM|PROC_OUT_FLOAT,                 // 2: 15 mins
+        PROC_SPACE_TERM,                                // 3: runnable/total tasks
+        PROC_ZERO_TERM|PROC_OUT_LONG                    // 4: last pid allocated
     };
 
-    private final float[] mLoadAverageData = new float[3];
+    private static final int LOAD_AVERAGE_LAST_PID = 4;
+
+    private final float[] mLoadAverageData = new float[5];
+    private final long[] mLoadAverageLongs = new long[5];
 
     private final boolean mIncludeThreads;
+    private final boolean mCacheStatFiles;
+    private int mCachedStatFileCount;
+
+    /**
+     * Last pid the kernel allocated when /proc was last listed. While it stays the same, no
+     * process or thread has been created since, and the listings are reused when stat files
+     * are cached.
+     */
+    private long mListedLastPid = -1;
+    /** Set when a read failed, likely because a process in a reused listing went away. */
+    private boolean mListingStale;
 
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
@@ -168,7 +197,6 @@ public class ProcessCpuTracker {
     private boolean mRelStatsAreGood;
 
     private int[] mCurPids;
-    private int[] mCurThreadPids;
 
     private final ArrayList<Stats> mProcStats = new ArrayList<Stats>();
     private final ArrayList<Stats> mWorkingProcs = new ArrayList<Stats>();
@@ -176,6 +204,13 @@ public class ProcessCpuTracker {
 
     private boolean mFirst = true;
 
+    /** Cost of the last {@link #update()}. */
+    private long mLastSampleDurationMicros;
+    private long mLastSampleCpuMicros;
+    private int mLastSampleStatReads;
+    private boolean mLastSampleReusedListing;
+    private int mStatReads;
+
     private byte[] mBuffer = new byte[4096];
 
     public interface FilterStats {
@@ -192,6 +227,11 @@ public class ProcessCpuTracker {
         final ArrayList<Stats> threadStats;
         final ArrayList<Stats> workingThreads;
 
+        /** Listing of {@link #threadsDir} from the last update, reused for the next one. */
+        int[] threadPids;
+        /** Stat file kept open between updates, and re-read from its start. */
+        FileDescriptor statFd;
+
         public BatteryStatsImpl.Uid.Proc batteryStats;
 
         public boolean interesting;
@@ -293,7 +333,17 @@ public class ProcessCpuTracker {
 
 
     public ProcessCpuTracker(boolean includeThreads) {
+        this(includeThreads, false);
+    }
+
+    /**
+     * @param cacheStatFiles keep the stat file of each process open between updates, so a
+     *        process whose CPU time didn't change only costs one read. Meant for trackers
+     *        that are updated regularly.
+     */
+    public ProcessCpuTracker(boolean includeThreads, boolean cacheStatFiles) {
         mIncludeThreads = includeThreads;
+        mCacheStatFiles = cacheStatFiles;
         long jiffyHz = Libcore.os.sysconf(OsConstants._SC_CLK_TCK);
         mJiffyMillis = 1000/jiffyHz;
     }
@@ -314,6 +364,10 @@ public class ProcessCpuTracker {
     public void update() {
         if (DEBUG) Slog.v(TAG, "Update: " + this);
 
+        final long startRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+        final long startCpuMicros = SystemClock.currentThreadTimeMicro();
+        mStatReads = 0;
+
         final long nowUptime = SystemClock.uptimeMillis();
         final long nowRealtime = SystemClock.elapsedRealtime();
         final long nowWallTime = System.currentTimeMillis();
@@ -382,16 +436,26 @@ public class ProcessCpuTracker {
         mLastSampleWallTime = mCurrentSampleWallTime;
         mCurrentSampleWallTime = nowWallTime;
 
+        // Read before listing /proc, so that a process created in between makes the next
+        // update list it again
+        final float[] loadAverages = mLoadAverageData;
+        final boolean loadAveragesRead = Process.readProcFile("/proc/loadavg",
+                LOAD_AVERAGE_FORMAT, null, mLoadAverageLongs, loadAverages);
+        final long lastPid = loadAveragesRead ? mLoadAverageLongs[LOAD_AVERAGE_LAST_PID] : -1;
+        final boolean reuseListing = mCacheStatFiles && !mFirst && !mListingStale
+                && lastPid > 0 && lastPid == mListedLastPid;
+        mListingStale = false;
+
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
+            mCurPids = collectStats("/proc", -1, mFirst, reuseListing, mCurPids, mProcStats);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
+        mListedLastPid = lastPid;
+        mLastSampleReusedListing = reuseListing;
 
-        final float[] loadAverages = mLoadAverageData;
-        if (Process.readProcFile("/proc/loadavg", LOAD_AVERAGE_FORMAT,
-                null, null, loadAverages)) {
+        if (loadAveragesRead) {
             float load1 = loadAverages[0];
             float load5 = loadAverages[1];
             float load15 = loadAverages[2];
@@ -408,12 +472,18 @@ public class ProcessCpuTracker {
 
         mWorkingProcsSorted = false;
         mFirst = false;
+
+        mLastSampleDurationMicros = (SystemClock.elapsedRealtimeNanos() - startRealtimeNanos)
+                / 1000;
+        mLastSampleCpuMicros = SystemClock.currentThreadTimeMicro() - startCpuMicros;
+        mLastSampleStatReads = mStatReads;
     }
 
     private int[] collectStats(String statsFile, int parentPid, boolean first,
-            int[] curPids, ArrayList<Stats> allProcs) {
+            boolean reuseListing, int[] curPids, ArrayList<Stats> allProcs) {
 
-        int[] pids = Process.getPids(statsFile, curPids);
+        int[] pids = (reuseListing && curPids != null) ? curPids
+                : Process.getPids(statsFile, curPids);
         int NP = (pids == null) ? 0 : pids.length;
         int NS = allProcs.size();
         int curStatsIndex = 0;
@@ -438,8 +508,8 @@ public class ProcessCpuTracker {
                     final long uptime = SystemClock.uptimeMillis();
 
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
-                            PROCESS_STATS_FORMAT, null, procStats, null)) {
+                    if (!readProcessStats(st, procStats)) {
+                        mListingStale = true;
                         continue;
                     }
 
@@ -466,8 +536,8 @@ public class ProcessCpuTracker {
                     if (parentPid < 0) {
                         getName(st, st.cmdlineFile);
                         if (st.threadStats != null) {
-                            mCurThreadPids = collectStats(st.threadsDir, pid, false,
-                                    mCurThreadPids, st.threadStats);
+                            st.threadPids = collectStats(st.threadsDir, pid, false,
+                                    reuseListing, st.threadPids, st.threadStats);
                         }
                     }
 
@@ -508,6 +578,7 @@ public class ProcessCpuTracker {
                 st.base_uptime = SystemClock.uptimeMillis();
                 String path = st.statFile.toString();
                 //Slog.d(TAG, "Reading proc file: " + path);
+                mStatReads++;
                 if (Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT, procStatsString,
                         procStats, null)) {
                     // This is a possible way to filter out processes that
@@ -537,8 +608,8 @@ public class ProcessCpuTracker {
                 if (parentPid < 0) {
                     getName(st, st.cmdlineFile);
                     if (st.threadStats != null) {
-                        mCurThreadPids = collectStats(st.threadsDir, pid, true,
-                                mCurThreadPids, st.threadStats);
+                        st.threadPids = collectStats(st.threadsDir, pid, true,
+                                false, st.threadPids, st.threadStats);
                     }
                 } else if (st.interesting) {
                     st.name = st.baseName;
@@ -567,6 +638,7 @@ public class ProcessCpuTracker {
             st.rel_majfaults = 0;
             st.removed = true;
             st.working = true;
+            closeStatFile(st);
             allProcs.remove(curStatsIndex);
             NS--;
             if (DEBUG) Slog.v(TAG, "Removed "
@@ -587,6 +659,7 @@ public class ProcessCpuTracker {
             st.rel_majfaults = 0;
             st.removed = true;
             st.working = true;
+            closeStatFile(st);
             allProcs.remove(curStatsIndex);
             NS--;
             if (localLOGV) Slog.v(TAG, "Removed pid " + st.pid + ": " + st);
@@ -595,6 +668,113 @@ public class ProcessCpuTracker {
         return pids;
     }
 
+    /**
+     * Read the fault counts and CPU times of a process that was already seen, in the layout of
+     * {@link #PROCESS_STATS_FORMAT}.
+     */
+    private boolean readProcessStats(Stats st, long[] procStats) {
+        mStatReads++;
+        if (!mCacheStatFiles || st.threadsDir == null) {
+            return Process.readProcFile(st.statFile, PROCESS_STATS_FORMAT, null, procStats,
+                    null);
+        }
+
+        if (st.statFd == null) {
+            if (mCachedStatFileCount >= MAX_CACHED_STAT_FILES) {
+                return Process.readProcFile(st.statFile, PROCESS_STATS_FORMAT, null, procStats,
+                        null);
+            }
+            if (!openStatFile(st)) {
+                return false;
+            }
+        }
+        if (readStatFile(st, procStats)) {
+            return true;
+        }
+
+        // The process behind a cached file may have died and had its pid reused; open the
+        // file again to find out.
+        closeStatFile(st);
+        return openStatFile(st) && readStatFile(st, procStats);
+    }
+
+    private boolean openStatFile(Stats st) {
+        try {
+            st.statFd = Os.open(st.statFile, OsConstants.O_RDONLY, 0);
+            mCachedStatFileCount++;
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private boolean readStatFile(Stats st, long[] procStats) {
+        final int len;
+        try {
+            len = Os.pread(st.statFd, mBuffer, 0, mBuffer.length, 0);
+        } catch (ErrnoException | InterruptedIOException e) {
+            return false;
+        }
+        return parseProcessStats(mBuffer, len, procStats);
+    }
+
+    private void closeStatFile(Stats st) {
+        if (st.statFd != null) {
+            IoUtils.closeQuietly(st.statFd);
+            st.statFd = null;
+            mCachedStatFileCount--;
+        }
+    }
+
+    /**
+     * Parse the contents of a /proc/[pid]/stat file in place, in the layout of
+     * {@link #PROCESS_STATS_FORMAT}. Fields are counted from the last ')', since the name
+     * before it may contain spaces and parentheses.
+     */
+    @VisibleForTesting
+    static boolean parseProcessStats(byte[] buffer, int len, long[] procStats) {
+        int i = len - 1;
+        while (i >= 0 && buffer[i] != ')') {
+            i--;
+        }
+        if (i < 0) {
+            return false;
+        }
+        i++;
+
+        // The state after the name is field 3
+        for (int field = 3; field <= 15; field++) {
+            while (i < len && buffer[i] == ' ') {
+                i++;
+            }
+            if (i >= len || buffer[i] == '\n') {
+                return false;
+            }
+            final int out;
+            switch (field) {
+                case 10: out = PROCESS_STAT_MINOR_FAULTS; break;
+                case 12: out = PROCESS_STAT_MAJOR_FAULTS; break;
+                case 14: out = PROCESS_STAT_UTIME; break;
+                case 15: out = PROCESS_STAT_STIME; break;
+                default: out = -1; break;
+            }
+            long value = 0;
+            for (; i < len && buffer[i] != ' ' && buffer[i] != '\n'; i++) {
+                if (out >= 0) {
+                    final int digit = buffer[i] - '0';
+                    if (digit < 0 || digit > 9) {
+                        return false;
+                    }
+                    value = value * 10 + digit;
+                }
+            }
+            if (out >= 0) {
+                procStats[out] = value;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns the total time (in milliseconds) spent executing in
      * both user and system code.  Safe to call without lock held.
@@ -722,6 +902,50 @@ public class ProcessCpuTracker {
         return mWorkingProcs.get(index);
     }
 
+    /**
+     * @return how long the last {@link #update()} took, in microseconds.
+     */
+    final public long getLastSampleDurationMicros() {
+        return mLastSampleDurationMicros;
+    }
+
+    /**
+     * @return CPU time spent by the last {@link #update()}, in microseconds.
+     */
+    final public long getLastSampleCpuMicros() {
+        return mLastSampleCpuMicros;
+    }
+
+    /**
+     * @return number of process and thread stat files read by the last {@link #update()}.
+     */
+    final public int getLastSampleStatReads() {
+        return mLastSampleStatReads;
+    }
+
+    final public String printSampleCost() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new FastPrintWriter(sw, false, 128);
+        pw.print("Last sample cost: ");
+        pw.print(mLastSampleDurationMicros);
+        pw.print("us (");
+        pw.print(mLastSampleCpuMicros);
+        pw.print("us cpu) reading ");
+        pw.print(mLastSampleStatReads);
+        pw.print(" stat files");
+        if (mCacheStatFiles) {
+            pw.print(", ");
+            pw.print(mCachedStatFileCount);
+            pw.print(" kept open");
+            if (mLastSampleReusedListing) {
+                pw.print(", /proc listing reused");
+            }
+        }
+        pw.println();
+        pw.flush();
+        return sw.toString();
+    }
+
     final public String printCurrentLoad() {
         StringWriter sw = new StringWriter();
         PrintWriter pw = new FastPrintWriter(sw, false, 128);
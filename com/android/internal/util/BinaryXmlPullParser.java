@@ -0,0 +1,684 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.INTERNED_NEW;
+import static com.android.internal.util.BinaryXmlSerializer.LENGTH_LONG;
+import static com.android.internal.util.BinaryXmlSerializer.MAX_INTERNED;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_MAGIC_VERSION_0;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_FALSE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_TRUE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BYTES;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_DOUBLE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_FLOAT;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_INT;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_LONG;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_NULL;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING_INTERNED;
+
+import android.util.Base64;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Parser that reads documents written by {@link BinaryXmlSerializer}.
+ * <p>
+ * In addition to the usual {@link XmlPullParser} methods, typed accessors
+ * such as {@link #getAttributeInt} return raw attribute values without any
+ * string parsing. The generic {@link #getAttributeValue} accessors still work
+ * for every attribute, formatting typed values the same way
+ * {@link XmlUtils} would have written them as text, so existing parsing code
+ * does not need to change.
+ * <p>
+ * Namespaces are not supported.
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private static final int BUFFER_LEN = 8192;
+
+    private DataInputStream mIn;
+
+    private final ArrayList<String> mInterned = new ArrayList<>();
+
+    private int mCurrentToken = START_DOCUMENT;
+    private int mCurrentDepth = 0;
+    private String mCurrentName;
+    private String mCurrentText;
+
+    /** Token read ahead of the current one, or -1 if none. */
+    private int mPeekedToken = -1;
+
+    private int mAttributeCount = 0;
+    private String[] mAttributeNames = new String[8];
+    private int[] mAttributeTypes = new int[8];
+    private String[] mAttributeStrings = new String[8];
+    private long[] mAttributeLongs = new long[8];
+    private double[] mAttributeDoubles = new double[8];
+    private byte[][] mAttributeBytes = new byte[8][];
+
+    private byte[] mScratch = new byte[256];
+
+    /**
+     * Return whether the given stream starts with the binary XML magic
+     * header. The stream must support {@link InputStream#mark}, and is
+     * left positioned where it was.
+     */
+    public static boolean isBinaryXml(InputStream in) throws IOException {
+        final byte[] magic = new byte[PROTOCOL_MAGIC_VERSION_0.length];
+        in.mark(magic.length);
+        try {
+            int read = 0;
+            while (read < magic.length) {
+                final int n = in.read(magic, read, magic.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            return Arrays.equals(magic, PROTOCOL_MAGIC_VERSION_0);
+        } finally {
+            in.reset();
+        }
+    }
+
+    public void setInput(InputStream is, String encoding) throws XmlPullParserException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException();
+        }
+        mIn = new DataInputStream(new BufferedInputStream(is, BUFFER_LEN));
+        mInterned.clear();
+        mCurrentToken = START_DOCUMENT;
+        mCurrentDepth = 0;
+        mCurrentName = null;
+        mCurrentText = null;
+        mPeekedToken = -1;
+        mAttributeCount = 0;
+
+        try {
+            final byte[] magic = new byte[PROTOCOL_MAGIC_VERSION_0.length];
+            mIn.readFully(magic);
+            if (!Arrays.equals(magic, PROTOCOL_MAGIC_VERSION_0)) {
+                throw new XmlPullParserException("Unexpected magic " + Arrays.toString(magic));
+            }
+            // The document always opens with START_DOCUMENT, which is the
+            // initial state reported before the first next()
+            if ((mIn.readByte() & 0x0f) != START_DOCUMENT) {
+                throw new XmlPullParserException("Expected START_DOCUMENT");
+            }
+        } catch (IOException e) {
+            throw new XmlPullParserException("Failed to read header", this, e);
+        }
+    }
+
+    public void setInput(Reader in) throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    public int next() throws XmlPullParserException, IOException {
+        while (true) {
+            final int token = nextToken();
+            switch (token) {
+                case START_TAG:
+                case END_TAG:
+                case END_DOCUMENT:
+                    return token;
+                case TEXT:
+                    consumeAdditionalText();
+                    return TEXT;
+            }
+        }
+    }
+
+    public int nextToken() throws XmlPullParserException, IOException {
+        if (mCurrentToken == END_DOCUMENT) {
+            return END_DOCUMENT;
+        } else if (mCurrentToken == END_TAG) {
+            mCurrentDepth--;
+        }
+
+        final int event;
+        try {
+            event = readToken();
+        } catch (EOFException e) {
+            throw new XmlPullParserException("Unexpected end of document", this, e);
+        }
+        final int command = event & 0x0f;
+        final int type = event & 0xf0;
+
+        mAttributeCount = 0;
+        mCurrentName = null;
+        mCurrentText = null;
+
+        switch (command) {
+            case START_TAG:
+                mCurrentName = readValueString(type);
+                mCurrentDepth++;
+                readAttributes();
+                break;
+            case END_TAG:
+                mCurrentName = readValueString(type);
+                break;
+            case END_DOCUMENT:
+                break;
+            case TEXT:
+            case CDSECT:
+            case IGNORABLE_WHITESPACE:
+            case COMMENT:
+                mCurrentText = readValueString(type);
+                break;
+            default:
+                throw new XmlPullParserException("Unknown token " + command, this, null);
+        }
+        // Text and CDATA are indistinguishable once parsed
+        mCurrentToken = (command == CDSECT) ? TEXT : command;
+        return mCurrentToken;
+    }
+
+    private int readToken() throws IOException {
+        if (mPeekedToken != -1) {
+            final int token = mPeekedToken;
+            mPeekedToken = -1;
+            return token;
+        }
+        return mIn.readUnsignedByte();
+    }
+
+    private int peekToken() throws IOException {
+        if (mPeekedToken == -1) {
+            mPeekedToken = mIn.readUnsignedByte();
+        }
+        return mPeekedToken;
+    }
+
+    private void readAttributes() throws IOException, XmlPullParserException {
+        while ((peekToken() & 0x0f) == ATTRIBUTE) {
+            final int type = readToken() & 0xf0;
+            final int i = mAttributeCount;
+            if (i == mAttributeNames.length) {
+                final int size = GrowingArrayUtils.growSize(i);
+                mAttributeNames = Arrays.copyOf(mAttributeNames, size);
+                mAttributeTypes = Arrays.copyOf(mAttributeTypes, size);
+                mAttributeStrings = Arrays.copyOf(mAttributeStrings, size);
+                mAttributeLongs = Arrays.copyOf(mAttributeLongs, size);
+                mAttributeDoubles = Arrays.copyOf(mAttributeDoubles, size);
+                mAttributeBytes = Arrays.copyOf(mAttributeBytes, size);
+            }
+            mAttributeNames[i] = readInternedString();
+            mAttributeTypes[i] = type;
+            mAttributeStrings[i] = null;
+            mAttributeBytes[i] = null;
+            switch (type) {
+                case TYPE_NULL:
+                    break;
+                case TYPE_STRING:
+                    mAttributeStrings[i] = readString();
+                    break;
+                case TYPE_STRING_INTERNED:
+                    mAttributeStrings[i] = readInternedString();
+                    break;
+                case TYPE_BYTES:
+                    mAttributeBytes[i] = new byte[readLength()];
+                    mIn.readFully(mAttributeBytes[i]);
+                    break;
+                case TYPE_INT:
+                    mAttributeLongs[i] = mIn.readInt();
+                    break;
+                case TYPE_LONG:
+                    mAttributeLongs[i] = mIn.readLong();
+                    break;
+                case TYPE_FLOAT:
+                    mAttributeDoubles[i] = mIn.readFloat();
+                    break;
+                case TYPE_DOUBLE:
+                    mAttributeDoubles[i] = mIn.readDouble();
+                    break;
+                case TYPE_BOOLEAN_TRUE:
+                    mAttributeLongs[i] = 1;
+                    break;
+                case TYPE_BOOLEAN_FALSE:
+                    mAttributeLongs[i] = 0;
+                    break;
+                default:
+                    throw new XmlPullParserException("Unknown attribute type " + type, this,
+                            null);
+            }
+            mAttributeCount++;
+        }
+    }
+
+    private void consumeAdditionalText() throws IOException, XmlPullParserException {
+        StringBuilder text = null;
+        while (true) {
+            final int command = peekToken() & 0x0f;
+            if (command == TEXT || command == CDSECT) {
+                final int type = readToken() & 0xf0;
+                if (text == null) {
+                    text = new StringBuilder(mCurrentText);
+                }
+                text.append(readValueString(type));
+            } else if (command == COMMENT || command == IGNORABLE_WHITESPACE) {
+                readValueString(readToken() & 0xf0);
+            } else {
+                break;
+            }
+        }
+        if (text != null) {
+            mCurrentText = text.toString();
+        }
+    }
+
+    private String readValueString(int type) throws IOException, XmlPullParserException {
+        switch (type) {
+            case TYPE_STRING:
+                return readString();
+            case TYPE_STRING_INTERNED:
+                return readInternedString();
+            default:
+                throw new XmlPullParserException("Unexpected value type " + type, this, null);
+        }
+    }
+
+    private int readLength() throws IOException {
+        final int length = mIn.readUnsignedShort();
+        return (length != LENGTH_LONG) ? length : mIn.readInt();
+    }
+
+    private String readString() throws IOException {
+        final int length = readLength();
+        if (length > mScratch.length) {
+            mScratch = new byte[length];
+        }
+        mIn.readFully(mScratch, 0, length);
+        return new String(mScratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private String readInternedString() throws IOException {
+        final int index = mIn.readUnsignedShort();
+        if (index != INTERNED_NEW) {
+            return mInterned.get(index);
+        }
+        final String value = readString();
+        if (mInterned.size() < MAX_INTERNED) {
+            mInterned.add(value);
+        }
+        return value;
+    }
+
+    public int getEventType() throws XmlPullParserException {
+        return mCurrentToken;
+    }
+
+    public int getDepth() {
+        return mCurrentDepth;
+    }
+
+    public String getName() {
+        return mCurrentName;
+    }
+
+    public String getNamespace() {
+        switch (mCurrentToken) {
+            case START_TAG:
+            case END_TAG:
+                // Namespaces are not supported
+                return NO_NAMESPACE;
+            default:
+                return null;
+        }
+    }
+
+    public String getPrefix() {
+        // Namespaces are not supported
+        return null;
+    }
+
+    public String getText() {
+        return mCurrentText;
+    }
+
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        final String text = getText();
+        if (text == null) {
+            holderForStartAndLength[0] = -1;
+            holderForStartAndLength[1] = -1;
+            return null;
+        }
+        final char[] chars = text.toCharArray();
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = chars.length;
+        return chars;
+    }
+
+    public boolean isWhitespace() throws XmlPullParserException {
+        switch (mCurrentToken) {
+            case IGNORABLE_WHITESPACE:
+                return true;
+            case TEXT:
+                for (int i = 0; i < mCurrentText.length(); i++) {
+                    if (!Character.isWhitespace(mCurrentText.charAt(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                throw new XmlPullParserException("Not applicable for token " + mCurrentToken);
+        }
+    }
+
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (mCurrentToken != START_TAG) {
+            throw new XmlPullParserException("Not at START_TAG");
+        }
+        return false;
+    }
+
+    public int getAttributeCount() {
+        return (mCurrentToken == START_TAG) ? mAttributeCount : -1;
+    }
+
+    public String getAttributeNamespace(int index) {
+        // Namespaces are not supported
+        return NO_NAMESPACE;
+    }
+
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributeNames[index];
+    }
+
+    public String getAttributePrefix(int index) {
+        // Namespaces are not supported
+        return null;
+    }
+
+    public String getAttributeType(int index) {
+        return "CDATA";
+    }
+
+    public boolean isAttributeDefault(int index) {
+        return false;
+    }
+
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        switch (mAttributeTypes[index]) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+            case TYPE_STRING_INTERNED:
+                return mAttributeStrings[index];
+            case TYPE_BYTES:
+                return Base64.encodeToString(mAttributeBytes[index], Base64.DEFAULT);
+            case TYPE_INT:
+                return Integer.toString((int) mAttributeLongs[index]);
+            case TYPE_LONG:
+                return Long.toString(mAttributeLongs[index]);
+            case TYPE_FLOAT:
+                return Float.toString((float) mAttributeDoubles[index]);
+            case TYPE_DOUBLE:
+                return Double.toString(mAttributeDoubles[index]);
+            case TYPE_BOOLEAN_TRUE:
+                return "true";
+            case TYPE_BOOLEAN_FALSE:
+                return "false";
+            default:
+                return null;
+        }
+    }
+
+    public String getAttributeValue(String namespace, String name) {
+        final int index = getAttributeIndex(namespace, name);
+        return (index != -1) ? getAttributeValue(index) : null;
+    }
+
+    /**
+     * Return the index of the named attribute on the current tag, or -1 if
+     * the tag has no such attribute.
+     */
+    public int getAttributeIndex(String namespace, String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (mAttributeNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public byte[] getAttributeBytes(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        if (mAttributeTypes[index] == TYPE_BYTES) {
+            return mAttributeBytes[index];
+        }
+        final String value = getAttributeValue(index);
+        try {
+            return (value != null) ? Base64.decode(value, Base64.DEFAULT) : null;
+        } catch (IllegalArgumentException e) {
+            throw invalidAttribute(index, e);
+        }
+    }
+
+    public int getAttributeInt(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        switch (mAttributeTypes[index]) {
+            case TYPE_INT:
+                return (int) mAttributeLongs[index];
+            case TYPE_STRING:
+            case TYPE_STRING_INTERNED:
+                try {
+                    return Integer.parseInt(mAttributeStrings[index]);
+                } catch (NumberFormatException e) {
+                    throw invalidAttribute(index, e);
+                }
+            default:
+                throw invalidAttribute(index, null);
+        }
+    }
+
+    public long getAttributeLong(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        switch (mAttributeTypes[index]) {
+            case TYPE_INT:
+            case TYPE_LONG:
+                return mAttributeLongs[index];
+            case TYPE_STRING:
+            case TYPE_STRING_INTERNED:
+                try {
+                    return Long.parseLong(mAttributeStrings[index]);
+                } catch (NumberFormatException e) {
+                    throw invalidAttribute(index, e);
+                }
+            default:
+                throw invalidAttribute(index, null);
+        }
+    }
+
+    public float getAttributeFloat(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        switch (mAttributeTypes[index]) {
+            case TYPE_FLOAT:
+                return (float) mAttributeDoubles[index];
+            case TYPE_STRING:
+            case TYPE_STRING_INTERNED:
+                try {
+                    return Float.parseFloat(mAttributeStrings[index]);
+                } catch (NumberFormatException e) {
+                    throw invalidAttribute(index, e);
+                }
+            default:
+                throw invalidAttribute(index, null);
+        }
+    }
+
+    public double getAttributeDouble(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        switch (mAttributeTypes[index]) {
+            case TYPE_FLOAT:
+            case TYPE_DOUBLE:
+                return mAttributeDoubles[index];
+            case TYPE_STRING:
+            case TYPE_STRING_INTERNED:
+                try {
+                    return Double.parseDouble(mAttributeStrings[index]);
+                } catch (NumberFormatException e) {
+                    throw invalidAttribute(index, e);
+                }
+            default:
+                throw invalidAttribute(index, null);
+        }
+    }
+
+    public boolean getAttributeBoolean(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        switch (mAttributeTypes[index]) {
+            case TYPE_BOOLEAN_TRUE:
+                return true;
+            case TYPE_BOOLEAN_FALSE:
+                return false;
+            case TYPE_STRING:
+            case TYPE_STRING_INTERNED:
+                return Boolean.parseBoolean(mAttributeStrings[index]);
+            default:
+                throw invalidAttribute(index, null);
+        }
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (mCurrentToken != START_TAG) {
+            throw new IndexOutOfBoundsException("Not at START_TAG");
+        }
+        if (index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+    }
+
+    private XmlPullParserException invalidAttribute(int index, Throwable cause) {
+        return new XmlPullParserException("Invalid value for attribute "
+                + mAttributeNames[index], this, cause);
+    }
+
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException, IOException {
+        if (type != mCurrentToken
+                || (namespace != null && !namespace.equals(getNamespace()))
+                || (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("Expected " + TYPES[type] + " but found "
+                    + TYPES[mCurrentToken], this, null);
+        }
+    }
+
+    public String nextText() throws XmlPullParserException, IOException {
+        if (mCurrentToken != START_TAG) {
+            throw new XmlPullParserException("Not at START_TAG", this, null);
+        }
+        int eventType = next();
+        if (eventType == TEXT) {
+            final String result = getText();
+            eventType = next();
+            if (eventType != END_TAG) {
+                throw new XmlPullParserException("Expected END_TAG", this, null);
+            }
+            return result;
+        } else if (eventType == END_TAG) {
+            return "";
+        } else {
+            throw new XmlPullParserException("Expected TEXT or END_TAG", this, null);
+        }
+    }
+
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType == TEXT && isWhitespace()) {
+            eventType = next();
+        }
+        if (eventType != START_TAG && eventType != END_TAG) {
+            throw new XmlPullParserException("Expected START_TAG or END_TAG", this, null);
+        }
+        return eventType;
+    }
+
+    public int getNamespaceCount(int depth) throws XmlPullParserException {
+        // Namespaces are not supported
+        return 0;
+    }
+
+    public String getNamespacePrefix(int pos) throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getNamespaceUri(int pos) throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getNamespace(String prefix) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void defineEntityReplacementText(String entityName, String replacementText)
+            throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        // Namespace processing is never performed, so only accept requests
+        // that leave it disabled
+        if (FEATURE_PROCESS_NAMESPACES.equals(name) && !state) {
+            return;
+        }
+        throw new XmlPullParserException("Unsupported feature " + name);
+    }
+
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        throw new XmlPullParserException("Unsupported property " + name);
+    }
+
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    public int getLineNumber() {
+        return -1;
+    }
+
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    public String getPositionDescription() {
+        return "Binary XML file depth " + mCurrentDepth + " at " + TYPES[mCurrentToken]
+                + ((mCurrentName != null) ? " <" + mCurrentName + ">" : "");
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Serializer that writes a compact binary representation of an XML document,
+ * which can later be read back with {@link BinaryXmlPullParser}.
+ * <p>
+ * The document is written as a stream of tokens, where each token is a single
+ * byte combining an event type (the {@link XmlPullParser} constants, plus
+ * {@link #ATTRIBUTE}) in the low nibble with a value type in the high nibble.
+ * Tag and attribute names are interned: the first occurrence of a name is
+ * written in full and every later occurrence is written as a two-byte index.
+ * Attribute values written through the typed methods such as
+ * {@link #attributeInt} are stored raw, so that neither writing nor reading
+ * them requires any number formatting or escaping.
+ * <p>
+ * Like {@link FastXmlSerializer}, this only does what is needed for the
+ * specific XML files being written with it; namespaces are not supported.
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    /**
+     * Magic header at the start of every binary XML document, spelling
+     * "ABX" followed by the protocol version.
+     */
+    static final byte[] PROTOCOL_MAGIC_VERSION_0 = new byte[] { 0x41, 0x42, 0x58, 0x00 };
+
+    /** Event type used for attributes; the others come from {@link XmlPullParser}. */
+    static final int ATTRIBUTE = 15;
+
+    static final int TYPE_NULL = 1 << 4;
+    static final int TYPE_STRING = 2 << 4;
+    static final int TYPE_STRING_INTERNED = 3 << 4;
+    static final int TYPE_BYTES = 4 << 4;
+    static final int TYPE_INT = 5 << 4;
+    static final int TYPE_LONG = 6 << 4;
+    static final int TYPE_FLOAT = 7 << 4;
+    static final int TYPE_DOUBLE = 8 << 4;
+    static final int TYPE_BOOLEAN_TRUE = 9 << 4;
+    static final int TYPE_BOOLEAN_FALSE = 10 << 4;
+
+    /** Index marking an interned string that has not been seen before. */
+    static final int INTERNED_NEW = 0xFFFF;
+    /** Maximum number of entries in the interned string table. */
+    static final int MAX_INTERNED = 0xFFFF;
+    /** Length marking a string whose real length follows as an int. */
+    static final int LENGTH_LONG = 0xFFFF;
+
+    private static final int BUFFER_LEN = 8192;
+
+    private DataOutputStream mOut;
+
+    private final HashMap<String, Integer> mInterned = new HashMap<>();
+
+    private int mTagCount = 0;
+    private String[] mTagNames = new String[8];
+
+    public void setOutput(OutputStream os, String encoding) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        if (os == null) {
+            throw new IllegalArgumentException();
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(os, BUFFER_LEN));
+        mOut.write(PROTOCOL_MAGIC_VERSION_0);
+        mInterned.clear();
+        mTagCount = 0;
+    }
+
+    public void setOutput(Writer writer) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    public void startDocument(String encoding, Boolean standalone) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException();
+        }
+        mOut.writeByte(XmlPullParser.START_DOCUMENT | TYPE_NULL);
+    }
+
+    public void endDocument() throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        mOut.writeByte(XmlPullParser.END_DOCUMENT | TYPE_NULL);
+        flush();
+    }
+
+    public XmlSerializer startTag(String namespace, String name) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        checkNamespace(namespace);
+        if (mTagCount == mTagNames.length) {
+            mTagNames = GrowingArrayUtils.append(mTagNames, mTagCount, name);
+        } else {
+            mTagNames[mTagCount] = name;
+        }
+        mTagCount++;
+        mOut.writeByte(XmlPullParser.START_TAG | TYPE_STRING_INTERNED);
+        writeInternedString(name);
+        return this;
+    }
+
+    public XmlSerializer endTag(String namespace, String name) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        checkNamespace(namespace);
+        mTagCount--;
+        mOut.writeByte(XmlPullParser.END_TAG | TYPE_STRING_INTERNED);
+        writeInternedString(name);
+        return this;
+    }
+
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException, IllegalArgumentException, IllegalStateException {
+        checkNamespace(namespace);
+        mOut.writeByte(ATTRIBUTE | TYPE_STRING);
+        writeInternedString(name);
+        writeString(value);
+        return this;
+    }
+
+    /**
+     * Write an attribute whose value is drawn from a small set of repeated
+     * strings, such as an enum name or a package name, interning the value
+     * alongside tag and attribute names.
+     */
+    public XmlSerializer attributeInterned(String namespace, String name, String value)
+            throws IOException {
+        checkNamespace(namespace);
+        mOut.writeByte(ATTRIBUTE | TYPE_STRING_INTERNED);
+        writeInternedString(name);
+        writeInternedString(value);
+        return this;
+    }
+
+    public XmlSerializer attributeBytes(String namespace, String name, byte[] value)
+            throws IOException {
+        checkNamespace(namespace);
+        mOut.writeByte(ATTRIBUTE | TYPE_BYTES);
+        writeInternedString(name);
+        writeLength(value.length);
+        mOut.write(value);
+        return this;
+    }
+
+    public XmlSerializer attributeInt(String namespace, String name, int value)
+            throws IOException {
+        checkNamespace(namespace);
+        mOut.writeByte(ATTRIBUTE | TYPE_INT);
+        writeInternedString(name);
+        mOut.writeInt(value);
+        return this;
+    }
+
+    public XmlSerializer attributeLong(String namespace, String name, long value)
+            throws IOException {
+        checkNamespace(namespace);
+        mOut.writeByte(ATTRIBUTE | TYPE_LONG);
+        writeInternedString(name);
+        mOut.writeLong(value);
+        return this;
+    }
+
+    public XmlSerializer attributeFloat(String namespace, String name, float value)
+            throws IOException {
+        checkNamespace(namespace);
+        mOut.writeByte(ATTRIBUTE | TYPE_FLOAT);
+        writeInternedString(name);
+        mOut.writeFloat(value);
+        return this;
+    }
+
+    public XmlSerializer attributeDouble(String namespace, String name, double value)
+            throws IOException {
+        checkNamespace(namespace);
+        mOut.writeByte(ATTRIBUTE | TYPE_DOUBLE);
+        writeInternedString(name);
+        mOut.writeDouble(value);
+        return this;
+    }
+
+    public XmlSerializer attributeBoolean(String namespace, String name, boolean value)
+            throws IOException {
+        checkNamespace(namespace);
+        mOut.writeByte(ATTRIBUTE | (value ? TYPE_BOOLEAN_TRUE : TYPE_BOOLEAN_FALSE));
+        writeInternedString(name);
+        return this;
+    }
+
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        return text(new String(buf, start, len));
+    }
+
+    public XmlSerializer text(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        mOut.writeByte(XmlPullParser.TEXT | TYPE_STRING);
+        writeString(text);
+        return this;
+    }
+
+    public void cdsect(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        mOut.writeByte(XmlPullParser.CDSECT | TYPE_STRING);
+        writeString(text);
+    }
+
+    public void comment(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        mOut.writeByte(XmlPullParser.COMMENT | TYPE_STRING);
+        writeString(text);
+    }
+
+    public void ignorableWhitespace(String text) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        mOut.writeByte(XmlPullParser.IGNORABLE_WHITESPACE | TYPE_STRING);
+        writeString(text);
+    }
+
+    public void docdecl(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    public void entityRef(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    public void processingInstruction(String text) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getDepth() {
+        return mTagCount;
+    }
+
+    public String getName() {
+        return (mTagCount > 0) ? mTagNames[mTagCount - 1] : null;
+    }
+
+    public String getNamespace() {
+        // Namespaces are not supported
+        return XmlPullParser.NO_NAMESPACE;
+    }
+
+    public String getPrefix(String namespace, boolean generatePrefix)
+            throws IllegalArgumentException {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setPrefix(String prefix, String namespace) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean getFeature(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setFeature(String name, boolean state) throws IllegalArgumentException,
+            IllegalStateException {
+        // Indentation is meaningless in a binary document, so it is
+        // silently ignored to let callers share setup with FastXmlSerializer
+        if (name.equals("http://xmlpull.org/v1/doc/features.html#indent-output")) {
+            return;
+        }
+        throw new UnsupportedOperationException();
+    }
+
+    public Object getProperty(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setProperty(String name, Object value) throws IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    private void writeLength(int length) throws IOException {
+        if (length < LENGTH_LONG) {
+            mOut.writeShort(length);
+        } else {
+            mOut.writeShort(LENGTH_LONG);
+            mOut.writeInt(length);
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeLength(bytes.length);
+        mOut.write(bytes);
+    }
+
+    private void writeInternedString(String value) throws IOException {
+        final Integer index = mInterned.get(value);
+        if (index != null) {
+            mOut.writeShort(index);
+        } else {
+            mOut.writeShort(INTERNED_NEW);
+            writeString(value);
+            // Once the table is full, later strings are simply written inline
+            if (mInterned.size() < MAX_INTERNED) {
+                mInterned.put(value, mInterned.size());
+            }
+        }
+    }
+
+    private static void checkNamespace(String namespace) {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new IllegalArgumentException("Namespaces are not supported");
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Checks that documents written by {@link BinaryXmlSerializer} read back through
+ * {@link BinaryXmlPullParser} exactly as the same documents written by
+ * {@link FastXmlSerializer} read back through the text parser.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BinaryXmlTest {
+    // Longer than fits in the short length of a string
+    private static final String LONG_STRING = repeat("long string é中 ", 8000);
+
+    @Test
+    public void testMapRoundTrip() throws Exception {
+        final HashMap<String, Object> map = new HashMap<>();
+        map.put("int", 42);
+        map.put("intMin", Integer.MIN_VALUE);
+        map.put("long", Long.MAX_VALUE);
+        map.put("longMin", Long.MIN_VALUE);
+        map.put("float", 3.25f);
+        map.put("floatNaN", Float.NaN);
+        map.put("double", -1.0e300);
+        map.put("true", true);
+        map.put("false", false);
+        map.put("string", "quotes \" & <tags> and ☃");
+        map.put("empty", "");
+        map.put("long string", LONG_STRING);
+        map.put("set", new HashSet<>(Arrays.asList("a", "b", "c")));
+        map.put("bytes", new byte[] { 0, 1, -1, 127, -128 });
+        map.put("ints", new int[] { 1, -2, Integer.MAX_VALUE });
+        map.put("longs", new long[] { 1L, Long.MIN_VALUE });
+
+        final HashMap<String, ?> fromText = XmlUtils.readMapXml(
+                new ByteArrayInputStream(writeMap(map, false)));
+        final HashMap<String, ?> fromBinary = XmlUtils.readMapXml(
+                new ByteArrayInputStream(writeMap(map, true)));
+
+        assertEquals(map.keySet(), fromBinary.keySet());
+        for (String key : map.keySet()) {
+            final Object expected = map.get(key);
+            if (expected instanceof byte[]) {
+                assertArrayEquals((byte[]) expected, (byte[]) fromBinary.get(key));
+                assertArrayEquals((byte[]) fromText.get(key), (byte[]) fromBinary.get(key));
+            } else if (expected instanceof int[]) {
+                assertArrayEquals((int[]) expected, (int[]) fromBinary.get(key));
+                assertArrayEquals((int[]) fromText.get(key), (int[]) fromBinary.get(key));
+            } else if (expected instanceof long[]) {
+                assertArrayEquals((long[]) expected, (long[]) fromBinary.get(key));
+                assertArrayEquals((long[]) fromText.get(key), (long[]) fromBinary.get(key));
+            } else {
+                assertEquals(key, expected, fromBinary.get(key));
+                assertEquals(key, fromText.get(key), fromBinary.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void testTypedAttributes() throws Exception {
+        final byte[] text = writeAttributes(new FastXmlSerializer());
+        final byte[] binary = writeAttributes(new BinaryXmlSerializer());
+        assertTrue(binary.length < text.length);
+
+        final XmlPullParser textParser = startParser(text);
+        final XmlPullParser binaryParser = startParser(binary);
+        assertFalse(textParser instanceof BinaryXmlPullParser);
+        assertTrue(binaryParser instanceof BinaryXmlPullParser);
+        for (XmlPullParser parser : new XmlPullParser[] { textParser, binaryParser }) {
+            assertEquals(-7, XmlUtils.readIntAttribute(parser, "int"));
+            assertEquals(Long.MIN_VALUE, XmlUtils.readLongAttribute(parser, "long"));
+            assertEquals(0.1f, XmlUtils.readFloatAttribute(parser, "float"), 0f);
+            assertTrue(XmlUtils.readBooleanAttribute(parser, "true"));
+            assertFalse(XmlUtils.readBooleanAttribute(parser, "false", true));
+            assertEquals("value", XmlUtils.readStringAttribute(parser, "string"));
+            assertEquals(LONG_STRING, XmlUtils.readStringAttribute(parser, "longString"));
+            assertArrayEquals(new byte[] { 1, 2, 3, -4 },
+                    XmlUtils.readByteArrayAttribute(parser, "bytes"));
+            assertEquals(12, XmlUtils.readIntAttribute(parser, "missing", 12));
+        }
+        // Typed values are formatted as text for callers that read them as strings; bytes
+        // are left out, since the text parser normalizes the newline ending their Base64
+        assertEquals(textParser.getAttributeCount(), binaryParser.getAttributeCount());
+        for (int i = 0; i < textParser.getAttributeCount(); i++) {
+            final String name = textParser.getAttributeName(i);
+            assertEquals(name, binaryParser.getAttributeName(i));
+            if (!"bytes".equals(name)) {
+                assertEquals(name, textParser.getAttributeValue(i),
+                        binaryParser.getAttributeValue(i));
+            }
+        }
+        final BinaryXmlPullParser typed = (BinaryXmlPullParser) binaryParser;
+        assertEquals(Math.PI, typed.getAttributeDouble(typed.getAttributeIndex(null, "double")),
+                0d);
+    }
+
+    @Test
+    public void testInternedNames() throws Exception {
+        final ByteArrayOutputStream textOut = new ByteArrayOutputStream();
+        final ByteArrayOutputStream binaryOut = new ByteArrayOutputStream();
+        final FastXmlSerializer text = new FastXmlSerializer();
+        final BinaryXmlSerializer binary = new BinaryXmlSerializer();
+        text.setOutput(textOut, "utf-8");
+        binary.setOutput(binaryOut, "utf-8");
+        for (XmlSerializer out : new XmlSerializer[] { text, binary }) {
+            out.startDocument(null, true);
+            out.startTag(null, "root");
+            // Repeated names are written as indexes; more distinct names than the table
+            // holds are written inline once it is full
+            for (int i = 0; i < BinaryXmlSerializer.MAX_INTERNED + 100; i++) {
+                final String name = (i % 2 == 0) ? "item" : "item" + i;
+                out.startTag(null, name);
+                if (out == binary) {
+                    binary.attributeInterned(null, "kind", "kind" + (i % 3));
+                } else {
+                    out.attribute(null, "kind", "kind" + (i % 3));
+                }
+                out.text("text " + i);
+                out.endTag(null, name);
+            }
+            out.endTag(null, "root");
+            out.endDocument();
+        }
+
+        assertSameEvents(startParser(textOut.toByteArray()),
+                startParser(binaryOut.toByteArray()));
+    }
+
+    @Test
+    public void testReadSetXml() throws Exception {
+        final HashSet<Object> set = new HashSet<>(Arrays.asList("first", "second", 3, 4L,
+                true, LONG_STRING));
+        for (boolean binary : new boolean[] { false, true }) {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            final XmlSerializer out = XmlUtils.resolveSerializer(os, binary);
+            out.startDocument(null, true);
+            XmlUtils.writeSetXml(set, null, out);
+            out.endDocument();
+            assertEquals(set, XmlUtils.readSetXml(new ByteArrayInputStream(os.toByteArray())));
+        }
+    }
+
+    private static byte[] writeMap(HashMap<String, Object> map, boolean binary)
+            throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        XmlUtils.writeMapXml(map, os, binary);
+        return os.toByteArray();
+    }
+
+    private static byte[] writeAttributes(XmlSerializer out) throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        out.setOutput(os, "utf-8");
+        out.startDocument(null, true);
+        out.startTag(null, "tag");
+        XmlUtils.writeIntAttribute(out, "int", -7);
+        XmlUtils.writeLongAttribute(out, "long", Long.MIN_VALUE);
+        XmlUtils.writeFloatAttribute(out, "float", 0.1f);
+        XmlUtils.writeBooleanAttribute(out, "true", true);
+        XmlUtils.writeBooleanAttribute(out, "false", false);
+        XmlUtils.writeStringAttribute(out, "string", "value");
+        XmlUtils.writeStringAttribute(out, "longString", LONG_STRING);
+        XmlUtils.writeByteArrayAttribute(out, "bytes", new byte[] { 1, 2, 3, -4 });
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeDouble(null, "double", Math.PI);
+        } else {
+            out.attribute(null, "double", Double.toString(Math.PI));
+        }
+        out.endTag(null, "tag");
+        out.endDocument();
+        return os.toByteArray();
+    }
+
+    /**
+     * Returns a parser for the given document, positioned at its first start tag.
+     */
+    private static XmlPullParser startParser(byte[] document) throws Exception {
+        final XmlPullParser parser = XmlUtils.resolvePullParser(
+                new ByteArrayInputStream(document));
+        XmlUtils.nextElement(parser);
+        return parser;
+    }
+
+    private static void assertSameEvents(XmlPullParser expected, XmlPullParser actual)
+            throws Exception {
+        while (true) {
+            assertEquals(expected.getEventType(), actual.getEventType());
+            assertEquals(expected.getDepth(), actual.getDepth());
+            switch (expected.getEventType()) {
+                case XmlPullParser.START_TAG:
+                    assertEquals(expected.getName(), actual.getName());
+                    assertEquals(expected.getAttributeCount(), actual.getAttributeCount());
+                    for (int i = 0; i < expected.getAttributeCount(); i++) {
+                        assertEquals(expected.getAttributeName(i), actual.getAttributeName(i));
+                        assertEquals(expected.getAttributeValue(i),
+                                actual.getAttributeValue(i));
+                    }
+                    break;
+                case XmlPullParser.END_TAG:
+                    assertEquals(expected.getName(), actual.getName());
+                    break;
+                case XmlPullParser.TEXT:
+                    assertEquals(expected.getText(), actual.getText());
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    return;
+            }
+            expected.next();
+            actual.next();
+        }
+    }
+
+    private static String repeat(String s, int count) {
+        final StringBuilder builder = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+}
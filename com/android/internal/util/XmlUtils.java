@@ -29,6 +29,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -48,6 +49,39 @@ public class XmlUtils {
 
     private static final String STRING_ARRAY_SEPARATOR = ":";
 
+    /**
+     * Return a parser for the given stream, which may contain either text XML
+     * or binary XML written by {@link BinaryXmlSerializer}.
+     */
+    public static XmlPullParser resolvePullParser(InputStream in)
+            throws XmlPullParserException, IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        final XmlPullParser parser;
+        if (BinaryXmlPullParser.isBinaryXml(in)) {
+            parser = new BinaryXmlPullParser();
+        } else {
+            parser = Xml.newPullParser();
+        }
+        parser.setInput(in, StandardCharsets.UTF_8.name());
+        return parser;
+    }
+
+    /**
+     * Return a serializer writing to the given stream, producing either text
+     * XML through {@link FastXmlSerializer} or binary XML through
+     * {@link BinaryXmlSerializer}. Either format can later be read back with
+     * {@link #resolvePullParser}.
+     */
+    public static XmlSerializer resolveSerializer(OutputStream out, boolean binary)
+            throws IOException {
+        final XmlSerializer serializer = binary
+                ? new BinaryXmlSerializer() : new FastXmlSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        return serializer;
+    }
+
     public static void skipCurrentTag(XmlPullParser parser)
             throws XmlPullParserException, IOException {
         int outerDepth = parser.getDepth();
@@ -185,8 +219,23 @@ public class XmlUtils {
      */
     public static final void writeMapXml(Map val, OutputStream out)
             throws XmlPullParserException, java.io.IOException {
-        XmlSerializer serializer = new FastXmlSerializer();
-        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        writeMapXml(val, out, false);
+    }
+
+    /**
+     * Flatten a Map into an output stream as either text or binary XML.  The
+     * map can later be read back with readMapXml(), which accepts both.
+     *
+     * @param val The map to be flattened.
+     * @param out Where to write the XML data.
+     * @param binary Whether to write binary XML through BinaryXmlSerializer.
+     *
+     * @see #writeMapXml(Map, OutputStream)
+     * @see #readMapXml
+     */
+    public static final void writeMapXml(Map val, OutputStream out, boolean binary)
+            throws XmlPullParserException, java.io.IOException {
+        XmlSerializer serializer = resolveSerializer(out, binary);
         serializer.startDocument(null, true);
         serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
         writeMapXml(val, null, serializer);
@@ -714,7 +763,22 @@ public class XmlUtils {
         if (name != null) {
             out.attribute(null, "name", name);
         }
-        out.attribute(null, "value", v.toString());
+        if (out instanceof BinaryXmlSerializer) {
+            final BinaryXmlSerializer binary = (BinaryXmlSerializer) out;
+            if (v instanceof Integer) {
+                binary.attributeInt(null, "value", (Integer) v);
+            } else if (v instanceof Long) {
+                binary.attributeLong(null, "value", (Long) v);
+            } else if (v instanceof Float) {
+                binary.attributeFloat(null, "value", (Float) v);
+            } else if (v instanceof Double) {
+                binary.attributeDouble(null, "value", (Double) v);
+            } else {
+                binary.attributeBoolean(null, "value", (Boolean) v);
+            }
+        } else {
+            out.attribute(null, "value", v.toString());
+        }
         out.endTag(null, typeStr);
     }
 
@@ -735,8 +799,7 @@ public class XmlUtils {
     public static final HashMap<String, ?> readMapXml(InputStream in)
     throws XmlPullParserException, java.io.IOException
     {
-        XmlPullParser   parser = Xml.newPullParser();
-        parser.setInput(in, StandardCharsets.UTF_8.name());
+        XmlPullParser   parser = resolvePullParser(in);
         return (HashMap<String, ?>) readValueXml(parser, new String[1]);
     }
 
@@ -756,8 +819,7 @@ public class XmlUtils {
     public static final ArrayList readListXml(InputStream in)
     throws XmlPullParserException, java.io.IOException
     {
-        XmlPullParser   parser = Xml.newPullParser();
-        parser.setInput(in, StandardCharsets.UTF_8.name());
+        XmlPullParser   parser = resolvePullParser(in);
         return (ArrayList)readValueXml(parser, new String[1]);
     }
     
@@ -779,8 +841,7 @@ public class XmlUtils {
      */
     public static final HashSet readSetXml(InputStream in)
             throws XmlPullParserException, java.io.IOException {
-        XmlPullParser parser = Xml.newPullParser();
-        parser.setInput(in, null);
+        XmlPullParser parser = resolvePullParser(in);
         return (HashSet) readValueXml(parser, new String[1]);
     }
 
@@ -1528,6 +1589,9 @@ public class XmlUtils {
     private static final Object readThisPrimitiveValueXml(XmlPullParser parser, String tagName)
     throws XmlPullParserException, java.io.IOException
     {
+        if (parser instanceof BinaryXmlPullParser) {
+            return readThisPrimitiveValueBinary((BinaryXmlPullParser) parser, tagName);
+        }
         try {
             if (tagName.equals("int")) {
                 return Integer.parseInt(parser.getAttributeValue(null, "value"));
@@ -1550,6 +1614,36 @@ public class XmlUtils {
         }
     }
 
+    /**
+     * Reads the typed value attribute written by {@link #writeValueXml} directly, rather
+     * than formatting it as a string and parsing that back.
+     */
+    private static Object readThisPrimitiveValueBinary(BinaryXmlPullParser parser,
+            String tagName) throws XmlPullParserException {
+        final boolean primitive = tagName.equals("int") || tagName.equals("long")
+                || tagName.equals("float") || tagName.equals("double")
+                || tagName.equals("boolean");
+        if (!primitive) {
+            return null;
+        }
+        final int index = parser.getAttributeIndex(null, "value");
+        if (index == -1) {
+            throw new XmlPullParserException("Need value attribute in <" + tagName + ">");
+        }
+        switch (tagName) {
+            case "int":
+                return parser.getAttributeInt(index);
+            case "long":
+                return parser.getAttributeLong(index);
+            case "float":
+                return parser.getAttributeFloat(index);
+            case "double":
+                return parser.getAttributeDouble(index);
+            default:
+                return parser.getAttributeBoolean(index);
+        }
+    }
+
     public static final void beginDocument(XmlPullParser parser, String firstElementName) throws XmlPullParserException, IOException
     {
         int type;
@@ -1593,6 +1687,15 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name, int defaultValue) {
+        if (in instanceof BinaryXmlPullParser) {
+            final BinaryXmlPullParser binary = (BinaryXmlPullParser) in;
+            final int index = binary.getAttributeIndex(null, name);
+            try {
+                return (index != -1) ? binary.getAttributeInt(index) : defaultValue;
+            } catch (XmlPullParserException e) {
+                return defaultValue;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1605,6 +1708,17 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof BinaryXmlPullParser) {
+            final BinaryXmlPullParser binary = (BinaryXmlPullParser) in;
+            final int index = binary.getAttributeIndex(null, name);
+            try {
+                if (index != -1) {
+                    return binary.getAttributeInt(index);
+                }
+            } catch (XmlPullParserException ignored) {
+            }
+            throw new ProtocolException("problem parsing " + name + " as int");
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Integer.parseInt(value);
@@ -1615,10 +1729,23 @@ public class XmlUtils {
 
     public static void writeIntAttribute(XmlSerializer out, String name, int value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeInt(null, name, value);
+            return;
+        }
         out.attribute(null, name, Integer.toString(value));
     }
 
     public static long readLongAttribute(XmlPullParser in, String name, long defaultValue) {
+        if (in instanceof BinaryXmlPullParser) {
+            final BinaryXmlPullParser binary = (BinaryXmlPullParser) in;
+            final int index = binary.getAttributeIndex(null, name);
+            try {
+                return (index != -1) ? binary.getAttributeLong(index) : defaultValue;
+            } catch (XmlPullParserException e) {
+                return defaultValue;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1631,6 +1758,17 @@ public class XmlUtils {
     }
 
     public static long readLongAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof BinaryXmlPullParser) {
+            final BinaryXmlPullParser binary = (BinaryXmlPullParser) in;
+            final int index = binary.getAttributeIndex(null, name);
+            try {
+                if (index != -1) {
+                    return binary.getAttributeLong(index);
+                }
+            } catch (XmlPullParserException ignored) {
+            }
+            throw new ProtocolException("problem parsing " + name + " as long");
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Long.parseLong(value);
@@ -1641,10 +1779,25 @@ public class XmlUtils {
 
     public static void writeLongAttribute(XmlSerializer out, String name, long value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeLong(null, name, value);
+            return;
+        }
         out.attribute(null, name, Long.toString(value));
     }
 
     public static float readFloatAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof BinaryXmlPullParser) {
+            final BinaryXmlPullParser binary = (BinaryXmlPullParser) in;
+            final int index = binary.getAttributeIndex(null, name);
+            try {
+                if (index != -1) {
+                    return binary.getAttributeFloat(index);
+                }
+            } catch (XmlPullParserException ignored) {
+            }
+            throw new ProtocolException("problem parsing " + name + " as float");
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Float.parseFloat(value);
@@ -1655,6 +1808,10 @@ public class XmlUtils {
 
     public static void writeFloatAttribute(XmlSerializer out, String name, float value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeFloat(null, name, value);
+            return;
+        }
         out.attribute(null, name, Float.toString(value));
     }
 
@@ -1665,6 +1822,15 @@ public class XmlUtils {
 
     public static boolean readBooleanAttribute(XmlPullParser in, String name,
             boolean defaultValue) {
+        if (in instanceof BinaryXmlPullParser) {
+            final BinaryXmlPullParser binary = (BinaryXmlPullParser) in;
+            final int index = binary.getAttributeIndex(null, name);
+            try {
+                return (index != -1) ? binary.getAttributeBoolean(index) : defaultValue;
+            } catch (XmlPullParserException e) {
+                return defaultValue;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (value == null) {
             return defaultValue;
@@ -1675,6 +1841,10 @@ public class XmlUtils {
 
     public static void writeBooleanAttribute(XmlSerializer out, String name, boolean value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeBoolean(null, name, value);
+            return;
+        }
         out.attribute(null, name, Boolean.toString(value));
     }
 
@@ -1702,6 +1872,15 @@ public class XmlUtils {
     }
 
     public static byte[] readByteArrayAttribute(XmlPullParser in, String name) {
+        if (in instanceof BinaryXmlPullParser) {
+            final BinaryXmlPullParser binary = (BinaryXmlPullParser) in;
+            final int index = binary.getAttributeIndex(null, name);
+            try {
+                return (index != -1) ? binary.getAttributeBytes(index) : null;
+            } catch (XmlPullParserException e) {
+                return null;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (value != null) {
             return Base64.decode(value, Base64.DEFAULT);
@@ -1713,7 +1892,11 @@ public class XmlUtils {
     public static void writeByteArrayAttribute(XmlSerializer out, String name, byte[] value)
             throws IOException {
         if (value != null) {
-            out.attribute(null, name, Base64.encodeToString(value, Base64.DEFAULT));
+            if (out instanceof BinaryXmlSerializer) {
+                ((BinaryXmlSerializer) out).attributeBytes(null, name, value);
+            } else {
+                out.attribute(null, name, Base64.encodeToString(value, Base64.DEFAULT));
+            }
         }
     }
 
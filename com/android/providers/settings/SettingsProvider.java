@@ -66,6 +66,7 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.ByteStringUtils;
+import android.util.MemoryStringMap;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
@@ -186,6 +187,14 @@ public class SettingsProvider extends ContentProvider {
     private static final Bundle NULL_SETTING_BUNDLE = Bundle.forPair(
             Settings.NameValueTable.VALUE, null);
 
+    // Secure settings whose value depends on the caller, which clients must
+    // therefore never read from the shared memory table.
+    private static final Set<String> SECURE_SETTINGS_NOT_IN_MEMORY_TABLE = new ArraySet<>();
+    static {
+        SECURE_SETTINGS_NOT_IN_MEMORY_TABLE.add(Settings.Secure.ANDROID_ID);
+        SECURE_SETTINGS_NOT_IN_MEMORY_TABLE.add("bluetooth_address");
+    }
+
     // Overlay specified settings whitelisted for Instant Apps
     private static final Set<String> OVERLAY_ALLOWED_GLOBAL_INSTANT_APP_SETTINGS = new ArraySet<>();
     private static final Set<String> OVERLAY_ALLOWED_SYSTEM_INSTANT_APP_SETTINGS = new ArraySet<>();
@@ -341,17 +350,23 @@ public class SettingsProvider extends ContentProvider {
         switch (method) {
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return addMemoryTableIfRequested(
+                        packageValueForCallResult(setting, isTrackingGeneration(args)),
+                        SETTINGS_TYPE_GLOBAL, requestingUserId, args);
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
                 Setting setting = getSecureSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return addMemoryTableIfRequested(
+                        packageValueForCallResult(setting, isTrackingGeneration(args)),
+                        SETTINGS_TYPE_SECURE, requestingUserId, args);
             }
 
             case Settings.CALL_METHOD_GET_SYSTEM: {
                 Setting setting = getSystemSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return addMemoryTableIfRequested(
+                        packageValueForCallResult(setting, isTrackingGeneration(args)),
+                        SETTINGS_TYPE_SYSTEM, requestingUserId, args);
             }
 
             case Settings.CALL_METHOD_PUT_GLOBAL: {
@@ -1910,6 +1925,53 @@ public class SettingsProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Shares the table the setting was read from when the caller asked for
+     * it, as long as every value in the table reads the same for the caller
+     * as through {@link #call}; otherwise the caller keeps using binder.
+     */
+    private Bundle addMemoryTableIfRequested(Bundle result, int type, int requestingUserId,
+            Bundle args) {
+        if (args == null || !args.containsKey(Settings.CALL_METHOD_TRACK_TABLE_KEY)) {
+            return result;
+        }
+        // The table holds the values of the caller's own user only
+        if (requestingUserId != UserHandle.getCallingUserId()) {
+            return result;
+        }
+        // Instant apps may only read a whitelisted subset of the settings
+        if (UserHandle.getAppId(Binder.getCallingUid()) >= Process.FIRST_APPLICATION_UID
+                && getCallingApplicationInfoOrThrow().isInstantApp()) {
+            return result;
+        }
+
+        synchronized (mLock) {
+            final int userId;
+            if (type == SETTINGS_TYPE_GLOBAL) {
+                userId = UserHandle.USER_SYSTEM;
+            } else {
+                // Profiles read some values from their parent
+                if (getGroupParentLocked(requestingUserId) != requestingUserId) {
+                    return result;
+                }
+                userId = requestingUserId;
+            }
+            final SettingsState settingsState = mSettingsRegistry.getSettingsLocked(type, userId);
+            if (settingsState == null) {
+                return result;
+            }
+            final MemoryStringMap table = settingsState.getMemoryTableLocked(
+                    (type == SETTINGS_TYPE_SECURE) ? SECURE_SETTINGS_NOT_IN_MEMORY_TABLE : null);
+            if (table == null) {
+                return result;
+            }
+            // The result may be a shared immutable bundle, so copy it
+            final Bundle resultWithTable = new Bundle(result);
+            resultWithTable.putParcelable(Settings.CALL_METHOD_TRACK_TABLE_KEY, table);
+            return resultWithTable;
+        }
+    }
+
     private static int getRequestingUserId(Bundle args) {
         final int callingUserId = UserHandle.getCallingUserId();
         return (args != null) ? args.getInt(Settings.CALL_METHOD_USER_KEY, callingUserId)
@@ -39,6 +39,7 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.AtomicFile;
 import android.util.Base64;
+import android.util.MemoryStringMap;
 import android.util.Slog;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
@@ -63,6 +64,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -135,6 +137,10 @@ final class SettingsState {
 
     private static final String NULL_VALUE = "null";
 
+    private static final String MEMORY_TABLE_SUFFIX = ".table";
+
+    private static final int MIN_MEMORY_TABLE_SIZE_BYTES = 16 * 1024;
+
     private static final Object sLock = new Object();
 
     @GuardedBy("sLock")
@@ -195,6 +201,14 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    /** Copy of the values in shared memory, created on first request */
+    @GuardedBy("mLock")
+    private MemoryStringMap mMemoryTable;
+
+    /** Names clients must always ask the provider for, or null if the table was never requested */
+    @GuardedBy("mLock")
+    private Set<String> mMemoryTableUnavailableNames;
+
     public SettingsState(Context context, Object lock, File file, int key,
             int maxBytesPerAppPackage, Looper looper) {
         // It is important that we use the same lock as the settings provider
@@ -260,6 +274,7 @@ final class SettingsState {
         }
 
         if (removedSomething) {
+            updateMemoryTableLocked();
             scheduleWriteIfNeededLocked();
         }
     }
@@ -324,6 +339,8 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
+        updateMemoryTableLocked(name);
+
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -348,6 +365,8 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
+        updateMemoryTableLocked(name);
+
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -377,13 +396,26 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
+        updateMemoryTableLocked(name);
+
         scheduleWriteIfNeededLocked();
 
         return true;
     }
 
+    // The settings provider must hold its lock when calling here.
+    public MemoryStringMap getMemoryTableLocked(Set<String> unavailableNames) {
+        if (mMemoryTable == null) {
+            mMemoryTableUnavailableNames = (unavailableNames != null)
+                    ? unavailableNames : Collections.<String>emptySet();
+            updateMemoryTableLocked();
+        }
+        return mMemoryTable;
+    }
+
     // The settings provider must hold its lock when calling here.
     public void destroyLocked(Runnable callback) {
+        destroyMemoryTableLocked();
         mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
         if (callback != null) {
             if (mDirty) {
@@ -511,6 +543,60 @@ final class SettingsState {
         mPackageToMemoryUsage.put(packageName, newSize);
     }
 
+    private void updateMemoryTableLocked(String name) {
+        if (mMemoryTable != null) {
+            final Setting setting = mSettings.get(name);
+            final boolean updated = (setting != null)
+                    ? mMemoryTable.put(name, setting.getValue())
+                    : mMemoryTable.remove(name);
+            if (updated) {
+                return;
+            }
+        }
+        // Out of room for changes in place, publish everything again
+        updateMemoryTableLocked();
+    }
+
+    private void updateMemoryTableLocked() {
+        if (mMemoryTableUnavailableNames == null) {
+            // Nobody asked for the table yet
+            return;
+        }
+
+        final int settingCount = mSettings.size();
+        final ArrayMap<String, String> values = new ArrayMap<>(settingCount);
+        for (int i = 0; i < settingCount; i++) {
+            values.put(mSettings.keyAt(i), mSettings.valueAt(i).getValue());
+        }
+
+        if (mMemoryTable != null && mMemoryTable.publish(values, mMemoryTableUnavailableNames)) {
+            return;
+        }
+
+        // The values outgrew the table, clients still holding it will fall
+        // back to the provider and pick up the new one.
+        destroyMemoryTableLocked();
+        final int size = Math.max(MIN_MEMORY_TABLE_SIZE_BYTES,
+                2 * MemoryStringMap.computeSize(values, mMemoryTableUnavailableNames));
+        try {
+            mMemoryTable = MemoryStringMap.create(
+                    new File(mStatePersistFile.getPath() + MEMORY_TABLE_SUFFIX), size);
+            mMemoryTable.publish(values, mMemoryTableUnavailableNames);
+        } catch (IOException e) {
+            Slog.e(LOG_TAG, "Failed to create memory table for " + mStatePersistFile, e);
+            mMemoryTable = null;
+            mMemoryTableUnavailableNames = null;
+        }
+    }
+
+    private void destroyMemoryTableLocked() {
+        if (mMemoryTable != null) {
+            mMemoryTable.retire();
+            mMemoryTable.close();
+            mMemoryTable = null;
+        }
+    }
+
     private boolean hasSettingLocked(String name) {
         return mSettings.indexOfKey(name) >= 0;
     }
@@ -51,6 +51,7 @@ import android.provider.Settings;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Log;
 import android.util.Slog;
@@ -370,6 +371,16 @@ class AlarmManagerService extends SystemService {
 
         final ArrayList<Alarm> alarms = new ArrayList<Alarm>();
 
+        // Links for mAlarmBatches, maintained by BatchStore
+        Batch left;
+        Batch right;
+        int priority;
+        long seq;
+        boolean wakeups;
+        int subtreeSize;
+        long subtreeMaxEnd;
+        boolean subtreeWakeups;
+
         Batch() {
             start = 0;
             end = Long.MAX_VALUE;
@@ -381,6 +392,7 @@ class AlarmManagerService extends SystemService {
             end = seed.maxWhenElapsed;
             flags = seed.flags;
             alarms.add(seed);
+            seed.batch = this;
         }
 
         int size() {
@@ -414,6 +426,7 @@ class AlarmManagerService extends SystemService {
                 end = alarm.maxWhenElapsed;
             }
             flags |= alarm.flags;
+            alarm.batch = this;
 
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "    => now " + this);
@@ -421,201 +434,378 @@ class AlarmManagerService extends SystemService {
             return newStart;
         }
 
-        boolean remove(final PendingIntent operation, final IAlarmListener listener) {
+        boolean hasWakeups() {
+            final int N = alarms.size();
+            for (int i = 0; i < N; i++) {
+                Alarm a = alarms.get(i);
+                // non-wakeup alarms are types 1 and 3, i.e. have the low bit set
+                if ((a.type & TYPE_NONWAKEUP_MASK) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder(40);
+            b.append("Batch{"); b.append(Integer.toHexString(this.hashCode()));
+            b.append(" num="); b.append(size());
+            b.append(" start="); b.append(start);
+            b.append(" end="); b.append(end);
+            if (flags != 0) {
+                b.append(" flgs=0x");
+                b.append(Integer.toHexString(flags));
+            }
+            b.append('}');
+            return b.toString();
+        }
+    }
+
+    /**
+     * The pending alarm batches, in order of start time.  The batches are kept in a treap whose
+     * nodes also track the latest end of any batch in their subtree that can take more alarms,
+     * and whether any batch in their subtree has wakeup alarms, so that finding the batch to
+     * coalesce a new alarm into and the next wakeup batch take logarithmic time instead of a
+     * scan of every batch.  Alarms are also indexed by their PendingIntent or listener and by
+     * their target package, so that removing them only touches the batches holding them.
+     *
+     * The alarms and bounds of a batch are part of its key, so they must not change while the
+     * batch is in the store.
+     */
+    final class BatchStore {
+        private final Random mPriorities = new Random();
+        private Batch mRoot;
+        private long mNextSeq;
+
+        // Alarms by PendingIntent, or by listener binder for direct alarms
+        private final ArrayMap<Object, ArraySet<Alarm>> mAlarmsByOperation = new ArrayMap<>();
+        private final ArrayMap<String, ArraySet<Alarm>> mAlarmsByPackage = new ArrayMap<>();
+
+        private final ArraySet<Batch> mTmpBatches = new ArraySet<>();
+
+        int size() {
+            return mRoot != null ? mRoot.subtreeSize : 0;
+        }
+
+        Batch get(int index) {
+            Batch node = mRoot;
+            while (node != null) {
+                final int leftSize = node.left != null ? node.left.subtreeSize : 0;
+                if (index < leftSize) {
+                    node = node.left;
+                } else if (index == leftSize) {
+                    return node;
+                } else {
+                    index -= leftSize + 1;
+                    node = node.right;
+                }
+            }
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+
+        Batch getFirst() {
+            Batch node = mRoot;
+            while (node != null && node.left != null) {
+                node = node.left;
+            }
+            return node;
+        }
+
+        Batch getFirstWakeup() {
+            Batch node = mRoot;
+            while (node != null && node.subtreeWakeups) {
+                if (node.left != null && node.left.subtreeWakeups) {
+                    node = node.left;
+                } else if (node.wakeups) {
+                    return node;
+                } else {
+                    node = node.right;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Add the alarm to the earliest batch that can hold it, or to a new batch if there
+         * is none or the alarm is standalone.
+         */
+        void add(Alarm a) {
+            Batch batch = ((a.flags&AlarmManager.FLAG_STANDALONE) != 0)
+                    ? null : findCoalesceTarget(mRoot, a.whenElapsed, a.maxWhenElapsed);
+            if (batch == null) {
+                batch = new Batch(a);
+                batch.seq = mNextSeq++;
+            } else {
+                mRoot = remove(mRoot, batch);
+                batch.add(a);
+            }
+            insert(batch);
+            addToIndex(mAlarmsByOperation, operationKey(a.operation, a.listener), a);
+            addToIndex(mAlarmsByPackage, a.targetPackage, a);
+        }
+
+        /**
+         * Remove the batch and all of its alarms.
+         */
+        void removeBatch(Batch batch) {
+            mRoot = remove(mRoot, batch);
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                unindex(batch.get(i));
+            }
+        }
+
+        /**
+         * Remove the given alarms.  The batches they were in may be able to coalesce
+         * differently without them, so the other alarms in those batches are removed too and
+         * added to {@code outOrphans}, for the caller to add back.
+         */
+        void removeAlarms(ArrayList<Alarm> alarms, ArrayList<Alarm> outOrphans) {
+            final ArraySet<Batch> batches = mTmpBatches;
+            for (int i = alarms.size() - 1; i >= 0; i--) {
+                final Alarm a = alarms.get(i);
+                final Batch batch = a.batch;
+                if (batch == null) {
+                    continue;
+                }
+                if (batches.add(batch)) {
+                    mRoot = remove(mRoot, batch);
+                }
+                batch.alarms.remove(a);
+                unindex(a);
+            }
+            for (int i = batches.size() - 1; i >= 0; i--) {
+                final Batch batch = batches.valueAt(i);
+                for (int j = batch.size() - 1; j >= 0; j--) {
+                    final Alarm a = batch.get(j);
+                    unindex(a);
+                    outOrphans.add(a);
+                }
+            }
+            batches.clear();
+        }
+
+        /**
+         * Remove every batch, adding them to {@code outBatches} in order.
+         */
+        void removeAll(ArrayList<Batch> outBatches) {
+            addInOrder(mRoot, outBatches);
+            mRoot = null;
+            for (int i = outBatches.size() - 1; i >= 0; i--) {
+                final Batch batch = outBatches.get(i);
+                for (int j = batch.size() - 1; j >= 0; j--) {
+                    batch.get(j).batch = null;
+                }
+            }
+            mAlarmsByOperation.clear();
+            mAlarmsByPackage.clear();
+        }
+
+        void getAlarms(PendingIntent operation, IAlarmListener listener,
+                ArrayList<Alarm> outAlarms) {
             if (operation == null && listener == null) {
                 if (localLOGV) {
                     Slog.w(TAG, "requested remove() of null operation",
                             new RuntimeException("here"));
                 }
-                return false;
+                return;
             }
-            boolean didRemove = false;
-            long newStart = 0;  // recalculate endpoints as we go
-            long newEnd = Long.MAX_VALUE;
-            int newFlags = 0;
-            for (int i = 0; i < alarms.size(); ) {
-                Alarm alarm = alarms.get(i);
-                if (alarm.matches(operation, listener)) {
-                    alarms.remove(i);
-                    didRemove = true;
-                    if (alarm.alarmClock != null) {
-                        mNextAlarmClockMayChange = true;
-                    }
-                } else {
-                    if (alarm.whenElapsed > newStart) {
-                        newStart = alarm.whenElapsed;
-                    }
-                    if (alarm.maxWhenElapsed < newEnd) {
-                        newEnd = alarm.maxWhenElapsed;
-                    }
-                    newFlags |= alarm.flags;
-                    i++;
-                }
+            if (operation != null) {
+                addAll(mAlarmsByOperation.get(operation), outAlarms);
             }
-            if (didRemove) {
-                // commit the new batch bounds
-                start = newStart;
-                end = newEnd;
-                flags = newFlags;
+            if (listener != null) {
+                addAll(mAlarmsByOperation.get(listener.asBinder()), outAlarms);
             }
-            return didRemove;
         }
 
-        boolean remove(final String packageName) {
+        void getAlarms(String packageName, ArrayList<Alarm> outAlarms) {
             if (packageName == null) {
                 if (localLOGV) {
                     Slog.w(TAG, "requested remove() of null packageName",
                             new RuntimeException("here"));
                 }
-                return false;
+                return;
             }
-            boolean didRemove = false;
-            long newStart = 0;  // recalculate endpoints as we go
-            long newEnd = Long.MAX_VALUE;
-            int newFlags = 0;
-            for (int i = alarms.size()-1; i >= 0; i--) {
-                Alarm alarm = alarms.get(i);
-                if (alarm.matches(packageName)) {
-                    alarms.remove(i);
-                    didRemove = true;
-                    if (alarm.alarmClock != null) {
-                        mNextAlarmClockMayChange = true;
-                    }
-                } else {
-                    if (alarm.whenElapsed > newStart) {
-                        newStart = alarm.whenElapsed;
-                    }
-                    if (alarm.maxWhenElapsed < newEnd) {
-                        newEnd = alarm.maxWhenElapsed;
-                    }
-                    newFlags |= alarm.flags;
-                }
+            addAll(mAlarmsByPackage.get(packageName), outAlarms);
+        }
+
+        boolean hasPackage(String packageName) {
+            return mAlarmsByPackage.containsKey(packageName);
+        }
+
+        private Batch findCoalesceTarget(Batch node, long whenElapsed, long maxWhen) {
+            if (node == null || node.subtreeMaxEnd < whenElapsed) {
+                return null;
+            }
+            final Batch target = findCoalesceTarget(node.left, whenElapsed, maxWhen);
+            if (target != null) {
+                return target;
+            }
+            if (node.start > maxWhen) {
+                // Neither this batch nor any later one can hold the alarm
+                return null;
             }
-            if (didRemove) {
-                // commit the new batch bounds
-                start = newStart;
-                end = newEnd;
-                flags = newFlags;
+            if ((node.flags&AlarmManager.FLAG_STANDALONE) == 0
+                    && node.canHold(whenElapsed, maxWhen)) {
+                return node;
             }
-            return didRemove;
+            return findCoalesceTarget(node.right, whenElapsed, maxWhen);
         }
 
-        boolean removeForStopped(final int uid) {
-            boolean didRemove = false;
-            long newStart = 0;  // recalculate endpoints as we go
-            long newEnd = Long.MAX_VALUE;
-            int newFlags = 0;
-            for (int i = alarms.size()-1; i >= 0; i--) {
-                Alarm alarm = alarms.get(i);
-                try {
-                    if (alarm.uid == uid && ActivityManager.getService().isAppStartModeDisabled(
-                            uid, alarm.packageName)) {
-                        alarms.remove(i);
-                        didRemove = true;
-                        if (alarm.alarmClock != null) {
-                            mNextAlarmClockMayChange = true;
-                        }
-                    } else {
-                        if (alarm.whenElapsed > newStart) {
-                            newStart = alarm.whenElapsed;
-                        }
-                        if (alarm.maxWhenElapsed < newEnd) {
-                            newEnd = alarm.maxWhenElapsed;
-                        }
-                        newFlags |= alarm.flags;
-                    }
-                } catch (RemoteException e) {
+        private void insert(Batch batch) {
+            batch.left = batch.right = null;
+            batch.priority = mPriorities.nextInt();
+            batch.wakeups = batch.hasWakeups();
+            update(batch);
+            mRoot = insert(mRoot, batch);
+        }
+
+        private Batch insert(Batch node, Batch batch) {
+            if (node == null) {
+                return batch;
+            }
+            if (compare(batch, node) < 0) {
+                node.left = insert(node.left, batch);
+                if (node.left.priority > node.priority) {
+                    node = rotateRight(node);
+                }
+            } else {
+                node.right = insert(node.right, batch);
+                if (node.right.priority > node.priority) {
+                    node = rotateLeft(node);
                 }
             }
-            if (didRemove) {
-                // commit the new batch bounds
-                start = newStart;
-                end = newEnd;
-                flags = newFlags;
+            update(node);
+            return node;
+        }
+
+        private Batch remove(Batch node, Batch batch) {
+            if (node == null) {
+                Slog.wtf(TAG, "Removing batch that isn't stored: " + batch);
+                return null;
+            }
+            if (node == batch) {
+                final Batch merged = merge(node.left, node.right);
+                batch.left = batch.right = null;
+                return merged;
+            }
+            if (compare(batch, node) < 0) {
+                node.left = remove(node.left, batch);
+            } else {
+                node.right = remove(node.right, batch);
             }
-            return didRemove;
+            update(node);
+            return node;
         }
 
-        boolean remove(final int userHandle) {
-            boolean didRemove = false;
-            long newStart = 0;  // recalculate endpoints as we go
-            long newEnd = Long.MAX_VALUE;
-            for (int i = 0; i < alarms.size(); ) {
-                Alarm alarm = alarms.get(i);
-                if (UserHandle.getUserId(alarm.creatorUid) == userHandle) {
-                    alarms.remove(i);
-                    didRemove = true;
-                    if (alarm.alarmClock != null) {
-                        mNextAlarmClockMayChange = true;
-                    }
-                } else {
-                    if (alarm.whenElapsed > newStart) {
-                        newStart = alarm.whenElapsed;
-                    }
-                    if (alarm.maxWhenElapsed < newEnd) {
-                        newEnd = alarm.maxWhenElapsed;
-                    }
-                    i++;
-                }
+        // Joins two treaps, where every batch in the first is ordered before the second
+        private Batch merge(Batch first, Batch second) {
+            if (first == null) {
+                return second;
             }
-            if (didRemove) {
-                // commit the new batch bounds
-                start = newStart;
-                end = newEnd;
+            if (second == null) {
+                return first;
+            }
+            if (first.priority > second.priority) {
+                first.right = merge(first.right, second);
+                update(first);
+                return first;
+            } else {
+                second.left = merge(first, second.left);
+                update(second);
+                return second;
             }
-            return didRemove;
         }
 
-        boolean hasPackage(final String packageName) {
-            final int N = alarms.size();
-            for (int i = 0; i < N; i++) {
-                Alarm a = alarms.get(i);
-                if (a.matches(packageName)) {
-                    return true;
-                }
+        private Batch rotateRight(Batch node) {
+            final Batch left = node.left;
+            node.left = left.right;
+            left.right = node;
+            update(node);
+            return left;
+        }
+
+        private Batch rotateLeft(Batch node) {
+            final Batch right = node.right;
+            node.right = right.left;
+            right.left = node;
+            update(node);
+            return right;
+        }
+
+        private void update(Batch node) {
+            int size = 1;
+            long maxEnd = ((node.flags&AlarmManager.FLAG_STANDALONE) == 0)
+                    ? node.end : Long.MIN_VALUE;
+            boolean wakeups = node.wakeups;
+            if (node.left != null) {
+                size += node.left.subtreeSize;
+                maxEnd = Math.max(maxEnd, node.left.subtreeMaxEnd);
+                wakeups |= node.left.subtreeWakeups;
             }
-            return false;
+            if (node.right != null) {
+                size += node.right.subtreeSize;
+                maxEnd = Math.max(maxEnd, node.right.subtreeMaxEnd);
+                wakeups |= node.right.subtreeWakeups;
+            }
+            node.subtreeSize = size;
+            node.subtreeMaxEnd = maxEnd;
+            node.subtreeWakeups = wakeups;
         }
 
-        boolean hasWakeups() {
-            final int N = alarms.size();
-            for (int i = 0; i < N; i++) {
-                Alarm a = alarms.get(i);
-                // non-wakeup alarms are types 1 and 3, i.e. have the low bit set
-                if ((a.type & TYPE_NONWAKEUP_MASK) == 0) {
-                    return true;
-                }
+        private void unindex(Alarm a) {
+            removeFromIndex(mAlarmsByOperation, operationKey(a.operation, a.listener), a);
+            removeFromIndex(mAlarmsByPackage, a.targetPackage, a);
+            a.batch = null;
+        }
+
+        private void addInOrder(Batch node, ArrayList<Batch> outBatches) {
+            if (node != null) {
+                addInOrder(node.left, outBatches);
+                outBatches.add(node);
+                addInOrder(node.right, outBatches);
             }
-            return false;
         }
 
-        @Override
-        public String toString() {
-            StringBuilder b = new StringBuilder(40);
-            b.append("Batch{"); b.append(Integer.toHexString(this.hashCode()));
-            b.append(" num="); b.append(size());
-            b.append(" start="); b.append(start);
-            b.append(" end="); b.append(end);
-            if (flags != 0) {
-                b.append(" flgs=0x");
-                b.append(Integer.toHexString(flags));
+        private int compare(Batch b1, Batch b2) {
+            if (b1.start != b2.start) {
+                return b1.start < b2.start ? -1 : 1;
             }
-            b.append('}');
-            return b.toString();
+            return Long.compare(b1.seq, b2.seq);
         }
     }
 
-    static class BatchTimeOrder implements Comparator<Batch> {
-        public int compare(Batch b1, Batch b2) {
-            long when1 = b1.start;
-            long when2 = b2.start;
-            if (when1 > when2) {
-                return 1;
-            }
-            if (when1 < when2) {
-                return -1;
+    private static Object operationKey(PendingIntent operation, IAlarmListener listener) {
+        return (operation != null) ? operation : listener.asBinder();
+    }
+
+    private static <K> void addToIndex(ArrayMap<K, ArraySet<Alarm>> index, K key, Alarm a) {
+        if (key == null) {
+            return;
+        }
+        ArraySet<Alarm> alarms = index.get(key);
+        if (alarms == null) {
+            alarms = new ArraySet<>();
+            index.put(key, alarms);
+        }
+        alarms.add(a);
+    }
+
+    private static <K> void removeFromIndex(ArrayMap<K, ArraySet<Alarm>> index, K key, Alarm a) {
+        if (key == null) {
+            return;
+        }
+        final ArraySet<Alarm> alarms = index.get(key);
+        if (alarms != null && alarms.remove(a) && alarms.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static void addAll(ArraySet<Alarm> alarms, ArrayList<Alarm> outAlarms) {
+        if (alarms != null) {
+            for (int i = alarms.size() - 1; i >= 0; i--) {
+                outAlarms.add(alarms.valueAt(i));
             }
-            return 0;
         }
     }
 
@@ -684,8 +874,9 @@ class AlarmManagerService extends SystemService {
 
     // minimum recurrence period or alarm futurity for us to be able to fuzz it
     static final long MIN_FUZZABLE_INTERVAL = 10000;
-    static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
-    final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    final BatchStore mAlarmBatches = new BatchStore();
+    private final ArrayList<Alarm> mTmpAlarms = new ArrayList<>();
+    private final ArrayList<Alarm> mTmpOrphanAlarms = new ArrayList<>();
 
     // set to null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -722,28 +913,6 @@ class AlarmManagerService extends SystemService {
         return triggerAtTime + (long)(.75 * futurity);
     }
 
-    // returns true if the batch was added at the head
-    static boolean addBatchLocked(ArrayList<Batch> list, Batch newBatch) {
-        int index = Collections.binarySearch(list, newBatch, sBatchOrder);
-        if (index < 0) {
-            index = 0 - index - 1;
-        }
-        list.add(index, newBatch);
-        return (index == 0);
-    }
-
-    // Return the index of the matching batch, or -1 if none found.
-    int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-                return i;
-            }
-        }
-        return -1;
-    }
-
     // The RTC clock has moved arbitrarily, so we need to recalculate all the batching
     void rebatchAllAlarms() {
         synchronized (mLock) {
@@ -752,8 +921,8 @@ class AlarmManagerService extends SystemService {
     }
 
     void rebatchAllAlarmsLocked(boolean doValidate) {
-        ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
-        mAlarmBatches.clear();
+        ArrayList<Batch> oldSet = new ArrayList<>(mAlarmBatches.size());
+        mAlarmBatches.removeAll(oldSet);
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
         final int oldBatches = oldSet.size();
@@ -1210,20 +1379,7 @@ class AlarmManagerService extends SystemService {
             }
         }
 
-        int whichBatch = ((a.flags&AlarmManager.FLAG_STANDALONE) != 0)
-                ? -1 : attemptCoalesceLocked(a.whenElapsed, a.maxWhenElapsed);
-        if (whichBatch < 0) {
-            Batch batch = new Batch(a);
-            addBatchLocked(mAlarmBatches, batch);
-        } else {
-            Batch batch = mAlarmBatches.get(whichBatch);
-            if (batch.add(a)) {
-                // The start time of this batch advanced, so batch ordering may
-                // have just been broken.  Move it to where it now belongs.
-                mAlarmBatches.remove(whichBatch);
-                addBatchLocked(mAlarmBatches, batch);
-            }
-        }
+        mAlarmBatches.add(a);
 
         if (a.alarmClock != null) {
             mNextAlarmClockMayChange = true;
@@ -1487,7 +1643,8 @@ class AlarmManagerService extends SystemService {
                 pw.println();
                 pw.print("  Pending alarm batches: ");
                 pw.println(mAlarmBatches.size());
-                for (Batch b : mAlarmBatches) {
+                for (int i = 0; i < mAlarmBatches.size(); i++) {
+                    Batch b = mAlarmBatches.get(i);
                     pw.print(b); pw.println(':');
                     dumpAlarmList(pw, b.alarms, "    ", nowELAPSED, nowRTC, sdf);
                 }
@@ -1736,14 +1893,7 @@ class AlarmManagerService extends SystemService {
     }
 
     private Batch findFirstWakeupBatchLocked() {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if (b.hasWakeups()) {
-                return b;
-            }
-        }
-        return null;
+        return mAlarmBatches.getFirstWakeup();
     }
 
     long getNextWakeFromIdleTimeImpl() {
@@ -1898,7 +2048,7 @@ class AlarmManagerService extends SystemService {
         long nextNonWakeup = 0;
         if (mAlarmBatches.size() > 0) {
             final Batch firstWakeup = findFirstWakeupBatchLocked();
-            final Batch firstBatch = mAlarmBatches.get(0);
+            final Batch firstBatch = mAlarmBatches.getFirst();
             if (firstWakeup != null && mNextWakeup != firstWakeup.start) {
                 mNextWakeup = firstWakeup.start;
                 mLastWakeupSet = SystemClock.elapsedRealtime();
@@ -1919,15 +2069,30 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    private void removeLocked(PendingIntent operation, IAlarmListener directReceiver) {
-        boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(operation, directReceiver);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+    /**
+     * Removes the given scheduled alarms and rebatches the other alarms of the batches they
+     * were in, rather than every alarm.  Clears {@code alarms}.
+     */
+    private void removeAlarmsLocked(ArrayList<Alarm> alarms) {
+        for (int i = alarms.size() - 1; i >= 0; i--) {
+            if (alarms.get(i).alarmClock != null) {
+                mNextAlarmClockMayChange = true;
             }
         }
+        final ArrayList<Alarm> orphans = mTmpOrphanAlarms;
+        mAlarmBatches.removeAlarms(alarms, orphans);
+        alarms.clear();
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        for (int i = 0; i < orphans.size(); i++) {
+            reAddAlarmLocked(orphans.get(i), nowElapsed, true);
+        }
+        orphans.clear();
+    }
+
+    private void removeLocked(PendingIntent operation, IAlarmListener directReceiver) {
+        final ArrayList<Alarm> removed = mTmpAlarms;
+        mAlarmBatches.getAlarms(operation, directReceiver, removed);
+        final boolean didRemove = removed.size() > 0;
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (mPendingWhileIdleAlarms.get(i).matches(operation, directReceiver)) {
                 // Don't set didRemove, since this doesn't impact the scheduled alarms.
@@ -1940,14 +2105,23 @@ class AlarmManagerService extends SystemService {
                 Slog.v(TAG, "remove(operation) changed bounds; rebatching");
             }
             boolean restorePending = false;
+            boolean rebatchAll = false;
             if (mPendingIdleUntil != null && mPendingIdleUntil.matches(operation, directReceiver)) {
                 mPendingIdleUntil = null;
                 restorePending = true;
+                rebatchAll = true;
             }
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
+                rebatchAll = true;
+            }
+            removeAlarmsLocked(removed);
+            if (rebatchAll) {
+                // The idle until time may move, which can change how everything is batched
+                rebatchAllAlarmsLocked(true);
+            } else {
+                rescheduleKernelAlarmsLocked();
             }
-            rebatchAllAlarmsLocked(true);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -1956,14 +2130,9 @@ class AlarmManagerService extends SystemService {
     }
 
     void removeLocked(String packageName) {
-        boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(packageName);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final ArrayList<Alarm> removed = mTmpAlarms;
+        mAlarmBatches.getAlarms(packageName, removed);
+        final boolean didRemove = removed.size() > 0;
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
             if (a.matches(packageName)) {
@@ -1976,21 +2145,28 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            removeAlarmsLocked(removed);
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
     }
 
     void removeForStoppedLocked(int uid) {
-        boolean didRemove = false;
+        final ArrayList<Alarm> removed = mTmpAlarms;
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
             Batch b = mAlarmBatches.get(i);
-            didRemove |= b.removeForStopped(uid);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+            for (int j = b.size() - 1; j >= 0; j--) {
+                Alarm alarm = b.get(j);
+                try {
+                    if (alarm.uid == uid && ActivityManager.getService().isAppStartModeDisabled(
+                            uid, alarm.packageName)) {
+                        removed.add(alarm);
+                    }
+                } catch (RemoteException e) {
+                }
             }
         }
+        final boolean didRemove = removed.size() > 0;
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
             if (a.uid == uid) {
@@ -2003,21 +2179,23 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            removeAlarmsLocked(removed);
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
     }
 
     void removeUserLocked(int userHandle) {
-        boolean didRemove = false;
+        final ArrayList<Alarm> removed = mTmpAlarms;
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
             Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(userHandle);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+            for (int j = b.size() - 1; j >= 0; j--) {
+                if (UserHandle.getUserId(b.get(j).creatorUid) == userHandle) {
+                    removed.add(b.get(j));
+                }
             }
         }
+        final boolean didRemove = removed.size() > 0;
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (UserHandle.getUserId(mPendingWhileIdleAlarms.get(i).creatorUid)
                     == userHandle) {
@@ -2035,7 +2213,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(user) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            removeAlarmsLocked(removed);
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2068,11 +2246,8 @@ class AlarmManagerService extends SystemService {
     }
 
     boolean lookForPackageLocked(String packageName) {
-        for (int i = 0; i < mAlarmBatches.size(); i++) {
-            Batch b = mAlarmBatches.get(i);
-            if (b.hasPackage(packageName)) {
-                return true;
-            }
+        if (mAlarmBatches.hasPackage(packageName)) {
+            return true;
         }
         for (int i = 0; i < mPendingWhileIdleAlarms.size(); i++) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
@@ -2153,7 +2328,7 @@ class AlarmManagerService extends SystemService {
         // start of the list until we either empty it or hit a batch
         // that is not yet deliverable
         while (mAlarmBatches.size() > 0) {
-            Batch batch = mAlarmBatches.get(0);
+            Batch batch = mAlarmBatches.getFirst();
             if (batch.start > nowELAPSED) {
                 // Everything else is scheduled for the future
                 break;
@@ -2161,7 +2336,7 @@ class AlarmManagerService extends SystemService {
 
             // We will (re)schedule some alarms now; don't let that interfere
             // with delivery of this current batch
-            mAlarmBatches.remove(0);
+            mAlarmBatches.removeBatch(batch);
 
             final int N = batch.size();
             for (int i = 0; i < N; i++) {
@@ -2291,6 +2466,8 @@ class AlarmManagerService extends SystemService {
         public long maxWhenElapsed; // also in the elapsed time base
         public long repeatInterval;
         public PriorityClass priorityClass;
+        public final String targetPackage;  // the package matches(String) matches
+        public Batch batch;  // the batch holding this alarm while it is in mAlarmBatches
 
         public Alarm(int _type, long _when, long _whenElapsed, long _windowLength, long _maxWhen,
                 long _interval, PendingIntent _op, IAlarmListener _rec, String _listenerTag,
@@ -2316,6 +2493,7 @@ class AlarmManagerService extends SystemService {
             packageName = _pkgName;
 
             creatorUid = (operation != null) ? operation.getCreatorUid() : uid;
+            targetPackage = (operation != null) ? operation.getTargetPackage() : packageName;
         }
 
         public static String makeTag(PendingIntent pi, String tag, int type) {
@@ -2339,9 +2517,7 @@ class AlarmManagerService extends SystemService {
         }
 
         public boolean matches(String packageName) {
-            return (operation != null)
-                    ? packageName.equals(operation.getTargetPackage())
-                    : packageName.equals(this.packageName);
+            return packageName.equals(targetPackage);
         }
 
         @Override
@@ -2394,7 +2570,7 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    void recordWakeupAlarms(ArrayList<Batch> batches, long nowELAPSED, long nowRTC) {
+    void recordWakeupAlarms(BatchStore batches, long nowELAPSED, long nowRTC) {
         final int numBatches = batches.size();
         for (int nextBatch = 0; nextBatch < numBatches; nextBatch++) {
             Batch b = batches.get(nextBatch);
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.os.Binder;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.os.BinderCallsStats;
+import com.android.internal.util.DumpUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * This service exists only as a "dumpsys" target which reports the cost of the binder
+ * calls handled by the system server, per binder class and transaction code.
+ * "dumpsys binder_calls_stats --proto" writes them as a BinderCallsStatsServiceDumpProto,
+ * and "dumpsys binder_calls_stats reset" starts collecting again.
+ */
+public class BinderCallsStatsService extends Binder {
+    private static final String TAG = "BinderCallsStatsService";
+
+    private final Context mContext;
+
+    public BinderCallsStatsService(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) return;
+
+        final BinderCallsStats stats = BinderCallsStats.getInstance();
+        if (args != null && args.length > 0) {
+            if ("--proto".equals(args[0])) {
+                final ProtoOutputStream proto = new ProtoOutputStream(fd);
+                stats.writeToProto(proto);
+                proto.flush();
+                return;
+            } else if ("reset".equals(args[0])) {
+                stats.reset();
+                pw.println("Binder call stats reset.");
+                return;
+            }
+        }
+        if (!stats.isEnabled()) {
+            pw.println("Binder call stats are disabled (persist.sys.binder_calls_stats).");
+        }
+        stats.dump(pw);
+    }
+}
@@ -23,6 +23,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
 
 import android.net.Uri;
@@ -49,6 +51,25 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    /**
+     * Most sets of candidates the lookup index keeps before it starts over.
+     */
+    private static final int MAX_CACHED_CANDIDATES = 256;
+
+    public IntentResolver() {
+        this(false);
+    }
+
+    /**
+     * @param useLookupIndex whether to keep an index of the candidate filters for each
+     *        action, resolved type and scheme queried, with blooms of their categories and
+     *        hosts to rule filters out without matching them.  Worth it for resolvers with
+     *        many filters that are queried much more often than they change.
+     */
+    protected IntentResolver(boolean useLookupIndex) {
+        mUseLookupIndex = useLookupIndex;
+    }
+
     public void addFilter(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Adding filter: " + f);
@@ -57,6 +78,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        invalidateCandidates();
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -200,6 +222,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        invalidateCandidates();
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -382,6 +405,37 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
 
+        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        if (mUseLookupIndex && !debug) {
+            buildResolveList(intent, categories, defaultOnly, resolvedType, scheme,
+                    getCandidates(intent.getAction(), resolvedType, scheme), finalList, userId);
+        } else {
+            final ArrayList<F[]> cuts = new ArrayList<>(4);
+            collectCuts(intent.getAction(), resolvedType, scheme, debug, cuts);
+            for (int i = 0; i < cuts.size(); i++) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, cuts.get(i), finalList, userId);
+            }
+        }
+        filterResults(finalList);
+        sortResults(finalList);
+
+        if (debug) {
+            Slog.v(TAG, "Final result list:");
+            for (int i=0; i<finalList.size(); i++) {
+                Slog.v(TAG, "  " + finalList.get(i));
+            }
+        }
+        return finalList;
+    }
+
+    /**
+     * Collects the lists of filters that can match an intent with the given action, resolved
+     * type and scheme, in the order they should be matched in.  A filter may be in more than
+     * one of them.
+     */
+    private void collectCuts(String action, String resolvedType, String scheme, boolean debug,
+            ArrayList<F[]> outCuts) {
         F[] firstTypeCut = null;
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
@@ -415,11 +469,11 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                     // if the intent type was not already */*.
                     thirdTypeCut = mWildTypeToFilter.get("*");
                     if (debug) Slog.v(TAG, "Third type cut: " + Arrays.toString(thirdTypeCut));
-                } else if (intent.getAction() != null) {
+                } else if (action != null) {
                     // The intent specified any type ({@literal *}/*).  This
                     // can be a whole heck of a lot of things, so as a first
                     // cut let's use the action instead.
-                    firstTypeCut = mTypedActionToFilter.get(intent.getAction());
+                    firstTypeCut = mTypedActionToFilter.get(action);
                     if (debug) Slog.v(TAG, "Typed Action list: " + Arrays.toString(firstTypeCut));
                 }
             }
@@ -436,38 +490,201 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // If the intent does not specify any data -- either a MIME type or
         // a URI -- then we will only be looking for matches against empty
         // data.
-        if (resolvedType == null && scheme == null && intent.getAction() != null) {
-            firstTypeCut = mActionToFilter.get(intent.getAction());
+        if (resolvedType == null && scheme == null && action != null) {
+            firstTypeCut = mActionToFilter.get(action);
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
-        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
         if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
+            outCuts.add(firstTypeCut);
         }
         if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
+            outCuts.add(secondTypeCut);
         }
         if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
+            outCuts.add(thirdTypeCut);
         }
         if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+            outCuts.add(schemeCut);
         }
-        filterResults(finalList);
-        sortResults(finalList);
+    }
 
-        if (debug) {
-            Slog.v(TAG, "Final result list:");
-            for (int i=0; i<finalList.size(); i++) {
-                Slog.v(TAG, "  " + finalList.get(i));
+    /**
+     * Returns the candidate filters for intents with the given action, resolved type and
+     * scheme from the lookup index, building them if they aren't cached.
+     */
+    private Candidates getCandidates(String action, String resolvedType, String scheme) {
+        final String key = action + '\0' + resolvedType + '\0' + scheme;
+        synchronized (mCandidates) {
+            Candidates candidates = mCandidates.get(key);
+            if (candidates != null && candidates.isFor(action, resolvedType, scheme)) {
+                return candidates;
+            }
+            final ArrayList<F[]> cuts = new ArrayList<>(4);
+            collectCuts(action, resolvedType, scheme, false, cuts);
+            candidates = new Candidates(action, resolvedType, scheme, cuts);
+            if (mCandidates.size() >= MAX_CACHED_CANDIDATES) {
+                mCandidates.clear();
+            }
+            mCandidates.put(key, candidates);
+            return candidates;
+        }
+    }
+
+    private void invalidateCandidates() {
+        if (mUseLookupIndex) {
+            synchronized (mCandidates) {
+                mCandidates.clear();
             }
         }
-        return finalList;
+    }
+
+    /**
+     * Like the other buildResolveList() without debug logging, for the candidates from the
+     * lookup index.  Their blooms rule out most filters whose categories or hosts can't match
+     * before anything else is checked.
+     */
+    private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
+            boolean defaultOnly, String resolvedType, String scheme, Candidates candidates,
+            List<R> dest, int userId) {
+        final String action = intent.getAction();
+        final Uri data = intent.getData();
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+
+        long requiredCategories = defaultOnly ? bloomBit(Intent.CATEGORY_DEFAULT) : 0;
+        if (categories != null) {
+            for (String category : categories) {
+                requiredCategories |= bloomBit(category);
+            }
+        }
+        final String host = data != null ? data.getHost() : null;
+        final long requiredHost = (host != null && isAscii(host))
+                ? bloomBit(host.toLowerCase(Locale.ROOT)) : ~0L;
+
+        final F[] filters = candidates.filters;
+        final long[] categoryBlooms = candidates.categoryBlooms;
+        final long[] hostBlooms = candidates.hostBlooms;
+        for (int i = 0; i < filters.length; i++) {
+            if ((requiredCategories & ~categoryBlooms[i]) != 0
+                    || (requiredHost & hostBlooms[i]) == 0) {
+                continue;
+            }
+            final F filter = filters[i];
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            final int match = filter.match(action, resolvedType, scheme, data, categories,
+                    TAG);
+            if (match >= 0
+                    && (!defaultOnly || filter.hasCategory(Intent.CATEGORY_DEFAULT))) {
+                final R oneResult = newResult(filter, match, userId);
+                if (oneResult != null) {
+                    dest.add(oneResult);
+                }
+            }
+        }
+    }
+
+    private static long bloomBit(String value) {
+        final int hash = value.hashCode();
+        return 1L << ((hash ^ (hash >>> 16)) & 63);
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = value.length() - 1; i >= 0; i--) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The filters that queryIntent() goes through for intents with one action, resolved type
+     * and scheme: the lists returned by collectCuts() one after the other, without the
+     * filters that can't match the action.  Each filter comes with a bloom of its categories,
+     * which has the bits of every category an intent it matches can have, and a bloom of its
+     * authority hosts, which has the bit of the host of any intent data it matches.
+     */
+    private final class Candidates {
+        final String action;
+        final String resolvedType;
+        final String scheme;
+        final F[] filters;
+        final long[] categoryBlooms;
+        final long[] hostBlooms;
+
+        Candidates(String action, String resolvedType, String scheme, ArrayList<F[]> cuts) {
+            this.action = action;
+            this.resolvedType = resolvedType;
+            this.scheme = scheme;
+
+            int count = 0;
+            for (int i = 0; i < cuts.size(); i++) {
+                final F[] cut = cuts.get(i);
+                for (int j = 0; j < cut.length && cut[j] != null; j++) {
+                    if (action == null || cut[j].matchAction(action)) {
+                        count++;
+                    }
+                }
+            }
+            filters = newArray(count);
+            categoryBlooms = new long[count];
+            hostBlooms = new long[count];
+            int index = 0;
+            for (int i = 0; i < cuts.size(); i++) {
+                final F[] cut = cuts.get(i);
+                for (int j = 0; j < cut.length && cut[j] != null; j++) {
+                    final F filter = cut[j];
+                    if (action != null && !filter.matchAction(action)) {
+                        continue;
+                    }
+                    filters[index] = filter;
+                    categoryBlooms[index] = categoryBloom(filter);
+                    hostBlooms[index] = hostBloom(filter);
+                    index++;
+                }
+            }
+        }
+
+        boolean isFor(String action, String resolvedType, String scheme) {
+            return Objects.equals(this.action, action)
+                    && Objects.equals(this.resolvedType, resolvedType)
+                    && Objects.equals(this.scheme, scheme);
+        }
+
+        private long categoryBloom(F filter) {
+            long bloom = 0;
+            for (int i = filter.countCategories() - 1; i >= 0; i--) {
+                bloom |= bloomBit(filter.getCategory(i));
+            }
+            return bloom;
+        }
+
+        private long hostBloom(F filter) {
+            // Hosts are only checked when the filter has schemes and authorities, and not when
+            // one of its scheme specific parts matches instead.
+            if (filter.countDataSchemes() == 0 || filter.countDataAuthorities() == 0
+                    || filter.countDataSchemeSpecificParts() != 0) {
+                return ~0L;
+            }
+            long bloom = 0;
+            for (int i = filter.countDataAuthorities() - 1; i >= 0; i--) {
+                final String host = filter.getDataAuthority(i).getHost();
+                if (host.startsWith("*") || !isAscii(host)) {
+                    return ~0L;
+                }
+                bloom |= bloomBit(host.toLowerCase(Locale.ROOT));
+            }
+            return bloom;
+        }
     }
 
     /**
@@ -811,6 +1028,14 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      */
     private final ArraySet<F> mFilters = new ArraySet<F>();
 
+    private final boolean mUseLookupIndex;
+
+    /**
+     * The lookup index: candidate filters by action, resolved type and scheme.  Cleared
+     * whenever a filter is added or removed.
+     */
+    private final ArrayMap<String, Candidates> mCandidates = new ArrayMap<>();
+
     /**
      * All of the MIME types that have been registered, such as "image/jpeg",
      * "image/*", or "{@literal *}/*".
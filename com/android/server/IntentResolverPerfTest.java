@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.content.pm.PackageParser.ActivityIntentInfo;
+import android.net.Uri;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Compares resolving common implicit intents against the activity and receiver filters of
+ * every package installed on the device, with and without the lookup index.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class IntentResolverPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final FilterResolver mPlainResolver = new FilterResolver(false);
+    private final FilterResolver mIndexedResolver = new FilterResolver(true);
+
+    private Intent[] mIntents;
+    private String[] mResolvedTypes;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final PackageParser parser = new PackageParser();
+        final List<ApplicationInfo> apps = context.getPackageManager()
+                .getInstalledApplications(PackageManager.MATCH_DISABLED_COMPONENTS);
+        for (ApplicationInfo app : apps) {
+            final PackageParser.Package pkg;
+            try {
+                pkg = parser.parsePackage(new File(app.sourceDir), 0);
+            } catch (PackageParser.PackageParserException e) {
+                continue;
+            }
+            addFilters(pkg.activities);
+            addFilters(pkg.receivers);
+        }
+
+        mIntents = new Intent[] {
+                new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER),
+                new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME),
+                new Intent(Intent.ACTION_VIEW, Uri.parse("https://www.example.com/index.html"))
+                        .addCategory(Intent.CATEGORY_BROWSABLE),
+                new Intent(Intent.ACTION_VIEW, Uri.parse("geo:37.42,-122.08")),
+                new Intent(Intent.ACTION_VIEW)
+                        .setDataAndType(Uri.parse("content://media/external/images/media/1"),
+                                "image/jpeg"),
+                new Intent(Intent.ACTION_SEND).setType("text/plain"),
+                new Intent(Intent.ACTION_SENDTO, Uri.parse("mailto:someone@example.com")),
+                new Intent(Intent.ACTION_BOOT_COMPLETED),
+                new Intent(Intent.ACTION_PACKAGE_ADDED, Uri.parse("package:com.example.app")),
+        };
+        mResolvedTypes = new String[mIntents.length];
+        for (int i = 0; i < mIntents.length; i++) {
+            mResolvedTypes[i] = mIntents[i].getType();
+        }
+    }
+
+    @Test
+    public void timeQueryIntent_noIndex() {
+        timeQueryIntent(mPlainResolver);
+    }
+
+    @Test
+    public void timeQueryIntent_lookupIndex() {
+        timeQueryIntent(mIndexedResolver);
+    }
+
+    private void timeQueryIntent(FilterResolver resolver) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            final int index = i++ % mIntents.length;
+            resolver.queryIntent(mIntents[index], mResolvedTypes[index], true, 0);
+        }
+    }
+
+    private <T extends PackageParser.Component<ActivityIntentInfo>> void addFilters(
+            List<T> components) {
+        for (int i = 0; i < components.size(); i++) {
+            final List<ActivityIntentInfo> filters = components.get(i).intents;
+            for (int j = 0; j < filters.size(); j++) {
+                mPlainResolver.addFilter(filters.get(j));
+                mIndexedResolver.addFilter(filters.get(j));
+            }
+        }
+    }
+
+    private static class FilterResolver
+            extends IntentResolver<ActivityIntentInfo, ActivityIntentInfo> {
+        FilterResolver(boolean useLookupIndex) {
+            super(useLookupIndex);
+        }
+
+        @Override
+        protected boolean isPackageForFilter(String packageName, ActivityIntentInfo filter) {
+            return packageName.equals(filter.activity.owner.packageName);
+        }
+
+        @Override
+        protected ActivityIntentInfo[] newArray(int size) {
+            return new ActivityIntentInfo[size];
+        }
+    }
+}
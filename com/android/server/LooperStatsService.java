@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.os.Binder;
+
+import com.android.internal.os.LooperStats;
+import com.android.internal.util.DumpUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * This service exists only as a "dumpsys" target which reports how long the
+ * messages of the system server's loopers take, per handler class.
+ * "dumpsys looper_stats reset" starts collecting again.
+ */
+public class LooperStatsService extends Binder {
+    private static final String TAG = "LooperStatsService";
+
+    private final Context mContext;
+    private final LooperStats mStats;
+
+    public LooperStatsService(Context context, LooperStats stats) {
+        mContext = context;
+        mStats = stats;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) return;
+
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            mStats.reset();
+            pw.println("Looper stats reset.");
+            return;
+        }
+        mStats.dump(pw);
+    }
+}
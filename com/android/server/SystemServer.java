@@ -34,6 +34,7 @@ import android.os.FactoryTest;
 import android.os.FileUtils;
 import android.os.IIncidentManager;
 import android.os.Looper;
+import android.os.Message;
 import android.os.PowerManager;
 import android.os.Process;
 import android.os.RemoteException;
@@ -55,6 +56,8 @@ import com.android.internal.app.NightDisplayController;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.notification.SystemNotificationChannels;
 import com.android.internal.os.BinderInternal;
+import com.android.internal.os.BinderCallsStats;
+import com.android.internal.os.LooperStats;
 import com.android.internal.os.SamplingProfilerIntegration;
 import com.android.internal.util.EmergencyAffordanceManager;
 import com.android.internal.util.ConcurrentUtils;
@@ -207,6 +210,10 @@ public final class SystemServer {
     // will be higher than the system default
     private static final int sMaxBinderThreads = 31;
 
+    // number of recycled messages kept for reuse by system_server,
+    // whose many threads post far more messages than an app
+    private static final int sMessagePoolSize = 512;
+
     /**
      * Default theme used by the system context. This is used to style
      * system-provided dialogs, such as the Power Off dialog, and other
@@ -240,6 +247,8 @@ public final class SystemServer {
 
 
     private Future<?> mSensorServiceStart;
+    // Dispatch stats of every looper in the system server, when enabled
+    private LooperStats mLooperStats;
     private Future<?> mZygotePreload;
 
     /**
@@ -361,12 +370,19 @@ public final class SystemServer {
 
             // Increase the number of binder threads in system_server
             BinderInternal.setMaxThreads(sMaxBinderThreads);
+            BinderCallsStats.getInstance().setEnabled(
+                    SystemProperties.getBoolean("persist.sys.binder_calls_stats", true));
 
             // Prepare the main looper thread (this thread).
             android.os.Process.setThreadPriority(
                 android.os.Process.THREAD_PRIORITY_FOREGROUND);
             android.os.Process.setCanSelfBackground(false);
             Looper.prepareMainLooper();
+            Message.setMaxPoolSize(sMessagePoolSize);
+            if (SystemProperties.getBoolean("persist.sys.looper_stats", false)) {
+                mLooperStats = new LooperStats();
+                Looper.setDefaultObserver(mLooperStats);
+            }
 
             // Initialize native services.
             System.loadLibrary("android_servers");
@@ -1329,6 +1345,26 @@ public final class SystemServer {
             }
             traceEnd();
 
+            traceBeginAndSlog("StartBinderCallsStatsService");
+            try {
+                ServiceManager.addService("binder_calls_stats",
+                        new BinderCallsStatsService(context));
+            } catch (Throwable e) {
+                reportWtf("starting BinderCallsStats Service", e);
+            }
+            traceEnd();
+
+            if (mLooperStats != null) {
+                traceBeginAndSlog("StartLooperStatsService");
+                try {
+                    ServiceManager.addService("looper_stats",
+                            new LooperStatsService(context, mLooperStats));
+                } catch (Throwable e) {
+                    reportWtf("starting LooperStats Service", e);
+                }
+                traceEnd();
+            }
+
             if (!disableSamplingProfiler) {
                 traceBeginAndSlog("StartSamplingProfilerService");
                 try {
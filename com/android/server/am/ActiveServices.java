@@ -1566,11 +1566,14 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    mAm.updateOomAdjLocked(r.binding.service.app,
+                            mAm.mConstants.INCREMENTAL_OOM_ADJ);
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            if (!mAm.mConstants.INCREMENTAL_OOM_ADJ) {
+                mAm.updateOomAdjLocked();
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
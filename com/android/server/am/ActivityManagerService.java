@@ -1388,6 +1388,17 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * Cost of oom_adj updates, for dumpsys.
+     */
+    final OomAdjStats mOomAdjStats = new OomAdjStats();
+
+    /**
+     * Processes whose oom_adj is recomputed by an incremental update; only used while
+     * updating, to avoid allocations.
+     */
+    final ArrayList<ProcessRecord> mTmpOomAdjProcs = new ArrayList<>();
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -1598,7 +1609,7 @@ public class ActivityManagerService extends IActivityManager.Stub
      * any critical paths such as when holding the main activity manager lock.
      */
     final ProcessCpuTracker mProcessCpuTracker = new ProcessCpuTracker(
-            MONITOR_THREAD_CPU_USAGE);
+            MONITOR_THREAD_CPU_USAGE, true);
     final AtomicLong mLastCpuTime = new AtomicLong(0);
     final AtomicBoolean mProcessCpuMutexFree = new AtomicBoolean(true);
     final CountDownLatch mProcessCpuInitLatch = new CountDownLatch(1);
@@ -2661,6 +2672,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.print(mActivityManagerService.mProcessCpuTracker.printCurrentLoad());
                 pw.print(mActivityManagerService.mProcessCpuTracker.printCurrentState(
                         SystemClock.uptimeMillis()));
+                pw.print(mActivityManagerService.mProcessCpuTracker.printSampleCost());
             }
         }
     }
@@ -11729,7 +11741,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    updateOomAdjFromLocked(conn.provider.proc);
                 }
             }
         } finally {
@@ -11763,7 +11775,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked();
+                    updateOomAdjFromLocked(localCpr.proc);
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -15905,6 +15917,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.println("  mAllowLowerMemLevel=" + mAllowLowerMemLevel
                         + " mLastMemoryLevel=" + mLastMemoryLevel
                         + " mLastNumProcesses=" + mLastNumProcesses);
+                mOomAdjStats.dump(pw, "  ");
                 long now = SystemClock.uptimeMillis();
                 pw.print("  mLastIdleTime=");
                         TimeUtils.formatDuration(now, mLastIdleTime, pw);
@@ -19641,6 +19654,17 @@ public class ActivityManagerService extends IActivityManager.Stub
         mCurBroadcastStats.addBroadcast(action, srcPackage, receiveCount, skipCount, dispatchTime);
     }
 
+    final void addBroadcastDispatchStatLocked(String queue, long dispatchLatency,
+            long finishLatency) {
+        rotateBroadcastStatsIfNeededLocked();
+        mCurBroadcastStats.addDispatchLatency(queue, dispatchLatency, finishLatency);
+    }
+
+    final void addBroadcastBatchStatLocked(String queue, int receivers) {
+        rotateBroadcastStatsIfNeededLocked();
+        mCurBroadcastStats.addBatchedDelivery(queue, receivers);
+    }
+
     final void addBackgroundCheckViolationLocked(String action, String targetPackage) {
         rotateBroadcastStatsIfNeededLocked();
         mCurBroadcastStats.addBackgroundCheckViolation(action, targetPackage);
@@ -22362,36 +22386,107 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     /**
      * Update OomAdj for a specific process.
+     * <p>
+     * With {@link ActivityManagerConstants#INCREMENTAL_OOM_ADJ}, a change to the process is
+     * also propagated to the processes whose services or providers it is bound to, since those
+     * take their importance from their clients. Propagation stops at processes whose state
+     * didn't change.
+     *
      * @param app The process to update
      * @param oomAdjAll If it's ok to call updateOomAdjLocked() for all running apps
      *                  if necessary, or skip.
      * @return whether updateOomAdjLocked(app) was successful.
      */
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
-        final boolean wasCached = app.cached;
+        final long now = SystemClock.uptimeMillis();
+        final boolean incremental = mConstants.INCREMENTAL_OOM_ADJ;
 
         mAdjSeq++;
 
-        // This is the desired cached adjusment we want to tell it to use.
-        // If our app is currently cached, we know it, and that is it.  Otherwise,
-        // we don't know it yet, and it needs to now be cached we will then
-        // need to do a complete oom adj.
-        final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
-                ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
-                SystemClock.uptimeMillis());
-        if (oomAdjAll
-                && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ)) {
-            // Changed to/from cached state, so apps after it in the LRU
-            // list may also be changed.
+        final ArrayList<ProcessRecord> procs = mTmpOomAdjProcs;
+        procs.add(app);
+        boolean success = false;
+        boolean needFullUpdate = false;
+        int numProcs = 0;
+        while (numProcs < procs.size()) {
+            final ProcessRecord proc = procs.get(numProcs++);
+            final boolean wasCached = proc.cached;
+            final int oldRawAdj = proc.curRawAdj;
+            final int oldProcState = proc.curProcState;
+            final int oldSchedGroup = proc.curSchedGroup;
+
+            // This is the desired cached adjusment we want to tell it to use.
+            // If our app is currently cached, we know it, and that is it.  Otherwise,
+            // we don't know it yet, and it needs to now be cached we will then
+            // need to do a complete oom adj.
+            final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            final boolean updated = updateOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+            if (proc == app) {
+                success = updated;
+            }
+            if (wasCached != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+                // Changed to/from cached state, so apps after it in the LRU
+                // list may also be changed.
+                needFullUpdate = true;
+            } else if (incremental && proc.uidRecord != null
+                    && proc.curProcState != oldProcState
+                    && (proc.curProcState < proc.uidRecord.setProcState
+                            || oldProcState <= proc.uidRecord.setProcState)) {
+                // The state of the whole uid may have changed, which only a full update
+                // reports.
+                needFullUpdate = true;
+            }
+            if (!incremental || (oomAdjAll && needFullUpdate)) {
+                break;
+            }
+            if (proc.curRawAdj == oldRawAdj && proc.curProcState == oldProcState
+                    && proc.curSchedGroup == oldSchedGroup) {
+                continue;
+            }
+
+            for (int i = proc.connections.size() - 1; i >= 0; i--) {
+                final ProcessRecord service = proc.connections.valueAt(i).binding.service.app;
+                if (service != null && !procs.contains(service)) {
+                    procs.add(service);
+                }
+            }
+            for (int i = proc.conProviders.size() - 1; i >= 0; i--) {
+                final ProcessRecord provider = proc.conProviders.get(i).provider.proc;
+                if (provider != null && !procs.contains(provider)) {
+                    procs.add(provider);
+                }
+            }
+        }
+        procs.clear();
+
+        final boolean fullUpdate = oomAdjAll && needFullUpdate;
+        mOomAdjStats.notePartialUpdate(SystemClock.elapsedRealtimeNanos() - startNanos, numProcs,
+                fullUpdate);
+        if (fullUpdate) {
             updateOomAdjLocked();
         }
         return success;
     }
 
+    /**
+     * Update OomAdj after the state of {@code app}, or its service and provider connections,
+     * changed. Without {@link ActivityManagerConstants#INCREMENTAL_OOM_ADJ}, or when there is
+     * no process to start from, this updates every process.
+     */
+    final void updateOomAdjFromLocked(ProcessRecord app) {
+        if (app != null && mConstants.INCREMENTAL_OOM_ADJ) {
+            updateOomAdjLocked(app, true);
+        } else {
+            updateOomAdjLocked();
+        }
+    }
+
     final void updateOomAdjLocked() {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final long now = SystemClock.uptimeMillis();
@@ -22825,6 +22920,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             });
         }
 
+        mOomAdjStats.noteFullUpdate(SystemClock.elapsedRealtimeNanos() - startNanos);
+
         if (DEBUG_OOM_ADJ) {
             final long duration = SystemClock.uptimeMillis() - now;
             if (false) {
@@ -31,6 +31,7 @@ import android.app.AppGlobals;
 import android.app.AppOpsManager;
 import android.app.BroadcastOptions;
 import android.app.PendingIntent;
+import android.app.RegisteredReceiverBatch;
 import android.content.ComponentName;
 import android.content.IIntentReceiver;
 import android.content.IIntentSender;
@@ -47,7 +48,9 @@ import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.TimeUtils;
@@ -105,6 +108,31 @@ public final class BroadcastQueue {
      */
     final ArrayList<BroadcastRecord> mOrderedBroadcasts = new ArrayList<>();
 
+    /**
+     * Deliveries of parallel broadcasts to registered receivers that are being collected
+     * per process while processNextBroadcast() goes through the parallel broadcasts, so that
+     * each process gets them in one transaction.
+     */
+    final ArrayMap<ProcessRecord, RegisteredReceiverBatch> mReceiverBatches = new ArrayMap<>();
+
+    /**
+     * True while deliveries are being collected into {@link #mReceiverBatches}.
+     */
+    boolean mBatchingReceivers = false;
+
+    /**
+     * Most deliveries to put in one batch, to keep the transaction small.
+     */
+    static final int MAX_RECEIVER_BATCH_SIZE = 32;
+
+    /**
+     * Estimated marshalled size at which a batch is sent out.  The process's binder buffer
+     * is shared by all of its transactions in flight and one-way ones only get half of it,
+     * so a batch stays well under that; it can only go over this by its last delivery, which
+     * on its own would have been sent in a transaction too.
+     */
+    static final int MAX_RECEIVER_BATCH_BYTES = 64 * 1024;
+
     /**
      * Historical data of past broadcasts, for debugging.  This is a ring buffer
      * whose last element is at mHistoryNext.
@@ -514,6 +542,81 @@ public final class BroadcastQueue {
         }
     }
 
+    private void addToReceiverBatchLocked(ProcessRecord app, IIntentReceiver receiver,
+            Intent intent, int resultCode, String data, Bundle extras, boolean sticky,
+            int sendingUser) {
+        RegisteredReceiverBatch batch = mReceiverBatches.get(app);
+        if (batch == null) {
+            batch = new RegisteredReceiverBatch();
+            mReceiverBatches.put(app, batch);
+        }
+        batch.add(receiver, intent, resultCode, data, extras, sticky, sendingUser);
+        if (batch.size() >= MAX_RECEIVER_BATCH_SIZE
+                || batch.getDataSize() >= MAX_RECEIVER_BATCH_BYTES) {
+            sendReceiverBatchLocked(app, batch);
+        }
+    }
+
+    /**
+     * Send out every batch of deliveries collected by addToReceiverBatchLocked().
+     */
+    void flushReceiverBatchesLocked() {
+        for (int i = mReceiverBatches.size() - 1; i >= 0; i--) {
+            final RegisteredReceiverBatch batch = mReceiverBatches.valueAt(i);
+            if (batch.size() > 0) {
+                sendReceiverBatchLocked(mReceiverBatches.keyAt(i), batch);
+            }
+        }
+        mReceiverBatches.clear();
+    }
+
+    private void sendReceiverBatchLocked(ProcessRecord app, RegisteredReceiverBatch batch) {
+        final int N = batch.size();
+        if (app.thread == null) {
+            // Application has died since the deliveries were collected.
+            Slog.w(TAG, "Dropping " + N + " broadcasts to dead " + app.processName);
+        } else {
+            try {
+                app.thread.scheduleRegisteredReceivers(batch, app.repProcState);
+                mService.addBroadcastBatchStatLocked(mQueueName, N);
+            } catch (TransactionTooLargeException e) {
+                // Didn't fit in what's left of the process's binder buffer; nothing was
+                // delivered, so send them one by one instead.
+                Slog.w(TAG, "Batch of " + N + " broadcasts (~" + batch.getDataSize()
+                        + " bytes) to " + app.processName + " too large, sending separately");
+                sendReceiverBatchSeparatelyLocked(app, batch);
+            } catch (RemoteException e) {
+                // Failed to call into the process. It's either dying or wedged. Kill it gently.
+                Slog.w(TAG, "Can't deliver " + N + " broadcasts to " + app.processName
+                        + " (pid " + app.pid + "). Crashing it.", e);
+                app.scheduleCrash("can't deliver broadcast");
+            }
+        }
+        batch.clear();
+    }
+
+    private void sendReceiverBatchSeparatelyLocked(ProcessRecord app,
+            RegisteredReceiverBatch batch) {
+        final int N = batch.size();
+        for (int i = 0; i < N; i++) {
+            try {
+                app.thread.scheduleRegisteredReceiver(batch.getReceiver(i), batch.getIntent(i),
+                        batch.getResultCode(i), batch.getData(i), batch.getExtras(i), false,
+                        batch.isSticky(i), batch.getSendingUser(i), app.repProcState);
+            } catch (TransactionTooLargeException e) {
+                // Leave the process alone, it's this broadcast that can't be delivered.
+                Slog.w(TAG, "Can't deliver " + batch.getIntent(i) + " to "
+                        + app.processName + ", too large", e);
+            } catch (RemoteException e) {
+                // Failed to call into the process. It's either dying or wedged. Kill it gently.
+                Slog.w(TAG, "Can't deliver broadcast to " + app.processName
+                        + " (pid " + app.pid + "). Crashing it.", e);
+                app.scheduleCrash("can't deliver broadcast");
+                return;
+            }
+        }
+    }
+
     private void deliverToRegisteredReceiverLocked(BroadcastRecord r,
             BroadcastFilter filter, boolean ordered, int index) {
         boolean skip = false;
@@ -699,6 +802,12 @@ public final class BroadcastQueue {
                 if (ordered) {
                     skipReceiverLocked(r);
                 }
+            } else if (mBatchingReceivers && !r.ordered
+                    && filter.receiverList.app != null
+                    && filter.receiverList.app.thread != null) {
+                addToReceiverBatchLocked(filter.receiverList.app, filter.receiverList.receiver,
+                        new Intent(r.intent), r.resultCode, r.resultData,
+                        r.resultExtras, r.initialSticky, r.userId);
             } else {
                 performReceiveLocked(filter.receiverList.app, filter.receiverList.receiver,
                         new Intent(r.intent), r.resultCode, r.resultData,
@@ -832,7 +941,10 @@ public final class BroadcastQueue {
                 mBroadcastsScheduled = false;
             }
 
-            // First, deliver any non-serialized broadcasts right away.
+            // First, deliver any non-serialized broadcasts right away.  Deliveries to the
+            // same process are batched into one transaction, and sent out once every
+            // parallel broadcast has been gone through.
+            mBatchingReceivers = mService.mConstants.BATCH_PARALLEL_BROADCASTS;
             while (mParallelBroadcasts.size() > 0) {
                 r = mParallelBroadcasts.remove(0);
                 r.dispatchTime = SystemClock.uptimeMillis();
@@ -861,6 +973,10 @@ public final class BroadcastQueue {
                 if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Done with parallel broadcast ["
                         + mQueueName + "] " + r);
             }
+            if (mBatchingReceivers) {
+                mBatchingReceivers = false;
+                flushReceiverBatchesLocked();
+            }
 
             // Now take care of the next serialized one...
 
@@ -1511,6 +1627,8 @@ public final class BroadcastQueue {
             return;
         }
         r.finishTime = SystemClock.uptimeMillis();
+        mService.addBroadcastDispatchStatLocked(mQueueName,
+                r.dispatchClockTime - r.enqueueClockTime, r.finishTime - r.dispatchTime);
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
             Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -31,6 +31,7 @@ public final class BroadcastStats {
     long mEndRealtime;
     long mEndUptime;
     final ArrayMap<String, ActionEntry> mActions = new ArrayMap<>();
+    final ArrayMap<String, QueueEntry> mQueues = new ArrayMap<>();
 
     static final Comparator<ActionEntry> ACTIONS_COMPARATOR = new Comparator<ActionEntry>() {
         @Override public int compare(ActionEntry o1, ActionEntry o2) {
@@ -66,6 +67,91 @@ public final class BroadcastStats {
         int mCount;
     }
 
+    static final class QueueEntry {
+        // Time from enqueueing a broadcast to starting its dispatch
+        final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+        // Time from starting the dispatch of a broadcast to its last receiver finishing
+        final LatencyHistogram mFinishLatency = new LatencyHistogram();
+        int mBatchTransactions;
+        int mBatchedDeliveries;
+    }
+
+    /**
+     * Histogram of latencies in milliseconds, with power of two bucket bounds: bucket 0 holds
+     * latencies of 0ms, and bucket i holds latencies in [2^(i-1), 2^i).  The last bucket holds
+     * everything longer.
+     */
+    static final class LatencyHistogram {
+        static final int NUM_BUCKETS = 18;
+
+        final int[] mBuckets = new int[NUM_BUCKETS];
+        int mCount;
+        long mTotal;
+        long mMax;
+
+        void add(long latency) {
+            if (latency < 0) {
+                latency = 0;
+            }
+            mBuckets[Math.min(64 - Long.numberOfLeadingZeros(latency), NUM_BUCKETS - 1)]++;
+            mCount++;
+            mTotal += latency;
+            if (mMax < latency) {
+                mMax = latency;
+            }
+        }
+
+        static long bucketStart(int bucket) {
+            return bucket == 0 ? 0 : 1L << (bucket - 1);
+        }
+
+        void dump(PrintWriter pw, String prefix, String label) {
+            pw.print(prefix);
+            pw.print(label);
+            pw.print(": count=");
+            pw.print(mCount);
+            if (mCount > 0) {
+                pw.print(" avg=");
+                TimeUtils.formatDuration(mTotal / mCount, pw);
+                pw.print(" max=");
+                TimeUtils.formatDuration(mMax, pw);
+            }
+            pw.println();
+            for (int i=0; i<NUM_BUCKETS; i++) {
+                if (mBuckets[i] == 0) {
+                    continue;
+                }
+                pw.print(prefix);
+                pw.print("  ");
+                if (i == NUM_BUCKETS - 1) {
+                    pw.print(">=");
+                    pw.print(bucketStart(i));
+                } else if (i == 0) {
+                    pw.print("0");
+                } else {
+                    pw.print(bucketStart(i));
+                    pw.print("-");
+                    pw.print(bucketStart(i + 1) - 1);
+                }
+                pw.print("ms: ");
+                pw.println(mBuckets[i]);
+            }
+        }
+
+        void dumpCheckin(PrintWriter pw) {
+            pw.print(mCount);
+            pw.print(",");
+            pw.print(mTotal);
+            pw.print(",");
+            pw.print(mMax);
+            for (int i=0; i<NUM_BUCKETS; i++) {
+                pw.print(",");
+                pw.print(mBuckets[i]);
+            }
+            pw.println();
+        }
+    }
+
     public BroadcastStats() {
         mStartRealtime = SystemClock.elapsedRealtime();
         mStartUptime = SystemClock.uptimeMillis();
@@ -106,6 +192,27 @@ public final class BroadcastStats {
         ve.mCount++;
     }
 
+    public void addDispatchLatency(String queue, long dispatchLatency, long finishLatency) {
+        final QueueEntry qe = getQueueEntry(queue);
+        qe.mDispatchLatency.add(dispatchLatency);
+        qe.mFinishLatency.add(finishLatency);
+    }
+
+    public void addBatchedDelivery(String queue, int receivers) {
+        final QueueEntry qe = getQueueEntry(queue);
+        qe.mBatchTransactions++;
+        qe.mBatchedDeliveries += receivers;
+    }
+
+    private QueueEntry getQueueEntry(String queue) {
+        QueueEntry qe = mQueues.get(queue);
+        if (qe == null) {
+            qe = new QueueEntry();
+            mQueues.put(queue, qe);
+        }
+        return qe;
+    }
+
     public boolean dumpStats(PrintWriter pw, String prefix, String dumpPackage) {
         boolean printedSomething = false;
         ArrayList<ActionEntry> actions = new ArrayList<>(mActions.size());
@@ -152,6 +259,24 @@ public final class BroadcastStats {
                 pw.println(" times");
             }
         }
+        if (dumpPackage == null) {
+            for (int i=0; i<mQueues.size(); i++) {
+                QueueEntry qe = mQueues.valueAt(i);
+                printedSomething = true;
+                pw.print(prefix);
+                pw.print("Queue ");
+                pw.print(mQueues.keyAt(i));
+                pw.println(":");
+                qe.mDispatchLatency.dump(pw, prefix + "  ", "Dispatch latency");
+                qe.mFinishLatency.dump(pw, prefix + "  ", "Finish latency");
+                pw.print(prefix);
+                pw.print("  Batched deliveries: ");
+                pw.print(qe.mBatchedDeliveries);
+                pw.print(" in ");
+                pw.print(qe.mBatchTransactions);
+                pw.println(" transactions");
+            }
+        }
         return printedSomething;
     }
 
@@ -195,5 +320,21 @@ public final class BroadcastStats {
                 pw.println();
             }
         }
+        if (dumpPackage == null) {
+            for (int i=0; i<mQueues.size(); i++) {
+                QueueEntry qe = mQueues.valueAt(i);
+                pw.print("q,");
+                pw.print(mQueues.keyAt(i));
+                pw.print(",");
+                pw.print(qe.mBatchTransactions);
+                pw.print(",");
+                pw.print(qe.mBatchedDeliveries);
+                pw.println();
+                pw.print("qd,");
+                qe.mDispatchLatency.dumpCheckin(pw);
+                pw.print("qf,");
+                qe.mFinishLatency.dumpCheckin(pw);
+            }
+        }
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import java.io.PrintWriter;
+
+/**
+ * Cost of the oom adj updates done by {@link ActivityManagerService}, which all run with the
+ * activity manager lock held. Guarded by that lock.
+ */
+final class OomAdjStats {
+    private long mFullCount;
+    private long mFullNanos;
+    private long mFullMaxNanos;
+
+    private long mPartialCount;
+    private long mPartialNanos;
+    private long mPartialMaxNanos;
+    private long mPartialProcesses;
+    private long mFallbackCount;
+
+    /** Note an update that recomputed every process in the LRU list. */
+    void noteFullUpdate(long nanos) {
+        mFullCount++;
+        mFullNanos += nanos;
+        mFullMaxNanos = Math.max(mFullMaxNanos, nanos);
+    }
+
+    /**
+     * Note an update that recomputed only a changed process and the processes it is bound to.
+     *
+     * @param processes number of processes recomputed.
+     * @param fellBack whether the update turned out to need a full update afterwards, whose
+     *        cost is noted separately.
+     */
+    void notePartialUpdate(long nanos, int processes, boolean fellBack) {
+        mPartialCount++;
+        mPartialNanos += nanos;
+        mPartialMaxNanos = Math.max(mPartialMaxNanos, nanos);
+        mPartialProcesses += processes;
+        if (fellBack) {
+            mFallbackCount++;
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Full oom adj updates: "); pw.print(mFullCount);
+        printTimes(pw, mFullCount, mFullNanos, mFullMaxNanos);
+        pw.println();
+        pw.print(prefix); pw.print("Partial oom adj updates: "); pw.print(mPartialCount);
+        printTimes(pw, mPartialCount, mPartialNanos, mPartialMaxNanos);
+        if (mPartialCount > 0) {
+            pw.print(" procs/update="); pw.print(mPartialProcesses / (float) mPartialCount);
+        }
+        pw.print(" fell back to full="); pw.println(mFallbackCount);
+    }
+
+    private static void printTimes(PrintWriter pw, long count, long totalNanos, long maxNanos) {
+        if (count > 0) {
+            pw.print(" avg="); pw.print(totalNanos / count / 1000); pw.print("us");
+            pw.print(" max="); pw.print(maxNanos / 1000); pw.print("us");
+        }
+    }
+}
@@ -1305,7 +1305,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mReadyQueueFunctor);
+        mJobs.forEachReadyJob(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
 
         if (DEBUG) {
@@ -1370,7 +1370,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             reset();
         }
 
-        // Functor method invoked for each job via JobStore.forEachJob()
+        // Functor method invoked for each ready job via JobStore.forEachReadyJob()
         @Override
         public void process(JobStatus job) {
             if (isReadyToBeExecutedLocked(job)) {
@@ -1459,7 +1459,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mMaybeQueueFunctor);
+        mJobs.forEachReadyJob(mMaybeQueueFunctor);
         mMaybeQueueFunctor.postProcess();
     }
 
@@ -2024,9 +2024,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
                     return JobSchedulerShellCommand.CMD_ERR_NO_JOB;
                 }
 
-                js.overrideState = (force) ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT;
+                js.setOverrideState((force) ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT);
                 if (!js.isConstraintsSatisfied()) {
-                    js.overrideState = 0;
+                    js.setOverrideState(0);
                     return JobSchedulerShellCommand.CMD_ERR_CONSTRAINTS;
                 }
 
@@ -2248,7 +2248,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
             pw.println("Started users: " + Arrays.toString(mStartedUsers));
             pw.print("Registered ");
             pw.print(mJobs.size());
-            pw.println(" jobs:");
+            pw.print(" jobs, ");
+            pw.print(mJobs.countReadyJobs());
+            pw.println(" ready:");
             if (mJobs.size() > 0) {
                 final List<JobStatus> jobs = mJobs.mJobSet.getAllJobs();
                 Collections.sort(jobs, new Comparator<JobStatus>() {
@@ -22,6 +22,7 @@ import android.content.ComponentName;
 import android.app.job.JobInfo;
 import android.content.Context;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.SystemClock;
@@ -29,27 +30,40 @@ import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.AtomicFile;
 import android.util.ArraySet;
+import android.util.LongArray;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
-import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
-import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.XmlUtils;
 import com.android.server.IoThread;
 import com.android.server.job.controllers.JobStatus;
 
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -60,6 +74,11 @@ import org.xmlpull.v1.XmlSerializer;
  * reference, so none of the functions in this class should make a copy.
  * Also handles read/write of persisted jobs.
  *
+ * Persisted jobs live in jobs.xml, written as binary xml, plus a journal of the jobs added or
+ * removed since jobs.xml was last written in full. Each change only appends the affected jobs
+ * to the journal, and the journal is folded back into jobs.xml once it grows to a quarter of
+ * the size of that file.
+ *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
  *      This is important b/c {@link com.android.server.job.JobStore.WriteJobsMapToDiskRunnable}
@@ -78,8 +97,35 @@ public final class JobStore {
 
     private int mDirtyOperations;
 
+    /** Jobs changed since the last write, keyed by {@link #jobKey}. */
+    @GuardedBy("mLock")
+    private final ArraySet<Long> mChangedJobKeys = new ArraySet<>();
+    /** Whether the next write must rewrite jobs.xml rather than append to the journal. */
+    @GuardedBy("mLock")
+    private boolean mWriteAllPending;
+    @GuardedBy("mLock")
+    private boolean mJournalEnabled = true;
+    /** Whether jobs.xml is written as binary xml; either kind is read back. */
+    @GuardedBy("mLock")
+    private boolean mBinaryJobsFile = true;
+
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final File mJournalFile;
+
+    /** Held for the whole of a read or write of the files, to serialize them. */
+    private final Object mWriteLock = new Object();
+    /** Generation of jobs.xml; the journal is only valid for the same generation. */
+    @GuardedBy("mWriteLock")
+    private int mJournalGeneration;
+    /** Length of the intact part of the journal, or 0 if there is none. */
+    @GuardedBy("mWriteLock")
+    private long mJournalLength;
+    @GuardedBy("mWriteLock")
+    private long mJobsFileLength;
+    /** Total bytes written to jobs.xml and the journal, for benchmarks. */
+    @GuardedBy("mWriteLock")
+    private long mBytesWritten;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -117,6 +163,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJournalFile = new File(jobDir, "jobs.journal");
 
         mJobSet = new JobSet();
 
@@ -133,6 +180,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mChangedJobKeys.add(jobKey(jobStatus.getUid(), jobStatus.getJobId()));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -166,8 +214,13 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Even without writeBack, the removal goes out with the next write, as it
+            // would when rewriting every job.
+            mChangedJobKeys.add(jobKey(jobStatus.getUid(), jobStatus.getJobId()));
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -178,14 +231,51 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        mWriteAllPending = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mChangedJobKeys.clear();
+        mWriteAllPending = true;
         maybeWriteStatusToDiskAsync();
     }
 
+    /**
+     * Whether changes are appended to the journal; when disabled, every write rewrites all
+     * jobs to jobs.xml.
+     */
+    @VisibleForTesting
+    void setJournalEnabledForTesting(boolean enabled) {
+        mJournalEnabled = enabled;
+        mWriteAllPending = true;
+    }
+
+    /**
+     * Write jobs.xml as text xml from now on, as it was before it was written as binary xml.
+     */
+    @VisibleForTesting
+    void setBinaryJobsFileForTesting(boolean binary) {
+        mBinaryJobsFile = binary;
+        mWriteAllPending = true;
+    }
+
+    /**
+     * Write out pending changes synchronously on the calling thread.
+     */
+    @VisibleForTesting
+    void writeStatusToDiskForTesting() {
+        new WriteJobsMapToDiskRunnable().run();
+    }
+
+    @VisibleForTesting
+    long getBytesWrittenForTesting() {
+        synchronized (mWriteLock) {
+            return mBytesWritten;
+        }
+    }
+
     /**
      * @param userHandle User for whom we are querying the list of jobs.
      * @return A list of all the jobs scheduled by the provided user. Never null.
@@ -225,6 +315,19 @@ public final class JobStore {
         mJobSet.forEachJob(uid, functor);
     }
 
+    /**
+     * Iterate over the jobs that are {@link JobStatus#isReady() ready} to run. The set of ready
+     * jobs is kept up to date as the jobs' constraints change, so this only costs as much as
+     * the number of ready jobs rather than every job in the store.
+     */
+    public void forEachReadyJob(JobStatusFunctor functor) {
+        mJobSet.forEachReadyJob(functor);
+    }
+
+    public int countReadyJobs() {
+        return mJobSet.countReadyJobs();
+    }
+
     public interface JobStatusFunctor {
         public void process(JobStatus jobStatus);
     }
@@ -237,10 +340,29 @@ public final class JobStore {
     private static final String XML_TAG_PERIODIC = "periodic";
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
+    /** Tag of a journal record for a job that is no longer persisted. */
+    private static final String XML_TAG_JOB_REMOVED = "job-removed";
+
+    /** Magic number at the start of the journal, followed by its generation. */
+    private static final int JOURNAL_MAGIC = 0x4a4f424a;
+    private static final int JOURNAL_HEADER_SIZE = 8;
+    /** Each journal record is its int length and long CRC32, followed by the record. */
+    private static final int JOURNAL_RECORD_HEADER_SIZE = 12;
+    /**
+     * Minimum journal size before it is folded into jobs.xml. Past that the journal is kept
+     * below a quarter of the size of jobs.xml, so that replaying it at boot adds little to
+     * reading jobs.xml, while compacting still costs only a few times the appends it saves.
+     */
+    private static final long MIN_JOURNAL_COMPACTION_BYTES = 16 * 1024;
+    private static final int JOURNAL_COMPACTION_DIVISOR = 4;
+
+    static long jobKey(int uid, int jobId) {
+        return (((long) uid) << 32) | (jobId & 0xFFFFFFFFL);
+    }
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we append the changed jobs to the journal, rewriting all
+     * of the jobs in one swath when needed.
      * @return Whether the operation was successful. This will only fail for e.g. if the system is
      * low on storage. If this happens, we continue as normal
      */
@@ -260,7 +382,8 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes the changes to {@link #mJobSet} out to the journal, or all of
+     * {@link #mJobSet} out to xml.
      * NOTE: This Runnable locks on mLock
      */
     private final class WriteJobsMapToDiskRunnable implements Runnable {
@@ -268,54 +391,111 @@ public final class JobStore {
         public void run() {
             final long startElapsed = SystemClock.elapsedRealtime();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final LongArray removedKeys = new LongArray();
+            boolean writeAll;
+            final boolean binary;
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(new JobStatusFunctor() {
-                    @Override
-                    public void process(JobStatus job) {
-                        if (job.isPersisted()) {
-                            storeCopy.add(new JobStatus(job));
+                writeAll = mWriteAllPending || !mJournalEnabled;
+                binary = mBinaryJobsFile;
+                if (writeAll) {
+                    copyPersistedJobsLocked(storeCopy);
+                } else {
+                    copyChangedJobsLocked(storeCopy, removedKeys);
+                }
+                mChangedJobKeys.clear();
+                mWriteAllPending = false;
+            }
+            if (!writeAll && storeCopy.isEmpty() && removedKeys.size() == 0) {
+                // An earlier write already picked up these changes
+                return;
+            }
+
+            boolean success = false;
+            synchronized (mWriteLock) {
+                if (!writeAll) {
+                    success = appendToJournal(storeCopy, removedKeys);
+                    if (success && mJournalLength >= Math.max(MIN_JOURNAL_COMPACTION_BYTES,
+                            mJobsFileLength / JOURNAL_COMPACTION_DIVISOR)) {
+                        storeCopy.clear();
+                        synchronized (mLock) {
+                            copyPersistedJobsLocked(storeCopy);
                         }
+                        writeAll = true;
                     }
-                });
+                }
+                if (writeAll) {
+                    success = writeJobsMapImpl(storeCopy, binary);
+                }
+            }
+            if (success) {
+                mDirtyOperations = 0;
+            } else {
+                // We no longer know what made it to disk, so start over from scratch
+                synchronized (mLock) {
+                    mWriteAllPending = true;
+                }
             }
-            writeJobsMapImpl(storeCopy);
             if (JobSchedulerService.DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished writing" + (writeAll ? " all jobs" : " changed jobs")
+                        + ", took " + (SystemClock.elapsedRealtime() - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        private void copyPersistedJobsLocked(final List<JobStatus> storeCopy) {
+            // Clone the jobs so we can release the lock before writing.
+            mJobSet.forEachJob(new JobStatusFunctor() {
+                @Override
+                public void process(JobStatus job) {
+                    if (job.isPersisted()) {
+                        storeCopy.add(new JobStatus(job));
+                    }
+                }
+            });
+        }
+
+        private void copyChangedJobsLocked(List<JobStatus> storeCopy, LongArray removedKeys) {
+            for (int i = mChangedJobKeys.size() - 1; i >= 0; i--) {
+                final long key = mChangedJobKeys.valueAt(i);
+                final JobStatus job = mJobSet.get((int) (key >> 32), (int) key);
+                if (job != null && job.isPersisted()) {
+                    storeCopy.add(new JobStatus(job));
+                } else {
+                    removedKeys.add(key);
+                }
+            }
+        }
+
+        private boolean writeJobsMapImpl(List<JobStatus> jobList, boolean binary) {
             try {
+                // The journal of the previous generation must not be applied on top of
+                // this file if we crash before deleting it.
+                final int generation = mJournalGeneration + 1;
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, StandardCharsets.UTF_8.name());
+                XmlSerializer out = XmlUtils.resolveSerializer(baos, binary);
                 out.startDocument(null, true);
                 out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, "journal", Integer.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
-                    JobStatus jobStatus = jobList.get(i);
-                    if (DEBUG) {
-                        Slog.d(TAG, "Saving job " + jobStatus.getJobId());
-                    }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobList.get(i));
                 }
                 out.endTag(null, "job-info");
                 out.endDocument();
 
                 // Write out to disk in one fell sweep.
+                final byte[] bytes = baos.toByteArray();
                 FileOutputStream fos = mJobsFile.startWrite();
-                fos.write(baos.toByteArray());
+                fos.write(bytes);
                 mJobsFile.finishWrite(fos);
-                mDirtyOperations = 0;
+
+                mJournalGeneration = generation;
+                mJournalFile.delete();
+                mJournalLength = 0;
+                mJobsFileLength = bytes.length;
+                mBytesWritten += bytes.length;
+                return true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -325,6 +505,96 @@ public final class JobStore {
                     Slog.d(TAG, "Error persisting bundle.", e);
                 }
             }
+            return false;
+        }
+
+        /**
+         * Append one record per changed job to the journal, starting a new journal for the
+         * current generation of jobs.xml if there is none.
+         */
+        private boolean appendToJournal(List<JobStatus> jobList, LongArray removedKeys) {
+            FileOutputStream fos = null;
+            try {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(baos);
+                if (mJournalLength == 0) {
+                    out.writeInt(JOURNAL_MAGIC);
+                    out.writeInt(mJournalGeneration);
+                }
+                final CRC32 crc = new CRC32();
+                for (int i = 0; i < jobList.size(); i++) {
+                    writeJournalRecord(out, encodeJobRecord(jobList.get(i)), crc);
+                }
+                for (int i = 0; i < removedKeys.size(); i++) {
+                    writeJournalRecord(out, encodeRemovedRecord(removedKeys.get(i)), crc);
+                }
+                out.flush();
+
+                final byte[] bytes = baos.toByteArray();
+                fos = new FileOutputStream(mJournalFile, mJournalLength != 0);
+                fos.write(bytes);
+                FileUtils.sync(fos);
+                mJournalLength += bytes.length;
+                mBytesWritten += bytes.length;
+                return true;
+            } catch (IOException e) {
+                if (DEBUG) {
+                    Slog.v(TAG, "Error appending to job journal.", e);
+                }
+            } catch (XmlPullParserException e) {
+                if (DEBUG) {
+                    Slog.d(TAG, "Error persisting bundle.", e);
+                }
+            } finally {
+                IoUtils.closeQuietly(fos);
+            }
+            return false;
+        }
+
+        private void writeJournalRecord(DataOutputStream out, byte[] record, CRC32 crc)
+                throws IOException {
+            crc.reset();
+            crc.update(record);
+            out.writeInt(record.length);
+            out.writeLong(crc.getValue());
+            out.write(record);
+        }
+
+        private byte[] encodeJobRecord(JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final XmlSerializer out = new BinaryXmlSerializer();
+            out.setOutput(baos, StandardCharsets.UTF_8.name());
+            out.startDocument(null, true);
+            writeJobToXml(out, jobStatus);
+            out.endDocument();
+            return baos.toByteArray();
+        }
+
+        private byte[] encodeRemovedRecord(long key) throws IOException {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final XmlSerializer out = new BinaryXmlSerializer();
+            out.setOutput(baos, StandardCharsets.UTF_8.name());
+            out.startDocument(null, true);
+            out.startTag(null, XML_TAG_JOB_REMOVED);
+            out.attribute(null, "uid", Integer.toString((int) (key >> 32)));
+            out.attribute(null, "jobid", Integer.toString((int) key));
+            out.endTag(null, XML_TAG_JOB_REMOVED);
+            out.endDocument();
+            return baos.toByteArray();
+        }
+
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            if (DEBUG) {
+                Slog.d(TAG, "Saving job " + jobStatus.getJobId());
+            }
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -457,11 +727,10 @@ public final class JobStore {
 
         @Override
         public void run() {
-            try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+            synchronized (mWriteLock) {
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis);
+                    List<JobStatus> jobs = readJobsFile();
+                    jobs = replayJournal(jobs);
                     if (jobs != null) {
                         long now = SystemClock.elapsedRealtime();
                         IActivityManager am = ActivityManager.getService();
@@ -473,7 +742,20 @@ public final class JobStore {
                         }
                     }
                 }
-                fis.close();
+            }
+        }
+
+        private List<JobStatus> readJobsFile() {
+            mJournalGeneration = 0;
+            mJobsFileLength = 0;
+            try {
+                FileInputStream fis = mJobsFile.openRead();
+                try {
+                    mJobsFileLength = mJobsFile.getBaseFile().length();
+                    return readJobMapImpl(fis);
+                } finally {
+                    fis.close();
+                }
             } catch (FileNotFoundException e) {
                 if (JobSchedulerService.DEBUG) {
                     Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
@@ -487,12 +769,150 @@ public final class JobStore {
                     Slog.d(TAG, "Error parsing xml.", e);
                 }
             }
+            return null;
+        }
+
+        /**
+         * Apply every intact record of the journal to the jobs read from jobs.xml. A torn
+         * record at the tail, left behind by a crash in the middle of an append, is truncated
+         * away so that later appends start from a clean record boundary.
+         */
+        private List<JobStatus> replayJournal(List<JobStatus> jobs) {
+            mJournalLength = 0;
+            if (!mJournalFile.exists()) {
+                return jobs;
+            }
+            final long journalLength = mJournalFile.length();
+            final LongSparseArray<JobStatus> changes = new LongSparseArray<>();
+            long validLength = 0;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mJournalFile), 16*1024));
+                if (in.readInt() != JOURNAL_MAGIC || in.readInt() != mJournalGeneration) {
+                    // Left behind by a crash right after rewriting jobs.xml, which already
+                    // holds everything in it.
+                    Slog.i(TAG, "Discarding stale job journal");
+                } else {
+                    validLength = JOURNAL_HEADER_SIZE;
+                    final CRC32 crc = new CRC32();
+                    while (true) {
+                        final byte[] record;
+                        try {
+                            final int length = in.readInt();
+                            final long checksum = in.readLong();
+                            if (length < 0 || validLength + JOURNAL_RECORD_HEADER_SIZE + length
+                                    > journalLength) {
+                                // Torn write of the last record
+                                break;
+                            }
+                            record = new byte[length];
+                            in.readFully(record);
+                            crc.reset();
+                            crc.update(record);
+                            if (crc.getValue() != checksum) {
+                                Slog.w(TAG, "Dropping corrupt job journal record");
+                                break;
+                            }
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        applyJournalRecord(record, changes);
+                        validLength += JOURNAL_RECORD_HEADER_SIZE + record.length;
+                    }
+                }
+            } catch (EOFException e) {
+                // Torn write of the header
+            } catch (XmlPullParserException e) {
+                Slog.w(TAG, "Error parsing job journal.", e);
+            } catch (IOException e) {
+                Slog.w(TAG, "Error reading job journal.", e);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+
+            if (validLength == 0) {
+                mJournalFile.delete();
+            } else if (validLength != journalLength) {
+                RandomAccessFile raf = null;
+                try {
+                    raf = new RandomAccessFile(mJournalFile, "rw");
+                    raf.setLength(validLength);
+                } catch (IOException e) {
+                    Slog.w(TAG, "Cannot truncate job journal", e);
+                    // Start a new journal rather than append behind the torn record
+                    synchronized (mLock) {
+                        mWriteAllPending = true;
+                    }
+                } finally {
+                    IoUtils.closeQuietly(raf);
+                }
+            }
+            mJournalLength = validLength;
+
+            if (changes.size() == 0) {
+                return jobs;
+            }
+            final List<JobStatus> result = new ArrayList<JobStatus>();
+            if (jobs != null) {
+                for (int i = 0; i < jobs.size(); i++) {
+                    final JobStatus job = jobs.get(i);
+                    if (changes.indexOfKey(jobKey(job.getUid(), job.getJobId())) < 0) {
+                        result.add(job);
+                    }
+                }
+            }
+            for (int i = 0; i < changes.size(); i++) {
+                final JobStatus job = changes.valueAt(i);
+                if (job != null) {
+                    result.add(job);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Record the job added or removed by a journal record, with a null job marking a
+         * removal.
+         */
+        private void applyJournalRecord(byte[] record, LongSparseArray<JobStatus> changes)
+                throws XmlPullParserException, IOException {
+            final XmlPullParser parser = new BinaryXmlPullParser();
+            parser.setInput(new ByteArrayInputStream(record), StandardCharsets.UTF_8.name());
+            int eventType;
+            do {
+                eventType = parser.next();
+            } while (eventType != XmlPullParser.START_TAG
+                    && eventType != XmlPullParser.END_DOCUMENT);
+            if (eventType != XmlPullParser.START_TAG) {
+                return;
+            }
+
+            if ("job".equals(parser.getName())) {
+                final JobStatus job = restoreJobFromXml(parser);
+                if (job != null) {
+                    if (DEBUG) {
+                        Slog.d(TAG, "Read out " + job + " from journal");
+                    }
+                    changes.put(jobKey(job.getUid(), job.getJobId()), job);
+                } else {
+                    Slog.d(TAG, "Error reading job from journal.");
+                }
+            } else if (XML_TAG_JOB_REMOVED.equals(parser.getName())) {
+                try {
+                    final int uid = Integer.parseInt(parser.getAttributeValue(null, "uid"));
+                    final int jobId = Integer.parseInt(parser.getAttributeValue(null, "jobid"));
+                    changes.put(jobKey(uid, jobId), null);
+                } catch (NumberFormatException e) {
+                    Slog.d(TAG, "Error reading removed job from journal.");
+                }
+            }
         }
 
         private List<JobStatus> readJobMapImpl(FileInputStream fis)
                 throws XmlPullParserException, IOException {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(fis, StandardCharsets.UTF_8.name());
+            // Text xml is still read, as written before jobs.xml was binary
+            XmlPullParser parser = XmlUtils.resolvePullParser(fis);
 
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.START_TAG &&
@@ -517,6 +937,10 @@ public final class JobStore {
                         Slog.d(TAG, "Invalid version number, aborting jobs file read.");
                         return null;
                     }
+                    final String journal = parser.getAttributeValue(null, "journal");
+                    if (journal != null) {
+                        mJournalGeneration = Integer.parseInt(journal);
+                    }
                 } catch (NumberFormatException e) {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
@@ -800,6 +1224,16 @@ public final class JobStore {
         // Key is the getUid() originator of the jobs in each sheaf
         private SparseArray<ArraySet<JobStatus>> mJobs;
 
+        // The jobs in mJobs that are ready, as told by each job when its readiness changes
+        private final ArraySet<JobStatus> mReadyJobs = new ArraySet<>();
+        private final JobStatus.ReadyListener mReadyListener = (job, ready) -> {
+            if (ready) {
+                mReadyJobs.add(job);
+            } else {
+                mReadyJobs.remove(job);
+            }
+        };
+
         public JobSet() {
             mJobs = new SparseArray<ArraySet<JobStatus>>();
         }
@@ -834,16 +1268,27 @@ public final class JobStore {
                 jobs = new ArraySet<JobStatus>();
                 mJobs.put(uid, jobs);
             }
-            return jobs.add(job);
+            if (!jobs.add(job)) {
+                return false;
+            }
+            job.setReadyListener(mReadyListener);
+            if (job.isReady()) {
+                mReadyJobs.add(job);
+            }
+            return true;
         }
 
         public boolean remove(JobStatus job) {
             final int uid = job.getUid();
             ArraySet<JobStatus> jobs = mJobs.get(uid);
             boolean didRemove = (jobs != null) ? jobs.remove(job) : false;
-            if (didRemove && jobs.size() == 0) {
-                // no more jobs for this uid; let the now-empty set object be GC'd.
-                mJobs.remove(uid);
+            if (didRemove) {
+                job.setReadyListener(null);
+                mReadyJobs.remove(job);
+                if (jobs.size() == 0) {
+                    // no more jobs for this uid; let the now-empty set object be GC'd.
+                    mJobs.remove(uid);
+                }
             }
             return didRemove;
         }
@@ -854,6 +1299,7 @@ public final class JobStore {
                 int jobUserId = UserHandle.getUserId(mJobs.keyAt(jobIndex));
                 // check if job's user id is not in the whitelist
                 if (!ArrayUtils.contains(whitelist, jobUserId)) {
+                    stopListening(mJobs.valueAt(jobIndex));
                     mJobs.removeAt(jobIndex);
                 }
             }
@@ -896,9 +1342,20 @@ public final class JobStore {
         }
 
         public void clear() {
+            for (int i = mJobs.size() - 1; i >= 0; i--) {
+                stopListening(mJobs.valueAt(i));
+            }
             mJobs.clear();
         }
 
+        private void stopListening(ArraySet<JobStatus> jobs) {
+            for (int i = jobs.size() - 1; i >= 0; i--) {
+                final JobStatus job = jobs.valueAt(i);
+                job.setReadyListener(null);
+                mReadyJobs.remove(job);
+            }
+        }
+
         public int size() {
             int total = 0;
             for (int i = mJobs.size() - 1; i >= 0; i--) {
@@ -940,5 +1397,15 @@ public final class JobStore {
                 }
             }
         }
+
+        public void forEachReadyJob(JobStatusFunctor functor) {
+            for (int i = mReadyJobs.size() - 1; i >= 0; i--) {
+                functor.process(mReadyJobs.valueAt(i));
+            }
+        }
+
+        public int countReadyJobs() {
+            return mReadyJobs.size();
+        }
     }
 }
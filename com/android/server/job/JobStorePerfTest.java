@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.app.Activity;
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.FileUtils;
+import android.os.PersistableBundle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.job.controllers.JobStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Compares the cost of persisting a single changed job by appending it to the journal against
+ * rewriting every persisted job, and reports the bytes written per change for each. Also times
+ * loading the jobs at boot from binary xml with and without a journal, against the text
+ * jobs.xml that used to be loaded.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class JobStorePerfTest {
+    private static final int NUM_UIDS = 50;
+    private static final int JOBS_PER_UID = 40;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDataDir;
+    private JobStore mJobStore;
+    private ComponentName mService;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mDataDir = new File(context.getCacheDir(), "jobstore-perf");
+        FileUtils.deleteContents(mDataDir);
+        mJobStore = JobStore.initAndGetForTesting(context, mDataDir);
+        mService = new ComponentName(context, "JobStorePerfTestService");
+        synchronized (mJobStore.mLock) {
+            for (int uid = 0; uid < NUM_UIDS; uid++) {
+                for (int jobId = 0; jobId < JOBS_PER_UID; jobId++) {
+                    mJobStore.add(createJob(10000 + uid, jobId));
+                }
+            }
+        }
+        mJobStore.writeStatusToDiskForTesting();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDataDir);
+    }
+
+    @Test
+    public void timeRescheduleJob_fullRewrite() {
+        timeRescheduleJob("timeRescheduleJob_fullRewrite", false);
+    }
+
+    @Test
+    public void timeRescheduleJob_journal() {
+        timeRescheduleJob("timeRescheduleJob_journal", true);
+    }
+
+    @Test
+    public void timeReadJobMapFromDisk_textFile() {
+        synchronized (mJobStore.mLock) {
+            mJobStore.setBinaryJobsFileForTesting(false);
+        }
+        mJobStore.writeStatusToDiskForTesting();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mJobStore.readJobMapFromDisk(new JobStore.JobSet());
+        }
+    }
+
+    @Test
+    public void timeReadJobMapFromDisk() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mJobStore.readJobMapFromDisk(new JobStore.JobSet());
+        }
+    }
+
+    @Test
+    public void timeReadJobMapFromDisk_withJournal() {
+        // Journal a fifth of the jobs, which stays below the size at which the journal is
+        // folded into jobs.xml, so this is the slowest load of a binary jobs.xml
+        for (int i = 0; i < NUM_UIDS * JOBS_PER_UID / 5; i++) {
+            rescheduleJob(i);
+        }
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mJobStore.readJobMapFromDisk(new JobStore.JobSet());
+        }
+    }
+
+    private void timeRescheduleJob(String key, boolean journal) {
+        synchronized (mJobStore.mLock) {
+            mJobStore.setJournalEnabledForTesting(journal);
+        }
+        mJobStore.writeStatusToDiskForTesting();
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long startBytes = mJobStore.getBytesWrittenForTesting();
+        int iterations = 0;
+        while (state.keepRunning()) {
+            rescheduleJob(iterations++);
+        }
+
+        final Bundle status = new Bundle();
+        status.putLong(key + "_bytesPerWrite",
+                (mJobStore.getBytesWrittenForTesting() - startBytes) / iterations);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private void rescheduleJob(int i) {
+        final int uid = 10000 + (i % NUM_UIDS);
+        final int jobId = (i / NUM_UIDS) % JOBS_PER_UID;
+        synchronized (mJobStore.mLock) {
+            mJobStore.remove(mJobStore.getJobByUidAndJobId(uid, jobId), false);
+            mJobStore.add(createJob(uid, jobId));
+        }
+        mJobStore.writeStatusToDiskForTesting();
+    }
+
+    private JobStatus createJob(int uid, int jobId) {
+        final PersistableBundle extras = new PersistableBundle();
+        extras.putString("account", "user" + uid + "@example.com");
+        extras.putLong("generation", jobId);
+        final JobInfo job = new JobInfo.Builder(jobId, mService)
+                .setPersisted(true)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setMinimumLatency(60 * 60 * 1000)
+                .setExtras(extras)
+                .build();
+        return JobStatus.createFromJobInfo(job, uid, null, -1, null);
+    }
+}
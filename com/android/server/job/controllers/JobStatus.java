@@ -173,8 +173,12 @@ public final class JobStatus {
 
     public int nextPendingWorkId = 1;
 
-    // Used by shell commands
-    public int overrideState = 0;
+    // Used by shell commands, only set through setOverrideState() to keep mReady current
+    private int overrideState = 0;
+
+    // Cached result of isReady(), recomputed whenever the state it depends on changes
+    private boolean mReady;
+    private ReadyListener mReadyListener;
 
     // When this job was enqueued, for ordering.  (in elapsedRealtimeMillis)
     public long enqueueTime;
@@ -263,6 +267,7 @@ public final class JobStatus {
             requiredConstraints |= CONSTRAINT_CONTENT_TRIGGER;
         }
         this.requiredConstraints = requiredConstraints;
+        mReady = computeReady();
     }
 
     /** Copy constructor. */
@@ -650,9 +655,36 @@ public final class JobStatus {
             return false;
         }
         satisfiedConstraints = (satisfiedConstraints&~constraint) | (state ? constraint : 0);
+        updateReady();
         return true;
     }
 
+    public void setOverrideState(int state) {
+        overrideState = state;
+        updateReady();
+    }
+
+    public int getOverrideState() {
+        return overrideState;
+    }
+
+    /**
+     * Set the listener told whenever {@link #isReady()} changes, or null to stop telling it.
+     */
+    public void setReadyListener(ReadyListener listener) {
+        mReadyListener = listener;
+    }
+
+    private void updateReady() {
+        final boolean ready = computeReady();
+        if (ready != mReady) {
+            mReady = ready;
+            if (mReadyListener != null) {
+                mReadyListener.onReadyChanged(this, ready);
+            }
+        }
+    }
+
     boolean isConstraintSatisfied(int constraint) {
         return (satisfiedConstraints&constraint) != 0;
     }
@@ -669,6 +701,14 @@ public final class JobStatus {
         trackingControllers |= which;
     }
 
+    /**
+     * Told when a job becomes ready to run, or stops being ready, as its controllers update
+     * its constraints.
+     */
+    public interface ReadyListener {
+        void onReadyChanged(JobStatus job, boolean ready);
+    }
+
     public boolean shouldDump(int filterUid) {
         return filterUid == -1 || UserHandle.getAppId(getUid()) == filterUid
                 || UserHandle.getAppId(getSourceUid()) == filterUid;
@@ -677,11 +717,12 @@ public final class JobStatus {
     /**
      * @return Whether or not this job is ready to run, based on its requirements. This is true if
      * the constraints are satisfied <strong>or</strong> the deadline on the job has expired.
-     * TODO: This function is called a *lot*.  We should probably just have it check an
-     * already-computed boolean, which we updated whenever we see one of the states it depends
-     * on here change.
      */
     public boolean isReady() {
+        return mReady;
+    }
+
+    private boolean computeReady() {
         // Deadline constraint trumps other constraints (except for periodic jobs where deadline
         // is an implementation detail. A periodic job should only run if its constraints are
         // satisfied).
@@ -25,6 +25,8 @@ import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLong;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLong;
 import static android.net.TrafficStats.UID_REMOVED;
 import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
@@ -52,16 +54,22 @@ import com.google.android.collect.Maps;
 import libcore.io.IoUtils;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Objects;
 
@@ -81,6 +89,25 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    private static final int VERSION_UNIFIED_INDEXED = 17;
+
+    /** Size of each entry in the key index of {@link #VERSION_UNIFIED_INDEXED} files. */
+    private static final int INDEX_ENTRY_SIZE = 24;
+
+    /** Orders keys by UID first, so that all history of a UID is adjacent in the index. */
+    private static final Comparator<Key> UID_ORDER = (a, b) -> {
+        int res = Integer.compare(a.uid, b.uid);
+        if (res == 0) {
+            res = Integer.compare(a.set, b.set);
+        }
+        if (res == 0) {
+            res = Integer.compare(a.tag, b.tag);
+        }
+        if (res == 0) {
+            res = a.ident.compareTo(b.ident);
+        }
+        return res;
+    };
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
@@ -302,6 +329,19 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    /**
+     * Record the {@link NetworkStatsHistory} of a single UID contained in the
+     * given collection into this collection.
+     */
+    public void recordCollectionForUid(NetworkStatsCollection another, int uid) {
+        for (int i = 0; i < another.mStats.size(); i++) {
+            final Key key = another.mStats.keyAt(i);
+            if (key.uid == uid) {
+                recordHistory(key, another.mStats.valueAt(i));
+            }
+        }
+    }
+
     private NetworkStatsHistory findOrCreateHistory(
             NetworkIdentitySet ident, int uid, int set, int tag) {
         final Key key = new Key(ident, uid, set, tag);
@@ -356,45 +396,211 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                 }
                 break;
             }
+            case VERSION_UNIFIED_INDEXED: {
+                // history is stored in the same order as the index, so a
+                // stream can simply decode every entry in turn
+                final int identCount = in.readInt();
+                // length of the ident table, which only readUid() skips
+                in.readInt();
+                final NetworkIdentitySet[] idents = readIdents(in, identCount);
+                final int size = in.readInt();
+                final Key[] keys = new Key[size];
+                final int[] bucketCounts = new int[size];
+                for (int i = 0; i < size; i++) {
+                    final int uid = in.readInt();
+                    final int set = in.readInt();
+                    final int tag = in.readInt();
+                    final NetworkIdentitySet ident = getIdent(idents, in.readInt());
+                    bucketCounts[i] = in.readInt();
+                    // offset of the history, which is next anyway
+                    in.readInt();
+                    keys[i] = new Key(ident, uid, set, tag);
+                }
+                for (int i = 0; i < size; i++) {
+                    recordHistory(keys[i], readHistory(in, bucketCounts[i]));
+                }
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
         }
     }
 
+    /**
+     * Read only the {@link NetworkStatsHistory} attributed to the requested UID
+     * from the given file. Indexed files are memory-mapped so that only their key
+     * index and the buckets of that UID are decoded, along with the identities if
+     * the UID has any history; older files are read completely.
+     */
+    public void readUid(File file, int uid) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.limit() < 8 || buf.getInt(0) != FILE_MAGIC
+                    || buf.getInt(4) != VERSION_UNIFIED_INDEXED) {
+                final NetworkStatsCollection all = new NetworkStatsCollection(mBucketDuration);
+                all.read(new BufferedInputStream(in));
+                recordCollectionForUid(all, uid);
+                return;
+            }
+
+            buf.position(8);
+            final DataInputStream data = new DataInputStream(new ByteBufferInputStream(buf));
+            final int identCount = buf.getInt();
+            final int identLength = buf.getInt();
+            final int identStart = buf.position();
+            buf.position(identStart + identLength);
+            final int size = buf.getInt();
+            final int indexStart = buf.position();
+            final int dataStart = indexStart + size * INDEX_ENTRY_SIZE;
+
+            // index is sorted by UID; find the first entry of the requested UID
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (buf.getInt(indexStart + mid * INDEX_ENTRY_SIZE) < uid) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+
+            NetworkIdentitySet[] idents = null;
+            for (int i = lo; i < size; i++) {
+                final int entry = indexStart + i * INDEX_ENTRY_SIZE;
+                if (buf.getInt(entry) != uid) break;
+
+                if (idents == null) {
+                    buf.position(identStart);
+                    idents = readIdents(data, identCount);
+                }
+                final Key key = new Key(getIdent(idents, buf.getInt(entry + 12)), uid,
+                        buf.getInt(entry + 4), buf.getInt(entry + 8));
+                buf.position(dataStart + buf.getInt(entry + 20));
+                recordHistory(key, readHistory(data, buf.getInt(entry + 16)));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException
+                | IndexOutOfBoundsException e) {
+            throw new ProtocolException("corrupt index in " + file + ": " + e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
     public void write(DataOutputStream out) throws IOException {
-        // cluster key lists grouped by ident
-        final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
-        for (Key key : mStats.keySet()) {
-            ArrayList<Key> keys = keysByIdent.get(key.ident);
-            if (keys == null) {
-                keys = Lists.newArrayList();
-                keysByIdent.put(key.ident, keys);
+        // indexed := identSize identLength *(NetworkIdentitySet) size *(index) *(history)
+        // index := uid set tag ident bucketCount offset
+        // history := bucketDuration *(startDelta activeTime rxBytes rxPackets txBytes
+        //            txPackets operations), with bucketCount entries
+        final ArrayList<Key> keys = Lists.newArrayList();
+        keys.addAll(mStats.keySet());
+        Collections.sort(keys, UID_ORDER);
+
+        final HashMap<NetworkIdentitySet, Integer> identIndex = Maps.newHashMap();
+        final ByteArrayOutputStream identBytes = new ByteArrayOutputStream();
+        final DataOutputStream identOut = new DataOutputStream(identBytes);
+        for (Key key : keys) {
+            if (!identIndex.containsKey(key.ident)) {
+                identIndex.put(key.ident, identIndex.size());
+                key.ident.writeToStream(identOut);
             }
-            keys.add(key);
         }
+        identOut.flush();
 
         out.writeInt(FILE_MAGIC);
-        out.writeInt(VERSION_UNIFIED_INIT);
-
-        out.writeInt(keysByIdent.size());
-        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
-            ident.writeToStream(out);
-
-            out.writeInt(keys.size());
-            for (Key key : keys) {
-                final NetworkStatsHistory history = mStats.get(key);
-                out.writeInt(key.uid);
-                out.writeInt(key.set);
-                out.writeInt(key.tag);
-                history.writeToStream(out);
-            }
+        out.writeInt(VERSION_UNIFIED_INDEXED);
+
+        out.writeInt(identIndex.size());
+        out.writeInt(identBytes.size());
+        identBytes.writeTo(out);
+
+        // history is staged so that the index can point at it
+        final ByteArrayOutputStream historyBytes = new ByteArrayOutputStream();
+        final DataOutputStream historyOut = new DataOutputStream(historyBytes);
+        NetworkStatsHistory.Entry entry = null;
+
+        out.writeInt(keys.size());
+        for (Key key : keys) {
+            final NetworkStatsHistory history = mStats.get(key);
+            out.writeInt(key.uid);
+            out.writeInt(key.set);
+            out.writeInt(key.tag);
+            out.writeInt(identIndex.get(key.ident));
+            out.writeInt(history.size());
+            out.writeInt(historyOut.size());
+            entry = writeHistory(historyOut, history, entry);
         }
+        historyOut.flush();
+        historyBytes.writeTo(out);
 
         out.flush();
     }
 
+    private static NetworkStatsHistory.Entry writeHistory(DataOutputStream out,
+            NetworkStatsHistory history, NetworkStatsHistory.Entry recycle) throws IOException {
+        out.writeLong(history.getBucketDuration());
+        long lastStart = 0;
+        for (int i = 0; i < history.size(); i++) {
+            recycle = history.getValues(i, recycle);
+            writeVarLong(out, recycle.bucketStart - lastStart);
+            lastStart = recycle.bucketStart;
+            writeVarLong(out, recycle.activeTime);
+            writeVarLong(out, recycle.rxBytes);
+            writeVarLong(out, recycle.rxPackets);
+            writeVarLong(out, recycle.txBytes);
+            writeVarLong(out, recycle.txPackets);
+            writeVarLong(out, recycle.operations);
+        }
+        return recycle;
+    }
+
+    private static NetworkStatsHistory readHistory(DataInputStream in, int bucketCount)
+            throws IOException {
+        if (bucketCount < 0) throw new ProtocolException("negative bucket count");
+        final long bucketDuration = in.readLong();
+        final long[] bucketStart = new long[bucketCount];
+        final long[] activeTime = new long[bucketCount];
+        final long[] rxBytes = new long[bucketCount];
+        final long[] rxPackets = new long[bucketCount];
+        final long[] txBytes = new long[bucketCount];
+        final long[] txPackets = new long[bucketCount];
+        final long[] operations = new long[bucketCount];
+        long lastStart = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            lastStart += readVarLong(in);
+            bucketStart[i] = lastStart;
+            activeTime[i] = readVarLong(in);
+            rxBytes[i] = readVarLong(in);
+            rxPackets[i] = readVarLong(in);
+            txBytes[i] = readVarLong(in);
+            txPackets[i] = readVarLong(in);
+            operations[i] = readVarLong(in);
+        }
+        return new NetworkStatsHistory(bucketDuration, bucketStart, activeTime, rxBytes,
+                rxPackets, txBytes, txPackets, operations);
+    }
+
+    private static NetworkIdentitySet[] readIdents(DataInputStream in, int size)
+            throws IOException {
+        if (size < 0) throw new ProtocolException("negative ident count");
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[size];
+        for (int i = 0; i < size; i++) {
+            idents[i] = new NetworkIdentitySet(in);
+        }
+        return idents;
+    }
+
+    private static NetworkIdentitySet getIdent(NetworkIdentitySet[] idents, int index)
+            throws ProtocolException {
+        if (index < 0 || index >= idents.length) {
+            throw new ProtocolException("unexpected ident index: " + index);
+        }
+        return idents[index];
+    }
+
     @Deprecated
     public void readLegacyNetwork(File file) throws IOException {
         final AtomicFile inputFile = new AtomicFile(file);
@@ -642,6 +848,31 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return false;
     }
 
+    /**
+     * Stream over the remaining contents of a {@link ByteBuffer}, which moves
+     * the position of that buffer as it is read.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!mBuffer.hasRemaining()) return -1;
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+    }
+
     private static class Key implements Comparable<Key> {
         public final NetworkIdentitySet ident;
         public final int uid;
@@ -182,6 +182,42 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Return a collection holding at least the complete history of a single
+     * UID. Uses the cached complete history when present, otherwise only reads
+     * the buckets of that UID from the rotated files. Unlike the complete
+     * history, the result isn't updated with future snapshots.
+     */
+    public NetworkStatsCollection getOrLoadUidLocked(int uid) {
+        checkNotNull(mRotator, "missing FileRotator");
+        NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
+        if (res == null) {
+            res = loadUidLocked(uid);
+        }
+        return res;
+    }
+
+    private NetworkStatsCollection loadUidLocked(final int uid) {
+        if (LOGD) Slog.d(TAG, "loadUidLocked() reading uid " + uid + " from disk for " + mCookie);
+        final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
+        try {
+            mRotator.readMatchingFiles(new FileRotator.FileReader() {
+                @Override
+                public void read(File file) throws IOException {
+                    res.readUid(file, uid);
+                }
+            }, Long.MIN_VALUE, Long.MAX_VALUE);
+            res.recordCollectionForUid(mPending, uid);
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem reading network stats for uid " + uid, e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem reading network stats for uid " + uid, e);
+            recoverFromWtf();
+        }
+        return res;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
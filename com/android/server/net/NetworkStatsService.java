@@ -115,6 +115,7 @@ import android.util.Log;
 import android.util.MathUtils;
 import android.util.NtpTrustedTime;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.TrustedTime;
 import android.util.proto.ProtoOutputStream;
@@ -156,6 +157,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     private static final String TAG_NETSTATS_ERROR = "netstats_error";
 
+    /**
+     * Number of UIDs whose history a session caches one at a time, before it
+     * loads the complete history instead.
+     */
+    private static final int MAX_SESSION_UID_HISTORIES = 16;
+
     private final Context mContext;
     private final INetworkManagementService mNetworkManager;
     private final AlarmManager mAlarmManager;
@@ -494,12 +501,18 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         return new INetworkStatsSession.Stub() {
             private NetworkStatsCollection mUidComplete;
             private NetworkStatsCollection mUidTagComplete;
+            // history of single uids, held until the complete history is loaded
+            private final SparseArray<NetworkStatsCollection> mUidHistories =
+                    new SparseArray<>();
+            private final SparseArray<NetworkStatsCollection> mUidTagHistories =
+                    new SparseArray<>();
             private String mCallingPackage = callingPackage;
 
             private NetworkStatsCollection getUidComplete() {
                 synchronized (mStatsLock) {
                     if (mUidComplete == null) {
                         mUidComplete = mUidRecorder.getOrLoadCompleteLocked();
+                        mUidHistories.clear();
                     }
                     return mUidComplete;
                 }
@@ -509,11 +522,50 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 synchronized (mStatsLock) {
                     if (mUidTagComplete == null) {
                         mUidTagComplete = mUidTagRecorder.getOrLoadCompleteLocked();
+                        mUidTagHistories.clear();
                     }
                     return mUidTagComplete;
                 }
             }
 
+            /**
+             * Return a collection holding the history of a single uid, preferring
+             * any complete history this session already holds. Otherwise only the
+             * buckets of that uid are read from disk, once per session, until so
+             * many uids were asked for that loading everything is cheaper.
+             */
+            private NetworkStatsCollection getUidCollectionLocked(int uid, boolean tagged) {
+                final NetworkStatsCollection complete = tagged ? mUidTagComplete : mUidComplete;
+                if (complete != null) {
+                    return complete;
+                }
+                final SparseArray<NetworkStatsCollection> histories =
+                        tagged ? mUidTagHistories : mUidHistories;
+                NetworkStatsCollection res = histories.get(uid);
+                if (res == null) {
+                    if (histories.size() >= MAX_SESSION_UID_HISTORIES) {
+                        return tagged ? getUidTagComplete() : getUidComplete();
+                    }
+                    res = (tagged ? mUidTagRecorder : mUidRecorder).getOrLoadUidLocked(uid);
+                    histories.put(uid, res);
+                }
+                return res;
+            }
+
+            private NetworkStatsHistory getUidHistory(NetworkTemplate template, int uid,
+                    int set, int tag, int fields, long start, long end,
+                    @NetworkStatsAccess.Level int accessLevel) {
+                final int callingUid = Binder.getCallingUid();
+                if (!NetworkStatsAccess.isAccessibleToUser(uid, callingUid, accessLevel)) {
+                    throw new SecurityException("Network stats history of uid " + uid
+                            + " is forbidden for caller " + callingUid);
+                }
+                synchronized (mStatsLock) {
+                    return getUidCollectionLocked(uid, tag != TAG_NONE).getHistory(template,
+                            uid, set, tag, fields, start, end, accessLevel, callingUid);
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(checkAccessLevel(mCallingPackage));
@@ -579,13 +631,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStatsHistory getHistoryForUid(
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 @NetworkStatsAccess.Level int accessLevel = checkAccessLevel(mCallingPackage);
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, uid, set, tag, fields,
-                            accessLevel);
-                } else {
-                    return getUidTagComplete().getHistory(template, uid, set, tag, fields,
-                            accessLevel);
-                }
+                return getUidHistory(template, uid, set, tag, fields, Long.MIN_VALUE,
+                        Long.MAX_VALUE, accessLevel);
             }
 
             @Override
@@ -593,12 +640,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, int uid, int set, int tag, int fields,
                     long start, long end) {
                 @NetworkStatsAccess.Level int accessLevel = checkAccessLevel(mCallingPackage);
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, uid, set, tag, fields, start, end,
+                if (tag == TAG_NONE || uid == Binder.getCallingUid()) {
+                    return getUidHistory(template, uid, set, tag, fields, start, end,
                             accessLevel);
-                } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, uid, set, tag, fields,
-                            start, end, accessLevel);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
@@ -609,6 +653,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public void close() {
                 mUidComplete = null;
                 mUidTagComplete = null;
+                synchronized (mStatsLock) {
+                    mUidHistories.clear();
+                    mUidTagHistories.clear();
+                }
             }
         };
     }
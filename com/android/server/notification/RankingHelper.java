@@ -89,6 +89,10 @@ public class RankingHelper implements RankingConfig {
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
+    // Also guarded by mProxyByGroupTmp
+    private final ArrayList<NotificationRecord> mPreliminaryOrderTmp = new ArrayList<>();
+    private NotificationRecord[] mRankSlotsTmp = new NotificationRecord[16];
+    private final StringBuilder mSortKeyTmp = new StringBuilder();
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
 
     private final Context mContext;
@@ -413,56 +417,163 @@ public class RankingHelper implements RankingConfig {
         Collections.sort(notificationList, mPreliminaryComparator);
 
         synchronized (mProxyByGroupTmp) {
-            // record individual ranking result and nominate proxies for each group
-            for (int i = N - 1; i >= 0; i--) {
-                final NotificationRecord record = notificationList.get(i);
-                record.setAuthoritativeRank(i);
-                final String groupKey = record.getGroupKey();
-                NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
-                if (existingProxy == null
-                        || record.getImportance() > existingProxy.getImportance()) {
-                    mProxyByGroupTmp.put(groupKey, record);
-                }
-            }
-            // assign global sort key:
-            //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
-            for (int i = 0; i < N; i++) {
-                final NotificationRecord record = notificationList.get(i);
-                NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
-                String groupSortKey = record.getNotification().getSortKey();
-
-                // We need to make sure the developer provided group sort key (gsk) is handled
-                // correctly:
-                //   gsk="" < gsk=non-null-string < gsk=null
-                //
-                // We enforce this by using different prefixes for these three cases.
-                String groupSortKeyPortion;
-                if (groupSortKey == null) {
-                    groupSortKeyPortion = "nsk";
-                } else if (groupSortKey.equals("")) {
-                    groupSortKeyPortion = "esk";
-                } else {
-                    groupSortKeyPortion = "gsk=" + groupSortKey;
-                }
+            updateGlobalSortKeysLocked(notificationList);
+        }
 
-                boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+        // Do a second ranking pass, using group proxies
+        Collections.sort(notificationList, mFinalComparator);
+    }
+
+    /**
+     * Sorts a list that was last sorted by this helper, and in which only {@code changed} was
+     * added, replaced another record, or had its signals change since.  The other records keep
+     * their individual ranks relative to each other, so only {@code changed} is compared
+     * against them, and the final pass only has to move the records whose group rank changed.
+     * Falls back to {@link #sort(ArrayList)} if the list doesn't look like that.
+     */
+    public void sort(ArrayList<NotificationRecord> notificationList, NotificationRecord changed) {
+        synchronized (mProxyByGroupTmp) {
+            if (!restorePreliminaryOrderLocked(notificationList, changed)) {
+                mPreliminaryOrderTmp.clear();
+                sort(notificationList);
+                return;
+            }
+            final ArrayList<NotificationRecord> order = mPreliminaryOrderTmp;
+            int index = Collections.binarySearch(order, changed, mPreliminaryComparator);
+            if (index < 0) {
+                index = -index - 1;
             }
-            mProxyByGroupTmp.clear();
+            order.add(index, changed);
+            updateGlobalSortKeysLocked(order);
+            order.clear();
         }
 
-        // Do a second ranking pass, using group proxies
+        // The list is still in its previous order, which the final comparator only needs to
+        // adjust around the changed record and its group.
         Collections.sort(notificationList, mFinalComparator);
     }
 
+    /**
+     * Puts the records of the list other than {@code changed} into {@link #mPreliminaryOrderTmp}
+     * in the order given by their authoritative ranks from the last sort.  Returns false if
+     * they don't all have a distinct rank from a previous sort.
+     */
+    private boolean restorePreliminaryOrderLocked(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord changed) {
+        final int N = notificationList.size();
+        int unchanged = 0;
+        int maxRank = -1;
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = notificationList.get(i);
+            if (record == changed) {
+                continue;
+            }
+            final int rank = record.getAuthoritativeRank();
+            if (record.getGlobalSortKey() == null || rank < 0) {
+                return false;
+            }
+            maxRank = Math.max(maxRank, rank);
+            unchanged++;
+        }
+        if (unchanged != N - 1 || maxRank >= 2 * N + 16) {
+            // The changed record isn't in the list exactly once, or the ranks are from a
+            // much larger list
+            return false;
+        }
+
+        // Ranks have gaps where records were removed since the last sort
+        if (mRankSlotsTmp.length <= maxRank) {
+            mRankSlotsTmp = new NotificationRecord[Math.max(maxRank + 1,
+                    mRankSlotsTmp.length * 2)];
+        }
+        final NotificationRecord[] slots = mRankSlotsTmp;
+        boolean distinct = true;
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = notificationList.get(i);
+            if (record == changed) {
+                continue;
+            }
+            final int rank = record.getAuthoritativeRank();
+            if (slots[rank] != null) {
+                distinct = false;
+            }
+            slots[rank] = record;
+        }
+        final ArrayList<NotificationRecord> order = mPreliminaryOrderTmp;
+        for (int rank = 0; rank <= maxRank; rank++) {
+            if (slots[rank] != null) {
+                order.add(slots[rank]);
+                slots[rank] = null;
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Records the authoritative rank of each record of a list in preliminary order, and
+     * assigns their global sort keys from them and from their group proxies.
+     */
+    private void updateGlobalSortKeysLocked(ArrayList<NotificationRecord> preliminaryOrder) {
+        final int N = preliminaryOrder.size();
+        // record individual ranking result and nominate proxies for each group
+        for (int i = N - 1; i >= 0; i--) {
+            final NotificationRecord record = preliminaryOrder.get(i);
+            record.setAuthoritativeRank(i);
+            final String groupKey = record.getGroupKey();
+            NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
+            if (existingProxy == null
+                    || record.getImportance() > existingProxy.getImportance()) {
+                mProxyByGroupTmp.put(groupKey, record);
+            }
+        }
+        // assign global sort key:
+        //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
+        final StringBuilder sortKey = mSortKeyTmp;
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = preliminaryOrder.get(i);
+            NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
+            String groupSortKey = record.getNotification().getSortKey();
+
+            // We need to make sure the developer provided group sort key (gsk) is handled
+            // correctly:
+            //   gsk="" < gsk=non-null-string < gsk=null
+            //
+            // We enforce this by using different prefixes for these three cases.
+            String groupSortKeyPortion;
+            if (groupSortKey == null) {
+                groupSortKeyPortion = "nsk";
+            } else if (groupSortKey.equals("")) {
+                groupSortKeyPortion = "esk";
+            } else {
+                groupSortKeyPortion = "gsk=" + groupSortKey;
+            }
+
+            boolean isGroupSummary = record.getNotification().isGroupSummary();
+            // Same as "intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x", without the cost of
+            // String.format() for every record
+            sortKey.setLength(0);
+            sortKey.append("intrsv=").append(record.isRecentlyIntrusive()
+                    && record.getImportance() > NotificationManager.IMPORTANCE_MIN
+                    ? '0' : '1');
+            sortKey.append(":grnk=0x");
+            appendHex4(sortKey, groupProxy.getAuthoritativeRank());
+            sortKey.append(":gsmry=").append(isGroupSummary ? '0' : '1');
+            sortKey.append(':').append(groupSortKeyPortion);
+            sortKey.append(":rnk=0x");
+            appendHex4(sortKey, record.getAuthoritativeRank());
+            record.setGlobalSortKey(sortKey.toString());
+        }
+        mProxyByGroupTmp.clear();
+    }
+
+    private static void appendHex4(StringBuilder sb, int value) {
+        final String hex = Integer.toHexString(value);
+        for (int i = hex.length(); i < 4; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
+    }
+
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
         return Collections.binarySearch(notificationList, target, mFinalComparator);
     }
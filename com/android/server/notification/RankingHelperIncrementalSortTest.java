@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.notification;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Process;
+import android.os.UserHandle;
+import android.service.notification.StatusBarNotification;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that {@link RankingHelper#sort(ArrayList, NotificationRecord)} always gives the same
+ * order and global sort keys as a full {@link RankingHelper#sort(ArrayList)}, over random
+ * posts, updates, removals and signal changes of grouped and ungrouped notifications.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RankingHelperIncrementalSortTest {
+    private static final int NUM_PACKAGES = 6;
+    private static final int INITIAL_NOTIFICATIONS = 40;
+    private static final int STEPS = 1000;
+
+    private static final String[] EXTRACTORS = {
+            "com.android.server.notification.ImportanceExtractor",
+            "com.android.server.notification.PriorityExtractor",
+            "com.android.server.notification.VisibilityExtractor",
+            "com.android.server.notification.BadgeExtractor",
+    };
+
+    private Context mContext;
+    private RankingHelper mRankingHelper;
+    private NotificationChannel[] mChannels;
+    private final Random mRandom = new Random(7);
+    private long mPostTime = 1500000000000L;
+
+    private final ArrayList<NotificationRecord> mNotificationList = new ArrayList<>();
+    private final ArrayMap<String, NotificationRecord> mNotificationsByKey = new ArrayMap<>();
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mRankingHelper = new RankingHelper(mContext, mContext.getPackageManager(),
+                new RankingHandler() {
+                    @Override
+                    public void requestSort(boolean forceUpdate) {
+                    }
+
+                    @Override
+                    public void requestReconsideration(RankingReconsideration recon) {
+                    }
+                }, new NotificationUsageStats(mContext), EXTRACTORS);
+        mChannels = new NotificationChannel[] {
+                new NotificationChannel("low", "low", NotificationManager.IMPORTANCE_LOW),
+                new NotificationChannel("default", "default",
+                        NotificationManager.IMPORTANCE_DEFAULT),
+                new NotificationChannel("high", "high", NotificationManager.IMPORTANCE_HIGH),
+        };
+
+        for (int i = 0; i < INITIAL_NOTIFICATIONS; i++) {
+            final NotificationRecord r = nextRecord();
+            post(r);
+            mRankingHelper.extractSignals(r);
+        }
+        mRankingHelper.sort(mNotificationList);
+    }
+
+    @Test
+    public void testIncrementalSortMatchesFullSort() {
+        for (int step = 0; step < STEPS; step++) {
+            if (mNotificationList.size() > 1 && mRandom.nextInt(5) == 0) {
+                // Removals leave gaps in the ranks seen by the next incremental sort
+                final NotificationRecord removed =
+                        mNotificationList.remove(mRandom.nextInt(mNotificationList.size()));
+                mNotificationsByKey.remove(removed.getKey());
+            }
+
+            final NotificationRecord changed;
+            if (mRandom.nextInt(3) == 0 && !mNotificationList.isEmpty()) {
+                changed = mNotificationList.get(mRandom.nextInt(mNotificationList.size()));
+                changeSignals(changed);
+            } else {
+                changed = nextRecord();
+                post(changed);
+                mRankingHelper.extractSignals(changed);
+            }
+
+            mRankingHelper.sort(mNotificationList, changed);
+            final ArrayList<NotificationRecord> incrementalOrder =
+                    new ArrayList<>(mNotificationList);
+            final ArrayList<String> incrementalKeys = getGlobalSortKeys(mNotificationList);
+
+            mRankingHelper.sort(mNotificationList);
+            assertEquals("order after step " + step, mNotificationList, incrementalOrder);
+            assertEquals("global sort keys after step " + step,
+                    getGlobalSortKeys(mNotificationList), incrementalKeys);
+        }
+    }
+
+    private void changeSignals(NotificationRecord r) {
+        switch (mRandom.nextInt(3)) {
+            case 0:
+                r.setRecentlyIntrusive(!r.isRecentlyIntrusive());
+                break;
+            case 1:
+                r.setContactAffinity(mRandom.nextFloat());
+                break;
+            default:
+                r.setUserImportance(NotificationManager.IMPORTANCE_LOW + mRandom.nextInt(3));
+                mRankingHelper.extractSignals(r);
+                break;
+        }
+    }
+
+    private static ArrayList<String> getGlobalSortKeys(ArrayList<NotificationRecord> list) {
+        final ArrayList<String> keys = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            keys.add(list.get(i).getGlobalSortKey());
+        }
+        return keys;
+    }
+
+    private void post(NotificationRecord r) {
+        final NotificationRecord old = mNotificationsByKey.put(r.getKey(), r);
+        if (old == null) {
+            mNotificationList.add(r);
+        } else {
+            mNotificationList.set(mNotificationList.indexOf(old), r);
+        }
+    }
+
+    private NotificationRecord nextRecord() {
+        final int kind = mRandom.nextInt(3);
+        if (kind == 0) {
+            // A few groups with summaries, in which the app sets some of the sort keys
+            final int group = mRandom.nextInt(3);
+            final boolean summary = mRandom.nextInt(3) == 0;
+            final int id = summary ? group : 100 + mRandom.nextInt(10);
+            final String sortKey;
+            switch (mRandom.nextInt(3)) {
+                case 0:
+                    sortKey = null;
+                    break;
+                case 1:
+                    sortKey = "";
+                    break;
+                default:
+                    sortKey = "key" + mRandom.nextInt(5);
+                    break;
+            }
+            return createRecord("com.example.grouped", id, "group" + group, summary, sortKey,
+                    mRandom.nextInt(mChannels.length));
+        } else {
+            return createRecord("com.example.app" + mRandom.nextInt(NUM_PACKAGES),
+                    mRandom.nextInt(4), null, false, null, mRandom.nextInt(mChannels.length));
+        }
+    }
+
+    private NotificationRecord createRecord(String pkg, int id, String group,
+            boolean groupSummary, String sortKey, int channel) {
+        final Notification.Builder builder = new Notification.Builder(mContext,
+                mChannels[channel].getId())
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .setContentTitle("Title " + id)
+                .setPriority(mRandom.nextInt(3) - 1);
+        if (group != null) {
+            builder.setGroup(group).setGroupSummary(groupSummary);
+        }
+        if (sortKey != null) {
+            builder.setSortKey(sortKey);
+        }
+        final StatusBarNotification sbn = new StatusBarNotification(pkg, pkg, id, null,
+                Process.myUid(), 0, builder.build(), UserHandle.SYSTEM, null, mPostTime++);
+        return new NotificationRecord(mContext, sbn, mChannels[channel]);
+    }
+}
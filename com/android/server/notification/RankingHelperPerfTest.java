@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.notification;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Process;
+import android.os.UserHandle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.service.notification.StatusBarNotification;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Replays a trace of notification posts and updates, as NotificationManagerService handles
+ * them, and compares re-sorting the whole list for each one against sorting in just the
+ * changed record.
+ *
+ * The trace is made of a messaging app posting to a few conversation groups with summaries,
+ * a download manager updating the progress of a handful of ongoing notifications, an email
+ * app posting to one group, and a long tail of apps posting and updating single
+ * notifications.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class RankingHelperPerfTest {
+    private static final int NUM_OTHER_PACKAGES = 40;
+    private static final int INITIAL_NOTIFICATIONS = 300;
+    private static final int TRACE_LENGTH = 2000;
+
+    private static final String[] EXTRACTORS = {
+            "com.android.server.notification.ImportanceExtractor",
+            "com.android.server.notification.PriorityExtractor",
+            "com.android.server.notification.VisibilityExtractor",
+            "com.android.server.notification.BadgeExtractor",
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+    private RankingHelper mRankingHelper;
+    private NotificationChannel[] mChannels;
+    private final Random mRandom = new Random(42);
+    private long mPostTime = 1500000000000L;
+
+    private final ArrayList<NotificationRecord> mNotificationList = new ArrayList<>();
+    private final ArrayMap<String, NotificationRecord> mNotificationsByKey = new ArrayMap<>();
+    private final ArrayList<NotificationRecord> mTrace = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mRankingHelper = new RankingHelper(mContext, mContext.getPackageManager(),
+                new RankingHandler() {
+                    @Override
+                    public void requestSort(boolean forceUpdate) {
+                    }
+
+                    @Override
+                    public void requestReconsideration(RankingReconsideration recon) {
+                    }
+                }, new NotificationUsageStats(mContext), EXTRACTORS);
+        mChannels = new NotificationChannel[] {
+                new NotificationChannel("low", "low", NotificationManager.IMPORTANCE_LOW),
+                new NotificationChannel("default", "default",
+                        NotificationManager.IMPORTANCE_DEFAULT),
+                new NotificationChannel("high", "high", NotificationManager.IMPORTANCE_HIGH),
+        };
+
+        for (int i = 0; i < INITIAL_NOTIFICATIONS; i++) {
+            post(nextRecord());
+        }
+        mRankingHelper.sort(mNotificationList);
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            mTrace.add(nextRecord());
+        }
+    }
+
+    @Test
+    public void timePostTrace_fullSort() {
+        timePostTrace(false);
+    }
+
+    @Test
+    public void timePostTrace_incrementalSort() {
+        timePostTrace(true);
+    }
+
+    private void timePostTrace(boolean incremental) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            final NotificationRecord r = mTrace.get(i++ % TRACE_LENGTH);
+            post(r);
+            mRankingHelper.extractSignals(r);
+            if (incremental) {
+                mRankingHelper.sort(mNotificationList, r);
+            } else {
+                mRankingHelper.sort(mNotificationList);
+            }
+        }
+    }
+
+    private void post(NotificationRecord r) {
+        final NotificationRecord old = mNotificationsByKey.put(r.getKey(), r);
+        if (old == null) {
+            mNotificationList.add(r);
+        } else {
+            mNotificationList.set(mNotificationList.indexOf(old), r);
+        }
+    }
+
+    private NotificationRecord nextRecord() {
+        final int kind = mRandom.nextInt(10);
+        if (kind < 4) {
+            // Messaging: a new message in a conversation, and its group summary
+            final int conversation = mRandom.nextInt(8);
+            final boolean summary = mRandom.nextInt(3) == 0;
+            final int id = summary ? conversation : 100 + mRandom.nextInt(20);
+            return createRecord("com.example.messaging", id, "conversation" + conversation,
+                    summary, null, 2);
+        } else if (kind < 6) {
+            // Download progress on one of a few ongoing notifications
+            return createRecord("com.example.downloads", mRandom.nextInt(4), null, false,
+                    null, 0);
+        } else if (kind < 7) {
+            // Email: one group, sorted by the app
+            final boolean summary = mRandom.nextInt(4) == 0;
+            final int id = summary ? 0 : 1 + mRandom.nextInt(30);
+            return createRecord("com.example.email", id, "inbox", summary,
+                    String.format("%08d", Integer.MAX_VALUE - id), 1);
+        } else {
+            return createRecord("com.example.app" + mRandom.nextInt(NUM_OTHER_PACKAGES),
+                    mRandom.nextInt(5), null, false, null, mRandom.nextInt(mChannels.length));
+        }
+    }
+
+    private NotificationRecord createRecord(String pkg, int id, String group,
+            boolean groupSummary, String sortKey, int channel) {
+        final Notification.Builder builder = new Notification.Builder(mContext,
+                mChannels[channel].getId())
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .setContentTitle("Title " + id)
+                .setPriority(mRandom.nextInt(3) - 1);
+        if (group != null) {
+            builder.setGroup(group).setGroupSummary(groupSummary);
+        }
+        if (sortKey != null) {
+            builder.setSortKey(sortKey);
+        }
+        final StatusBarNotification sbn = new StatusBarNotification(pkg, pkg, id, null,
+                Process.myUid(), 0, builder.build(), UserHandle.SYSTEM, null, mPostTime++);
+        return new NotificationRecord(mContext, sbn, mChannels[channel]);
+    }
+}
@@ -157,6 +157,7 @@ import android.content.pm.PackageParser;
 import android.content.pm.PackageParser.ActivityIntentInfo;
 import android.content.pm.PackageParser.PackageLite;
 import android.content.pm.PackageParser.PackageParserException;
+import android.content.pm.PackageSnapshot;
 import android.content.pm.PackageStats;
 import android.content.pm.PackageUserState;
 import android.content.pm.ParceledListSlice;
@@ -594,7 +595,7 @@ public class PackageManagerService extends IPackageManager.Stub
      * Version number for the package parser cache. Increment this whenever the format or
      * extent of cached data changes. See {@code PackageParser#setCacheDir}.
      */
-    private static final String PACKAGE_PARSER_CACHE_VERSION = "1";
+    private static final String PACKAGE_PARSER_CACHE_VERSION = "2";
 
     /**
      * Whether the package parser cache is enabled.
@@ -1301,9 +1302,13 @@ public class PackageManagerService extends IPackageManager.Stub
     static final int INTENT_FILTER_VERIFIED = 18;
     static final int WRITE_PACKAGE_LIST = 19;
     static final int INSTANT_APP_RESOLUTION_PHASE_TWO = 20;
+    static final int PUBLISH_PACKAGE_SNAPSHOTS = 21;
 
     static final int WRITE_SETTINGS_DELAY = 10*1000;  // 10 seconds
 
+    // Lets a burst of package changes settle before snapshotting them
+    static final int PUBLISH_PACKAGE_SNAPSHOTS_DELAY = 1000;
+
     // Delay time in millisecs
     static final int BROADCAST_DELAY = 10 * 1000;
 
@@ -1315,6 +1320,24 @@ public class PackageManagerService extends IPackageManager.Stub
     // Stores a list of users whose package restrictions file needs to be updated
     private ArraySet<Integer> mDirtyUsers = new ArraySet<Integer>();
 
+    private static final boolean USE_PACKAGE_SNAPSHOTS =
+            SystemProperties.getBoolean("pm.package_snapshots", true);
+
+    // Shared memory copies of common package queries, handed to the apps of each user.
+    // Guarded by its own lock, as package broadcasts invalidate them without holding
+    // mPackages; lock ordering is mPackages before mPackageSnapshots.
+    private final File mPackageSnapshotDir;
+    @GuardedBy("mPackageSnapshots")
+    private final SparseArray<PackageSnapshot> mPackageSnapshots = new SparseArray<>();
+    @GuardedBy("mPackageSnapshots")
+    private final SparseBooleanArray mPendingPackageSnapshots = new SparseBooleanArray();
+    // A snapshot is current while the sum of the generation for all users and the one of
+    // its own user is what it was built with
+    @GuardedBy("mPackageSnapshots")
+    private int mPackageSnapshotGeneration;
+    @GuardedBy("mPackageSnapshots")
+    private final SparseIntArray mUserPackageSnapshotGenerations = new SparseIntArray();
+
     final private DefaultContainerConnection mDefContainerConn =
             new DefaultContainerConnection();
     class DefaultContainerConnection implements ServiceConnection {
@@ -1744,6 +1767,9 @@ public class PackageManagerService extends IPackageManager.Stub
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
+                case PUBLISH_PACKAGE_SNAPSHOTS: {
+                    publishPackageSnapshots();
+                } break;
                 case CHECK_PENDING_VERIFICATION: {
                     final int verificationId = msg.arg1;
                     final PackageVerificationState state = mPendingVerification.get(verificationId);
@@ -2246,6 +2272,7 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     void scheduleWriteSettingsLocked() {
+        invalidatePackageSnapshots();
         if (!mHandler.hasMessages(WRITE_SETTINGS)) {
             mHandler.sendEmptyMessageDelayed(WRITE_SETTINGS, WRITE_SETTINGS_DELAY);
         }
@@ -2449,6 +2476,16 @@ public class PackageManagerService extends IPackageManager.Stub
             mHandlerThread.start();
             mHandler = new PackageHandler(mHandlerThread.getLooper());
             mProcessLoggingHandler = new ProcessLoggingHandler();
+
+            // Snapshots don't survive a reboot, they are built again when apps ask
+            mPackageSnapshotDir = new File(Environment.getDataSystemDirectory(),
+                    "package_snapshots");
+            if (!mPackageSnapshotDir.mkdirs()) {
+                FileUtils.deleteContents(mPackageSnapshotDir);
+            }
+            // Every change to the state of a package for a user goes through here, including
+            // the ones that don't schedule a write, like overlay paths
+            PackageSettingBase.sUserStateChangeCallback = this::invalidatePackageSnapshotLPr;
             Watchdog.getInstance().addThread(mHandler, WATCHDOG_TIMEOUT);
 
             mDefaultPermissionPolicy = new DefaultPermissionGrantPolicy(this);
@@ -4153,6 +4190,216 @@ public class PackageManagerService extends IPackageManager.Stub
         return null;
     }
 
+    /**
+     * Returns the snapshot of common package queries for the calling user, or null if
+     * the caller has to make binder calls meanwhile. A missing snapshot is built in the
+     * background, so it's there the next time the caller asks.
+     */
+    @Override
+    public PackageSnapshot getPackageSnapshot(int userId) {
+        final int callingUid = Binder.getCallingUid();
+        if (!USE_PACKAGE_SNAPSHOTS || UserHandle.getUserId(callingUid) != userId
+                || !sUserManager.exists(userId)) {
+            return null;
+        }
+        // Instant apps see a filtered view of the packages
+        if (getInstantAppPackageName(callingUid) != null) {
+            return null;
+        }
+        // Until the user is unlocked, what matches depends on direct boot awareness
+        if (!getUserManagerInternal().isUserUnlockingOrUnlocked(userId)) {
+            return null;
+        }
+        synchronized (mPackageSnapshots) {
+            final PackageSnapshot snapshot = mPackageSnapshots.get(userId);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            mPendingPackageSnapshots.put(userId, true);
+            if (!mHandler.hasMessages(PUBLISH_PACKAGE_SNAPSHOTS)) {
+                mHandler.sendEmptyMessageDelayed(PUBLISH_PACKAGE_SNAPSHOTS,
+                        PUBLISH_PACKAGE_SNAPSHOTS_DELAY);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks every published snapshot stale, so that clients go back to binder calls.
+     * This must happen under the same hold of mPackages as the change that invalidates
+     * them, or before any app is told about it. Changes to the packages themselves call
+     * this through {@link #scheduleWriteSettingsLocked}.
+     */
+    private void invalidatePackageSnapshots() {
+        synchronized (mPackageSnapshots) {
+            mPackageSnapshotGeneration++;
+            for (int i = mPackageSnapshots.size() - 1; i >= 0; i--) {
+                invalidatePackageSnapshotLocked(mPackageSnapshots.keyAt(i));
+            }
+            schedulePublishPackageSnapshotsLocked();
+        }
+    }
+
+    /**
+     * Marks the published snapshot of one user stale, along with the ones of users whose
+     * queries can be forwarded to it. Changes to the PackageUserState of a package call
+     * this through {@link PackageSettingBase#sUserStateChangeCallback}.
+     */
+    private void invalidatePackageSnapshotLPr(int userId) {
+        synchronized (mPackageSnapshots) {
+            mUserPackageSnapshotGenerations.put(userId,
+                    mUserPackageSnapshotGenerations.get(userId) + 1);
+            invalidatePackageSnapshotLocked(userId);
+            // Cross profile intent filters can add activities of another user to the
+            // launcher query
+            final SparseArray<CrossProfileIntentResolver> resolvers =
+                    mSettings.mCrossProfileIntentResolvers;
+            for (int i = 0; i < resolvers.size(); i++) {
+                final int sourceUserId = resolvers.keyAt(i);
+                if (sourceUserId != userId && resolvers.valueAt(i).filterSet().size() > 0) {
+                    mUserPackageSnapshotGenerations.put(sourceUserId,
+                            mUserPackageSnapshotGenerations.get(sourceUserId) + 1);
+                    invalidatePackageSnapshotLocked(sourceUserId);
+                }
+            }
+            schedulePublishPackageSnapshotsLocked();
+        }
+    }
+
+    @GuardedBy("mPackageSnapshots")
+    private void invalidatePackageSnapshotLocked(int userId) {
+        final PackageSnapshot snapshot = mPackageSnapshots.get(userId);
+        if (snapshot != null) {
+            // Build the user's next snapshot once the changes settle
+            mPendingPackageSnapshots.put(userId, true);
+            snapshot.markStale();
+            snapshot.close();
+            mPackageSnapshots.remove(userId);
+        }
+    }
+
+    @GuardedBy("mPackageSnapshots")
+    private void schedulePublishPackageSnapshotsLocked() {
+        if (mPendingPackageSnapshots.size() > 0) {
+            mHandler.removeMessages(PUBLISH_PACKAGE_SNAPSHOTS);
+            mHandler.sendEmptyMessageDelayed(PUBLISH_PACKAGE_SNAPSHOTS,
+                    PUBLISH_PACKAGE_SNAPSHOTS_DELAY);
+        }
+    }
+
+    @GuardedBy("mPackageSnapshots")
+    private int getPackageSnapshotGenerationLocked(int userId) {
+        return mPackageSnapshotGeneration + mUserPackageSnapshotGenerations.get(userId);
+    }
+
+    private void removePackageSnapshot(int userId) {
+        synchronized (mPackageSnapshots) {
+            mPendingPackageSnapshots.delete(userId);
+            final PackageSnapshot snapshot = mPackageSnapshots.get(userId);
+            if (snapshot != null) {
+                snapshot.markStale();
+                snapshot.close();
+                mPackageSnapshots.remove(userId);
+            }
+            mUserPackageSnapshotGenerations.delete(userId);
+        }
+        getPackageSnapshotFile(userId).delete();
+    }
+
+    private File getPackageSnapshotFile(int userId) {
+        return new File(mPackageSnapshotDir, Integer.toString(userId));
+    }
+
+    private void publishPackageSnapshots() {
+        final int[] userIds;
+        synchronized (mPackageSnapshots) {
+            userIds = new int[mPendingPackageSnapshots.size()];
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = mPendingPackageSnapshots.keyAt(i);
+            }
+            mPendingPackageSnapshots.clear();
+        }
+        for (int userId : userIds) {
+            if (!sUserManager.exists(userId)
+                    || !getUserManagerInternal().isUserUnlockingOrUnlocked(userId)) {
+                continue;
+            }
+            final PackageSnapshot.Builder builder = buildPackageSnapshot(userId);
+            if (builder == null) {
+                // Something changed while building, the next request builds it again
+                continue;
+            }
+            final PackageSnapshot snapshot;
+            try {
+                snapshot = builder.build(getPackageSnapshotFile(userId));
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to publish package snapshot for user " + userId, e);
+                continue;
+            }
+            synchronized (mPackageSnapshots) {
+                if (snapshot.getGeneration() != getPackageSnapshotGenerationLocked(userId)) {
+                    // Something changed while writing, the next request builds it again
+                    snapshot.markStale();
+                    snapshot.close();
+                    continue;
+                }
+                final PackageSnapshot old = mPackageSnapshots.get(userId);
+                if (old != null) {
+                    old.close();
+                }
+                mPackageSnapshots.put(userId, snapshot);
+            }
+        }
+    }
+
+    /**
+     * Copies what apps of the given user get from the most common queries. The queries
+     * are answered by the same code as binder calls from a full app, so the snapshot
+     * can't disagree with them; only packages that look the same to every full app of
+     * the user are included.
+     *
+     * mPackages is only held for each query, as for binder calls, so that the package
+     * manager isn't blocked for the whole build. Returns null if the user's packages
+     * changed meanwhile.
+     */
+    private PackageSnapshot.Builder buildPackageSnapshot(int userId) {
+        final int generation;
+        synchronized (mPackageSnapshots) {
+            generation = getPackageSnapshotGenerationLocked(userId);
+        }
+        final ArrayList<String> packageNames = new ArrayList<>();
+        synchronized (mPackages) {
+            for (PackageParser.Package p : mPackages.values()) {
+                final PackageSetting ps = (PackageSetting) p.mExtras;
+                if (ps == null || ps.getInstantApp(userId) || p.staticSharedLibName != null) {
+                    continue;
+                }
+                packageNames.add(p.packageName);
+            }
+        }
+        final PackageSnapshot.Builder builder = new PackageSnapshot.Builder(userId, generation);
+        for (int i = 0; i < packageNames.size(); i++) {
+            final String packageName = packageNames.get(i);
+            final PackageInfo packageInfo = getPackageInfoInternal(packageName,
+                    PackageManager.VERSION_CODE_HIGHEST, 0, Process.SYSTEM_UID, userId);
+            final ApplicationInfo applicationInfo = getApplicationInfoInternal(packageName,
+                    0, Process.SYSTEM_UID, userId);
+            if (packageInfo != null || applicationInfo != null) {
+                builder.addPackage(packageName, packageInfo, applicationInfo);
+            }
+            synchronized (mPackageSnapshots) {
+                if (generation != getPackageSnapshotGenerationLocked(userId)) {
+                    return null;
+                }
+            }
+        }
+        final Intent launcherIntent = new Intent(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER);
+        builder.setLauncherActivities(queryIntentActivitiesInternal(launcherIntent, null, 0,
+                Process.SYSTEM_UID, userId, false /*resolveForStart*/));
+        return builder;
+    }
+
     private String normalizePackageNameLPr(String packageName) {
         String normalizedPackageName = mSettings.getRenamedPackageLPr(packageName);
         return normalizedPackageName != null ? normalizedPackageName : packageName;
@@ -12814,6 +13061,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
     final class ActivityIntentResolver
             extends IntentResolver<PackageParser.ActivityIntentInfo, ResolveInfo> {
+        ActivityIntentResolver() {
+            super(true /* useLookupIndex */);
+        }
+
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType,
                 boolean defaultOnly, int userId) {
             if (!sUserManager.exists(userId)) return null;
@@ -13364,6 +13615,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private final class ServiceIntentResolver
             extends IntentResolver<PackageParser.ServiceIntentInfo, ResolveInfo> {
+        ServiceIntentResolver() {
+            super(true /* useLookupIndex */);
+        }
+
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType,
                 boolean defaultOnly, int userId) {
             mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
@@ -13593,6 +13848,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private final class ProviderIntentResolver
             extends IntentResolver<PackageParser.ProviderIntentInfo, ResolveInfo> {
+        ProviderIntentResolver() {
+            super(true /* useLookupIndex */);
+        }
+
         public List<ResolveInfo> queryIntent(Intent intent, String resolvedType,
                 boolean defaultOnly, int userId) {
             mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
@@ -13947,6 +14206,8 @@ public class PackageManagerService extends IPackageManager.Stub
     public void sendPackageBroadcast(final String action, final String pkg, final Bundle extras,
             final int flags, final String targetPkg, final IIntentReceiver finishedReceiver,
             final int[] userIds) {
+        // Make sure that no app hears of the change and then reads the old state
+        invalidatePackageSnapshots();
         mHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -20877,6 +21138,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 }
             }
             resolver.addFilter(newFilter);
+            invalidatePackageSnapshotLPr(sourceUserId);
             scheduleWritePackageRestrictionsLocked(sourceUserId);
         }
     }
@@ -20898,6 +21160,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                     resolver.removeFilter(filter);
                 }
             }
+            invalidatePackageSnapshotLPr(sourceUserId);
             scheduleWritePackageRestrictionsLocked(sourceUserId);
         }
     }
@@ -23848,6 +24111,9 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
     void cleanUpUser(UserManagerService userManager, int userHandle) {
         synchronized (mPackages) {
             mDirtyUsers.remove(userHandle);
+            removePackageSnapshot(userHandle);
+            // Other profiles may have forwarded queries to the user
+            invalidatePackageSnapshots();
             mUserNeedsBadging.delete(userHandle);
             mSettings.removeUserLPw(userHandle);
             mPendingBroadcasts.remove(userHandle);
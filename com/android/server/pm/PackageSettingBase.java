@@ -38,6 +38,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.function.IntConsumer;
 
 /**
  * Settings base class for pending and resolved classes.
@@ -118,6 +119,13 @@ abstract class PackageSettingBase extends SettingBase {
 
     static final PackageUserState DEFAULT_USER_STATE = new PackageUserState();
 
+    /**
+     * Called with the user before a change to the PackageUserState fields that show in
+     * package and application info or in which activities match, with the package manager
+     * lock held, so that copies of what apps of that user see can be dropped first.
+     */
+    static volatile IntConsumer sUserStateChangeCallback;
+
     // Whether this package is currently stopped, thus can not be
     // started until explicitly launched by the user.
     private final SparseArray<PackageUserState> userState = new SparseArray<PackageUserState>();
@@ -282,6 +290,13 @@ abstract class PackageSettingBase extends SettingBase {
         updateAvailable = orig.updateAvailable;
     }
 
+    private void onUserStateChanged(int userId) {
+        final IntConsumer callback = sUserStateChangeCallback;
+        if (callback != null) {
+            callback.accept(userId);
+        }
+    }
+
     private PackageUserState modifyUserState(int userId) {
         PackageUserState state = userState.get(userId);
         if (state == null) {
@@ -301,6 +316,9 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void setEnabled(int state, int userId, String callingPackage) {
+        if (readUserState(userId).enabled != state) {
+            onUserStateChanged(userId);
+        }
         PackageUserState st = modifyUserState(userId);
         st.enabled = state;
         st.lastDisableAppCaller = callingPackage;
@@ -315,6 +333,9 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void setInstalled(boolean inst, int userId) {
+        if (readUserState(userId).installed != inst) {
+            onUserStateChanged(userId);
+        }
         modifyUserState(userId).installed = inst;
     }
 
@@ -331,8 +352,12 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void setOverlayPaths(List<String> overlayPaths, int userId) {
-        modifyUserState(userId).overlayPaths = overlayPaths == null ? null :
+        final String[] paths = overlayPaths == null ? null :
             overlayPaths.toArray(new String[overlayPaths.size()]);
+        if (!Arrays.equals(readUserState(userId).overlayPaths, paths)) {
+            onUserStateChanged(userId);
+        }
+        modifyUserState(userId).overlayPaths = paths;
     }
 
     String[] getOverlayPaths(int userId) {
@@ -385,6 +410,9 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void setStopped(boolean stop, int userId) {
+        if (readUserState(userId).stopped != stop) {
+            onUserStateChanged(userId);
+        }
         modifyUserState(userId).stopped = stop;
     }
 
@@ -401,6 +429,9 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void setHidden(boolean hidden, int userId) {
+        if (readUserState(userId).hidden != hidden) {
+            onUserStateChanged(userId);
+        }
         modifyUserState(userId).hidden = hidden;
     }
 
@@ -409,6 +440,9 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void setSuspended(boolean suspended, int userId) {
+        if (readUserState(userId).suspended != suspended) {
+            onUserStateChanged(userId);
+        }
         modifyUserState(userId).suspended = suspended;
     }
 
@@ -417,6 +451,9 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void setInstantApp(boolean instantApp, int userId) {
+        if (readUserState(userId).instantApp != instantApp) {
+            onUserStateChanged(userId);
+        }
         modifyUserState(userId).instantApp = instantApp;
     }
 
@@ -425,6 +462,7 @@ abstract class PackageSettingBase extends SettingBase {
             String lastDisableAppCaller, ArraySet<String> enabledComponents,
             ArraySet<String> disabledComponents, int domainVerifState,
             int linkGeneration, int installReason) {
+        onUserStateChanged(userId);
         PackageUserState state = modifyUserState(userId);
         state.ceDataInode = ceDataInode;
         state.enabled = enabled;
@@ -451,24 +489,29 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void setEnabledComponents(ArraySet<String> components, int userId) {
+        onUserStateChanged(userId);
         modifyUserState(userId).enabledComponents = components;
     }
 
     void setDisabledComponents(ArraySet<String> components, int userId) {
+        onUserStateChanged(userId);
         modifyUserState(userId).disabledComponents = components;
     }
 
     void setEnabledComponentsCopy(ArraySet<String> components, int userId) {
+        onUserStateChanged(userId);
         modifyUserState(userId).enabledComponents = components != null
                 ? new ArraySet<String>(components) : null;
     }
 
     void setDisabledComponentsCopy(ArraySet<String> components, int userId) {
+        onUserStateChanged(userId);
         modifyUserState(userId).disabledComponents = components != null
                 ? new ArraySet<String>(components) : null;
     }
 
     PackageUserState modifyUserStateComponents(int userId, boolean disabled, boolean enabled) {
+        onUserStateChanged(userId);
         PackageUserState state = modifyUserState(userId);
         if (disabled && state.disabledComponents == null) {
             state.disabledComponents = new ArraySet<String>(1);
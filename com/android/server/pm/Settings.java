@@ -61,6 +61,7 @@ import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
@@ -173,6 +174,18 @@ final class Settings {
 
     private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.xml";
 
+    /**
+     * Whether packages.xml and the package restrictions of each user are stored as shards,
+     * one per package, so that a change to one package only writes that package's shard.
+     */
+    private static final boolean USE_SHARDED_STORAGE =
+            SystemProperties.getBoolean("pm.settings.sharded", true);
+    private static final String SHARDED_SETTINGS_DIR_NAME = "packages.d";
+    private static final String SHARDED_PACKAGE_RESTRICTIONS_DIR_NAME = "package-restrictions.d";
+    // Names of the shards that aren't for a single package; package names can't start with '#'
+    private static final String SHARD_HEAD = "#head";
+    private static final String SHARD_TAIL = "#tail";
+
     private static final String TAG_READ_EXTERNAL_STORAGE = "read-external-storage";
     private static final String ATTR_ENFORCEMENT = "enforcement";
 
@@ -259,6 +272,9 @@ final class Settings {
     private final File mPackageListFilename;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
+    private final ShardedSettingsFile mShardedSettings;
+    private final SparseArray<ShardedSettingsFile> mShardedPackageRestrictions =
+            new SparseArray<>();
     /** The top level directory in configfs for sdcardfs to push the package->uid,userId mappings */
     private final File mKernelMappingFilename;
 
@@ -439,6 +455,7 @@ final class Settings {
         mBackupSettingsFilename = new File(mSystemDir, "packages-backup.xml");
         mPackageListFilename = new File(mSystemDir, "packages.list");
         FileUtils.setPermissions(mPackageListFilename, 0640, SYSTEM_UID, PACKAGE_INFO_GID);
+        mShardedSettings = new ShardedSettingsFile(new File(mSystemDir, SHARDED_SETTINGS_DIR_NAME));
 
         final File kernelDir = new File("/config/sdcardfs");
         mKernelMappingFilename = kernelDir.exists() ? kernelDir : null;
@@ -1437,6 +1454,17 @@ final class Settings {
                 "package-restrictions-backup.xml");
     }
 
+    private ShardedSettingsFile getShardedPackageRestrictionsLPr(int userId) {
+        ShardedSettingsFile file = mShardedPackageRestrictions.get(userId);
+        if (file == null) {
+            File userDir = new File(new File(mSystemDir, "users"), Integer.toString(userId));
+            file = new ShardedSettingsFile(
+                    new File(userDir, SHARDED_PACKAGE_RESTRICTIONS_DIR_NAME));
+            mShardedPackageRestrictions.put(userId, file);
+        }
+        return file;
+    }
+
     void writeAllUsersPackageRestrictionsLPr() {
         List<UserInfo> users = getAllUsers(UserManagerService.getInstance());
         if (users == null) return;
@@ -1652,6 +1680,10 @@ final class Settings {
         if (DEBUG_MU) {
             Log.i(TAG, "Reading package restrictions for user=" + userId);
         }
+        if (useShardedPackageRestrictionsLPr(userId)) {
+            readShardedPackageRestrictionsLPr(userId);
+            return;
+        }
         FileInputStream str = null;
         File userPackagesStateFile = getUserPackagesStateFile(userId);
         File backupFile = getUserPackagesStateBackupFile(userId);
@@ -1706,125 +1738,14 @@ final class Settings {
             final XmlPullParser parser = Xml.newPullParser();
             parser.setInput(str, StandardCharsets.UTF_8.name());
 
-            int type;
-            while ((type=parser.next()) != XmlPullParser.START_TAG
-                       && type != XmlPullParser.END_DOCUMENT) {
-                ;
-            }
-
-            if (type != XmlPullParser.START_TAG) {
+            final int maxAppLinkGeneration = readPackageRestrictionsLPr(parser, userId);
+            if (maxAppLinkGeneration < 0) {
                 mReadMessages.append("No start tag found in package restrictions file\n");
                 PackageManagerService.reportSettingsProblem(Log.WARN,
                         "No start tag found in package manager stopped packages");
                 return;
             }
 
-            int maxAppLinkGeneration = 0;
-
-            int outerDepth = parser.getDepth();
-            PackageSetting ps = null;
-            while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                   && (type != XmlPullParser.END_TAG
-                           || parser.getDepth() > outerDepth)) {
-                if (type == XmlPullParser.END_TAG
-                        || type == XmlPullParser.TEXT) {
-                    continue;
-                }
-
-                String tagName = parser.getName();
-                if (tagName.equals(TAG_PACKAGE)) {
-                    String name = parser.getAttributeValue(null, ATTR_NAME);
-                    ps = mPackages.get(name);
-                    if (ps == null) {
-                        Slog.w(PackageManagerService.TAG, "No package known for stopped package "
-                                + name);
-                        XmlUtils.skipCurrentTag(parser);
-                        continue;
-                    }
-
-                    final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
-                            0);
-                    final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
-                            true);
-                    final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
-                            false);
-                    final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_NOT_LAUNCHED, false);
-
-                    // For backwards compatibility with the previous name of "blocked", which
-                    // now means hidden, read the old attribute as well.
-                    final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
-                    boolean hidden = blockedStr == null
-                            ? false : Boolean.parseBoolean(blockedStr);
-                    final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
-                    hidden = hiddenStr == null
-                            ? hidden : Boolean.parseBoolean(hiddenStr);
-
-                    final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
-                            false);
-                    final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_BLOCK_UNINSTALL, false);
-                    final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_INSTANT_APP, false);
-                    final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
-                            COMPONENT_ENABLED_STATE_DEFAULT);
-                    final String enabledCaller = parser.getAttributeValue(null,
-                            ATTR_ENABLED_CALLER);
-
-                    final int verifState = XmlUtils.readIntAttribute(parser,
-                            ATTR_DOMAIN_VERIFICATON_STATE,
-                            PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
-                    final int linkGeneration = XmlUtils.readIntAttribute(parser,
-                            ATTR_APP_LINK_GENERATION, 0);
-                    if (linkGeneration > maxAppLinkGeneration) {
-                        maxAppLinkGeneration = linkGeneration;
-                    }
-                    final int installReason = XmlUtils.readIntAttribute(parser,
-                            ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
-
-                    ArraySet<String> enabledComponents = null;
-                    ArraySet<String> disabledComponents = null;
-
-                    int packageDepth = parser.getDepth();
-                    while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                            && (type != XmlPullParser.END_TAG
-                            || parser.getDepth() > packageDepth)) {
-                        if (type == XmlPullParser.END_TAG
-                                || type == XmlPullParser.TEXT) {
-                            continue;
-                        }
-                        tagName = parser.getName();
-                        if (tagName.equals(TAG_ENABLED_COMPONENTS)) {
-                            enabledComponents = readComponentsLPr(parser);
-                        } else if (tagName.equals(TAG_DISABLED_COMPONENTS)) {
-                            disabledComponents = readComponentsLPr(parser);
-                        }
-                    }
-
-                    if (blockUninstall) {
-                        setBlockUninstallLPw(userId, name, true);
-                    }
-                    ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
-                            hidden, suspended, instantApp, enabledCaller, enabledComponents,
-                            disabledComponents, verifState, linkGeneration,
-                            installReason);
-                } else if (tagName.equals("preferred-activities")) {
-                    readPreferredActivitiesLPw(parser, userId);
-                } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
-                    readPersistentPreferredActivitiesLPw(parser, userId);
-                } else if (tagName.equals(TAG_CROSS_PROFILE_INTENT_FILTERS)) {
-                    readCrossProfileIntentFiltersLPw(parser, userId);
-                } else if (tagName.equals(TAG_DEFAULT_APPS)) {
-                    readDefaultAppsLPw(parser, userId);
-                } else if (tagName.equals(TAG_BLOCK_UNINSTALL_PACKAGES)) {
-                    readBlockUninstallPackagesLPw(parser, userId);
-                } else {
-                    Slog.w(PackageManagerService.TAG, "Unknown element under <stopped-packages>: "
-                          + parser.getName());
-                    XmlUtils.skipCurrentTag(parser);
-                }
-            }
-
             str.close();
 
             mNextAppLinkGeneration.put(userId, maxAppLinkGeneration + 1);
@@ -1844,6 +1765,180 @@ final class Settings {
         }
     }
 
+    /**
+     * Whether to read the sharded package restrictions of the user rather than the package
+     * restrictions file, preferring the storage that is in use like the settings do.
+     */
+    private boolean useShardedPackageRestrictionsLPr(int userId) {
+        final ShardedSettingsFile file = getShardedPackageRestrictionsLPr(userId);
+        if (USE_SHARDED_STORAGE) {
+            return file.exists();
+        }
+        return !getUserPackagesStateFile(userId).exists()
+                && !getUserPackagesStateBackupFile(userId).exists() && file.exists();
+    }
+
+    /**
+     * Read every shard of the sharded package restrictions of the user. A shard that can't be
+     * read only loses its own restrictions.
+     */
+    private void readShardedPackageRestrictionsLPr(int userId) {
+        final ShardedSettingsFile file = getShardedPackageRestrictionsLPr(userId);
+        try {
+            file.load();
+        } catch (java.io.IOException e) {
+            mReadMessages.append("Error reading: " + e.toString());
+            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
+            Slog.wtf(PackageManagerService.TAG, "Error reading package manager stopped packages",
+                    e);
+            file.finishLoad();
+            return;
+        }
+        int maxAppLinkGeneration = 0;
+        final int N = file.getShardCount();
+        for (int i = 0; i < N; i++) {
+            try {
+                final XmlPullParser parser = XmlUtils.resolvePullParser(file.openShard(i));
+                maxAppLinkGeneration = Math.max(maxAppLinkGeneration,
+                        readPackageRestrictionsLPr(parser, userId));
+            } catch (XmlPullParserException | java.io.IOException e) {
+                mReadMessages.append("Error reading: " + e.toString());
+                PackageManagerService.reportSettingsProblem(Log.ERROR,
+                        "Error reading stopped packages: " + e);
+                Slog.wtf(PackageManagerService.TAG, "Error reading package manager stopped "
+                        + "packages shard " + file.getShardName(i), e);
+            }
+        }
+        file.finishLoad();
+        mNextAppLinkGeneration.put(userId, maxAppLinkGeneration + 1);
+    }
+
+    /**
+     * Read the elements under the root of a package restrictions document.
+     *
+     * @return the highest app link generation read, or -1 if the document had no root
+     *         element.
+     */
+    private int readPackageRestrictionsLPr(XmlPullParser parser, int userId)
+            throws XmlPullParserException, java.io.IOException {
+        int type;
+        while ((type=parser.next()) != XmlPullParser.START_TAG
+                   && type != XmlPullParser.END_DOCUMENT) {
+            ;
+        }
+
+        if (type != XmlPullParser.START_TAG) {
+            return -1;
+        }
+
+        int maxAppLinkGeneration = 0;
+
+        int outerDepth = parser.getDepth();
+        PackageSetting ps = null;
+        while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+               && (type != XmlPullParser.END_TAG
+                       || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG
+                    || type == XmlPullParser.TEXT) {
+                continue;
+            }
+
+            String tagName = parser.getName();
+            if (tagName.equals(TAG_PACKAGE)) {
+                String name = parser.getAttributeValue(null, ATTR_NAME);
+                ps = mPackages.get(name);
+                if (ps == null) {
+                    Slog.w(PackageManagerService.TAG, "No package known for stopped package "
+                            + name);
+                    XmlUtils.skipCurrentTag(parser);
+                    continue;
+                }
+
+                final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
+                        0);
+                final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
+                        true);
+                final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
+                        false);
+                final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
+                        ATTR_NOT_LAUNCHED, false);
+
+                // For backwards compatibility with the previous name of "blocked", which
+                // now means hidden, read the old attribute as well.
+                final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
+                boolean hidden = blockedStr == null
+                        ? false : Boolean.parseBoolean(blockedStr);
+                final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
+                hidden = hiddenStr == null
+                        ? hidden : Boolean.parseBoolean(hiddenStr);
+
+                final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
+                        false);
+                final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
+                        ATTR_BLOCK_UNINSTALL, false);
+                final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
+                        ATTR_INSTANT_APP, false);
+                final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
+                        COMPONENT_ENABLED_STATE_DEFAULT);
+                final String enabledCaller = parser.getAttributeValue(null,
+                        ATTR_ENABLED_CALLER);
+
+                final int verifState = XmlUtils.readIntAttribute(parser,
+                        ATTR_DOMAIN_VERIFICATON_STATE,
+                        PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
+                final int linkGeneration = XmlUtils.readIntAttribute(parser,
+                        ATTR_APP_LINK_GENERATION, 0);
+                if (linkGeneration > maxAppLinkGeneration) {
+                    maxAppLinkGeneration = linkGeneration;
+                }
+                final int installReason = XmlUtils.readIntAttribute(parser,
+                        ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
+
+                ArraySet<String> enabledComponents = null;
+                ArraySet<String> disabledComponents = null;
+
+                int packageDepth = parser.getDepth();
+                while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+                        && (type != XmlPullParser.END_TAG
+                        || parser.getDepth() > packageDepth)) {
+                    if (type == XmlPullParser.END_TAG
+                            || type == XmlPullParser.TEXT) {
+                        continue;
+                    }
+                    tagName = parser.getName();
+                    if (tagName.equals(TAG_ENABLED_COMPONENTS)) {
+                        enabledComponents = readComponentsLPr(parser);
+                    } else if (tagName.equals(TAG_DISABLED_COMPONENTS)) {
+                        disabledComponents = readComponentsLPr(parser);
+                    }
+                }
+
+                if (blockUninstall) {
+                    setBlockUninstallLPw(userId, name, true);
+                }
+                ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
+                        hidden, suspended, instantApp, enabledCaller, enabledComponents,
+                        disabledComponents, verifState, linkGeneration,
+                        installReason);
+            } else if (tagName.equals("preferred-activities")) {
+                readPreferredActivitiesLPw(parser, userId);
+            } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
+                readPersistentPreferredActivitiesLPw(parser, userId);
+            } else if (tagName.equals(TAG_CROSS_PROFILE_INTENT_FILTERS)) {
+                readCrossProfileIntentFiltersLPw(parser, userId);
+            } else if (tagName.equals(TAG_DEFAULT_APPS)) {
+                readDefaultAppsLPw(parser, userId);
+            } else if (tagName.equals(TAG_BLOCK_UNINSTALL_PACKAGES)) {
+                readBlockUninstallPackagesLPw(parser, userId);
+            } else {
+                Slog.w(PackageManagerService.TAG, "Unknown element under <stopped-packages>: "
+                      + parser.getName());
+                XmlUtils.skipCurrentTag(parser);
+            }
+        }
+        return maxAppLinkGeneration;
+    }
+
     void setBlockUninstallLPw(int userId, String packageName, boolean blockUninstall) {
         ArraySet<String> packages = mBlockUninstallPackages.get(userId);
         if (blockUninstall) {
@@ -2056,6 +2151,10 @@ final class Settings {
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
         }
+        if (USE_SHARDED_STORAGE) {
+            writeShardedPackageRestrictionsLPr(userId);
+            return;
+        }
         // Keep the old stopped packages around until we know the new ones have
         // been successfully written.
         File userPackagesStateFile = getUserPackagesStateFile(userId);
@@ -2091,80 +2190,10 @@ final class Settings {
             serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
 
             for (final PackageSetting pkg : mPackages.values()) {
-                final PackageUserState ustate = pkg.readUserState(userId);
-                if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
-
-                serializer.startTag(null, TAG_PACKAGE);
-                serializer.attribute(null, ATTR_NAME, pkg.name);
-                if (ustate.ceDataInode != 0) {
-                    XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
-                }
-                if (!ustate.installed) {
-                    serializer.attribute(null, ATTR_INSTALLED, "false");
-                }
-                if (ustate.stopped) {
-                    serializer.attribute(null, ATTR_STOPPED, "true");
-                }
-                if (ustate.notLaunched) {
-                    serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
-                }
-                if (ustate.hidden) {
-                    serializer.attribute(null, ATTR_HIDDEN, "true");
-                }
-                if (ustate.suspended) {
-                    serializer.attribute(null, ATTR_SUSPENDED, "true");
-                }
-                if (ustate.instantApp) {
-                    serializer.attribute(null, ATTR_INSTANT_APP, "true");
-                }
-                if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
-                    serializer.attribute(null, ATTR_ENABLED,
-                            Integer.toString(ustate.enabled));
-                    if (ustate.lastDisableAppCaller != null) {
-                        serializer.attribute(null, ATTR_ENABLED_CALLER,
-                                ustate.lastDisableAppCaller);
-                    }
-                }
-                if (ustate.domainVerificationStatus !=
-                        PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
-                            ustate.domainVerificationStatus);
-                }
-                if (ustate.appLinkGeneration != 0) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
-                            ustate.appLinkGeneration);
-                }
-                if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_INSTALL_REASON,
-                            Integer.toString(ustate.installReason));
-                }
-                if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
-                    serializer.startTag(null, TAG_ENABLED_COMPONENTS);
-                    for (final String name : ustate.enabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_ENABLED_COMPONENTS);
-                }
-                if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
-                    serializer.startTag(null, TAG_DISABLED_COMPONENTS);
-                    for (final String name : ustate.disabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_DISABLED_COMPONENTS);
-                }
-
-                serializer.endTag(null, TAG_PACKAGE);
+                writePackageRestrictionLPr(serializer, pkg, userId);
             }
 
-            writePreferredActivitiesLPr(serializer, userId, true);
-            writePersistentPreferredActivitiesLPr(serializer, userId);
-            writeCrossProfileIntentFiltersLPr(serializer, userId);
-            writeDefaultAppsLPr(serializer, userId);
-            writeBlockUninstallPackagesLPr(serializer, userId);
+            writePackageRestrictionsTailLPr(serializer, userId);
 
             serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
 
@@ -2177,6 +2206,7 @@ final class Settings {
             // New settings successfully written, old ones are no longer
             // needed.
             backupFile.delete();
+            getShardedPackageRestrictionsLPr(userId).delete();
             FileUtils.setPermissions(userPackagesStateFile.toString(),
                     FileUtils.S_IRUSR|FileUtils.S_IWUSR
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
@@ -2199,6 +2229,124 @@ final class Settings {
         }
     }
 
+    private void writePackageRestrictionLPr(XmlSerializer serializer, PackageSetting pkg,
+            int userId) throws java.io.IOException {
+        final PackageUserState ustate = pkg.readUserState(userId);
+        if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
+
+        serializer.startTag(null, TAG_PACKAGE);
+        serializer.attribute(null, ATTR_NAME, pkg.name);
+        if (ustate.ceDataInode != 0) {
+            XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
+        }
+        if (!ustate.installed) {
+            serializer.attribute(null, ATTR_INSTALLED, "false");
+        }
+        if (ustate.stopped) {
+            serializer.attribute(null, ATTR_STOPPED, "true");
+        }
+        if (ustate.notLaunched) {
+            serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
+        }
+        if (ustate.hidden) {
+            serializer.attribute(null, ATTR_HIDDEN, "true");
+        }
+        if (ustate.suspended) {
+            serializer.attribute(null, ATTR_SUSPENDED, "true");
+        }
+        if (ustate.instantApp) {
+            serializer.attribute(null, ATTR_INSTANT_APP, "true");
+        }
+        if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
+            serializer.attribute(null, ATTR_ENABLED,
+                    Integer.toString(ustate.enabled));
+            if (ustate.lastDisableAppCaller != null) {
+                serializer.attribute(null, ATTR_ENABLED_CALLER,
+                        ustate.lastDisableAppCaller);
+            }
+        }
+        if (ustate.domainVerificationStatus !=
+                PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
+                    ustate.domainVerificationStatus);
+        }
+        if (ustate.appLinkGeneration != 0) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
+                    ustate.appLinkGeneration);
+        }
+        if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
+            serializer.attribute(null, ATTR_INSTALL_REASON,
+                    Integer.toString(ustate.installReason));
+        }
+        if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
+            serializer.startTag(null, TAG_ENABLED_COMPONENTS);
+            for (final String name : ustate.enabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_ENABLED_COMPONENTS);
+        }
+        if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
+            serializer.startTag(null, TAG_DISABLED_COMPONENTS);
+            for (final String name : ustate.disabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_DISABLED_COMPONENTS);
+        }
+
+        serializer.endTag(null, TAG_PACKAGE);
+    }
+
+    private void writePackageRestrictionsTailLPr(XmlSerializer serializer, int userId)
+            throws java.io.IOException {
+        writePreferredActivitiesLPr(serializer, userId, true);
+        writePersistentPreferredActivitiesLPr(serializer, userId);
+        writeCrossProfileIntentFiltersLPr(serializer, userId);
+        writeDefaultAppsLPr(serializer, userId);
+        writeBlockUninstallPackagesLPr(serializer, userId);
+    }
+
+    /**
+     * Write the package restrictions of the user as a shard for each package and one for the
+     * rest of them, only putting the shards whose contents changed on disk.
+     */
+    private void writeShardedPackageRestrictionsLPr(int userId) {
+        final ShardedSettingsFile file = getShardedPackageRestrictionsLPr(userId);
+        try {
+            file.startWrite();
+            XmlSerializer serializer;
+            for (int i = 0; i < mPackages.size(); i++) {
+                final PackageSetting pkg = mPackages.valueAt(i);
+                serializer = file.startShard(pkg.name);
+                serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+                writePackageRestrictionLPr(serializer, pkg, userId);
+                serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
+                file.finishShard();
+            }
+
+            serializer = file.startShard(SHARD_TAIL);
+            serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+            writePackageRestrictionsTailLPr(serializer, userId);
+            serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
+            file.finishShard();
+
+            file.finishWrite();
+        } catch (java.io.IOException e) {
+            Slog.wtf(PackageManagerService.TAG,
+                    "Unable to write package manager user packages state, "
+                    + " current changes will be lost at reboot", e);
+            file.failWrite();
+            return;
+        }
+
+        // The old package restrictions file is out of date now
+        getUserPackagesStateFile(userId).delete();
+        getUserPackagesStateBackupFile(userId).delete();
+    }
+
     void readInstallPermissionsLPr(XmlPullParser parser,
             PermissionsState permissionsState) throws IOException, XmlPullParserException {
         int outerDepth = parser.getDepth();
@@ -2443,6 +2591,16 @@ final class Settings {
     void writeLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
+        if (USE_SHARDED_STORAGE) {
+            if (writeShardedSettingsLPr()) {
+                writeKernelMappingLPr();
+                writePackageListLPr();
+                writeAllUsersPackageRestrictionsLPr();
+                writeAllRuntimePermissionsLPr();
+            }
+            return;
+        }
+
         // Keep the old settings around until we know the new ones have
         // been successfully written.
         if (mSettingsFilename.exists()) {
@@ -2477,42 +2635,7 @@ final class Settings {
 
             serializer.startTag(null, "packages");
 
-            for (int i = 0; i < mVersion.size(); i++) {
-                final String volumeUuid = mVersion.keyAt(i);
-                final VersionInfo ver = mVersion.valueAt(i);
-
-                serializer.startTag(null, TAG_VERSION);
-                XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
-                XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
-                XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
-                XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
-                serializer.endTag(null, TAG_VERSION);
-            }
-
-            if (mVerifierDeviceIdentity != null) {
-                serializer.startTag(null, "verifier");
-                serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
-                serializer.endTag(null, "verifier");
-            }
-
-            if (mReadExternalStorageEnforced != null) {
-                serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
-                serializer.attribute(
-                        null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
-                serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
-            }
-
-            serializer.startTag(null, "permission-trees");
-            for (BasePermission bp : mPermissionTrees.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permission-trees");
-
-            serializer.startTag(null, "permissions");
-            for (BasePermission bp : mPermissions.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permissions");
+            writeSettingsHeadLPr(serializer);
 
             for (final PackageSetting pkg : mPackages.values()) {
                 writePackageLPr(serializer, pkg);
@@ -2522,55 +2645,7 @@ final class Settings {
                 writeDisabledSysPackageLPr(serializer, pkg);
             }
 
-            for (final SharedUserSetting usr : mSharedUsers.values()) {
-                serializer.startTag(null, "shared-user");
-                serializer.attribute(null, ATTR_NAME, usr.name);
-                serializer.attribute(null, "userId",
-                        Integer.toString(usr.userId));
-                usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                writePermissionsLPr(serializer, usr.getPermissionsState()
-                        .getInstallPermissionStates());
-                serializer.endTag(null, "shared-user");
-            }
-
-            if (mPackagesToBeCleaned.size() > 0) {
-                for (PackageCleanItem item : mPackagesToBeCleaned) {
-                    final String userStr = Integer.toString(item.userId);
-                    serializer.startTag(null, "cleaning-package");
-                    serializer.attribute(null, ATTR_NAME, item.packageName);
-                    serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
-                    serializer.attribute(null, ATTR_USER, userStr);
-                    serializer.endTag(null, "cleaning-package");
-                }
-            }
-
-            if (mRenamedPackages.size() > 0) {
-                for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
-                    serializer.startTag(null, "renamed-package");
-                    serializer.attribute(null, "new", e.getKey());
-                    serializer.attribute(null, "old", e.getValue());
-                    serializer.endTag(null, "renamed-package");
-                }
-            }
-
-            final int numIVIs = mRestoredIntentFilterVerifications.size();
-            if (numIVIs > 0) {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
-                }
-                serializer.startTag(null, "restored-ivi");
-                for (int i = 0; i < numIVIs; i++) {
-                    IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
-                    writeDomainVerificationsLPr(serializer, ivi);
-                }
-                serializer.endTag(null, "restored-ivi");
-            } else {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "  no restored IVI entries to write");
-                }
-            }
-
-            mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+            writeSettingsTailLPr(serializer);
 
             serializer.endTag(null, "packages");
 
@@ -2583,6 +2658,7 @@ final class Settings {
             // New settings successfully written, old ones are no longer
             // needed.
             mBackupSettingsFilename.delete();
+            mShardedSettings.delete();
             FileUtils.setPermissions(mSettingsFilename.toString(),
                     FileUtils.S_IRUSR|FileUtils.S_IWUSR
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
@@ -2611,6 +2687,165 @@ final class Settings {
         //Debug.stopMethodTracing();
     }
 
+    private void writeSettingsHeadLPr(XmlSerializer serializer)
+            throws XmlPullParserException, java.io.IOException {
+        for (int i = 0; i < mVersion.size(); i++) {
+            final String volumeUuid = mVersion.keyAt(i);
+            final VersionInfo ver = mVersion.valueAt(i);
+
+            serializer.startTag(null, TAG_VERSION);
+            XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
+            XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
+            XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
+            XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
+            serializer.endTag(null, TAG_VERSION);
+        }
+
+        if (mVerifierDeviceIdentity != null) {
+            serializer.startTag(null, "verifier");
+            serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
+            serializer.endTag(null, "verifier");
+        }
+
+        if (mReadExternalStorageEnforced != null) {
+            serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
+            serializer.attribute(
+                    null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
+            serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
+        }
+
+        serializer.startTag(null, "permission-trees");
+        for (BasePermission bp : mPermissionTrees.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permission-trees");
+
+        serializer.startTag(null, "permissions");
+        for (BasePermission bp : mPermissions.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permissions");
+    }
+
+    private void writeSettingsTailLPr(XmlSerializer serializer) throws java.io.IOException {
+        for (final SharedUserSetting usr : mSharedUsers.values()) {
+            serializer.startTag(null, "shared-user");
+            serializer.attribute(null, ATTR_NAME, usr.name);
+            serializer.attribute(null, "userId",
+                    Integer.toString(usr.userId));
+            usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
+            writePermissionsLPr(serializer, usr.getPermissionsState()
+                    .getInstallPermissionStates());
+            serializer.endTag(null, "shared-user");
+        }
+
+        if (mPackagesToBeCleaned.size() > 0) {
+            for (PackageCleanItem item : mPackagesToBeCleaned) {
+                final String userStr = Integer.toString(item.userId);
+                serializer.startTag(null, "cleaning-package");
+                serializer.attribute(null, ATTR_NAME, item.packageName);
+                serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
+                serializer.attribute(null, ATTR_USER, userStr);
+                serializer.endTag(null, "cleaning-package");
+            }
+        }
+
+        if (mRenamedPackages.size() > 0) {
+            for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
+                serializer.startTag(null, "renamed-package");
+                serializer.attribute(null, "new", e.getKey());
+                serializer.attribute(null, "old", e.getValue());
+                serializer.endTag(null, "renamed-package");
+            }
+        }
+
+        final int numIVIs = mRestoredIntentFilterVerifications.size();
+        if (numIVIs > 0) {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
+            }
+            serializer.startTag(null, "restored-ivi");
+            for (int i = 0; i < numIVIs; i++) {
+                IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
+                writeDomainVerificationsLPr(serializer, ivi);
+            }
+            serializer.endTag(null, "restored-ivi");
+        } else {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "  no restored IVI entries to write");
+            }
+        }
+
+        mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+    }
+
+    /**
+     * Write the settings as a shard for what comes before the packages in packages.xml, one
+     * for the records of each package, and one for what comes after the packages. Only the
+     * shards whose contents changed are written to disk.
+     *
+     * @return whether the settings were written.
+     */
+    private boolean writeShardedSettingsLPr() {
+        final ShardedSettingsFile file = mShardedSettings;
+        try {
+            file.startWrite();
+
+            XmlSerializer serializer = file.startShard(SHARD_HEAD);
+            serializer.startTag(null, "packages");
+            writeSettingsHeadLPr(serializer);
+            serializer.endTag(null, "packages");
+            file.finishShard();
+
+            for (int i = 0; i < mPackages.size(); i++) {
+                final PackageSetting pkg = mPackages.valueAt(i);
+                writePackageShardLPr(file, pkg, mDisabledSysPackages.get(pkg.name));
+            }
+            for (int i = 0; i < mDisabledSysPackages.size(); i++) {
+                final PackageSetting pkg = mDisabledSysPackages.valueAt(i);
+                if (!mPackages.containsKey(pkg.name)) {
+                    writePackageShardLPr(file, null, pkg);
+                }
+            }
+
+            mPastSignatures.clear();
+            serializer = file.startShard(SHARD_TAIL);
+            serializer.startTag(null, "packages");
+            writeSettingsTailLPr(serializer);
+            serializer.endTag(null, "packages");
+            file.finishShard();
+
+            file.finishWrite();
+        } catch (XmlPullParserException | java.io.IOException e) {
+            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
+                    + "current changes will be lost at reboot", e);
+            file.failWrite();
+            return false;
+        }
+
+        // The old settings file is out of date now
+        mSettingsFilename.delete();
+        mBackupSettingsFilename.delete();
+        return true;
+    }
+
+    private void writePackageShardLPr(ShardedSettingsFile file, PackageSetting pkg,
+            PackageSetting disabledPkg) throws java.io.IOException {
+        // Each shard is read on its own, so signatures can't refer to those of other shards
+        mPastSignatures.clear();
+        final XmlSerializer serializer = file.startShard(
+                pkg != null ? pkg.name : disabledPkg.name);
+        serializer.startTag(null, "packages");
+        if (pkg != null) {
+            writePackageLPr(serializer, pkg);
+        }
+        if (disabledPkg != null) {
+            writeDisabledSysPackageLPr(serializer, disabledPkg);
+        }
+        serializer.endTag(null, "packages");
+        file.finishShard();
+    }
+
     private void writeKernelRemoveUserLPr(int userId) {
         if (mKernelMappingFilename == null) return;
 
@@ -3009,183 +3244,15 @@ final class Settings {
     }
 
     boolean readLPw(@NonNull List<UserInfo> users) {
-        FileInputStream str = null;
-        if (mBackupSettingsFilename.exists()) {
-            try {
-                str = new FileInputStream(mBackupSettingsFilename);
-                mReadMessages.append("Reading from backup settings file\n");
-                PackageManagerService.reportSettingsProblem(Log.INFO,
-                        "Need to read from backup settings file");
-                if (mSettingsFilename.exists()) {
-                    // If both the backup and settings file exist, we
-                    // ignore the settings since it might have been
-                    // corrupted.
-                    Slog.w(PackageManagerService.TAG, "Cleaning up settings file "
-                            + mSettingsFilename);
-                    mSettingsFilename.delete();
-                }
-            } catch (java.io.IOException e) {
-                // We'll try for the normal settings file.
-            }
-        }
-
         mPendingPackages.clear();
         mPastSignatures.clear();
         mKeySetRefs.clear();
         mInstallerPackages.clear();
 
-        try {
-            if (str == null) {
-                if (!mSettingsFilename.exists()) {
-                    mReadMessages.append("No settings file found\n");
-                    PackageManagerService.reportSettingsProblem(Log.INFO,
-                            "No settings file; creating initial state");
-                    // It's enough to just touch version details to create them
-                    // with default values
-                    findOrCreateVersion(StorageManager.UUID_PRIVATE_INTERNAL).forceCurrent();
-                    findOrCreateVersion(StorageManager.UUID_PRIMARY_PHYSICAL).forceCurrent();
-                    return false;
-                }
-                str = new FileInputStream(mSettingsFilename);
-            }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
-
-            int type;
-            while ((type = parser.next()) != XmlPullParser.START_TAG
-                    && type != XmlPullParser.END_DOCUMENT) {
-                ;
-            }
-
-            if (type != XmlPullParser.START_TAG) {
-                mReadMessages.append("No start tag found in settings file\n");
-                PackageManagerService.reportSettingsProblem(Log.WARN,
-                        "No start tag found in package manager settings");
-                Slog.wtf(PackageManagerService.TAG,
-                        "No start tag found in package manager settings");
-                return false;
-            }
-
-            int outerDepth = parser.getDepth();
-            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
-                    && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
-                if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                    continue;
-                }
-
-                String tagName = parser.getName();
-                if (tagName.equals("package")) {
-                    readPackageLPw(parser);
-                } else if (tagName.equals("permissions")) {
-                    readPermissionsLPw(mPermissions, parser);
-                } else if (tagName.equals("permission-trees")) {
-                    readPermissionsLPw(mPermissionTrees, parser);
-                } else if (tagName.equals("shared-user")) {
-                    readSharedUserLPw(parser);
-                } else if (tagName.equals("preferred-packages")) {
-                    // no longer used.
-                } else if (tagName.equals("preferred-activities")) {
-                    // Upgrading from old single-user implementation;
-                    // these are the preferred activities for user 0.
-                    readPreferredActivitiesLPw(parser, 0);
-                } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
-                    // TODO: check whether this is okay! as it is very
-                    // similar to how preferred-activities are treated
-                    readPersistentPreferredActivitiesLPw(parser, 0);
-                } else if (tagName.equals(TAG_CROSS_PROFILE_INTENT_FILTERS)) {
-                    // TODO: check whether this is okay! as it is very
-                    // similar to how preferred-activities are treated
-                    readCrossProfileIntentFiltersLPw(parser, 0);
-                } else if (tagName.equals(TAG_DEFAULT_BROWSER)) {
-                    readDefaultAppsLPw(parser, 0);
-                } else if (tagName.equals("updated-package")) {
-                    readDisabledSysPackageLPw(parser);
-                } else if (tagName.equals("cleaning-package")) {
-                    String name = parser.getAttributeValue(null, ATTR_NAME);
-                    String userStr = parser.getAttributeValue(null, ATTR_USER);
-                    String codeStr = parser.getAttributeValue(null, ATTR_CODE);
-                    if (name != null) {
-                        int userId = UserHandle.USER_SYSTEM;
-                        boolean andCode = true;
-                        try {
-                            if (userStr != null) {
-                                userId = Integer.parseInt(userStr);
-                            }
-                        } catch (NumberFormatException e) {
-                        }
-                        if (codeStr != null) {
-                            andCode = Boolean.parseBoolean(codeStr);
-                        }
-                        addPackageToCleanLPw(new PackageCleanItem(userId, name, andCode));
-                    }
-                } else if (tagName.equals("renamed-package")) {
-                    String nname = parser.getAttributeValue(null, "new");
-                    String oname = parser.getAttributeValue(null, "old");
-                    if (nname != null && oname != null) {
-                        mRenamedPackages.put(nname, oname);
-                    }
-                } else if (tagName.equals("restored-ivi")) {
-                    readRestoredIntentFilterVerifications(parser);
-                } else if (tagName.equals("last-platform-version")) {
-                    // Upgrade from older XML schema
-                    final VersionInfo internal = findOrCreateVersion(
-                            StorageManager.UUID_PRIVATE_INTERNAL);
-                    final VersionInfo external = findOrCreateVersion(
-                            StorageManager.UUID_PRIMARY_PHYSICAL);
-
-                    internal.sdkVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
-                    external.sdkVersion = XmlUtils.readIntAttribute(parser, "external", 0);
-                    internal.fingerprint = external.fingerprint =
-                            XmlUtils.readStringAttribute(parser, "fingerprint");
-
-                } else if (tagName.equals("database-version")) {
-                    // Upgrade from older XML schema
-                    final VersionInfo internal = findOrCreateVersion(
-                            StorageManager.UUID_PRIVATE_INTERNAL);
-                    final VersionInfo external = findOrCreateVersion(
-                            StorageManager.UUID_PRIMARY_PHYSICAL);
-
-                    internal.databaseVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
-                    external.databaseVersion = XmlUtils.readIntAttribute(parser, "external", 0);
-
-                } else if (tagName.equals("verifier")) {
-                    final String deviceIdentity = parser.getAttributeValue(null, "device");
-                    try {
-                        mVerifierDeviceIdentity = VerifierDeviceIdentity.parse(deviceIdentity);
-                    } catch (IllegalArgumentException e) {
-                        Slog.w(PackageManagerService.TAG, "Discard invalid verifier device id: "
-                                + e.getMessage());
-                    }
-                } else if (TAG_READ_EXTERNAL_STORAGE.equals(tagName)) {
-                    final String enforcement = parser.getAttributeValue(null, ATTR_ENFORCEMENT);
-                    mReadExternalStorageEnforced = "1".equals(enforcement);
-                } else if (tagName.equals("keyset-settings")) {
-                    mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
-                } else if (TAG_VERSION.equals(tagName)) {
-                    final String volumeUuid = XmlUtils.readStringAttribute(parser,
-                            ATTR_VOLUME_UUID);
-                    final VersionInfo ver = findOrCreateVersion(volumeUuid);
-                    ver.sdkVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
-                    ver.databaseVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
-                    ver.fingerprint = XmlUtils.readStringAttribute(parser, ATTR_FINGERPRINT);
-                } else {
-                    Slog.w(PackageManagerService.TAG, "Unknown element under <packages>: "
-                            + parser.getName());
-                    XmlUtils.skipCurrentTag(parser);
-                }
-            }
-
-            str.close();
-
-        } catch (XmlPullParserException e) {
-            mReadMessages.append("Error reading: " + e.toString());
-            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
-            Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
-
-        } catch (java.io.IOException e) {
-            mReadMessages.append("Error reading: " + e.toString());
-            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
-            Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
+        if (useShardedSettingsLPr()) {
+            readShardedSettingsLPw();
+        } else if (!readSettingsFileLPw()) {
+            return false;
         }
 
         // If the build is setup to drop runtime permissions
@@ -3263,6 +3330,251 @@ final class Settings {
         return true;
     }
 
+    /**
+     * Read the settings file, or its backup.
+     *
+     * @return false if there was no settings file, or it was empty.
+     */
+    private boolean readSettingsFileLPw() {
+        FileInputStream str = null;
+        if (mBackupSettingsFilename.exists()) {
+            try {
+                str = new FileInputStream(mBackupSettingsFilename);
+                mReadMessages.append("Reading from backup settings file\n");
+                PackageManagerService.reportSettingsProblem(Log.INFO,
+                        "Need to read from backup settings file");
+                if (mSettingsFilename.exists()) {
+                    // If both the backup and settings file exist, we
+                    // ignore the settings since it might have been
+                    // corrupted.
+                    Slog.w(PackageManagerService.TAG, "Cleaning up settings file "
+                            + mSettingsFilename);
+                    mSettingsFilename.delete();
+                }
+            } catch (java.io.IOException e) {
+                // We'll try for the normal settings file.
+            }
+        }
+
+        try {
+            if (str == null) {
+                if (!mSettingsFilename.exists()) {
+                    mReadMessages.append("No settings file found\n");
+                    PackageManagerService.reportSettingsProblem(Log.INFO,
+                            "No settings file; creating initial state");
+                    // It's enough to just touch version details to create them
+                    // with default values
+                    findOrCreateVersion(StorageManager.UUID_PRIVATE_INTERNAL).forceCurrent();
+                    findOrCreateVersion(StorageManager.UUID_PRIMARY_PHYSICAL).forceCurrent();
+                    return false;
+                }
+                str = new FileInputStream(mSettingsFilename);
+            }
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(str, StandardCharsets.UTF_8.name());
+
+            if (!readSettingsLPw(parser)) {
+                mReadMessages.append("No start tag found in settings file\n");
+                PackageManagerService.reportSettingsProblem(Log.WARN,
+                        "No start tag found in package manager settings");
+                Slog.wtf(PackageManagerService.TAG,
+                        "No start tag found in package manager settings");
+                return false;
+            }
+
+            str.close();
+
+        } catch (XmlPullParserException e) {
+            mReadMessages.append("Error reading: " + e.toString());
+            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
+            Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
+
+        } catch (java.io.IOException e) {
+            mReadMessages.append("Error reading: " + e.toString());
+            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
+            Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
+        }
+        return true;
+    }
+
+    /**
+     * Whether to read the sharded settings rather than the settings file. The storage that is
+     * in use is preferred, and the other one is read when it's all there is, to migrate it.
+     */
+    private boolean useShardedSettingsLPr() {
+        if (USE_SHARDED_STORAGE) {
+            return mShardedSettings.exists();
+        }
+        return !mSettingsFilename.exists() && !mBackupSettingsFilename.exists()
+                && mShardedSettings.exists();
+    }
+
+    /**
+     * Read every shard of the sharded settings. A shard that can't be read only loses its
+     * own records.
+     */
+    private void readShardedSettingsLPw() {
+        final ShardedSettingsFile file = mShardedSettings;
+        try {
+            file.load();
+        } catch (java.io.IOException e) {
+            mReadMessages.append("Error reading: " + e.toString());
+            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
+            Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
+            file.finishLoad();
+            return;
+        }
+        final int N = file.getShardCount();
+        for (int i = 0; i < N; i++) {
+            mPastSignatures.clear();
+            try {
+                final XmlPullParser parser = XmlUtils.resolvePullParser(file.openShard(i));
+                if (!readSettingsLPw(parser)) {
+                    mReadMessages.append("No start tag found in settings shard "
+                            + file.getShardName(i) + "\n");
+                    PackageManagerService.reportSettingsProblem(Log.WARN,
+                            "No start tag found in package manager settings shard "
+                            + file.getShardName(i));
+                }
+            } catch (XmlPullParserException | java.io.IOException e) {
+                mReadMessages.append("Error reading: " + e.toString());
+                PackageManagerService.reportSettingsProblem(Log.ERROR,
+                        "Error reading settings: " + e);
+                Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings "
+                        + "shard " + file.getShardName(i), e);
+            }
+        }
+        file.finishLoad();
+    }
+
+    /**
+     * Read the elements under the root of a settings document.
+     *
+     * @return false if the document had no root element.
+     */
+    private boolean readSettingsLPw(XmlPullParser parser)
+            throws XmlPullParserException, java.io.IOException {
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG
+                && type != XmlPullParser.END_DOCUMENT) {
+            ;
+        }
+
+        if (type != XmlPullParser.START_TAG) {
+            return false;
+        }
+
+        int outerDepth = parser.getDepth();
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+
+            String tagName = parser.getName();
+            if (tagName.equals("package")) {
+                readPackageLPw(parser);
+            } else if (tagName.equals("permissions")) {
+                readPermissionsLPw(mPermissions, parser);
+            } else if (tagName.equals("permission-trees")) {
+                readPermissionsLPw(mPermissionTrees, parser);
+            } else if (tagName.equals("shared-user")) {
+                readSharedUserLPw(parser);
+            } else if (tagName.equals("preferred-packages")) {
+                // no longer used.
+            } else if (tagName.equals("preferred-activities")) {
+                // Upgrading from old single-user implementation;
+                // these are the preferred activities for user 0.
+                readPreferredActivitiesLPw(parser, 0);
+            } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
+                // TODO: check whether this is okay! as it is very
+                // similar to how preferred-activities are treated
+                readPersistentPreferredActivitiesLPw(parser, 0);
+            } else if (tagName.equals(TAG_CROSS_PROFILE_INTENT_FILTERS)) {
+                // TODO: check whether this is okay! as it is very
+                // similar to how preferred-activities are treated
+                readCrossProfileIntentFiltersLPw(parser, 0);
+            } else if (tagName.equals(TAG_DEFAULT_BROWSER)) {
+                readDefaultAppsLPw(parser, 0);
+            } else if (tagName.equals("updated-package")) {
+                readDisabledSysPackageLPw(parser);
+            } else if (tagName.equals("cleaning-package")) {
+                String name = parser.getAttributeValue(null, ATTR_NAME);
+                String userStr = parser.getAttributeValue(null, ATTR_USER);
+                String codeStr = parser.getAttributeValue(null, ATTR_CODE);
+                if (name != null) {
+                    int userId = UserHandle.USER_SYSTEM;
+                    boolean andCode = true;
+                    try {
+                        if (userStr != null) {
+                            userId = Integer.parseInt(userStr);
+                        }
+                    } catch (NumberFormatException e) {
+                    }
+                    if (codeStr != null) {
+                        andCode = Boolean.parseBoolean(codeStr);
+                    }
+                    addPackageToCleanLPw(new PackageCleanItem(userId, name, andCode));
+                }
+            } else if (tagName.equals("renamed-package")) {
+                String nname = parser.getAttributeValue(null, "new");
+                String oname = parser.getAttributeValue(null, "old");
+                if (nname != null && oname != null) {
+                    mRenamedPackages.put(nname, oname);
+                }
+            } else if (tagName.equals("restored-ivi")) {
+                readRestoredIntentFilterVerifications(parser);
+            } else if (tagName.equals("last-platform-version")) {
+                // Upgrade from older XML schema
+                final VersionInfo internal = findOrCreateVersion(
+                        StorageManager.UUID_PRIVATE_INTERNAL);
+                final VersionInfo external = findOrCreateVersion(
+                        StorageManager.UUID_PRIMARY_PHYSICAL);
+
+                internal.sdkVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
+                external.sdkVersion = XmlUtils.readIntAttribute(parser, "external", 0);
+                internal.fingerprint = external.fingerprint =
+                        XmlUtils.readStringAttribute(parser, "fingerprint");
+
+            } else if (tagName.equals("database-version")) {
+                // Upgrade from older XML schema
+                final VersionInfo internal = findOrCreateVersion(
+                        StorageManager.UUID_PRIVATE_INTERNAL);
+                final VersionInfo external = findOrCreateVersion(
+                        StorageManager.UUID_PRIMARY_PHYSICAL);
+
+                internal.databaseVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
+                external.databaseVersion = XmlUtils.readIntAttribute(parser, "external", 0);
+
+            } else if (tagName.equals("verifier")) {
+                final String deviceIdentity = parser.getAttributeValue(null, "device");
+                try {
+                    mVerifierDeviceIdentity = VerifierDeviceIdentity.parse(deviceIdentity);
+                } catch (IllegalArgumentException e) {
+                    Slog.w(PackageManagerService.TAG, "Discard invalid verifier device id: "
+                            + e.getMessage());
+                }
+            } else if (TAG_READ_EXTERNAL_STORAGE.equals(tagName)) {
+                final String enforcement = parser.getAttributeValue(null, ATTR_ENFORCEMENT);
+                mReadExternalStorageEnforced = "1".equals(enforcement);
+            } else if (tagName.equals("keyset-settings")) {
+                mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
+            } else if (TAG_VERSION.equals(tagName)) {
+                final String volumeUuid = XmlUtils.readStringAttribute(parser,
+                        ATTR_VOLUME_UUID);
+                final VersionInfo ver = findOrCreateVersion(volumeUuid);
+                ver.sdkVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
+                ver.databaseVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
+                ver.fingerprint = XmlUtils.readStringAttribute(parser, ATTR_FINGERPRINT);
+            } else {
+                Slog.w(PackageManagerService.TAG, "Unknown element under <packages>: "
+                        + parser.getName());
+                XmlUtils.skipCurrentTag(parser);
+            }
+        }
+        return true;
+    }
+
     void applyDefaultPreferredAppsLPw(PackageManagerService service, int userId) {
         // First pull data from any pre-installed apps.
         for (PackageSetting ps : mPackages.values()) {
@@ -4271,6 +4583,8 @@ final class Settings {
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
+        getShardedPackageRestrictionsLPr(userId).delete();
+        mShardedPackageRestrictions.remove(userId);
         removeCrossProfileIntentFiltersLPw(userId);
 
         mRuntimePermissionsPersistence.onUserRemovedLPw(userId);
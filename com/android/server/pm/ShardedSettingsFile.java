@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.os.FileUtils;
+import android.util.AtomicFile;
+import android.util.LongSparseArray;
+import android.util.LongSparseLongArray;
+import android.util.Slog;
+
+import com.android.internal.util.XmlUtils;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A settings file stored as a list of named shards, each its own binary XML document, so that
+ * writing it only puts the shards whose contents changed on disk.
+ * <p>
+ * Every write serializes all of the shards, in order, between {@link #startWrite} and
+ * {@link #finishWrite}. Shards that differ from the committed ones are appended to a new
+ * segment file, and the write is then committed by atomically replacing a manifest that lists
+ * the segment, offset and length of every shard. Segments that no longer hold any committed
+ * shard are deleted. Once there are {@link #MAX_SEGMENTS} segments, the next write also copies
+ * the shards of every segment but the largest to its new segment, and once the segments hold
+ * as many stale bytes as live ones, the next write copies every shard to a single new segment.
+ * <p>
+ * Reading loads the manifest and every segment it refers to in one pass each, and hands out
+ * the shards in the order they were written.
+ * <p>
+ * Not thread safe; callers must hold the package manager lock.
+ */
+final class ShardedSettingsFile {
+    private static final String TAG = "ShardedSettingsFile";
+
+    private static final int MANIFEST_MAGIC = 0x53534d46;
+    private static final int MANIFEST_VERSION = 1;
+    private static final String MANIFEST_FILE_NAME = "manifest";
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+    /**
+     * Minimum number of stale bytes in the segments before they are compacted. Segments are
+     * also allowed to hold as many stale bytes as live ones, so that compacting costs no more
+     * than the writes it saves.
+     */
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    /**
+     * Number of segments at which the shards of all but the largest one are merged into the
+     * next one, to keep the number of files read at boot down. Shards that changed recently
+     * are usually the only ones outside the largest segment, so merging them is cheap.
+     */
+    private static final int MAX_SEGMENTS = 8;
+
+    private static final class Shard {
+        final String name;
+        final long segment;
+        final int offset;
+        final int length;
+        final byte[] digest;
+
+        Shard(String name, long segment, int offset, int length, byte[] digest) {
+            this.name = name;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    private final File mDir;
+    private final AtomicFile mManifestFile;
+    private final MessageDigest mDigest;
+
+    private boolean mManifestRead;
+    /** Committed shards, in the order they were written. */
+    private ArrayList<Shard> mShards = new ArrayList<>();
+    /** Length of every segment that holds committed shards. */
+    private LongSparseLongArray mSegmentLengths = new LongSparseLongArray();
+    private long mNextSegment;
+
+    // State of the write in progress, if any
+    private boolean mWriting;
+    private boolean mCompacting;
+    private boolean mMerging;
+    private long mBaseSegment;
+    private int mShardIndex;
+    private String mShardName;
+    private XmlSerializer mSerializer;
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final ArrayList<Shard> mPendingShards = new ArrayList<>();
+    private boolean mPendingChanges;
+    private File mSegmentFile;
+    private FileOutputStream mSegmentStream;
+    private BufferedOutputStream mSegmentOut;
+    private int mSegmentLength;
+
+    // Contents of the committed segments while loaded
+    private LongSparseArray<byte[]> mLoadedSegments;
+
+    ShardedSettingsFile(File dir) {
+        mDir = dir;
+        mManifestFile = new AtomicFile(new File(dir, MANIFEST_FILE_NAME));
+        try {
+            mDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Whether there is a committed file to read.
+     */
+    boolean exists() {
+        try {
+            mManifestFile.openRead().close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the manifest and the contents of every shard, which stay in memory until
+     * {@link #finishLoad}.
+     *
+     * @return whether there was a committed file.
+     */
+    boolean load() throws IOException {
+        if (!readManifest()) {
+            return false;
+        }
+        mLoadedSegments = new LongSparseArray<>(mSegmentLengths.size());
+        for (int i = 0; i < mSegmentLengths.size(); i++) {
+            final long segment = mSegmentLengths.keyAt(i);
+            final byte[] contents = new byte[(int) mSegmentLengths.valueAt(i)];
+            final DataInputStream in = new DataInputStream(
+                    new FileInputStream(getSegmentFile(segment)));
+            try {
+                in.readFully(contents);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+            mLoadedSegments.put(segment, contents);
+        }
+        return true;
+    }
+
+    int getShardCount() {
+        return mShards.size();
+    }
+
+    String getShardName(int index) {
+        return mShards.get(index).name;
+    }
+
+    /**
+     * Open a loaded shard for reading.
+     *
+     * @throws IOException if its contents don't match what was written.
+     */
+    InputStream openShard(int index) throws IOException {
+        final Shard shard = mShards.get(index);
+        final byte[] contents = mLoadedSegments.get(shard.segment);
+        mDigest.update(contents, shard.offset, shard.length);
+        if (!Arrays.equals(mDigest.digest(), shard.digest)) {
+            throw new IOException("Corrupt shard " + shard.name + " in " + mDir);
+        }
+        return new ByteArrayInputStream(contents, shard.offset, shard.length);
+    }
+
+    void finishLoad() {
+        mLoadedSegments = null;
+    }
+
+    /**
+     * Start writing every shard of the file, each of them with {@link #startShard} and
+     * {@link #finishShard}, then commit them with {@link #finishWrite}, or abandon the write
+     * with {@link #failWrite}. Shards that aren't written again are removed.
+     */
+    void startWrite() throws IOException {
+        if (mWriting) {
+            throw new IllegalStateException("Write already in progress in " + mDir);
+        }
+        if (!mManifestRead) {
+            try {
+                readManifest();
+            } catch (IOException e) {
+                // Replace the corrupt manifest with a full write
+                Slog.w(TAG, "Failed to read manifest in " + mDir, e);
+            }
+        }
+        if (!mDir.exists()) {
+            mDir.mkdirs();
+            FileUtils.setPermissions(mDir.toString(),
+                    FileUtils.S_IRWXU|FileUtils.S_IRWXG, -1, -1);
+        }
+        long totalBytes = 0;
+        for (int i = 0; i < mSegmentLengths.size(); i++) {
+            totalBytes += mSegmentLengths.valueAt(i);
+        }
+        long liveBytes = 0;
+        for (int i = 0; i < mShards.size(); i++) {
+            liveBytes += mShards.get(i).length;
+        }
+        final long staleBytes = totalBytes - liveBytes;
+        mCompacting = staleBytes >= Math.max(liveBytes, MIN_COMPACTION_BYTES);
+        mMerging = !mCompacting && mSegmentLengths.size() >= MAX_SEGMENTS;
+        if (mMerging) {
+            int largest = 0;
+            for (int i = 1; i < mSegmentLengths.size(); i++) {
+                if (mSegmentLengths.valueAt(i) > mSegmentLengths.valueAt(largest)) {
+                    largest = i;
+                }
+            }
+            mBaseSegment = mSegmentLengths.keyAt(largest);
+        }
+        mWriting = true;
+        mShardIndex = 0;
+        mPendingShards.clear();
+        mPendingChanges = false;
+    }
+
+    /**
+     * Start writing the next shard, which is a whole document: the returned serializer has
+     * already been started, and {@link #finishShard} ends it.
+     */
+    XmlSerializer startShard(String name) throws IOException {
+        if (!mWriting || mSerializer != null) {
+            throw new IllegalStateException("Not ready to write shard " + name);
+        }
+        mShardName = name;
+        mBuffer.reset();
+        mSerializer = XmlUtils.resolveSerializer(mBuffer, true);
+        mSerializer.startDocument(null, true);
+        return mSerializer;
+    }
+
+    void finishShard() throws IOException {
+        mSerializer.endDocument();
+        mSerializer = null;
+        final byte[] contents = mBuffer.toByteArray();
+        final byte[] digest = mDigest.digest(contents);
+
+        final Shard committed = mShardIndex < mShards.size() ? mShards.get(mShardIndex) : null;
+        mShardIndex++;
+        final Shard previous = committed != null && committed.name.equals(mShardName)
+                ? committed : findShard(mShardName);
+        if (previous != committed) {
+            // Shards were added, removed or reordered
+            mPendingChanges = true;
+        }
+        final boolean copy = mCompacting
+                || (mMerging && previous != null && previous.segment != mBaseSegment);
+        if (previous != null && !copy && Arrays.equals(previous.digest, digest)) {
+            mPendingShards.add(previous);
+            return;
+        }
+
+        if (mSegmentOut == null) {
+            final long segment = mNextSegment++;
+            mSegmentFile = getSegmentFile(segment);
+            mSegmentStream = new FileOutputStream(mSegmentFile);
+            mSegmentOut = new BufferedOutputStream(mSegmentStream);
+            mSegmentLength = 0;
+        }
+        mSegmentOut.write(contents);
+        mPendingShards.add(new Shard(mShardName, mNextSegment - 1, mSegmentLength,
+                contents.length, digest));
+        mSegmentLength += contents.length;
+        mPendingChanges = true;
+    }
+
+    /**
+     * Commit the shards written since {@link #startWrite}.
+     */
+    void finishWrite() throws IOException {
+        if (mSerializer != null) {
+            throw new IllegalStateException("Shard " + mShardName + " not finished");
+        }
+        if (mShardIndex != mShards.size()) {
+            mPendingChanges = true;
+        }
+        if (!mPendingChanges) {
+            mWriting = false;
+            mPendingShards.clear();
+            return;
+        }
+
+        final LongSparseLongArray segmentLengths = new LongSparseLongArray();
+        for (int i = 0; i < mPendingShards.size(); i++) {
+            final long segment = mPendingShards.get(i).segment;
+            if (segmentLengths.indexOfKey(segment) < 0) {
+                segmentLengths.put(segment, segment == mNextSegment - 1 && mSegmentOut != null
+                        ? mSegmentLength : mSegmentLengths.get(segment));
+            }
+        }
+
+        if (mSegmentOut != null) {
+            mSegmentOut.flush();
+            FileUtils.sync(mSegmentStream);
+            mSegmentOut.close();
+            FileUtils.setPermissions(mSegmentFile.toString(),
+                    FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                    -1, -1);
+            mSegmentOut = null;
+            mSegmentStream = null;
+        }
+
+        FileOutputStream fstr = null;
+        try {
+            fstr = mManifestFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fstr));
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(MANIFEST_VERSION);
+            out.writeLong(mNextSegment);
+            out.writeInt(segmentLengths.size());
+            for (int i = 0; i < segmentLengths.size(); i++) {
+                out.writeLong(segmentLengths.keyAt(i));
+                out.writeLong(segmentLengths.valueAt(i));
+            }
+            out.writeInt(mPendingShards.size());
+            for (int i = 0; i < mPendingShards.size(); i++) {
+                final Shard shard = mPendingShards.get(i);
+                out.writeUTF(shard.name);
+                out.writeLong(shard.segment);
+                out.writeInt(shard.offset);
+                out.writeInt(shard.length);
+                out.write(shard.digest);
+            }
+            out.flush();
+            mManifestFile.finishWrite(fstr);
+        } catch (IOException e) {
+            mManifestFile.failWrite(fstr);
+            throw e;
+        }
+        FileUtils.setPermissions(mManifestFile.getBaseFile().toString(),
+                FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                -1, -1);
+
+        mShards = new ArrayList<>(mPendingShards);
+        mSegmentLengths = segmentLengths;
+        mPendingShards.clear();
+        mSegmentFile = null;
+        mWriting = false;
+        deleteStaleSegments();
+    }
+
+    /**
+     * Abandon the write in progress, leaving the committed file as it was.
+     */
+    void failWrite() {
+        if (mSegmentOut != null) {
+            IoUtils.closeQuietly(mSegmentOut);
+            mSegmentOut = null;
+            mSegmentStream = null;
+        }
+        if (mSegmentFile != null) {
+            mSegmentFile.delete();
+            mSegmentFile = null;
+        }
+        mSerializer = null;
+        mPendingShards.clear();
+        mWriting = false;
+    }
+
+    /**
+     * Delete the file and all of its shards.
+     */
+    void delete() {
+        failWrite();
+        mManifestFile.delete();
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+        mShards = new ArrayList<>();
+        mSegmentLengths = new LongSparseLongArray();
+        mManifestRead = true;
+        mLoadedSegments = null;
+    }
+
+    private Shard findShard(String name) {
+        for (int i = 0; i < mShards.size(); i++) {
+            if (mShards.get(i).name.equals(name)) {
+                return mShards.get(i);
+            }
+        }
+        return null;
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(mDir, SEGMENT_FILE_PREFIX + segment);
+    }
+
+    /**
+     * @return whether there was a manifest.
+     */
+    private boolean readManifest() throws IOException {
+        mManifestRead = true;
+        mShards = new ArrayList<>();
+        mSegmentLengths = new LongSparseLongArray();
+        mNextSegment = 0;
+
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mManifestFile.openRead()));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("Bad manifest magic in " + mDir);
+            }
+            final int version = in.readInt();
+            if (version != MANIFEST_VERSION) {
+                throw new IOException("Unsupported manifest version " + version + " in " + mDir);
+            }
+            mNextSegment = in.readLong();
+            final int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                final long segment = in.readLong();
+                mSegmentLengths.put(segment, in.readLong());
+            }
+            final int shardCount = in.readInt();
+            mShards.ensureCapacity(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                final String name = in.readUTF();
+                final long segment = in.readLong();
+                final int offset = in.readInt();
+                final int length = in.readInt();
+                final byte[] digest = new byte[mDigest.getDigestLength()];
+                in.readFully(digest);
+                if (mSegmentLengths.indexOfKey(segment) < 0
+                        || offset < 0 || length < 0
+                        || (long) offset + length > mSegmentLengths.get(segment)) {
+                    throw new IOException("Bad extent for shard " + name + " in " + mDir);
+                }
+                mShards.add(new Shard(name, segment, offset, length, digest));
+            }
+        } catch (IOException e) {
+            mShards = new ArrayList<>();
+            mSegmentLengths = new LongSparseLongArray();
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return true;
+    }
+
+    /**
+     * Delete the segments that hold no committed shard, including any left behind by a write
+     * that didn't commit.
+     */
+    private void deleteStaleSegments() {
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.startsWith(SEGMENT_FILE_PREFIX)) {
+                continue;
+            }
+            long segment;
+            try {
+                segment = Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                segment = -1;
+            }
+            if (mSegmentLengths.indexOfKey(segment) < 0 && !file.delete()) {
+                Slog.w(TAG, "Failed to delete stale segment " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.XmlUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Checks that {@link ShardedSettingsFile} reads back what was last committed, only writes the
+ * shards that changed, and notices corrupt manifests and shards.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ShardedSettingsFileTest {
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "sharded-settings-test");
+        FileUtils.deleteContents(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final ShardedSettingsFile file = new ShardedSettingsFile(mDir);
+        assertFalse(file.exists());
+        assertFalse(new ShardedSettingsFile(mDir).load());
+
+        final LinkedHashMap<String, String> shards = createShards(10);
+        write(file, shards);
+
+        assertTrue(new ShardedSettingsFile(mDir).exists());
+        assertEquals(shards, read(new ShardedSettingsFile(mDir)));
+    }
+
+    @Test
+    public void testIncrementalWrite() throws Exception {
+        final ShardedSettingsFile file = new ShardedSettingsFile(mDir);
+        final LinkedHashMap<String, String> shards = createShards(20);
+        write(file, shards);
+        assertEquals(setOf("segment-0"), getSegmentNames());
+        final long fullLength = new File(mDir, "segment-0").length();
+
+        // Writing the same contents again leaves everything in place
+        write(file, shards);
+        assertEquals(setOf("segment-0"), getSegmentNames());
+
+        shards.put("com.example.package5", "changed");
+        write(file, shards);
+        assertEquals(setOf("segment-0", "segment-1"), getSegmentNames());
+        assertEquals(fullLength, new File(mDir, "segment-0").length());
+        assertTrue(new File(mDir, "segment-1").length() < fullLength / 10);
+
+        assertEquals(shards, read(new ShardedSettingsFile(mDir)));
+    }
+
+    @Test
+    public void testRemovedShard() throws Exception {
+        final ShardedSettingsFile file = new ShardedSettingsFile(mDir);
+        final LinkedHashMap<String, String> shards = createShards(5);
+        write(file, shards);
+
+        shards.remove("com.example.package2");
+        write(file, shards);
+        // Nothing new to write, only the manifest changes
+        assertEquals(setOf("segment-0"), getSegmentNames());
+        assertEquals(shards, read(new ShardedSettingsFile(mDir)));
+    }
+
+    @Test
+    public void testCorruptManifest() throws Exception {
+        final LinkedHashMap<String, String> shards = createShards(5);
+        write(new ShardedSettingsFile(mDir), shards);
+
+        try (FileOutputStream out = new FileOutputStream(new File(mDir, "manifest"))) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        }
+        final ShardedSettingsFile file = new ShardedSettingsFile(mDir);
+        try {
+            file.load();
+            fail("Expected corrupt manifest to fail loading");
+        } catch (IOException expected) {
+        }
+
+        // The next write replaces everything
+        write(file, shards);
+        assertEquals(shards, read(new ShardedSettingsFile(mDir)));
+    }
+
+    @Test
+    public void testCorruptShard() throws Exception {
+        final LinkedHashMap<String, String> shards = createShards(5);
+        write(new ShardedSettingsFile(mDir), shards);
+
+        // Flip the first byte of the segment, which belongs to the first shard
+        try (RandomAccessFile raf = new RandomAccessFile(new File(mDir, "segment-0"), "rw")) {
+            final int b = raf.read();
+            raf.seek(0);
+            raf.write(b ^ 0xff);
+        }
+
+        final ShardedSettingsFile file = new ShardedSettingsFile(mDir);
+        assertTrue(file.load());
+        try {
+            file.openShard(0);
+            fail("Expected corrupt shard to fail opening");
+        } catch (IOException expected) {
+        }
+        for (int i = 1; i < file.getShardCount(); i++) {
+            assertEquals(shards.get(file.getShardName(i)), readShard(file, i));
+        }
+        file.finishLoad();
+    }
+
+    @Test
+    public void testStaleSegmentCleanup() throws Exception {
+        final ShardedSettingsFile file = new ShardedSettingsFile(mDir);
+        final LinkedHashMap<String, String> shards = createShards(5);
+        write(file, shards);
+
+        // Left behind by a write that didn't commit
+        new File(mDir, "segment-99").createNewFile();
+
+        shards.put("com.example.package1", "first change");
+        write(file, shards);
+        assertEquals(setOf("segment-0", "segment-1"), getSegmentNames());
+
+        // The only shard in segment-1 is replaced, so nothing refers to it anymore
+        shards.put("com.example.package1", "second change");
+        write(file, shards);
+        assertEquals(setOf("segment-0", "segment-2"), getSegmentNames());
+
+        // An abandoned write leaves the committed segments alone
+        file.startWrite();
+        writeShard(file, "com.example.package1", "abandoned");
+        file.failWrite();
+        assertEquals(setOf("segment-0", "segment-2"), getSegmentNames());
+
+        assertEquals(shards, read(new ShardedSettingsFile(mDir)));
+    }
+
+    private static LinkedHashMap<String, String> createShards(int count) {
+        final LinkedHashMap<String, String> shards = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            shards.put("com.example.package" + i, "value of package " + i);
+        }
+        return shards;
+    }
+
+    private static void write(ShardedSettingsFile file, Map<String, String> shards)
+            throws IOException {
+        file.startWrite();
+        for (Map.Entry<String, String> shard : shards.entrySet()) {
+            writeShard(file, shard.getKey(), shard.getValue());
+        }
+        file.finishWrite();
+    }
+
+    private static void writeShard(ShardedSettingsFile file, String name, String value)
+            throws IOException {
+        final XmlSerializer out = file.startShard(name);
+        out.startTag(null, "package");
+        out.attribute(null, "value", value);
+        out.endTag(null, "package");
+        file.finishShard();
+    }
+
+    private static LinkedHashMap<String, String> read(ShardedSettingsFile file)
+            throws Exception {
+        assertTrue(file.load());
+        final LinkedHashMap<String, String> shards = new LinkedHashMap<>();
+        for (int i = 0; i < file.getShardCount(); i++) {
+            shards.put(file.getShardName(i), readShard(file, i));
+        }
+        file.finishLoad();
+        return shards;
+    }
+
+    private static String readShard(ShardedSettingsFile file, int index) throws Exception {
+        final XmlPullParser parser = XmlUtils.resolvePullParser(file.openShard(index));
+        XmlUtils.nextElement(parser);
+        assertEquals("package", parser.getName());
+        return parser.getAttributeValue(null, "value");
+    }
+
+    private TreeSet<String> getSegmentNames() {
+        final TreeSet<String> names = new TreeSet<>();
+        for (String name : mDir.list()) {
+            if (name.startsWith("segment-")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static TreeSet<String> setOf(String... names) {
+        return new TreeSet<>(Arrays.asList(names));
+    }
+}
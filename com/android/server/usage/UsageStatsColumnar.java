@@ -0,0 +1,620 @@
+/**
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.android.server.usage;
+
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.app.usage.ConfigurationStats;
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * UsageStats reader/writer for the binary columnar format.
+ * <p>
+ * Every package, class, action, category and shortcut name is stored once in a string table
+ * and referenced by index. The package and configuration stats are each stored column by
+ * column, and events are stored in blocks of {@link #EVENTS_PER_BLOCK}, each of which is again
+ * laid out column by column with its timestamps delta-encoded. A sparse index holding the time
+ * range and position of every block lets a query decode only the events it asks for, and the
+ * table of contents at the start of the file lets it skip any section it does not need
+ * without reading it.
+ * <p>
+ * All numbers other than those in the fixed-size header are variable-length, and time offsets
+ * from the beginTime of the stats are zigzag-encoded since they may be negative.
+ */
+final class UsageStatsColumnar {
+    /** "USC" followed by the format version. */
+    private static final int MAGIC_VERSION_1 = 0x55534301;
+    private static final int HEADER_SIZE = 4 + 8 + 4 * 5;
+
+    static final int EVENTS_PER_BLOCK = 64;
+
+    private static final String CONFIG_TAG = "config";
+
+    /**
+     * Reads the given sections of the stats in the file. When reading
+     * {@link UsageStatsDatabase#SECTION_EVENTS}, only the blocks of events that overlap
+     * [eventsBeginTime, eventsEndTime) are decoded, so the events read may extend somewhat
+     * beyond that range on either side.
+     *
+     * @return false if the file is not in this format, such as files written as XML before
+     *         this format was introduced.
+     */
+    static boolean read(AtomicFile file, IntervalStats statsOut, int sections,
+            long eventsBeginTime, long eventsEndTime) throws IOException {
+        final FileInputStream in = file.openRead();
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < HEADER_SIZE || buf.getInt(0) != MAGIC_VERSION_1) {
+                return false;
+            }
+            statsOut.beginTime = UsageStatsXml.parseBeginTime(file);
+            read(buf, statsOut, sections, eventsBeginTime, eventsEndTime);
+            statsOut.lastTimeSaved = file.getLastModifiedTime();
+            return true;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Empty
+            }
+        }
+    }
+
+    static void read(ByteBuffer buf, IntervalStats statsOut, int sections,
+            long eventsBeginTime, long eventsEndTime) throws IOException {
+        statsOut.packageStats.clear();
+        statsOut.configurations.clear();
+        statsOut.activeConfiguration = null;
+        if (statsOut.events != null) {
+            statsOut.events.clear();
+        }
+
+        try {
+            if (buf.getInt() != MAGIC_VERSION_1) {
+                throw new ProtocolException("Unrecognized usage stats format");
+            }
+            statsOut.endTime = statsOut.beginTime + buf.getLong();
+            final int packagesOffset = buf.getInt();
+            final int configurationsOffset = buf.getInt();
+            final int eventIndexOffset = buf.getInt();
+            final int eventsOffset = buf.getInt();
+            final int eventCount = buf.getInt();
+
+            // The string table directly follows the header
+            buf.position(HEADER_SIZE);
+            final String[] strings = readStringTable(buf);
+
+            if ((sections & UsageStatsDatabase.SECTION_PACKAGES) != 0) {
+                buf.position(packagesOffset);
+                readPackages(buf, strings, statsOut);
+            }
+            final Configuration[] configs;
+            if ((sections & (UsageStatsDatabase.SECTION_CONFIGURATIONS
+                    | UsageStatsDatabase.SECTION_EVENTS)) != 0) {
+                buf.position(configurationsOffset);
+                configs = readConfigurationTable(buf);
+                if ((sections & UsageStatsDatabase.SECTION_CONFIGURATIONS) != 0) {
+                    readConfigurationStats(buf, configs, statsOut);
+                }
+            } else {
+                configs = null;
+            }
+            if ((sections & UsageStatsDatabase.SECTION_EVENTS) != 0 && eventCount > 0) {
+                buf.position(eventIndexOffset);
+                readEvents(buf, eventsOffset, strings, configs, statsOut, eventCount,
+                        eventsBeginTime, eventsEndTime);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new ProtocolException("Truncated or corrupt usage stats: " + e);
+        }
+    }
+
+    private static String[] readStringTable(ByteBuffer buf) {
+        final String[] strings = new String[readVarInt(buf)];
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < strings.length; i++) {
+            final int length = readVarInt(buf);
+            if (length > bytes.length) {
+                bytes = new byte[length];
+            }
+            buf.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    private static void readPackages(ByteBuffer buf, String[] strings, IntervalStats statsOut) {
+        final int count = readVarInt(buf);
+        final UsageStats[] packages = new UsageStats[count];
+        for (int i = 0; i < count; i++) {
+            packages[i] = statsOut.getOrCreateUsageStats(strings[readVarInt(buf)]);
+        }
+        for (int i = 0; i < count; i++) {
+            packages[i].mLastTimeUsed = statsOut.beginTime + readZigZagLong(buf);
+        }
+        for (int i = 0; i < count; i++) {
+            packages[i].mTotalTimeInForeground = readZigZagLong(buf);
+        }
+        for (int i = 0; i < count; i++) {
+            packages[i].mLastEvent = (int) readZigZagLong(buf);
+        }
+        for (int i = 0; i < count; i++) {
+            final int actionCount = readVarInt(buf);
+            if (actionCount == 0) {
+                continue;
+            }
+            final ArrayMap<String, ArrayMap<String, Integer>> chooserCounts =
+                    new ArrayMap<>(actionCount);
+            for (int j = 0; j < actionCount; j++) {
+                final String action = strings[readVarInt(buf)];
+                final int categoryCount = readVarInt(buf);
+                final ArrayMap<String, Integer> counts = new ArrayMap<>(categoryCount);
+                for (int k = 0; k < categoryCount; k++) {
+                    final String category = strings[readVarInt(buf)];
+                    counts.put(category, readVarInt(buf));
+                }
+                chooserCounts.put(action, counts);
+            }
+            packages[i].mChooserCounts = chooserCounts;
+        }
+    }
+
+    private static Configuration[] readConfigurationTable(ByteBuffer buf) throws IOException {
+        final Configuration[] configs = new Configuration[readVarInt(buf)];
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < configs.length; i++) {
+            final int length = readVarInt(buf);
+            if (length > bytes.length) {
+                bytes = new byte[length];
+            }
+            buf.get(bytes, 0, length);
+            configs[i] = new Configuration();
+            try {
+                final XmlPullParser parser = new BinaryXmlPullParser();
+                parser.setInput(new ByteArrayInputStream(bytes, 0, length),
+                        StandardCharsets.UTF_8.name());
+                parser.nextTag();
+                Configuration.readXmlAttrs(parser, configs[i]);
+            } catch (XmlPullParserException e) {
+                throw new ProtocolException("Corrupt configuration: " + e);
+            }
+        }
+        return configs;
+    }
+
+    private static void readConfigurationStats(ByteBuffer buf, Configuration[] configs,
+            IntervalStats statsOut) {
+        final int count = readVarInt(buf);
+        final ConfigurationStats[] stats = new ConfigurationStats[count];
+        for (int i = 0; i < count; i++) {
+            stats[i] = statsOut.getOrCreateConfigurationStats(configs[readVarInt(buf)]);
+        }
+        for (int i = 0; i < count; i++) {
+            stats[i].mLastTimeActive = statsOut.beginTime + readZigZagLong(buf);
+        }
+        for (int i = 0; i < count; i++) {
+            stats[i].mTotalTimeActive = readZigZagLong(buf);
+        }
+        for (int i = 0; i < count; i++) {
+            stats[i].mActivationCount = readVarInt(buf);
+        }
+        final int active = readVarInt(buf);
+        if (active > 0) {
+            statsOut.activeConfiguration = stats[active - 1].mConfiguration;
+        }
+    }
+
+    private static void readEvents(ByteBuffer buf, int eventsOffset, String[] strings,
+            Configuration[] configs, IntervalStats statsOut, int eventCount,
+            long beginTime, long endTime) {
+        // Find the first and last block overlapping the range from the index
+        final int blockCount = readVarInt(buf);
+        int firstBlock = -1;
+        int lastBlock = -1;
+        int firstBlockOffset = 0;
+        int eventsInRange = 0;
+        long blockBeginTime = statsOut.beginTime;
+        for (int i = 0; i < blockCount; i++) {
+            blockBeginTime += readZigZagLong(buf);
+            final long blockEndTime = blockBeginTime + readVarLong(buf);
+            final int blockOffset = readVarInt(buf);
+            if (blockBeginTime >= endTime) {
+                break;
+            }
+            if (blockEndTime >= beginTime) {
+                if (firstBlock < 0) {
+                    firstBlock = i;
+                    firstBlockOffset = blockOffset;
+                }
+                lastBlock = i;
+                eventsInRange += Math.min(EVENTS_PER_BLOCK,
+                        eventCount - i * EVENTS_PER_BLOCK);
+            }
+        }
+        if (firstBlock < 0) {
+            return;
+        }
+
+        if (statsOut.events == null) {
+            statsOut.events = new TimeSparseArray<>(eventsInRange);
+        }
+        buf.position(eventsOffset + firstBlockOffset);
+        final UsageEvents.Event[] block = new UsageEvents.Event[EVENTS_PER_BLOCK];
+        for (int b = firstBlock; b <= lastBlock; b++) {
+            final int count = Math.min(EVENTS_PER_BLOCK, eventCount - b * EVENTS_PER_BLOCK);
+            long time = statsOut.beginTime;
+            for (int i = 0; i < count; i++) {
+                block[i] = new UsageEvents.Event();
+                time += readZigZagLong(buf);
+                block[i].mTimeStamp = time;
+            }
+            for (int i = 0; i < count; i++) {
+                block[i].mEventType = buf.get();
+            }
+            for (int i = 0; i < count; i++) {
+                block[i].mPackage = strings[readVarInt(buf)];
+            }
+            for (int i = 0; i < count; i++) {
+                final int clazz = readVarInt(buf);
+                block[i].mClass = (clazz > 0) ? strings[clazz - 1] : null;
+            }
+            for (int i = 0; i < count; i++) {
+                block[i].mFlags = readVarInt(buf);
+            }
+            for (int i = 0; i < count; i++) {
+                final UsageEvents.Event event = block[i];
+                switch (event.mEventType) {
+                    case UsageEvents.Event.CONFIGURATION_CHANGE: {
+                        final int config = readVarInt(buf);
+                        // Each event gets its own copy, as they do when read from XML
+                        event.mConfiguration = new Configuration();
+                        if (config > 0) {
+                            event.mConfiguration.setTo(configs[config - 1]);
+                        }
+                        break;
+                    }
+                    case UsageEvents.Event.SHORTCUT_INVOCATION: {
+                        final int id = readVarInt(buf);
+                        event.mShortcutId = (id > 0) ? strings[id - 1].intern() : null;
+                        break;
+                    }
+                }
+                // Events are stored in increasing time order
+                statsOut.events.append(event.mTimeStamp, event);
+                block[i] = null;
+            }
+        }
+    }
+
+    static void write(AtomicFile file, IntervalStats stats) throws IOException {
+        FileOutputStream fos = file.startWrite();
+        try {
+            fos.write(write(stats));
+            file.finishWrite(fos);
+            fos = null;
+        } finally {
+            // When fos is null (successful write), this will no-op
+            file.failWrite(fos);
+        }
+    }
+
+    static byte[] write(IntervalStats stats) throws IOException {
+        final StringTable strings = new StringTable();
+        final ArrayList<Configuration> configs = new ArrayList<>();
+
+        final Output packages = new Output();
+        writePackages(packages, stats, strings);
+        final Output configurations = new Output();
+        writeConfigurationStats(configurations, stats, configs);
+        final Output eventIndex = new Output();
+        final Output events = new Output();
+        final int eventCount = writeEvents(eventIndex, events, stats, strings, configs);
+
+        // The configuration table can only be written once the events have added theirs
+        final Output configTable = new Output();
+        writeConfigurationTable(configTable, configs);
+        final Output stringTable = new Output();
+        strings.appendTo(stringTable);
+
+        final int packagesOffset = HEADER_SIZE + stringTable.size();
+        final int configurationsOffset = packagesOffset + packages.size();
+        final int eventIndexOffset = configurationsOffset + configTable.size()
+                + configurations.size();
+        final int eventsOffset = eventIndexOffset + eventIndex.size();
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC_VERSION_1);
+        header.putLong(stats.endTime - stats.beginTime);
+        header.putInt(packagesOffset);
+        header.putInt(configurationsOffset);
+        header.putInt(eventIndexOffset);
+        header.putInt(eventsOffset);
+        header.putInt(eventCount);
+
+        final Output out = new Output();
+        out.write(header.array(), 0, HEADER_SIZE);
+        stringTable.appendTo(out);
+        packages.appendTo(out);
+        configTable.appendTo(out);
+        configurations.appendTo(out);
+        eventIndex.appendTo(out);
+        events.appendTo(out);
+        return out.toByteArray();
+    }
+
+    private static void writePackages(Output out, IntervalStats stats, StringTable strings) {
+        final int count = stats.packageStats.size();
+        out.writeVarInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeVarInt(strings.indexOf(stats.packageStats.valueAt(i).mPackageName));
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeZigZagLong(stats.packageStats.valueAt(i).mLastTimeUsed - stats.beginTime);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeZigZagLong(stats.packageStats.valueAt(i).mTotalTimeInForeground);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeZigZagLong(stats.packageStats.valueAt(i).mLastEvent);
+        }
+        for (int i = 0; i < count; i++) {
+            final ArrayMap<String, ArrayMap<String, Integer>> chooserCounts =
+                    stats.packageStats.valueAt(i).mChooserCounts;
+            if (chooserCounts == null) {
+                out.writeVarInt(0);
+                continue;
+            }
+            // Skip the same empty entries as the XML format does
+            int actionCount = 0;
+            for (int j = 0; j < chooserCounts.size(); j++) {
+                if (chooserCounts.keyAt(j) != null && chooserCounts.valueAt(j) != null
+                        && !chooserCounts.valueAt(j).isEmpty()) {
+                    actionCount++;
+                }
+            }
+            out.writeVarInt(actionCount);
+            for (int j = 0; j < chooserCounts.size(); j++) {
+                final String action = chooserCounts.keyAt(j);
+                final ArrayMap<String, Integer> counts = chooserCounts.valueAt(j);
+                if (action == null || counts == null || counts.isEmpty()) {
+                    continue;
+                }
+                out.writeVarInt(strings.indexOf(action));
+                int categoryCount = 0;
+                for (int k = 0; k < counts.size(); k++) {
+                    if (counts.valueAt(k) > 0) {
+                        categoryCount++;
+                    }
+                }
+                out.writeVarInt(categoryCount);
+                for (int k = 0; k < counts.size(); k++) {
+                    final int count2 = counts.valueAt(k);
+                    if (count2 > 0) {
+                        out.writeVarInt(strings.indexOf(counts.keyAt(k)));
+                        out.writeVarInt(count2);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeConfigurationTable(Output out, ArrayList<Configuration> configs)
+            throws IOException {
+        out.writeVarInt(configs.size());
+        final ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        for (int i = 0; i < configs.size(); i++) {
+            blob.reset();
+            final BinaryXmlSerializer xml = new BinaryXmlSerializer();
+            xml.setOutput(blob, StandardCharsets.UTF_8.name());
+            xml.startDocument(null, true);
+            xml.startTag(null, CONFIG_TAG);
+            Configuration.writeXmlAttrs(xml, configs.get(i));
+            xml.endTag(null, CONFIG_TAG);
+            xml.endDocument();
+            out.writeVarInt(blob.size());
+            out.write(blob.toByteArray(), 0, blob.size());
+        }
+    }
+
+    private static void writeConfigurationStats(Output out, IntervalStats stats,
+            ArrayList<Configuration> configs) {
+        final int count = stats.configurations.size();
+        out.writeVarInt(count);
+        int active = 0;
+        for (int i = 0; i < count; i++) {
+            final Configuration config = stats.configurations.keyAt(i);
+            out.writeVarInt(indexOfConfiguration(configs, config));
+            if (config.equals(stats.activeConfiguration)) {
+                active = i + 1;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeZigZagLong(stats.configurations.valueAt(i).mLastTimeActive
+                    - stats.beginTime);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeZigZagLong(stats.configurations.valueAt(i).mTotalTimeActive);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeVarInt(stats.configurations.valueAt(i).mActivationCount);
+        }
+        out.writeVarInt(active);
+    }
+
+    /**
+     * Writes the index of event blocks to {@code index}, and the blocks themselves to
+     * {@code out}.
+     *
+     * @return the number of events written.
+     */
+    private static int writeEvents(Output index, Output out, IntervalStats stats,
+            StringTable strings, ArrayList<Configuration> configs) {
+        final TimeSparseArray<UsageEvents.Event> events = stats.events;
+        final int eventCount = (events != null) ? events.size() : 0;
+        final int blockCount = (eventCount + EVENTS_PER_BLOCK - 1) / EVENTS_PER_BLOCK;
+        index.writeVarInt(blockCount);
+        long lastBlockBeginTime = stats.beginTime;
+        for (int start = 0; start < eventCount; start += EVENTS_PER_BLOCK) {
+            final int end = Math.min(start + EVENTS_PER_BLOCK, eventCount);
+            final long blockBeginTime = events.keyAt(start);
+            index.writeZigZagLong(blockBeginTime - lastBlockBeginTime);
+            index.writeVarLong(events.keyAt(end - 1) - blockBeginTime);
+            index.writeVarInt(out.size());
+            lastBlockBeginTime = blockBeginTime;
+
+            long time = stats.beginTime;
+            for (int i = start; i < end; i++) {
+                out.writeZigZagLong(events.keyAt(i) - time);
+                time = events.keyAt(i);
+            }
+            for (int i = start; i < end; i++) {
+                out.write(events.valueAt(i).mEventType);
+            }
+            for (int i = start; i < end; i++) {
+                out.writeVarInt(strings.indexOf(events.valueAt(i).mPackage));
+            }
+            for (int i = start; i < end; i++) {
+                final String clazz = events.valueAt(i).mClass;
+                out.writeVarInt((clazz != null) ? strings.indexOf(clazz) + 1 : 0);
+            }
+            for (int i = start; i < end; i++) {
+                out.writeVarInt(events.valueAt(i).mFlags);
+            }
+            for (int i = start; i < end; i++) {
+                final UsageEvents.Event event = events.valueAt(i);
+                switch (event.mEventType) {
+                    case UsageEvents.Event.CONFIGURATION_CHANGE:
+                        out.writeVarInt((event.mConfiguration != null)
+                                ? indexOfConfiguration(configs, event.mConfiguration) + 1 : 0);
+                        break;
+                    case UsageEvents.Event.SHORTCUT_INVOCATION:
+                        out.writeVarInt((event.mShortcutId != null)
+                                ? strings.indexOf(event.mShortcutId) + 1 : 0);
+                        break;
+                }
+            }
+        }
+        return eventCount;
+    }
+
+    private static int indexOfConfiguration(ArrayList<Configuration> configs,
+            Configuration config) {
+        final int index = configs.indexOf(config);
+        if (index >= 0) {
+            return index;
+        }
+        configs.add(config);
+        return configs.size() - 1;
+    }
+
+    private static int readVarInt(ByteBuffer buf) {
+        final long value = readVarLong(buf);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad value " + value);
+        }
+        return (int) value;
+    }
+
+    private static long readVarLong(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long readZigZagLong(ByteBuffer buf) {
+        final long value = readVarLong(buf);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Assigns an index to every distinct string in the order they are first seen. */
+    private static final class StringTable {
+        private final ArrayMap<String, Integer> mIndices = new ArrayMap<>();
+        private final ArrayList<String> mStrings = new ArrayList<>();
+
+        int indexOf(String s) {
+            final Integer index = mIndices.get(s);
+            if (index != null) {
+                return index;
+            }
+            mIndices.put(s, mStrings.size());
+            mStrings.add(s);
+            return mStrings.size() - 1;
+        }
+
+        void appendTo(Output out) {
+            out.writeVarInt(mStrings.size());
+            for (int i = 0; i < mStrings.size(); i++) {
+                final byte[] bytes = mStrings.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeVarInt(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeZigZagLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void appendTo(Output out) {
+            out.write(buf, 0, count);
+        }
+    }
+
+    private UsageStatsColumnar() {
+    }
+}
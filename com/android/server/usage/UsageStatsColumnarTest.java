@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.usage.ConfigurationStats;
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.os.LocaleList;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that stats written in the columnar format read back the same as when they are
+ * written and read as XML.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UsageStatsColumnarTest {
+    private static final long BEGIN_TIME = 1500000000000L;
+    private static final int NUM_PACKAGES = 5;
+    // Enough events to fill a few blocks
+    private static final int NUM_EVENTS = UsageStatsColumnar.EVENTS_PER_BLOCK * 3 + 10;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final IntervalStats stats = createStats();
+
+        final IntervalStats fromXml = readXml(stats);
+        final IntervalStats fromColumnar = new IntervalStats();
+        fromColumnar.beginTime = BEGIN_TIME;
+        UsageStatsColumnar.read(ByteBuffer.wrap(UsageStatsColumnar.write(stats)), fromColumnar,
+                UsageStatsDatabase.SECTION_ALL, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        assertSameStats(fromXml, fromColumnar);
+        assertEquals(stats.endTime, fromColumnar.endTime);
+        assertEquals(NUM_EVENTS, fromColumnar.events.size());
+    }
+
+    @Test
+    public void testConfigurationChangeWithoutConfiguration() throws Exception {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.events = new TimeSparseArray<>();
+        addEvent(stats, "com.example.package", null, BEGIN_TIME + 10,
+                UsageEvents.Event.CONFIGURATION_CHANGE);
+        stats.endTime = BEGIN_TIME + 10;
+
+        final IntervalStats fromColumnar = new IntervalStats();
+        fromColumnar.beginTime = BEGIN_TIME;
+        UsageStatsColumnar.read(ByteBuffer.wrap(UsageStatsColumnar.write(stats)), fromColumnar,
+                UsageStatsDatabase.SECTION_ALL, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        assertSameStats(readXml(stats), fromColumnar);
+        // Both formats read it back as an empty configuration
+        assertNotNull(fromColumnar.events.valueAt(0).mConfiguration);
+    }
+
+    @Test
+    public void testEventsInRange() throws Exception {
+        final IntervalStats stats = createStats();
+        final byte[] columnar = UsageStatsColumnar.write(stats);
+        final IntervalStats fromXml = readXml(stats);
+        final long beginTime = stats.events.keyAt(100);
+        final long endTime = stats.events.keyAt(120);
+
+        final IntervalStats fromColumnar = new IntervalStats();
+        fromColumnar.beginTime = BEGIN_TIME;
+        UsageStatsColumnar.read(ByteBuffer.wrap(columnar), fromColumnar,
+                UsageStatsDatabase.SECTION_EVENTS, beginTime, endTime);
+
+        // Only the blocks overlapping the range are decoded, and no other section
+        assertTrue(fromColumnar.packageStats.isEmpty());
+        assertTrue(fromColumnar.configurations.isEmpty());
+        assertEquals(UsageStatsColumnar.EVENTS_PER_BLOCK, fromColumnar.events.size());
+        for (int i = 100; i <= 120; i++) {
+            final int index = fromColumnar.events.indexOfKey(fromXml.events.keyAt(i));
+            assertTrue(index >= 0);
+            assertSameEvent(fromXml.events.valueAt(i), fromColumnar.events.valueAt(index));
+        }
+    }
+
+    private static IntervalStats createStats() {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.events = new TimeSparseArray<>();
+
+        final Configuration portrait = new Configuration();
+        portrait.orientation = Configuration.ORIENTATION_PORTRAIT;
+        portrait.densityDpi = 420;
+        portrait.setLocales(LocaleList.forLanguageTags("en-US,fr-FR"));
+        final Configuration landscape = new Configuration(portrait);
+        landscape.orientation = Configuration.ORIENTATION_LANDSCAPE;
+
+        long time = BEGIN_TIME;
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            time += 1000 + i;
+            final String packageName = "com.example.package" + (i % NUM_PACKAGES);
+            switch (i % 6) {
+                case 0:
+                    stats.update(packageName, time, UsageEvents.Event.MOVE_TO_FOREGROUND);
+                    addEvent(stats, packageName, packageName + ".Activity", time,
+                            UsageEvents.Event.MOVE_TO_FOREGROUND);
+                    break;
+                case 1:
+                    stats.update(packageName, time, UsageEvents.Event.MOVE_TO_BACKGROUND);
+                    addEvent(stats, packageName, packageName + ".Activity", time,
+                            UsageEvents.Event.MOVE_TO_BACKGROUND);
+                    break;
+                case 2: {
+                    final Configuration config = (i % 4 == 0) ? portrait : landscape;
+                    stats.updateConfigurationStats(config, time);
+                    addEvent(stats, "android", null, time,
+                            UsageEvents.Event.CONFIGURATION_CHANGE).mConfiguration = config;
+                    break;
+                }
+                case 3:
+                    // Written with no configuration, as by older versions
+                    addEvent(stats, "android", null, time,
+                            UsageEvents.Event.CONFIGURATION_CHANGE);
+                    break;
+                case 4: {
+                    final UsageEvents.Event event = addEvent(stats, packageName, null, time,
+                            UsageEvents.Event.SHORTCUT_INVOCATION);
+                    event.mShortcutId = (i % 4 == 0) ? "shortcut" + i : null;
+                    event.mFlags = UsageEvents.Event.FLAG_IS_PACKAGE_INSTANT_APP;
+                    break;
+                }
+                case 5:
+                    stats.updateChooserCounts(packageName, "category" + (i % 3),
+                            "android.intent.action.SEND");
+                    stats.update(packageName, time, UsageEvents.Event.USER_INTERACTION);
+                    addEvent(stats, packageName, null, time,
+                            UsageEvents.Event.USER_INTERACTION);
+                    break;
+            }
+        }
+        return stats;
+    }
+
+    private static UsageEvents.Event addEvent(IntervalStats stats, String packageName,
+            String className, long time, int type) {
+        final UsageEvents.Event event = stats.buildEvent(packageName, className);
+        event.mTimeStamp = time;
+        event.mEventType = type;
+        stats.events.put(time, event);
+        return event;
+    }
+
+    private static IntervalStats readXml(IntervalStats stats) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UsageStatsXml.write(out, stats);
+        final IntervalStats fromXml = new IntervalStats();
+        fromXml.beginTime = stats.beginTime;
+        UsageStatsXml.read(new ByteArrayInputStream(out.toByteArray()), fromXml);
+        return fromXml;
+    }
+
+    private static void assertSameStats(IntervalStats expected, IntervalStats actual) {
+        assertEquals(expected.beginTime, actual.beginTime);
+        assertEquals(expected.endTime, actual.endTime);
+
+        assertEquals(expected.packageStats.keySet(), actual.packageStats.keySet());
+        for (int i = 0; i < expected.packageStats.size(); i++) {
+            final UsageStats expectedPackage = expected.packageStats.valueAt(i);
+            final UsageStats actualPackage = actual.packageStats.get(
+                    expected.packageStats.keyAt(i));
+            assertEquals(expectedPackage.mLastTimeUsed, actualPackage.mLastTimeUsed);
+            assertEquals(expectedPackage.mTotalTimeInForeground,
+                    actualPackage.mTotalTimeInForeground);
+            assertEquals(expectedPackage.mLastEvent, actualPackage.mLastEvent);
+            assertEquals(expectedPackage.mChooserCounts, actualPackage.mChooserCounts);
+        }
+
+        assertEquals(expected.configurations.keySet(), actual.configurations.keySet());
+        for (int i = 0; i < expected.configurations.size(); i++) {
+            final ConfigurationStats expectedConfig = expected.configurations.valueAt(i);
+            final ConfigurationStats actualConfig = actual.configurations.get(
+                    expected.configurations.keyAt(i));
+            assertEquals(expectedConfig.mLastTimeActive, actualConfig.mLastTimeActive);
+            assertEquals(expectedConfig.mTotalTimeActive, actualConfig.mTotalTimeActive);
+            assertEquals(expectedConfig.mActivationCount, actualConfig.mActivationCount);
+        }
+        assertEquals(expected.activeConfiguration, actual.activeConfiguration);
+
+        if (expected.events == null) {
+            assertNull(actual.events);
+            return;
+        }
+        assertEquals(expected.events.size(), actual.events.size());
+        for (int i = 0; i < expected.events.size(); i++) {
+            assertEquals(expected.events.keyAt(i), actual.events.keyAt(i));
+            assertSameEvent(expected.events.valueAt(i), actual.events.valueAt(i));
+        }
+    }
+
+    private static void assertSameEvent(UsageEvents.Event expected, UsageEvents.Event actual) {
+        assertEquals(expected.mTimeStamp, actual.mTimeStamp);
+        assertEquals(expected.mEventType, actual.mEventType);
+        assertEquals(expected.mPackage, actual.mPackage);
+        assertEquals(expected.mClass, actual.mClass);
+        assertEquals(expected.mFlags, actual.mFlags);
+        assertEquals(expected.mShortcutId, actual.mShortcutId);
+        assertEquals(expected.mConfiguration, actual.mConfiguration);
+    }
+}
@@ -40,10 +40,18 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Provides an interface to query for UsageStat data from an XML database.
+ * Provides an interface to query for UsageStat data from a database of stats files.
  */
 class UsageStatsDatabase {
-    private static final int CURRENT_VERSION = 3;
+    // Version 4 writes stats files in the columnar format, but still reads the XML files
+    // written by earlier versions.
+    private static final int CURRENT_VERSION = 4;
+
+    // Sections of an IntervalStats that a query needs to read from disk
+    static final int SECTION_PACKAGES = 1 << 0;
+    static final int SECTION_CONFIGURATIONS = 1 << 1;
+    static final int SECTION_EVENTS = 1 << 2;
+    static final int SECTION_ALL = SECTION_PACKAGES | SECTION_CONFIGURATIONS | SECTION_EVENTS;
 
     // Current version of the backup schema
     static final int BACKUP_VERSION = 1;
@@ -154,7 +162,7 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats);
+                    readStats(files.valueAt(i), stats);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -357,7 +365,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats);
+                readStats(f, stats);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -391,6 +399,16 @@ class UsageStatsDatabase {
      */
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
             StatCombiner<T> combiner) {
+        return queryUsageStats(intervalType, beginTime, endTime, SECTION_ALL, combiner);
+    }
+
+    /**
+     * Find all {@link IntervalStats} for the given range and interval type, reading only the
+     * given sections of each. If the events are read, those far outside the range may be left
+     * out.
+     */
+    public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
+            int sections, StatCombiner<T> combiner) {
         synchronized (mLock) {
             if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
                 throw new IllegalArgumentException("Bad interval type " + intervalType);
@@ -443,7 +461,7 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    readStats(f, stats, sections, beginTime, endTime);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -519,6 +537,22 @@ class UsageStatsDatabase {
         }
     }
 
+    private static void readStats(AtomicFile file, IntervalStats statsOut) throws IOException {
+        readStats(file, statsOut, SECTION_ALL, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads a stats file in either the columnar format or the XML format it replaced. Only
+     * the columnar format can skip the sections and events that were not asked for.
+     */
+    private static void readStats(AtomicFile file, IntervalStats statsOut, int sections,
+            long eventsBeginTime, long eventsEndTime) throws IOException {
+        if (!UsageStatsColumnar.read(file, statsOut, sections, eventsBeginTime,
+                eventsEndTime)) {
+            UsageStatsXml.read(file, statsOut);
+        }
+    }
+
     private static void pruneFilesOlderThan(File dir, long expiryTime) {
         File[] files = dir.listFiles();
         if (files != null) {
@@ -562,7 +596,7 @@ class UsageStatsDatabase {
                     try {
                         final AtomicFile af = new AtomicFile(f);
                         final IntervalStats stats = new IntervalStats();
-                        UsageStatsXml.read(af, stats);
+                        readStats(af, stats);
                         final int pkgCount = stats.packageStats.size();
                         for (int i = 0; i < pkgCount; i++) {
                             UsageStats pkgStats = stats.packageStats.valueAt(i);
@@ -570,7 +604,7 @@ class UsageStatsDatabase {
                                 pkgStats.mChooserCounts.clear();
                             }
                         }
-                        UsageStatsXml.write(af, stats);
+                        UsageStatsColumnar.write(af, stats);
                     } catch (IOException e) {
                         Slog.e(TAG, "Failed to delete chooser counts from usage stats file", e);
                     }
@@ -596,7 +630,7 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            UsageStatsColumnar.write(f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
@@ -730,7 +764,7 @@ class UsageStatsDatabase {
             throws IOException {
         IntervalStats stats = new IntervalStats();
         try {
-            UsageStatsXml.read(statsFile, stats);
+            readStats(statsFile, stats);
         } catch (IOException e) {
             Slog.e(TAG, "Failed to read usage stats file", e);
             out.writeInt(0);